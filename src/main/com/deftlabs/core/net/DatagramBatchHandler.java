@@ -0,0 +1,37 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+/**
+ * The batch message handler interface. The server reads all of the messages
+ * that are ready (up to the batch size) and passes them to the handler at
+ * once, so the handler can amortize work (locks, writes, lookups) across
+ * the batch. The arrays are reused by the server; do not keep references
+ * to the messages after the call returns.
+ */
+public interface DatagramBatchHandler {
+
+    /**
+     * Called to execute the handler.
+     * @param pMsgs The datagram messages. Only the first pCount are valid.
+     * @param pCount The number of messages in the batch.
+     * @param pRespond Set pRespond[idx] to true if the buffer of message idx
+     * should be written (i.e, respond). All entries are false on entry.
+     */
+    public void execute(final DatagramMessage [] pMsgs, final int pCount, final boolean [] pRespond);
+}
+
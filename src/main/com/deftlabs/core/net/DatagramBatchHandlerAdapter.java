@@ -0,0 +1,42 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+/**
+ * Adapts a single message handler to the batch handler interface. Each
+ * message in the batch is passed to the handler in order.
+ */
+public final class DatagramBatchHandlerAdapter implements DatagramBatchHandler {
+
+    private final DatagramMessageHandler _handler;
+
+    /**
+     * Create a new adapter.
+     * @param pHandler The single message handler.
+     */
+    public DatagramBatchHandlerAdapter(final DatagramMessageHandler pHandler) {
+        if (pHandler == null) throw new IllegalArgumentException("handler not set");
+        _handler = pHandler;
+    }
+
+    public void execute(final DatagramMessage [] pMsgs, final int pCount, final boolean [] pRespond) {
+        for (int idx=0; idx < pCount; idx++) pRespond[idx] = _handler.execute(pMsgs[idx]);
+    }
+
+    public final DatagramMessageHandler getHandler() { return _handler; }
+}
+
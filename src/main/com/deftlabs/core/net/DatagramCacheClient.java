@@ -0,0 +1,217 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+
+// Java
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+/**
+ * A blocking client for the cache server. Each call sends one request and
+ * waits for the response with the same request id (stale responses are
+ * dropped). The request is resent on timeout up to the retry count. Access
+ * to this class is NOT thread-safe; use one client per thread.
+ */
+public final class DatagramCacheClient {
+
+    private final DatagramSocket _socket;
+    private final InetSocketAddress _server;
+    private final int _retries;
+
+    private final byte [] _request;
+    private final byte [] _response;
+    private final DatagramPacket _requestPacket;
+    private final DatagramPacket _responsePacket;
+
+    private int _requestId = 0;
+    private int _length = 0;
+
+    /**
+     * Create a new client.
+     * @param pServer The server address.
+     * @param pMaxPacketSize The max request/response size.
+     * @param pTimeout The response timeout in milliseconds.
+     * @param pRetries The number of times a request is resent on timeout.
+     * @throws IOException
+     */
+    public DatagramCacheClient( final InetSocketAddress pServer,
+                                final int pMaxPacketSize,
+                                final int pTimeout,
+                                final int pRetries)
+        throws IOException
+    {
+        _server = pServer;
+        _retries = pRetries;
+        _request = new byte[pMaxPacketSize];
+        _response = new byte[pMaxPacketSize];
+        _requestPacket = new DatagramPacket(_request, 0, pServer);
+        _responsePacket = new DatagramPacket(_response, pMaxPacketSize);
+
+        _socket = new DatagramSocket();
+        _socket.setSoTimeout(pTimeout);
+    }
+
+    public final void close() { _socket.close(); }
+
+    /**
+     * Returns the value or null if not found.
+     * @throws IOException On timeout (after the retries) or error.
+     */
+    public final byte [] get(final byte [] pKey) throws IOException {
+        start(DatagramCacheProtocol.OP_GET);
+        putKey(pKey);
+        final int status = call();
+        if (status == DatagramCacheProtocol.STATUS_MISS) return null;
+        check(status);
+        return readValue(DatagramCacheProtocol.HEADER_SIZE);
+    }
+
+    /**
+     * Store the value.
+     * @return False if the server did not store it (too large).
+     * @throws IOException On timeout (after the retries) or error.
+     */
+    public final boolean set(final byte [] pKey, final byte [] pValue) throws IOException {
+        start(DatagramCacheProtocol.OP_SET);
+        putKey(pKey);
+        putValue(pValue);
+        final int status = call();
+        if (status == DatagramCacheProtocol.STATUS_TOO_LARGE) return false;
+        check(status);
+        return true;
+    }
+
+    /**
+     * Delete the key.
+     * @return True if it was found.
+     * @throws IOException On timeout (after the retries) or error.
+     */
+    public final boolean delete(final byte [] pKey) throws IOException {
+        start(DatagramCacheProtocol.OP_DELETE);
+        putKey(pKey);
+        final int status = call();
+        if (status == DatagramCacheProtocol.STATUS_MISS) return false;
+        check(status);
+        return true;
+    }
+
+    /**
+     * Returns the values (null entries for the misses). If the server
+     * truncates the response, the remaining keys are requested again.
+     * @throws IOException On timeout (after the retries) or error.
+     */
+    public final byte [][] getMulti(final byte [][] pKeys) throws IOException {
+        final byte [][] values = new byte[pKeys.length][];
+
+        int next = 0;
+        while (next < pKeys.length) {
+            start(DatagramCacheProtocol.OP_MULTI_GET);
+            final int countPos = _length++;
+
+            int count = 0;
+            while (next + count < pKeys.length && count < DatagramCacheProtocol.MAX_MULTI_GET_KEYS) {
+                if (_length + 2 + pKeys[next + count].length > _request.length) break;
+                putKey(pKeys[next + count]);
+                count++;
+            }
+            if (count == 0) throw new IllegalArgumentException("key too large");
+            _request[countPos] = (byte)count;
+
+            final int status = call();
+            if (status != DatagramCacheProtocol.STATUS_TRUNCATED) check(status);
+
+            final int answered = _response[DatagramCacheProtocol.HEADER_SIZE] & 0xff;
+            if (answered == 0) throw new IOException("value too large for the packet size");
+
+            int pos = DatagramCacheProtocol.HEADER_SIZE + 1;
+            for (int idx=0; idx < answered; idx++) {
+                final int entryStatus = _response[pos++];
+                if (entryStatus == DatagramCacheProtocol.STATUS_OK) {
+                    values[next + idx] = readValue(pos);
+                    pos += 2 + values[next + idx].length;
+                } else if (entryStatus != DatagramCacheProtocol.STATUS_MISS) check(entryStatus);
+            }
+            next += answered;
+        }
+
+        return values;
+    }
+
+    private void start(final byte pOp) {
+        ByteUtils.setIntB(_request, DatagramCacheProtocol.ID_POS, ++_requestId);
+        _request[DatagramCacheProtocol.OP_POS] = pOp;
+        _length = DatagramCacheProtocol.HEADER_SIZE;
+    }
+
+    private void putKey(final byte [] pKey) {
+        if (pKey.length == 0 || pKey.length > DatagramCacheProtocol.MAX_KEY_LENGTH)
+        { throw new IllegalArgumentException("invalid key length: " + pKey.length); }
+        ByteUtils.setUShort(_request, _length, pKey.length);
+        System.arraycopy(pKey, 0, _request, _length + 2, pKey.length);
+        _length += 2 + pKey.length;
+    }
+
+    private void putValue(final byte [] pValue) {
+        if (_length + 2 + pValue.length > _request.length)
+        { throw new IllegalArgumentException("value too large: " + pValue.length); }
+        ByteUtils.setUShort(_request, _length, pValue.length);
+        System.arraycopy(pValue, 0, _request, _length + 2, pValue.length);
+        _length += 2 + pValue.length;
+    }
+
+    private byte [] readValue(final int pPos) {
+        final int length = ByteUtils.getUShort(_response, pPos);
+        final byte [] value = new byte[length];
+        System.arraycopy(_response, pPos + 2, value, 0, length);
+        return value;
+    }
+
+    private static void check(final int pStatus) throws IOException {
+        if (pStatus != DatagramCacheProtocol.STATUS_OK) throw new IOException("server error - status: " + pStatus);
+    }
+
+    /**
+     * Send the request and wait for the response.
+     * @return The response status.
+     */
+    private int call() throws IOException {
+        _requestPacket.setData(_request, 0, _length);
+        _requestPacket.setSocketAddress(_server);
+
+        for (int attempt=0; attempt <= _retries; attempt++) {
+            _socket.send(_requestPacket);
+            try {
+                while (true) {
+                    _responsePacket.setData(_response, 0, _response.length);
+                    _socket.receive(_responsePacket);
+                    if (_responsePacket.getLength() < DatagramCacheProtocol.HEADER_SIZE) continue;
+                    if (ByteUtils.getInt(_response, DatagramCacheProtocol.ID_POS) != _requestId) continue;
+                    return _response[DatagramCacheProtocol.STATUS_POS];
+                }
+            } catch (final SocketTimeoutException ste) { }
+        }
+
+        throw new SocketTimeoutException("no response - server: " + _server + " - request id: " + _requestId);
+    }
+}
+
@@ -0,0 +1,60 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+/**
+ * The cache server wire format. All values are big endian and start at the
+ * message offset. Every request starts with [request id (4)][op (1)] and
+ * every response with [request id (4)][status (1)]. The request id is
+ * chosen by the client and echoed by the server.
+ * <br/><br/>
+ *
+ * Get/delete request: [key length (2)][key].<br/>
+ * Set request: [key length (2)][key][value length (2)][value].<br/>
+ * Multi-get request: [count (1)] followed by count [key length (2)][key].
+ * <br/><br/>
+ *
+ * Get response (ok): [value length (2)][value].<br/>
+ * Multi-get response: [count (1)] followed by count [status (1)] entries,
+ * each followed by [value length (2)][value] if the status is ok. If the
+ * values do not fit in one packet, the status is truncated and the count
+ * is the number of keys answered (in request order).
+ */
+public final class DatagramCacheProtocol {
+
+    public static final byte OP_GET = 1;
+    public static final byte OP_SET = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_MULTI_GET = 4;
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_MISS = 1;
+    public static final byte STATUS_ERROR = 2;
+    public static final byte STATUS_TOO_LARGE = 3;
+    public static final byte STATUS_TRUNCATED = 4;
+
+    public static final int ID_POS = 0;
+    public static final int OP_POS = 4;
+    public static final int STATUS_POS = 4;
+    public static final int HEADER_SIZE = 5;
+
+    public static final int MAX_KEY_LENGTH = 250;
+    public static final int MAX_MULTI_GET_KEYS = 255;
+
+    private DatagramCacheProtocol() { }
+}
+
@@ -0,0 +1,213 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteArray;
+import com.deftlabs.core.util.ByteUtils;
+
+// Java
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A memcached style key/value cache server (get, set, delete and multi-get)
+ * over udp. See DatagramCacheProtocol for the wire format. The requests are
+ * parsed in place: the keys are looked up with a probe byte array that
+ * points into the message data, so a get does not allocate. Values are
+ * copied straight from the store into the reply buffer.
+ * <br/><br/>
+ *
+ * The server reads the requests in batches. The handler state (probe,
+ * reply buffer) is owned by the server thread; the store is thread-safe
+ * so it can be shared with other servers or code in the process. The
+ * contract is that you must call the startup/shutdown methods.
+ */
+public final class DatagramCacheServer implements DatagramBatchHandler {
+
+    private final DatagramServer _server;
+    private final DatagramCacheStore _store;
+
+    private final ByteArray _probe = new ByteArray();
+    private final ByteBuffer _reply;
+    private final byte [] _replyData;
+
+    private volatile long _requests = 0;
+    private volatile long _errors = 0;
+
+    private static final Logger LOG = Logger.getLogger(DatagramCacheServer.class.getName());
+
+    /**
+     * Create a new cache server.
+     * @param pStore The store.
+     * @param pBatchSize The max requests read per batch.
+     * @param pMaxPacketSize The max request/response size.
+     * @param pBindAddress The bind address. If null, it binds to all addresses.
+     * @param pPort The port.
+     * @throws IOException
+     */
+    public DatagramCacheServer( final DatagramCacheStore pStore,
+                                final int pBatchSize,
+                                final int pMaxPacketSize,
+                                final String pBindAddress,
+                                final int pPort)
+        throws IOException
+    {
+        if (pStore == null) throw new IllegalArgumentException("store not set");
+
+        _store = pStore;
+        _reply = ByteBuffer.allocate(pMaxPacketSize);
+        _replyData = _reply.array();
+        _server = new DatagramServer(this, null, pBatchSize, pMaxPacketSize, 0, pBindAddress, pPort);
+    }
+
+    public final void startup() { _server.startup(); }
+    public final void shutdown() { _server.shutdown(); }
+
+    public final DatagramCacheStore getStore() { return _store; }
+    public final DatagramServer getServer() { return _server; }
+
+    public final long getRequests() { return _requests; }
+    public final long getErrors() { return _errors; }
+
+    public void execute(final DatagramMessage [] pMsgs, final int pCount, final boolean [] pRespond) {
+        for (int idx=0; idx < pCount; idx++) {
+            final DatagramMessage msg = pMsgs[idx];
+            _requests++;
+
+            _reply.clear();
+            if (!process(msg.data, msg.offset, msg.buffer.position())) {
+                _errors++;
+                if (msg.buffer.position() - msg.offset < 4) continue;
+                _reply.clear();
+                _reply.put(msg.data, msg.offset, 4);
+                _reply.put(DatagramCacheProtocol.STATUS_ERROR);
+            }
+
+            reply(msg.getSocketAddress());
+        }
+    }
+
+    /**
+     * Process the request and write the reply.
+     * @return False if the request is malformed.
+     */
+    private boolean process(final byte [] pData, final int pOffset, final int pLimit) {
+        if (pLimit - pOffset < DatagramCacheProtocol.HEADER_SIZE) return false;
+
+        // Echo the request id.
+        _reply.put(pData, pOffset + DatagramCacheProtocol.ID_POS, 4);
+
+        int pos = pOffset + DatagramCacheProtocol.HEADER_SIZE;
+
+        switch (pData[pOffset + DatagramCacheProtocol.OP_POS]) {
+            case DatagramCacheProtocol.OP_GET:
+                if ((pos = probe(pData, pos, pLimit)) < 0) return false;
+                if (!get()) _reply.put(DatagramCacheProtocol.STATUS_TOO_LARGE);
+                return true;
+
+            case DatagramCacheProtocol.OP_SET:
+                final int keyPos = pos + 2;
+                if ((pos = probe(pData, pos, pLimit)) < 0) return false;
+                if (pos + 2 > pLimit) return false;
+
+                final int valueLength = ByteUtils.getUShort(pData, pos);
+                if (pos + 2 + valueLength > pLimit) return false;
+
+                final boolean stored = _store.put(pData, keyPos, _probe.length, pos + 2, valueLength);
+                _reply.put(stored ? DatagramCacheProtocol.STATUS_OK : DatagramCacheProtocol.STATUS_TOO_LARGE);
+                return true;
+
+            case DatagramCacheProtocol.OP_DELETE:
+                if ((pos = probe(pData, pos, pLimit)) < 0) return false;
+                _reply.put(_store.remove(_probe) ? DatagramCacheProtocol.STATUS_OK : DatagramCacheProtocol.STATUS_MISS);
+                return true;
+
+            case DatagramCacheProtocol.OP_MULTI_GET:
+                return multiGet(pData, pos, pLimit);
+
+            default: return false;
+        }
+    }
+
+    /**
+     * Point the probe at the key.
+     * @return The position after the key or -1 if malformed.
+     */
+    private int probe(final byte [] pData, final int pPos, final int pLimit) {
+        if (pPos + 2 > pLimit) return -1;
+        final int length = ByteUtils.getUShort(pData, pPos);
+        if (length == 0 || length > DatagramCacheProtocol.MAX_KEY_LENGTH || pPos + 2 + length > pLimit) return -1;
+
+        _probe.data = pData;
+        _probe.offset = pPos + 2;
+        _probe.length = length;
+        return pPos + 2 + length;
+    }
+
+    /**
+     * Look up the probe and write [status][value length][value].
+     * @return False if the value did not fit (nothing is written).
+     */
+    private boolean get() {
+        final int statusPos = _reply.position();
+        final int room = _reply.remaining() - 3;
+        if (room < 0) return false;
+
+        final int length = _store.get(_probe, _replyData, statusPos + 3, room);
+        if (length < 0) { _reply.put(DatagramCacheProtocol.STATUS_MISS); return true; }
+        if (length > room) return false;
+
+        _reply.put(DatagramCacheProtocol.STATUS_OK);
+        _reply.putShort((short)length);
+        _reply.position(_reply.position() + length);
+        return true;
+    }
+
+    private boolean multiGet(final byte [] pData, final int pPos, final int pLimit) {
+        if (pPos >= pLimit) return false;
+        final int count = pData[pPos] & 0xff;
+
+        final int statusPos = _reply.position();
+        _reply.put(DatagramCacheProtocol.STATUS_OK);
+        final int countPos = _reply.position();
+        _reply.put((byte)0);
+
+        int pos = pPos + 1;
+        int answered = 0;
+        for (; answered < count; answered++) {
+            if ((pos = probe(pData, pos, pLimit)) < 0) return false;
+            if (!get()) {
+                _replyData[statusPos] = DatagramCacheProtocol.STATUS_TRUNCATED;
+                break;
+            }
+        }
+
+        _replyData[countPos] = (byte)answered;
+        return true;
+    }
+
+    private void reply(final SocketAddress pTarget) {
+        _reply.flip();
+        try { _server.send(_reply, pTarget);
+        } catch (final IOException ioe) { LOG.log(Level.FINE, "reply failed - target: " + pTarget + " - " + ioe.getMessage()); }
+    }
+}
+
@@ -0,0 +1,281 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteArray;
+
+// Java
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The memory bounded key/value store used by the cache server. Keys are
+ * hashed to a stripe and each stripe is an lru (access ordered) map with
+ * its own lock and its own share of the memory budget, so threads working
+ * on different stripes do not contend.
+ * <br/><br/>
+ *
+ * The key and the value of an entry are copied into one array. Lookups
+ * take a probe byte array that may point into any buffer (e.g., the
+ * message data), so reads do not allocate.
+ * <br/><br/>
+ *
+ * The stripes are plain access ordered maps rather than LruMaps: the
+ * stripe lock already covers the lookup, the copy and the counters, and an
+ * LruMap would take a second lock on every call.
+ */
+public final class DatagramCacheStore {
+
+    private final Stripe [] _stripes;
+    private final int _mask;
+    private final long _maxBytes;
+
+    /**
+     * The estimated per entry overhead (map entry, byte array objects and
+     * the array header).
+     */
+    public static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * Create a new store.
+     * @param pStripes The number of stripes (rounded up to a power of two).
+     * @param pMaxBytes The max bytes (keys, values and overhead).
+     */
+    public DatagramCacheStore(final int pStripes, final long pMaxBytes) {
+        if (pStripes < 1) throw new IllegalArgumentException("invalid stripes: " + pStripes);
+        if (pMaxBytes < pStripes) throw new IllegalArgumentException("invalid max bytes: " + pMaxBytes);
+
+        int stripes = 1;
+        while (stripes < pStripes) stripes <<= 1;
+
+        _mask = stripes - 1;
+        _maxBytes = pMaxBytes;
+        _stripes = new Stripe[stripes];
+        for (int idx=0; idx < stripes; idx++) _stripes[idx] = new Stripe(pMaxBytes / stripes);
+    }
+
+    private Stripe stripeFor(final ByteArray pKey) {
+        int hash = pKey.hashCode();
+        hash ^= (hash >>> 16);
+        return _stripes[hash & _mask];
+    }
+
+    /**
+     * Copy the value to the destination if found.
+     * @param pKey The key (probe).
+     * @param pDest The destination.
+     * @param pDestOffset The destination offset.
+     * @param pMaxLength The max bytes that may be copied.
+     * @return The value length or -1 if not found. If the value length is
+     * more than the max, nothing is copied.
+     */
+    public final int get(   final ByteArray pKey,
+                            final byte [] pDest,
+                            final int pDestOffset,
+                            final int pMaxLength)
+    {
+        final Stripe stripe = stripeFor(pKey);
+        stripe.lock.lock();
+        try {
+            final ByteArray value = stripe.map.get(pKey);
+            if (value == null) { stripe.misses++; return -1; }
+
+            stripe.hits++;
+            if (value.length <= pMaxLength) System.arraycopy(value.data, value.offset, pDest, pDestOffset, value.length);
+            return value.length;
+
+        } finally { stripe.lock.unlock(); }
+    }
+
+    /**
+     * Returns a copy of the value or null if not found.
+     * @param pKey The key.
+     */
+    public final byte [] get(final ByteArray pKey) {
+        final Stripe stripe = stripeFor(pKey);
+        stripe.lock.lock();
+        try {
+            final ByteArray value = stripe.map.get(pKey);
+            if (value == null) { stripe.misses++; return null; }
+
+            stripe.hits++;
+            final byte [] copy = new byte[value.length];
+            System.arraycopy(value.data, value.offset, copy, 0, value.length);
+            return copy;
+
+        } finally { stripe.lock.unlock(); }
+    }
+
+    /**
+     * Copy the key and value and store them. The least recently used
+     * entries of the stripe are evicted until it fits.
+     * @param pData The source data.
+     * @param pKeyOffset The key offset.
+     * @param pKeyLength The key length.
+     * @param pValueOffset The value offset.
+     * @param pValueLength The value length.
+     * @return False if the entry is larger than the stripe budget.
+     */
+    public final boolean put(   final byte [] pData,
+                                final int pKeyOffset,
+                                final int pKeyLength,
+                                final int pValueOffset,
+                                final int pValueLength)
+    {
+        final byte [] entry = new byte[pKeyLength + pValueLength];
+        System.arraycopy(pData, pKeyOffset, entry, 0, pKeyLength);
+        System.arraycopy(pData, pValueOffset, entry, pKeyLength, pValueLength);
+        return store(entry, pKeyLength);
+    }
+
+    /**
+     * Store the key and value (copied).
+     */
+    public final boolean put(final byte [] pKey, final byte [] pValue) {
+        final byte [] entry = new byte[pKey.length + pValue.length];
+        System.arraycopy(pKey, 0, entry, 0, pKey.length);
+        System.arraycopy(pValue, 0, entry, pKey.length, pValue.length);
+        return store(entry, pKey.length);
+    }
+
+    private boolean store(final byte [] pEntry, final int pKeyLength) {
+        final ByteArray key = new ByteArray(pEntry, 0, pKeyLength);
+        final ByteArray value = new ByteArray(pEntry, pKeyLength, pEntry.length - pKeyLength);
+        final long size = pEntry.length + ENTRY_OVERHEAD;
+
+        final Stripe stripe = stripeFor(key);
+        if (size > stripe.maxBytes) return false;
+
+        stripe.lock.lock();
+        try {
+            // Remove first: a put on an existing key keeps the old key, which
+            // shares its array with the old value.
+            final ByteArray previous = stripe.map.remove(key);
+            if (previous != null) stripe.bytes -= previous.data.length + ENTRY_OVERHEAD;
+            stripe.map.put(key, value);
+            stripe.bytes += size;
+            stripe.evict();
+            return true;
+
+        } finally { stripe.lock.unlock(); }
+    }
+
+    /**
+     * Remove the entry.
+     * @param pKey The key (probe).
+     * @return True if found.
+     */
+    public final boolean remove(final ByteArray pKey) {
+        final Stripe stripe = stripeFor(pKey);
+        stripe.lock.lock();
+        try {
+            final ByteArray previous = stripe.map.remove(pKey);
+            if (previous == null) return false;
+            stripe.bytes -= previous.data.length + ENTRY_OVERHEAD;
+            return true;
+
+        } finally { stripe.lock.unlock(); }
+    }
+
+    public final int size() {
+        int size = 0;
+        for (final Stripe stripe : _stripes) {
+            stripe.lock.lock();
+            try { size += stripe.map.size();
+            } finally { stripe.lock.unlock(); }
+        }
+        return size;
+    }
+
+    public final long getMaxBytes() { return _maxBytes; }
+
+    public final long getBytes() {
+        long total = 0;
+        for (final Stripe stripe : _stripes) total += stripe.bytes;
+        return total;
+    }
+
+    /**
+     * Returns the bytes actually held by the entries (each backing array
+     * counted once), for checking the accounting.
+     */
+    final long getRetainedBytes() {
+        long total = 0;
+        for (final Stripe stripe : _stripes) {
+            stripe.lock.lock();
+            try {
+                final IdentityHashMap<byte [], Boolean> arrays = new IdentityHashMap<byte [], Boolean>();
+                for (final Map.Entry<ByteArray, ByteArray> entry : stripe.map.entrySet()) {
+                    arrays.put(entry.getKey().data, Boolean.TRUE);
+                    arrays.put(entry.getValue().data, Boolean.TRUE);
+                    total += ENTRY_OVERHEAD;
+                }
+                for (final byte [] data : arrays.keySet()) total += data.length;
+            } finally { stripe.lock.unlock(); }
+        }
+        return total;
+    }
+
+    public final long getHits() {
+        long total = 0;
+        for (final Stripe stripe : _stripes) total += stripe.hits;
+        return total;
+    }
+
+    public final long getMisses() {
+        long total = 0;
+        for (final Stripe stripe : _stripes) total += stripe.misses;
+        return total;
+    }
+
+    public final long getEvictions() {
+        long total = 0;
+        for (final Stripe stripe : _stripes) total += stripe.evictions;
+        return total;
+    }
+
+    /**
+     * The stripe. The map is access ordered and only touched under the lock.
+     */
+    private static final class Stripe {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<ByteArray, ByteArray> map = new LinkedHashMap<ByteArray, ByteArray>(16, 0.75f, true);
+        private final long maxBytes;
+
+        private volatile long bytes = 0;
+        private volatile long hits = 0;
+        private volatile long misses = 0;
+        private volatile long evictions = 0;
+
+        private Stripe(final long pMaxBytes) { maxBytes = pMaxBytes; }
+
+        private void evict() {
+            final Iterator<ByteArray> iter = map.values().iterator();
+            while (bytes > maxBytes && iter.hasNext()) {
+                final ByteArray value = iter.next();
+                iter.remove();
+                bytes -= value.data.length + ENTRY_OVERHEAD;
+                evictions++;
+            }
+        }
+    }
+}
+
@@ -0,0 +1,275 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.NetUtils;
+import com.deftlabs.core.util.ThreadBase;
+
+// Java
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The per-source ordered dispatch lanes. Each message is copied to a lane
+ * picked by hashing the source address and port, and every lane is a single
+ * thread, so the messages from one source are handled in order while
+ * different sources are handled in parallel. The lanes drain their queue
+ * in batches and pass them to the server handler.
+ * <br/><br/>
+ *
+ * The server thread never blocks on a lane. If the lane queue is full, the
+ * message is dropped and counted. Created by the server (see
+ * DatagramServer.setDispatchLanes).
+ */
+public final class DatagramLanes {
+
+    private final DatagramServer _server;
+    private final DatagramBatchHandler _handler;
+    private final Lane [] _lanes;
+
+    private static final int HOT_SOURCES = 8;
+
+    private static final Logger LOG = Logger.getLogger(DatagramLanes.class.getName());
+
+    /**
+     * Create the lanes.
+     * @param pServer The server (used to send the responses).
+     * @param pHandler The handler called by the lanes.
+     * @param pLanes The number of lanes (threads).
+     * @param pQueueCapacity The max messages queued per lane.
+     * @param pBatchSize The max messages per handler call.
+     */
+    DatagramLanes(  final DatagramServer pServer,
+                    final DatagramBatchHandler pHandler,
+                    final int pLanes,
+                    final int pQueueCapacity,
+                    final int pBatchSize)
+    {
+        if (pLanes < 1) throw new IllegalArgumentException("invalid lane count: " + pLanes);
+        if (pQueueCapacity < 1) throw new IllegalArgumentException("invalid queue capacity: " + pQueueCapacity);
+
+        _server = pServer;
+        _handler = pHandler;
+        _lanes = new Lane[pLanes];
+        for (int idx=0; idx < pLanes; idx++) _lanes[idx] = new Lane(idx, pQueueCapacity, pBatchSize);
+    }
+
+    void startup() { for (final Lane lane : _lanes) lane.startup(); }
+
+    void shutdown() { for (final Lane lane : _lanes) lane.shutdown(); }
+
+    /**
+     * Copy the messages to their lanes. Called by the server thread.
+     * @param pMsgs The messages.
+     * @param pCount The number of messages.
+     */
+    void dispatch(final DatagramMessage [] pMsgs, final int pCount) {
+        for (int idx=0; idx < pCount; idx++) {
+            final DatagramMessage msg = pMsgs[idx];
+            _lanes[laneFor(msg.getSourceAddress(), msg.getSourcePort())].enqueue(msg);
+        }
+    }
+
+    /**
+     * Returns the lane for the source.
+     * @param pAddress The source address (int format).
+     * @param pPort The source port.
+     */
+    final int laneFor(final int pAddress, final int pPort) {
+        return (int)((mix(pAddress, pPort) & 0xffffffffL) % _lanes.length);
+    }
+
+    private static int mix(final int pAddress, final int pPort) {
+        int hash = pAddress * 31 + pPort;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    public final int getLaneCount() { return _lanes.length; }
+
+    public final long getEnqueued(final int pLane) { return _lanes[pLane].enqueued; }
+    public final long getProcessed(final int pLane) { return _lanes[pLane].processed; }
+    public final long getDropped(final int pLane) { return _lanes[pLane].dropped; }
+    public final int getDepth(final int pLane) { return _lanes[pLane].ready.size(); }
+    public final int getMaxDepth(final int pLane) { return _lanes[pLane].maxDepth; }
+
+    /**
+     * Returns the skew: the busiest lane's processed count divided by the
+     * mean. One means the load is even.
+     */
+    public final double getSkew() {
+        long total = 0;
+        long max = 0;
+        for (final Lane lane : _lanes) {
+            total += lane.processed;
+            max = Math.max(max, lane.processed);
+        }
+        return (total == 0) ? 1.0 : ((double)max * _lanes.length) / total;
+    }
+
+    /**
+     * Returns a report of the lane load and the hottest sources per lane.
+     * The source counts are approximate (space-saving top-k).
+     */
+    public final String getSkewReport() {
+        long total = 0;
+        for (final Lane lane : _lanes) total += lane.processed;
+
+        final StringBuilder report = new StringBuilder("lanes: ");
+        report.append(_lanes.length);
+        report.append(" - skew: ");
+        report.append(String.format("%.2f", getSkew()));
+
+        for (final Lane lane : _lanes) {
+            report.append("\nlane: ").append(lane.index);
+            report.append(" - processed: ").append(lane.processed);
+            report.append(" - share: ").append(String.format("%.1f%%", (total == 0) ? 0.0 : (lane.processed * 100.0) / total));
+            report.append(" - depth: ").append(lane.ready.size());
+            report.append(" - max depth: ").append(lane.maxDepth);
+            report.append(" - dropped: ").append(lane.dropped);
+            report.append(" - hot sources:");
+            lane.appendHotSources(report);
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * The lane worker. Only the server thread enqueues and only the lane
+     * thread takes.
+     */
+    private final class Lane extends ThreadBase {
+
+        private final int index;
+        private final int batchSize;
+
+        private final ArrayBlockingQueue<DatagramMessage> ready;
+        private final ArrayBlockingQueue<DatagramMessage> free;
+
+        private final DatagramMessage [] batch;
+        private final boolean [] respond;
+
+        // The space-saving top-k sources (written by the lane thread).
+        private final long [] sources = new long[HOT_SOURCES];
+        private final long [] counts = new long[HOT_SOURCES];
+
+        private volatile long enqueued = 0;
+        private volatile long processed = 0;
+        private volatile long dropped = 0;
+        private volatile int maxDepth = 0;
+
+        private Lane(final int pIndex, final int pQueueCapacity, final int pBatchSize) {
+            index = pIndex;
+            batchSize = pBatchSize;
+            ready = new ArrayBlockingQueue<DatagramMessage>(pQueueCapacity);
+            free = new ArrayBlockingQueue<DatagramMessage>(pQueueCapacity);
+            for (int idx=0; idx < pQueueCapacity; idx++)
+            { free.add(new DatagramMessage(_server.getBufferSize(), _server.getBufferOffset())); }
+
+            batch = new DatagramMessage[pBatchSize];
+            respond = new boolean[pBatchSize];
+            setName(_server.getName() + "-lane-" + pIndex);
+        }
+
+        private void enqueue(final DatagramMessage pMsg) {
+            final DatagramMessage copy = free.poll();
+            if (copy == null) { dropped++; return; }
+
+            copy.reset();
+            copy.buffer.put(pMsg.data, copy.offset, pMsg.buffer.position() - copy.offset);
+            copy.socketAddress = pMsg.socketAddress;
+
+            ready.add(copy);
+            enqueued++;
+
+            final int depth = ready.size();
+            if (depth > maxDepth) maxDepth = depth;
+        }
+
+        public void run() {
+            while (_running) {
+                int count = 0;
+                try {
+                    markIdle();
+                    final DatagramMessage first = ready.take();
+                    heartbeat();
+                    batch[count++] = first;
+                    while (count < batchSize) {
+                        final DatagramMessage msg = ready.poll();
+                        if (msg == null) break;
+                        batch[count++] = msg;
+                    }
+
+                    for (int idx=0; idx < count; idx++) {
+                        respond[idx] = false;
+                        track(batch[idx]);
+                    }
+
+                    _handler.execute(batch, count, respond);
+
+                    for (int idx=0; idx < count; idx++) {
+                        if (respond[idx]) _server.send(batch[idx].buffer, batch[idx].socketAddress);
+                    }
+
+                } catch (final InterruptedException ie) { if (_running) LOG.log(Level.WARNING, getName() + " interrupted");
+                } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t);
+                } finally {
+                    processed += count;
+                    for (int idx=0; idx < count; idx++) {
+                        free.add(batch[idx]);
+                        batch[idx] = null;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Count the source with the space-saving algorithm: increment it if
+         * tracked, otherwise replace the min entry and inherit its count.
+         */
+        private void track(final DatagramMessage pMsg) {
+            final long source = ((pMsg.getSourceAddress() & 0xffffffffL) << 16) | pMsg.getSourcePort();
+            int min = 0;
+            for (int idx=0; idx < HOT_SOURCES; idx++) {
+                if (counts[idx] > 0 && sources[idx] == source) { counts[idx]++; return; }
+                if (counts[idx] < counts[min]) min = idx;
+            }
+            sources[min] = source;
+            counts[min]++;
+        }
+
+        private void appendHotSources(final StringBuilder pReport) {
+            for (int idx=0; idx < HOT_SOURCES; idx++) {
+                final long count = counts[idx];
+                if (count == 0) continue;
+                final long source = sources[idx];
+                pReport.append(' ');
+                pReport.append(NetUtils.decodeIpV4Addr((int)(source >>> 16)));
+                pReport.append(':');
+                pReport.append(source & 0xffff);
+                pReport.append('=');
+                pReport.append(count);
+            }
+        }
+    }
+}
+
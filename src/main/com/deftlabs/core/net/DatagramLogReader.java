@@ -0,0 +1,91 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.FileUtils;
+
+// Java
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the records of a log segment written by the log server. The file
+ * is memory mapped (read only). Reading stops at the end of the file or at
+ * the zero filled tail of a recovered segment.
+ * <br/><br/>
+ *
+ * Access to this class is NOT thread-safe.
+ */
+public final class DatagramLogReader {
+
+    private final ByteBuffer _buffer;
+
+    private int _length;
+    private long _time;
+    private int _sourceAddress;
+    private int _sourcePort;
+    private int _payloadPosition;
+
+    /**
+     * Create a new reader.
+     * @param pFileName The segment file name.
+     */
+    public DatagramLogReader(final String pFileName) { _buffer = FileUtils.mapFileToBuffer(pFileName); }
+
+    /**
+     * Move to the next record.
+     * @return False if there are no more records.
+     */
+    public final boolean next() {
+        if (_buffer.remaining() < DatagramLogServer.RECORD_HEADER_SIZE) return false;
+
+        final int start = _buffer.position();
+        final int length = _buffer.getInt(start);
+        final long time = _buffer.getLong(start + 4);
+        if (time == 0 || length < 0 || length > _buffer.remaining() - DatagramLogServer.RECORD_HEADER_SIZE) return false;
+
+        _length = length;
+        _time = time;
+        _sourceAddress = _buffer.getInt(start + 12);
+        _sourcePort = _buffer.getShort(start + 16) & 0xffff;
+        _payloadPosition = start + DatagramLogServer.RECORD_HEADER_SIZE;
+
+        _buffer.position(_payloadPosition + length);
+        return true;
+    }
+
+    public final long getTime() { return _time; }
+
+    /**
+     * Returns the source address in int format.
+     */
+    public final int getSourceAddress() { return _sourceAddress; }
+    public final int getSourcePort() { return _sourcePort; }
+    public final int getPayloadLength() { return _length; }
+
+    /**
+     * Copy the payload.
+     * @param pDest The destination (at least the payload length).
+     * @param pOffset The destination offset.
+     */
+    public final void getPayload(final byte [] pDest, final int pOffset) {
+        final ByteBuffer payload = _buffer.duplicate();
+        payload.position(_payloadPosition);
+        payload.get(pDest, pOffset, _length);
+    }
+}
+
@@ -0,0 +1,325 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.OemException;
+import com.deftlabs.core.util.FileUtils;
+import com.deftlabs.core.util.ThreadBase;
+import com.deftlabs.core.util.TimerWheel;
+
+// Java
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A udp log (e.g., syslog) ingest server. Each datagram is appended as a
+ * record to a chunk buffer by the server thread. Full chunks (and chunks
+ * older than the linger time) are handed to the writer thread, which writes
+ * them to a pre-allocated segment file. The segment is rolled on size or
+ * age: it is truncated to the bytes written and renamed with
+ * FileUtils.createFileName (start and stop times in seconds).
+ * <br/><br/>
+ *
+ * The receive loop never blocks: if no free chunk is available (the writer
+ * is behind), the datagram is dropped and counted. Record format (big
+ * endian): [payload length (4)][time millis (8)][source address (4)]
+ * [source port (2)][payload]. See DatagramLogReader.
+ * <br/><br/>
+ *
+ * The contract is that you must call the startup/shutdown methods.
+ */
+public final class DatagramLogServer implements DatagramBatchHandler {
+
+    public static final int RECORD_HEADER_SIZE = 18;
+
+    public static final String EXTENSION = "log";
+    public static final String ACTIVE_EXTENSION = "active";
+    public static final byte FORMAT_ID = 2;
+    public static final byte VERSION_ID = 1;
+
+    private final DatagramServer _server;
+    private final Writer _writer;
+
+    private final String _dataDir;
+    private final String _prefix;
+    private final short _nodeId;
+    private final byte _instanceId;
+    private final long _segmentSize;
+    private final long _maxSegmentAgeMillis;
+    private final long _lingerMillis;
+
+    private final ArrayBlockingQueue<ByteBuffer> _free;
+    private final ArrayBlockingQueue<ByteBuffer> _ready;
+
+    // Owned by the server thread.
+    private ByteBuffer _chunk;
+    private long _chunkTime = 0;
+
+    private volatile long _received = 0;
+    private volatile long _dropped = 0;
+    private volatile long _bytesWritten = 0;
+    private volatile long _segments = 0;
+
+    private boolean _sync = false;
+
+    private static final Logger LOG = Logger.getLogger(DatagramLogServer.class.getName());
+
+    /**
+     * Create a new log server.
+     * @param pDataDir The data directory. Don't include trailing /.
+     * @param pPrefix The file name prefix.
+     * @param pNodeId The node id.
+     * @param pInstanceId The instance id.
+     * @param pSegmentSize The segment size (pre-allocated).
+     * @param pMaxSegmentAgeMillis The max segment age before it is rolled.
+     * @param pChunkSize The chunk size (max bytes per write).
+     * @param pChunks The number of chunks (the buffering between the
+     * receive loop and the writer is pChunks * pChunkSize).
+     * @param pLingerMillis The max time a partial chunk waits for the writer.
+     * @param pBatchSize The max datagrams read per batch.
+     * @param pBufferSize The max datagram size.
+     * @param pBindAddress The bind address. If null, it binds to all addresses.
+     * @param pPort The port.
+     * @throws IOException
+     */
+    public DatagramLogServer(   final String pDataDir,
+                                final String pPrefix,
+                                final short pNodeId,
+                                final byte pInstanceId,
+                                final long pSegmentSize,
+                                final long pMaxSegmentAgeMillis,
+                                final int pChunkSize,
+                                final int pChunks,
+                                final long pLingerMillis,
+                                final int pBatchSize,
+                                final int pBufferSize,
+                                final String pBindAddress,
+                                final int pPort)
+        throws IOException
+    {
+        if (pChunkSize < pBufferSize + RECORD_HEADER_SIZE) throw new IllegalArgumentException("chunk smaller than a record: " + pChunkSize);
+        if (pSegmentSize < pChunkSize) throw new IllegalArgumentException("segment smaller than a chunk: " + pSegmentSize);
+        if (pChunks < 2) throw new IllegalArgumentException("invalid chunk count: " + pChunks);
+
+        _dataDir = pDataDir;
+        _prefix = pPrefix;
+        _nodeId = pNodeId;
+        _instanceId = pInstanceId;
+        _segmentSize = pSegmentSize;
+        _maxSegmentAgeMillis = pMaxSegmentAgeMillis;
+        _lingerMillis = pLingerMillis;
+
+        _free = new ArrayBlockingQueue<ByteBuffer>(pChunks);
+        _ready = new ArrayBlockingQueue<ByteBuffer>(pChunks);
+        for (int idx=0; idx < pChunks - 1; idx++) _free.add(ByteBuffer.allocateDirect(pChunkSize));
+        _chunk = ByteBuffer.allocateDirect(pChunkSize);
+
+        _server = new DatagramServer(this, null, pBatchSize, pBufferSize, 0, pBindAddress, pPort);
+
+        // Wait for the server thread on shutdown (the linger timer wakes it)
+        // so the last chunk can be handed off safely.
+        _server.setJoinThread(true);
+
+        _writer = new Writer();
+        _writer.setName(_server.getName() + "-writer");
+    }
+
+    public final void startup() {
+        FileUtils.createDir(_dataDir);
+        _writer.recover();
+        _writer.startup();
+        _server.startup();
+        _server.execute(new Runnable() {
+            public void run() { _server.schedule(_linger, _lingerMillis, TimeUnit.MILLISECONDS); }
+        });
+    }
+
+    /**
+     * Stop receiving, write the buffered records and roll the segment.
+     */
+    public final void shutdown() {
+        _server.shutdown();
+
+        // The server thread is stopped so the chunk can be handed off here.
+        if (_chunk != null && _chunk.position() > 0) _ready.offer(_chunk);
+        _chunk = null;
+
+        _writer.shutdown();
+    }
+
+    /**
+     * Force the segment to disk after each write (default false).
+     */
+    public final void setSync(final boolean pV) { _sync = pV; }
+
+    public final DatagramServer getServer() { return _server; }
+
+    public final long getReceived() { return _received; }
+    public final long getDropped() { return _dropped; }
+    public final long getBytesWritten() { return _bytesWritten; }
+    public final long getSegments() { return _segments; }
+
+    public final String getActiveFileName() { return _dataDir + "/" + _prefix + "." + ACTIVE_EXTENSION; }
+
+    public void execute(final DatagramMessage [] pMsgs, final int pCount, final boolean [] pRespond) {
+        final long now = System.currentTimeMillis();
+        for (int idx=0; idx < pCount; idx++) {
+            final DatagramMessage msg = pMsgs[idx];
+            final int length = msg.buffer.position() - msg.offset;
+            _received++;
+
+            if (_chunk != null && _chunk.remaining() < length + RECORD_HEADER_SIZE) handOff();
+            if (_chunk == null && (_chunk = _free.poll()) == null) { _dropped++; continue; }
+
+            if (_chunk.position() == 0) _chunkTime = now;
+            _chunk.putInt(length);
+            _chunk.putLong(now);
+            _chunk.putInt(msg.getSourceAddress());
+            _chunk.putShort((short)msg.getSourcePort());
+            _chunk.put(msg.data, msg.offset, length);
+        }
+    }
+
+    /**
+     * Pass the current chunk to the writer (never blocks).
+     */
+    private void handOff() {
+        if (_chunk == null || _chunk.position() == 0) return;
+        _ready.offer(_chunk);
+        _chunk = _free.poll();
+    }
+
+    /**
+     * Hand off partial chunks older than the linger time.
+     */
+    private final TimerWheel.Task _linger = new TimerWheel.Task() {
+        public void execute(final TimerWheel.Timeout pTimeout) {
+            if (_chunk == null) _chunk = _free.poll();
+            else if (_chunk.position() > 0 && System.currentTimeMillis() - _chunkTime >= _lingerMillis) handOff();
+            _server.schedule(this, _lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    };
+
+    /**
+     * The segment writer.
+     */
+    private final class Writer extends ThreadBase {
+
+        private final Random random = new Random();
+
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private long position = 0;
+        private long startTime = 0;
+
+        private Writer() { _joinThread = true; }
+
+        /**
+         * Roll the active segment left by a crash. The unused pre-allocated
+         * tail is zero (the reader stops at a record with no time).
+         */
+        private void recover() {
+            if (!FileUtils.fileExists(getActiveFileName())) return;
+            try {
+                file = new RandomAccessFile(getActiveFileName(), "rw");
+                channel = file.getChannel();
+                position = channel.size();
+                startTime = System.currentTimeMillis();
+                roll();
+            } catch (final IOException ioe) { throw new OemException("unable to recover: " + getActiveFileName(), ioe); }
+        }
+
+        public void run() {
+            while (_running || !_ready.isEmpty()) {
+                try {
+                    final ByteBuffer chunk = _ready.poll(_lingerMillis, TimeUnit.MILLISECONDS);
+                    if (chunk != null) {
+                        write(chunk);
+                        chunk.clear();
+                        _free.add(chunk);
+                    }
+
+                    if (channel != null && System.currentTimeMillis() - startTime >= _maxSegmentAgeMillis) roll();
+
+                } catch (final InterruptedException ie) { if (_running) LOG.log(Level.WARNING, getName() + " interrupted");
+                } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t); }
+            }
+
+            try { roll();
+            } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t); }
+        }
+
+        private void write(final ByteBuffer pChunk) throws IOException {
+            pChunk.flip();
+            if (channel != null && position + pChunk.remaining() > _segmentSize) roll();
+            if (channel == null) open();
+
+            final int length = pChunk.remaining();
+            while (pChunk.hasRemaining()) position += channel.write(pChunk, position);
+            if (_sync) channel.force(false);
+            _bytesWritten += length;
+        }
+
+        /**
+         * Create and pre-allocate the active segment.
+         */
+        private void open() throws IOException {
+            final String fileName = getActiveFileName();
+            file = new RandomAccessFile(fileName, "rw");
+            file.setLength(_segmentSize);
+            channel = file.getChannel();
+            position = 0;
+            startTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Truncate the active segment to the bytes written and rename it.
+         */
+        private void roll() throws IOException {
+            if (channel == null) return;
+
+            channel.truncate(position);
+            channel.force(true);
+            file.close();
+            channel = null;
+            file = null;
+
+            final String fileName = FileUtils.createFileName(   _dataDir,
+                                                                _prefix,
+                                                                EXTENSION,
+                                                                _nodeId,
+                                                                _instanceId,
+                                                                FORMAT_ID,
+                                                                VERSION_ID,
+                                                                (int)(startTime / 1000),
+                                                                (int)(System.currentTimeMillis() / 1000),
+                                                                random.nextInt(Integer.MAX_VALUE));
+            try { FileUtils.renameFile(getActiveFileName(), fileName);
+            } catch (final OemException oe) { throw new IOException("unable to roll segment: " + fileName, oe); }
+            _segments++;
+        }
+    }
+}
+
@@ -67,6 +67,18 @@ public final class DatagramMessage {
         return _sourceAddress;
     }
 
+    /**
+     * Returns the source port.
+     * @return The source port.
+     */
+    public final int getSourcePort() { return socketAddress.getPort(); }
+
+    /**
+     * Returns the source socket address.
+     * @return The source address.
+     */
+    public final InetSocketAddress getSocketAddress() { return socketAddress; }
+
     final void reset() {
         buffer.clear();
         buffer.position(offset);
@@ -0,0 +1,146 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteArray;
+import com.deftlabs.core.util.LogLinearHistogram;
+
+/**
+ * An aggregated metric (counter, gauge or timer). The metrics server keeps
+ * one per key per ingest thread and merges them into the flush totals. The
+ * accumulators are primitives and the histogram is fixed size, so updates
+ * do not allocate. The sink sees the flush totals; do not keep references
+ * after the sink call returns.
+ * <br/><br/>
+ *
+ * Timer values are recorded in thousandths of the unit sent (e.g.,
+ * microseconds for millisecond timers).
+ */
+public final class DatagramMetric {
+
+    public static final byte COUNTER = 'c';
+    public static final byte GAUGE = 'g';
+    public static final byte TIMER = 't';
+
+    /**
+     * The timer value scale (three decimal places are kept).
+     */
+    public static final int TIMER_SCALE = 1000;
+
+    private final ByteArray _key;
+    private final byte _type;
+
+    // Counter.
+    private double _sum = 0;
+    private long _count = 0;
+
+    // Gauge.
+    private double _value = 0;
+    private double _delta = 0;
+    private boolean _set = false;
+    private long _setTime = 0;
+
+    // Timer.
+    private LogLinearHistogram _histogram;
+
+    private int _idleFlushes = 0;
+
+    DatagramMetric(final ByteArray pKey, final byte pType) {
+        _key = pKey;
+        _type = pType;
+        if (pType == TIMER) _histogram = new LogLinearHistogram();
+    }
+
+    final void count(final double pValue, final double pSampleRate) {
+        _sum += (pSampleRate > 0 && pSampleRate < 1) ? pValue / pSampleRate : pValue;
+        _count++;
+    }
+
+    final void gauge(final double pValue, final boolean pRelative, final long pTime) {
+        _count++;
+        if (pRelative) { _delta += pValue; return; }
+        _value = pValue;
+        _delta = 0;
+        _set = true;
+        _setTime = pTime;
+    }
+
+    final void time(final double pValue) {
+        _count++;
+        _histogram.record((long)(pValue * TIMER_SCALE));
+    }
+
+    /**
+     * Merge the other metric (same key and type) into this one.
+     */
+    final void merge(final DatagramMetric pOther) {
+        _count += pOther._count;
+        switch (_type) {
+            case COUNTER: _sum += pOther._sum; break;
+            case GAUGE:
+                if (pOther._set && (!_set || pOther._setTime >= _setTime)) {
+                    _value = pOther._value;
+                    _set = true;
+                    _setTime = pOther._setTime;
+                }
+                _value += pOther._delta;
+                break;
+            case TIMER: _histogram.merge(pOther._histogram); break;
+            default: break;
+        }
+    }
+
+    /**
+     * Clear the interval values. Gauges keep their value.
+     */
+    final void reset() {
+        _count = 0;
+        _sum = 0;
+        _delta = 0;
+        _set = false;
+        if (_histogram != null) _histogram.reset();
+    }
+
+    final boolean isIdle() { return _count == 0; }
+
+    final int idleFlushes(final boolean pIdle) { return _idleFlushes = pIdle ? _idleFlushes + 1 : 0; }
+
+    public final ByteArray getKey() { return _key; }
+    public final byte getType() { return _type; }
+
+    /**
+     * Returns the number of samples in the interval.
+     */
+    public final long getCount() { return _count; }
+
+    /**
+     * Returns the counter sum (adjusted for the sample rates).
+     */
+    public final double getSum() { return _sum; }
+
+    /**
+     * Returns the gauge value.
+     */
+    public final double getValue() { return _value; }
+
+    /**
+     * Returns the timer histogram (values scaled by TIMER_SCALE).
+     */
+    public final LogLinearHistogram getHistogram() { return _histogram; }
+}
+
@@ -0,0 +1,183 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.OemException;
+import com.deftlabs.core.util.FileUtils;
+import com.deftlabs.core.util.LogLinearHistogram;
+
+// Java
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * A metrics sink that appends one text line per metric to the active file
+ * and rolls it when it reaches the max size or age. Rolled files are named
+ * with FileUtils.createFileName (the start and stop times are in seconds).
+ * <br/><br/>
+ *
+ * Lines: [timestamp] [key] c [sum] [count] [sum per second]<br/>
+ * [timestamp] [key] g [value]<br/>
+ * [timestamp] [key] t [count] [min] [mean] [p50] [p90] [p99] [max]
+ * <br/><br/>
+ *
+ * Access to this class is NOT thread-safe (it is called by the flush
+ * thread).
+ */
+public final class DatagramMetricsFileSink implements DatagramMetricsSink {
+
+    private final String _dataDir;
+    private final String _prefix;
+    private final short _nodeId;
+    private final byte _instanceId;
+    private final long _maxBytes;
+    private final long _maxAgeMillis;
+
+    private final String _activeFileName;
+    private final StringBuilder _line = new StringBuilder(256);
+    private final Random _random = new Random();
+
+    private OutputStream _out;
+    private long _bytes = 0;
+    private long _startTime = 0;
+    private long _rolls = 0;
+
+    public static final String EXTENSION = "txt";
+    public static final byte FORMAT_ID = 1;
+    public static final byte VERSION_ID = 1;
+
+    /**
+     * Create a new file sink.
+     * @param pDataDir The data directory. Don't include trailing /.
+     * @param pPrefix The file name prefix.
+     * @param pNodeId The node id.
+     * @param pInstanceId The instance id.
+     * @param pMaxBytes The max file size before it is rolled.
+     * @param pMaxAgeMillis The max file age before it is rolled.
+     */
+    public DatagramMetricsFileSink( final String pDataDir,
+                                    final String pPrefix,
+                                    final short pNodeId,
+                                    final byte pInstanceId,
+                                    final long pMaxBytes,
+                                    final long pMaxAgeMillis)
+    {
+        _dataDir = pDataDir;
+        _prefix = pPrefix;
+        _nodeId = pNodeId;
+        _instanceId = pInstanceId;
+        _maxBytes = pMaxBytes;
+        _maxAgeMillis = pMaxAgeMillis;
+        _activeFileName = pDataDir + "/" + pPrefix + ".active";
+    }
+
+    public void execute(final long pTimestamp,
+                        final long pIntervalMillis,
+                        final Collection<DatagramMetric> pMetrics)
+    {
+        try {
+            if (_out != null && (_bytes >= _maxBytes || pTimestamp - _startTime >= _maxAgeMillis)) roll(pTimestamp);
+            if (_out == null) open(pTimestamp);
+
+            for (final DatagramMetric metric : pMetrics) {
+                _line.setLength(0);
+                _line.append(pTimestamp).append(' ');
+                _line.append(metric.getKey().toString()).append(' ');
+
+                switch (metric.getType()) {
+                    case DatagramMetric.COUNTER:
+                        _line.append("c ").append(metric.getSum()).append(' ').append(metric.getCount());
+                        _line.append(' ').append((metric.getSum() * 1000) / pIntervalMillis);
+                        break;
+
+                    case DatagramMetric.GAUGE:
+                        _line.append("g ").append(metric.getValue());
+                        break;
+
+                    case DatagramMetric.TIMER:
+                        final LogLinearHistogram histogram = metric.getHistogram();
+                        _line.append("t ").append(histogram.getCount());
+                        appendScaled(histogram.getMin());
+                        appendScaled((long)histogram.getMean());
+                        appendScaled(histogram.getValueAtPercentile(50));
+                        appendScaled(histogram.getValueAtPercentile(90));
+                        appendScaled(histogram.getValueAtPercentile(99));
+                        appendScaled(histogram.getMax());
+                        break;
+
+                    default: continue;
+                }
+
+                _line.append('\n');
+                final byte [] data = _line.toString().getBytes("UTF-8");
+                _out.write(data);
+                _bytes += data.length;
+            }
+
+            _out.flush();
+
+        } catch (final IOException ioe) { throw new OemException("metrics file: " + _activeFileName, ioe); }
+    }
+
+    private void appendScaled(final long pValue)
+    { _line.append(' ').append((double)pValue / DatagramMetric.TIMER_SCALE); }
+
+    private void open(final long pTimestamp) throws IOException {
+        FileUtils.createDir(_dataDir);
+        _out = new BufferedOutputStream(new FileOutputStream(_activeFileName, true));
+        _startTime = pTimestamp;
+        _bytes = 0;
+    }
+
+    /**
+     * Close the active file and rename it.
+     */
+    private void roll(final long pTimestamp) throws IOException {
+        _out.close();
+        _out = null;
+
+        FileUtils.renameFile(_activeFileName, FileUtils.createFileName(  _dataDir,
+                                                                        _prefix,
+                                                                        EXTENSION,
+                                                                        _nodeId,
+                                                                        _instanceId,
+                                                                        FORMAT_ID,
+                                                                        VERSION_ID,
+                                                                        (int)(_startTime / 1000),
+                                                                        (int)(pTimestamp / 1000),
+                                                                        _random.nextInt(Integer.MAX_VALUE)));
+        _rolls++;
+    }
+
+    /**
+     * Roll the active file (if any) and close.
+     */
+    public final void close() {
+        if (_out == null) return;
+        try { roll(System.currentTimeMillis());
+        } catch (final IOException ioe) { throw new OemException("metrics file: " + _activeFileName, ioe); }
+    }
+
+    public final long getRolls() { return _rolls; }
+    public final String getActiveFileName() { return _activeFileName; }
+}
+
@@ -0,0 +1,392 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteArray;
+import com.deftlabs.core.util.ThreadBase;
+
+// Java
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A statsd style metrics ingest server. Each datagram holds one or more
+ * lines of the form name:value|type[|@rate] where the type is c (counter),
+ * g (gauge, a leading sign makes it relative), ms or h (timer). The lines
+ * are parsed directly from the message data and aggregated into per key
+ * primitive accumulators and histograms (see DatagramMetric). The only
+ * allocation is the first time a key is seen.
+ * <br/><br/>
+ *
+ * Every ingest thread (the server thread or the dispatch lanes, see
+ * getServer().setDispatchLanes) aggregates into its own maps, guarded by a
+ * lock that only the flush contends for, so ingest scales with the lanes.
+ * The flush thread merges the per thread maps every interval and passes the
+ * totals to the sink, and drops the maps of threads that have ended. Keys
+ * with no samples for the idle flush count are dropped. Virtual dispatch
+ * (a thread per message) is not supported. The contract is that you must
+ * call the startup/shutdown methods.
+ */
+public final class DatagramMetricsServer implements DatagramBatchHandler {
+
+    private final DatagramServer _server;
+    private final DatagramMetricsSink _sink;
+    private final long _intervalMillis;
+    private final Flusher _flusher;
+
+    private int _maxIdleFlushes = 10;
+
+    private final CopyOnWriteArrayList<Aggregator> _aggregators = new CopyOnWriteArrayList<Aggregator>();
+    private final ThreadLocal<Aggregator> _local = new ThreadLocal<Aggregator>() {
+        protected Aggregator initialValue() {
+            final Aggregator aggregator = new Aggregator(Thread.currentThread());
+            _aggregators.add(aggregator);
+            return aggregator;
+        }
+    };
+
+    // The flush totals (guarded by the flush lock).
+    private final ReentrantLock _flushLock = new ReentrantLock();
+    private final Aggregator _totals = new Aggregator(null);
+    private final ArrayList<DatagramMetric> _flushed = new ArrayList<DatagramMetric>();
+
+    private volatile long _flushes = 0;
+
+    // The counts of the dropped (ended thread) aggregators.
+    private volatile long _retiredLines = 0;
+    private volatile long _retiredErrors = 0;
+
+    private static final double [] POW10 = new double[19];
+    static { POW10[0] = 1; for (int idx=1; idx < POW10.length; idx++) POW10[idx] = POW10[idx - 1] * 10; }
+
+    private static final Logger LOG = Logger.getLogger(DatagramMetricsServer.class.getName());
+
+    /**
+     * Create a new metrics server.
+     * @param pSink The flush sink.
+     * @param pIntervalMillis The flush interval.
+     * @param pBatchSize The max datagrams read per batch.
+     * @param pBufferSize The max datagram size.
+     * @param pBindAddress The bind address. If null, it binds to all addresses.
+     * @param pPort The port.
+     * @throws IOException
+     */
+    public DatagramMetricsServer(   final DatagramMetricsSink pSink,
+                                    final long pIntervalMillis,
+                                    final int pBatchSize,
+                                    final int pBufferSize,
+                                    final String pBindAddress,
+                                    final int pPort)
+        throws IOException
+    {
+        if (pSink == null) throw new IllegalArgumentException("sink not set");
+        if (pIntervalMillis < 1) throw new IllegalArgumentException("invalid interval: " + pIntervalMillis);
+
+        _sink = pSink;
+        _intervalMillis = pIntervalMillis;
+        _server = new DatagramServer(this, null, pBatchSize, pBufferSize, 0, pBindAddress, pPort);
+        _flusher = new Flusher();
+        _flusher.setName(_server.getName() + "-flusher");
+    }
+
+    /**
+     * Start the server.
+     * @throws IllegalStateException If the server has virtual dispatch enabled.
+     */
+    public final void startup() {
+        if (_server.isVirtualDispatch()) throw new IllegalStateException("virtual dispatch is not supported - use the dispatch lanes");
+        _server.startup();
+        _flusher.startup();
+    }
+
+    /**
+     * Stop the server and flush the remaining values.
+     */
+    public final void shutdown() {
+        _server.shutdown();
+        _flusher.shutdown();
+        flush();
+    }
+
+    public final DatagramServer getServer() { return _server; }
+
+    /**
+     * Set the number of flushes a key may go without samples before it is
+     * dropped (default 10).
+     */
+    public final void setMaxIdleFlushes(final int pV) { _maxIdleFlushes = pV; }
+
+    public final long getFlushes() { return _flushes; }
+
+    final int getAggregatorCount() { return _aggregators.size(); }
+
+    public final long getLines() {
+        long total = _retiredLines;
+        for (final Aggregator aggregator : _aggregators) total += aggregator.lines;
+        return total;
+    }
+
+    public final long getErrors() {
+        long total = _retiredErrors;
+        for (final Aggregator aggregator : _aggregators) total += aggregator.errors;
+        return total;
+    }
+
+    public void execute(final DatagramMessage [] pMsgs, final int pCount, final boolean [] pRespond) {
+        final Aggregator aggregator = _local.get();
+        aggregator.lock.lock();
+        try {
+            for (int idx=0; idx < pCount; idx++) {
+                final DatagramMessage msg = pMsgs[idx];
+                aggregator.parse(msg.data, msg.offset, msg.buffer.position());
+            }
+        } finally { aggregator.lock.unlock(); }
+    }
+
+    /**
+     * Merge the per thread values and pass the totals to the sink. This is
+     * called by the flush thread every interval and may be called directly.
+     */
+    public final void flush() {
+        _flushLock.lock();
+        try {
+            for (final Aggregator aggregator : _aggregators) {
+                aggregator.lock.lock();
+                try { aggregator.drainTo(_totals, _maxIdleFlushes);
+                } finally { aggregator.lock.unlock(); }
+
+                // An ended thread never writes again (checked after the drain).
+                if (aggregator.thread.isAlive()) continue;
+                _retiredLines += aggregator.lines;
+                _retiredErrors += aggregator.errors;
+                _aggregators.remove(aggregator);
+            }
+
+            _flushed.clear();
+            _totals.collect(_flushed);
+
+            try { _sink.execute(System.currentTimeMillis(), _intervalMillis, _flushed);
+            } catch (final Throwable t) { LOG.log(Level.SEVERE, "sink failed - " + t.getMessage(), t); }
+
+            _totals.drainTo(null, _maxIdleFlushes);
+            _flushes++;
+
+        } finally { _flushLock.unlock(); }
+    }
+
+    /**
+     * The per thread maps and parser state.
+     */
+    private static final class Aggregator {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // The ingest thread (null for the totals).
+        private final Thread thread;
+
+        private final HashMap<ByteArray, DatagramMetric> counters = new HashMap<ByteArray, DatagramMetric>();
+        private final HashMap<ByteArray, DatagramMetric> gauges = new HashMap<ByteArray, DatagramMetric>();
+        private final HashMap<ByteArray, DatagramMetric> timers = new HashMap<ByteArray, DatagramMetric>();
+
+        private final ByteArray probe = new ByteArray();
+
+        // The number parser result.
+        private double number;
+        private int numberEnd;
+
+        private volatile long lines = 0;
+        private volatile long errors = 0;
+
+        private Aggregator(final Thread pThread) { thread = pThread; }
+
+        /**
+         * Parse and aggregate the lines.
+         */
+        private void parse(final byte [] pData, final int pPos, final int pLimit) {
+            int start = pPos;
+            while (start < pLimit) {
+                int end = start;
+                while (end < pLimit && pData[end] != '\n') end++;
+
+                int lineEnd = end;
+                if (lineEnd > start && pData[lineEnd - 1] == '\r') lineEnd--;
+                if (lineEnd > start) {
+                    lines++;
+                    if (!parseLine(pData, start, lineEnd)) errors++;
+                }
+
+                start = end + 1;
+            }
+        }
+
+        private boolean parseLine(final byte [] pData, final int pStart, final int pEnd) {
+            int colon = pStart;
+            while (colon < pEnd && pData[colon] != ':') colon++;
+            if (colon == pStart || colon >= pEnd - 1) return false;
+
+            final boolean signed = pData[colon + 1] == '+' || pData[colon + 1] == '-';
+            if (!parseNumber(pData, colon + 1, pEnd)) return false;
+            final double value = number;
+
+            int pos = numberEnd;
+            if (pos >= pEnd || pData[pos] != '|') return false;
+            pos++;
+
+            final int typeStart = pos;
+            while (pos < pEnd && pData[pos] != '|') pos++;
+            final int typeLength = pos - typeStart;
+
+            double rate = 1;
+            if (pos < pEnd) {
+                if (pos + 2 >= pEnd || pData[pos + 1] != '@') return false;
+                if (!parseNumber(pData, pos + 2, pEnd) || numberEnd != pEnd) return false;
+                rate = number;
+            }
+
+            probe.data = pData;
+            probe.offset = pStart;
+            probe.length = colon - pStart;
+
+            final byte type = pData[typeStart];
+            if (typeLength == 1 && type == 'c') {
+                metric(counters, DatagramMetric.COUNTER).count(value, rate);
+            } else if (typeLength == 1 && type == 'g') {
+                metric(gauges, DatagramMetric.GAUGE).gauge(value, signed, System.nanoTime());
+            } else if ((typeLength == 2 && type == 'm' && pData[typeStart + 1] == 's') || (typeLength == 1 && type == 'h')) {
+                metric(timers, DatagramMetric.TIMER).time(value);
+            } else return false;
+
+            return true;
+        }
+
+        /**
+         * Parse [sign]digits[.digits] into number/numberEnd.
+         */
+        private boolean parseNumber(final byte [] pData, final int pPos, final int pEnd) {
+            int pos = pPos;
+            boolean negative = false;
+            if (pos < pEnd && (pData[pos] == '-' || pData[pos] == '+')) negative = pData[pos++] == '-';
+
+            long mantissa = 0;
+            int digits = 0;
+            int decimals = 0;
+            boolean fraction = false;
+
+            for (; pos < pEnd; pos++) {
+                final byte b = pData[pos];
+                if (b >= '0' && b <= '9') {
+                    if (digits < 18) {
+                        mantissa = (mantissa * 10) + (b - '0');
+                        if (fraction) decimals++;
+                    } else if (!fraction) return false;
+                    digits++;
+                } else if (b == '.' && !fraction) fraction = true;
+                else break;
+            }
+
+            if (digits == 0) return false;
+
+            final double value = mantissa / POW10[decimals];
+            number = negative ? -value : value;
+            numberEnd = pos;
+            return true;
+        }
+
+        /**
+         * Returns the metric for the probe (created with a copy of the key
+         * the first time).
+         */
+        private DatagramMetric metric(final HashMap<ByteArray, DatagramMetric> pMap, final byte pType) {
+            final DatagramMetric metric = pMap.get(probe);
+            if (metric != null) return metric;
+
+            final byte [] key = new byte[probe.length];
+            System.arraycopy(probe.data, probe.offset, key, 0, probe.length);
+            final DatagramMetric created = new DatagramMetric(new ByteArray(key), pType);
+            pMap.put(created.getKey(), created);
+            return created;
+        }
+
+        /**
+         * Merge the interval values into the totals (if set), reset them and
+         * drop the keys that have been idle too long.
+         */
+        private void drainTo(final Aggregator pTotals, final int pMaxIdleFlushes) {
+            drainTo(counters, (pTotals == null) ? null : pTotals.counters, pMaxIdleFlushes);
+            drainTo(gauges, (pTotals == null) ? null : pTotals.gauges, pMaxIdleFlushes);
+            drainTo(timers, (pTotals == null) ? null : pTotals.timers, pMaxIdleFlushes);
+        }
+
+        private static void drainTo(final HashMap<ByteArray, DatagramMetric> pFrom,
+                                    final HashMap<ByteArray, DatagramMetric> pTo,
+                                    final int pMaxIdleFlushes)
+        {
+            final Iterator<DatagramMetric> iter = pFrom.values().iterator();
+            while (iter.hasNext()) {
+                final DatagramMetric metric = iter.next();
+                final boolean idle = metric.isIdle();
+                if (metric.idleFlushes(idle) > pMaxIdleFlushes) { iter.remove(); continue; }
+                if (idle) continue;
+
+                if (pTo != null) {
+                    DatagramMetric total = pTo.get(metric.getKey());
+                    if (total == null) {
+                        total = new DatagramMetric(metric.getKey(), metric.getType());
+                        pTo.put(total.getKey(), total);
+                    }
+                    total.merge(metric);
+                }
+                metric.reset();
+            }
+        }
+
+        /**
+         * Add the metrics with samples (and all gauges) to the list.
+         */
+        private void collect(final ArrayList<DatagramMetric> pMetrics) {
+            for (final DatagramMetric metric : counters.values()) if (!metric.isIdle()) pMetrics.add(metric);
+            pMetrics.addAll(gauges.values());
+            for (final DatagramMetric metric : timers.values()) if (!metric.isIdle()) pMetrics.add(metric);
+        }
+    }
+
+    /**
+     * The flush thread.
+     */
+    private final class Flusher extends ThreadBase {
+        public void run() {
+            long next = System.currentTimeMillis() + _intervalMillis;
+            while (_running) {
+                try {
+                    final long wait = next - System.currentTimeMillis();
+                    if (wait > 0) { Thread.sleep(wait); continue; }
+                    next += _intervalMillis;
+                    flush();
+
+                } catch (final InterruptedException ie) { if (_running) LOG.log(Level.WARNING, getName() + " interrupted");
+                } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t); }
+            }
+        }
+    }
+}
+
@@ -0,0 +1,38 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// Java
+import java.util.Collection;
+
+/**
+ * The metrics flush sink. Called by the metrics server flush thread once
+ * per interval.
+ */
+public interface DatagramMetricsSink {
+
+    /**
+     * Called to write the metrics.
+     * @param pTimestamp The flush time (milliseconds).
+     * @param pIntervalMillis The flush interval.
+     * @param pMetrics The metrics updated in the interval (and all gauges).
+     */
+    public void execute(final long pTimestamp,
+                        final long pIntervalMillis,
+                        final Collection<DatagramMetric> pMetrics);
+}
+
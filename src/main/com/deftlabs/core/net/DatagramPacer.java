@@ -0,0 +1,235 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.TokenBucket;
+
+// Java
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces datagram sends to a packet and byte rate. Each send reserves one
+ * packet token and (size) byte tokens and waits until both are available.
+ * Long waits park the thread and the final stretch spins so the packet
+ * goes out close to its scheduled time. Packets due within the batch slack
+ * are sent without waiting, which trades a little smoothness for fewer
+ * wake ups.
+ * <br/><br/>
+ *
+ * Use this for the datagram server replies (DatagramServer.setPacer) or from
+ * client code that owns the channel. Access to this class is thread-safe,
+ * but senders sharing a pacer share the rate. A sender interrupted while
+ * waiting does not send the packet; an InterruptedIOException is thrown
+ * and the interrupt flag is left set.
+ */
+public final class DatagramPacer {
+
+    private final TokenBucket _packets;
+    private final TokenBucket _bytes;
+
+    private volatile long _spinNanos = TimeUnit.MICROSECONDS.toNanos(50);
+    private volatile long _batchSlackNanos = 0;
+
+    private final AtomicLong _packetsSent = new AtomicLong();
+    private final AtomicLong _bytesSent = new AtomicLong();
+    private final AtomicLong _paced = new AtomicLong();
+    private final AtomicLong _totalError = new AtomicLong();
+    private final AtomicLong _maxError = new AtomicLong();
+    private volatile long _startTime = System.nanoTime();
+
+    /**
+     * Create a new pacer.
+     * @param pPacketsPerSecond The max packets per second.
+     * @param pBytesPerSecond The max bytes per second.
+     * @param pBurstPackets The number of packets that can be sent back to
+     * back after being idle (the byte burst is based on this).
+     * @param pMaxPacketSize The max packet size (used for the byte burst).
+     */
+    public DatagramPacer(   final long pPacketsPerSecond,
+                            final long pBytesPerSecond,
+                            final int pBurstPackets,
+                            final int pMaxPacketSize)
+    {
+        _packets = new TokenBucket(pPacketsPerSecond, pBurstPackets);
+        _bytes = new TokenBucket(pBytesPerSecond, (long)pBurstPackets * pMaxPacketSize);
+    }
+
+    /**
+     * Send the buffer (position to limit) when the rate allows.
+     * @param pChannel The channel.
+     * @param pBuffer The buffer.
+     * @param pTarget The target address.
+     * @return The number of bytes sent.
+     * @throws IOException (InterruptedIOException if interrupted while waiting)
+     */
+    public final int send(  final DatagramChannel pChannel,
+                            final ByteBuffer pBuffer,
+                            final SocketAddress pTarget)
+        throws IOException
+    {
+        pace(pBuffer.remaining());
+        return sent(pChannel.send(pBuffer, pTarget));
+    }
+
+    /**
+     * Write the buffer (position to limit) to a connected channel when the
+     * rate allows.
+     * @param pChannel The connected channel.
+     * @param pBuffer The buffer.
+     * @return The number of bytes sent.
+     * @throws IOException (InterruptedIOException if interrupted while waiting)
+     */
+    public final int write(final DatagramChannel pChannel, final ByteBuffer pBuffer)
+        throws IOException
+    {
+        pace(pBuffer.remaining());
+        return sent(pChannel.write(pBuffer));
+    }
+
+    /**
+     * Send a batch of buffers. Each buffer is paced, so the batch is spread
+     * out over the time the rate requires.
+     * @param pChannel The channel.
+     * @param pBuffers The buffers.
+     * @param pTargets The target addresses (one per buffer).
+     * @param pCount The number of buffers to send.
+     * @return The number of bytes sent.
+     * @throws IOException (InterruptedIOException if interrupted while waiting)
+     */
+    public final long flush(final DatagramChannel pChannel,
+                            final ByteBuffer [] pBuffers,
+                            final SocketAddress [] pTargets,
+                            final int pCount)
+        throws IOException
+    {
+        long total = 0;
+        for (int idx=0; idx < pCount; idx++) total += send(pChannel, pBuffers[idx], pTargets[idx]);
+        return total;
+    }
+
+    /**
+     * Reserve the tokens and wait until the packet is due.
+     * @param pSize The packet size.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    private void pace(final int pSize) throws InterruptedIOException {
+        final long now = System.nanoTime();
+        final long wait = Math.max(_packets.reserve(1, now), _bytes.reserve(pSize, now));
+
+        if (wait <= _batchSlackNanos) return;
+
+        final long due = now + wait;
+        if (!awaitDeadline(due)) throw new InterruptedIOException("interrupted while pacing");
+
+        final long error = System.nanoTime() - due;
+        _paced.incrementAndGet();
+        _totalError.addAndGet(error);
+
+        long max;
+        while (error > (max = _maxError.get()) && !_maxError.compareAndSet(max, error));
+    }
+
+    /**
+     * Park until close to the deadline and then spin.
+     * @return False if the thread was interrupted (the flag is not cleared).
+     */
+    private boolean awaitDeadline(final long pDeadline) {
+        final long spin = _spinNanos;
+        long remaining;
+        while ((remaining = pDeadline - System.nanoTime()) > 0) {
+            if (Thread.currentThread().isInterrupted()) return false;
+            if (remaining > spin) LockSupport.parkNanos(remaining - spin);
+        }
+        return true;
+    }
+
+    private int sent(final int pBytes) {
+        if (pBytes > 0) {
+            _packetsSent.incrementAndGet();
+            _bytesSent.addAndGet(pBytes);
+        }
+        return pBytes;
+    }
+
+    /**
+     * Reset the instrumentation.
+     */
+    public final void reset() {
+        _packetsSent.set(0);
+        _bytesSent.set(0);
+        _paced.set(0);
+        _totalError.set(0);
+        _maxError.set(0);
+        _startTime = System.nanoTime();
+    }
+
+    /**
+     * Set the time before the deadline where the sender stops parking and
+     * starts spinning. Parking is not accurate below ~50 microseconds on
+     * most systems.
+     * @param pV The spin time in microseconds.
+     */
+    public final void setSpinTime(final long pV) { _spinNanos = TimeUnit.MICROSECONDS.toNanos(pV); }
+
+    /**
+     * Set the batch slack. Packets due within this time are sent right away.
+     * @param pV The slack in microseconds.
+     */
+    public final void setBatchSlack(final long pV) { _batchSlackNanos = TimeUnit.MICROSECONDS.toNanos(pV); }
+
+    public final long getPacketsSent() { return _packetsSent.get(); }
+    public final long getBytesSent() { return _bytesSent.get(); }
+
+    /**
+     * Returns the achieved packet rate (per second) since the last reset.
+     */
+    public final double getPacketRate() { return perSecond(_packetsSent.get()); }
+
+    /**
+     * Returns the achieved byte rate (per second) since the last reset.
+     */
+    public final double getByteRate() { return perSecond(_bytesSent.get()); }
+
+    /**
+     * Returns the mean time (nanoseconds) paced packets were sent after their
+     * scheduled time.
+     */
+    public final long getMeanPacingError() {
+        final long paced = _paced.get();
+        return (paced == 0) ? 0 : _totalError.get() / paced;
+    }
+
+    /**
+     * Returns the max time (nanoseconds) a paced packet was sent after its
+     * scheduled time.
+     */
+    public final long getMaxPacingError() { return _maxError.get(); }
+
+    private double perSecond(final long pValue) {
+        final long elapsed = System.nanoTime() - _startTime;
+        return (elapsed <= 0) ? 0 : (pValue * (double)TimeUnit.SECONDS.toNanos(1)) / elapsed;
+    }
+}
+
@@ -18,13 +18,17 @@ package com.deftlabs.core.net;
 
 // OEMware
 import com.deftlabs.core.util.ThreadBase;
+import com.deftlabs.core.util.TimerWheel;
 
 // Java
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.net.InetSocketAddress;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.nio.channels.Selector;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
@@ -34,6 +38,11 @@ import java.util.logging.Logger;
 /**
  * The generic datagram server. The contract is that you must call
  * the startup/shutdown methods.
+ * <br/><br/>
+ *
+ * The server thread owns a timer wheel (1 ms resolution). Timers scheduled
+ * with the schedule method fire on the server thread, so protocol state
+ * (retransmits, session expiry, periodic flushes) can stay single-threaded.
  */
 public class DatagramServer extends ThreadBase {
 
@@ -42,9 +51,23 @@ public class DatagramServer extends ThreadBase {
     private final DatagramChannel _channel;
 
     private final DatagramMessageFilter _filter;
-    private final DatagramMessageHandler _handler;
+    private final DatagramBatchHandler _handler;
+
+    private final DatagramMessage [] _messages;
+    private final boolean [] _respond;
+    private final int _batchSize;
+
+    private volatile DatagramPacer _pacer;
 
-    private final DatagramMessage _message;
+    private int _laneCount = 0;
+    private int _laneCapacity = 0;
+    private volatile DatagramLanes _lanes;
+
+    private int _maxInFlight = 0;
+    private volatile DatagramVirtualDispatcher _dispatcher;
+
+    private final TimerWheel _timers;
+    private final ConcurrentLinkedQueue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
 
     protected String _bindAddress;
     protected int _port;
@@ -52,6 +75,9 @@ public class DatagramServer extends ThreadBase {
     private final int _bufferSize;
     private final int _bufferOffset;
 
+    private static final long TIMER_TICK_MILLIS = 1;
+    private static final int TIMER_TICKS_PER_WHEEL = 512;
+
     private static final Logger LOG = Logger.getLogger(ThreadBase.class.getName());
 
     /**
@@ -97,12 +123,51 @@ public class DatagramServer extends ThreadBase {
 
         throws IOException
     {
+        this(   new DatagramBatchHandlerAdapter(pHandler),
+                pFilter,
+                1,
+                pBufferSize,
+                pBufferOffset,
+                pBindAddress,
+                pPort);
+    }
+
+    /**
+     * Construct a new batch server with the params. Each time the channel is
+     * readable, the server receives up to the batch size messages and passes
+     * them to the handler in one call.
+     * @param pHandler The batch message handler.
+     * @param pFilter The message filter (called for each message received).
+     * @param pBatchSize The max number of messages per batch.
+     * @param pBufferSize The message buffer size.
+     * @param pBufferOffset The buffer offset.
+     * @param pBindAddress The bind address. If null, it binds to all addresses.
+     * @param pPort The port.
+     * @throws IOException
+     */
+    public DatagramServer(  final DatagramBatchHandler pHandler,
+                            final DatagramMessageFilter pFilter,
+                            final int pBatchSize,
+                            final int pBufferSize,
+                            final int pBufferOffset,
+                            final String pBindAddress,
+                            final int pPort)
+
+        throws IOException
+    {
+        if (pBatchSize < 1) throw new IllegalArgumentException("invalid batch size: " + pBatchSize);
+
         _handler = pHandler;
         _filter = pFilter;
+        _batchSize = pBatchSize;
         _bufferSize = pBufferSize;
         _bufferOffset = pBufferOffset;
 
-        _message = new DatagramMessage(_bufferSize, _bufferOffset);
+        _messages = new DatagramMessage[_batchSize];
+        for (int idx=0; idx < _batchSize; idx++) _messages[idx] = new DatagramMessage(_bufferSize, _bufferOffset);
+        _respond = new boolean[_batchSize];
+
+        _timers = new TimerWheel(TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_TICKS_PER_WHEEL, System.nanoTime());
 
         _bindAddress = pBindAddress;
         _port = pPort;
@@ -129,6 +194,13 @@ public class DatagramServer extends ThreadBase {
 
             _socket.bind(addr);
 
+            if (_laneCount > 0) {
+                _lanes = new DatagramLanes(this, _handler, _laneCount, _laneCapacity, _batchSize);
+                _lanes.startup();
+            }
+
+            if (_maxInFlight > 0) _dispatcher = new DatagramVirtualDispatcher(this, _handler, _maxInFlight);
+
         } catch (final IOException ioe) {
             StringBuilder error = new StringBuilder("error binding to: '");
             error.append(_bindAddress);
@@ -140,31 +212,50 @@ public class DatagramServer extends ThreadBase {
     }
 
     /**
-     * Read the message, call the handler and write the response
-     * if necessary.
+     * Read the messages that are ready (up to the batch size), call the
+     * handler and write the responses if necessary.
      * @param pKey The selection key.
      */
-    private final void processMessage(final SelectionKey pKey) {
+    private final void processMessages(final SelectionKey pKey) {
         try {
 
             pKey.interestOps(pKey.interestOps() | SelectionKey.OP_WRITE);
-            _message.reset();
 
-            _message.socketAddress
-                = (InetSocketAddress)_channel.receive(_message.buffer);
+            int count = 0;
+            while (count < _batchSize) {
+                final DatagramMessage message = _messages[count];
+                message.reset();
+
+                message.socketAddress
+                    = (InetSocketAddress)_channel.receive(message.buffer);
 
-            if (_message.socketAddress == null) return;
+                if (message.socketAddress == null) break;
 
-            if (_filter != null) {
-                if (!_filter.execute(_message)) return;
+                if (_filter != null) {
+                    if (!_filter.execute(message)) continue;
+                }
+
+                _respond[count++] = false;
             }
 
-            // Execute the message handler and write the buffer
+            if (count == 0) return;
+
+            // In lane mode, the lanes call the handler and respond.
+            final DatagramLanes lanes = _lanes;
+            if (lanes != null) { lanes.dispatch(_messages, count); return; }
+
+            // In virtual dispatch mode, each message is handled on its own thread.
+            final DatagramVirtualDispatcher dispatcher = _dispatcher;
+            if (dispatcher != null) { dispatcher.dispatch(_messages, count); return; }
+
+            // Execute the message handler and write the buffers
             // if we need to.
-            if (_handler.execute(_message)) {
+            _handler.execute(_messages, count, _respond);
+
+            for (int idx=0; idx < count; idx++) {
+                if (!_respond[idx]) continue;
                 if (!_running) return;
-                //System.out.println("bytes written: " + _channel.send(_message.buffer, _message.socketAddress));
-                _channel.send(_message.buffer, _message.socketAddress);
+                send(_messages[idx].buffer, _messages[idx].socketAddress);
             }
 
         } catch (Throwable t) { if (LOG.isLoggable(Level.SEVERE)) logError(t);
@@ -173,12 +264,33 @@ public class DatagramServer extends ThreadBase {
         }
     }
 
+    /**
+     * Send the buffer (position to limit) from the server channel. This is
+     * paced if a pacer is set. This is thread-safe.
+     * @param pBuffer The buffer.
+     * @param pTarget The target address.
+     * @return The number of bytes sent.
+     * @throws IOException
+     */
+    public final int send(final ByteBuffer pBuffer, final SocketAddress pTarget) throws IOException {
+        final DatagramPacer pacer = _pacer;
+        if (pacer == null) return _channel.send(pBuffer, pTarget);
+        return pacer.send(_channel, pBuffer, pTarget);
+    }
+
     /**
      * Called to shutdown the datagram server :-^
      */
     public synchronized void shutdown() {
-        super.shutdown();
         if (!_running) return;
+        super.shutdown();
+
+        final DatagramLanes lanes = _lanes;
+        if (lanes != null) lanes.shutdown();
+
+        final DatagramVirtualDispatcher dispatcher = _dispatcher;
+        if (dispatcher != null) dispatcher.shutdown(_joinTimeout > 0 ? _joinTimeout : 1000);
+
         try {
             if (_selector != null) _selector.close();
             if (_channel != null) _channel.close();
@@ -190,23 +302,149 @@ public class DatagramServer extends ThreadBase {
     public final void setBindAddress(final String pV) { _bindAddress = pV; }
 
     public final int getPort() { return _port; }
+
+    /**
+     * Set the pacer used for the responses. If null (the default), responses
+     * are sent as fast as the channel allows. The pacer blocks the server
+     * thread while it waits so the rate should be above the expected
+     * response rate.
+     * @param pV The pacer.
+     */
+    public final void setPacer(final DatagramPacer pV) { _pacer = pV; }
+    public final DatagramPacer getPacer() { return _pacer; }
+
     public final int getBufferSize() { return _bufferSize; }
+    public final int getBufferOffset() { return _bufferOffset; }
+    public final int getBatchSize() { return _batchSize; }
+
+    /**
+     * Enable the per-source ordered dispatch mode. The messages are copied to
+     * lanes (threads) picked by hashing the source address and port and the
+     * handler is called by the lanes. Messages from one source are handled
+     * in order, different sources in parallel. The handler must be
+     * thread-safe across sources. This must be called before startup.
+     * @param pLanes The number of lanes (zero disables).
+     * @param pQueueCapacity The max messages queued per lane. Messages are
+     * dropped (and counted) when the lane is full.
+     */
+    public final void setDispatchLanes(final int pLanes, final int pQueueCapacity) {
+        if (_running) throw new IllegalStateException("server already running");
+        if (pLanes > 0 && _maxInFlight > 0) throw new IllegalStateException("virtual dispatch enabled");
+        _laneCount = pLanes;
+        _laneCapacity = pQueueCapacity;
+    }
+
+    /**
+     * Returns the dispatch lanes (for the metrics). Null if not enabled or
+     * not started.
+     */
+    public final DatagramLanes getLanes() { return _lanes; }
+
+    /**
+     * Enable the virtual thread dispatch mode. Each message is copied and
+     * the handler is called for it on its own virtual thread (a cached
+     * platform pool if the jvm does not support them), so the handler may
+     * block. Messages are handled concurrently and in no particular order,
+     * so the handler must be thread-safe. This must be called before
+     * startup and cannot be combined with the dispatch lanes.
+     * @param pMaxInFlight The max messages handled at once (zero disables).
+     * Messages are dropped (and counted) when this many are in flight.
+     */
+    public final void setVirtualDispatch(final int pMaxInFlight) {
+        if (_running) throw new IllegalStateException("server already running");
+        if (pMaxInFlight > 0 && _laneCount > 0) throw new IllegalStateException("dispatch lanes enabled");
+        _maxInFlight = pMaxInFlight;
+    }
+
+    /**
+     * Returns the virtual thread dispatcher (for the metrics). Null if not
+     * enabled or not started.
+     */
+    public final DatagramVirtualDispatcher getVirtualDispatcher() { return _dispatcher; }
+
+    /**
+     * Returns true if the virtual thread dispatch mode is enabled.
+     */
+    public final boolean isVirtualDispatch() { return _maxInFlight > 0; }
+
+    /**
+     * Schedule the task on the server thread. This must be called from the
+     * server thread (i.e., from the handler when lanes are not enabled or
+     * from another timer task). Use execute to schedule from other threads.
+     * @param pTask The task.
+     * @param pDelay The delay.
+     * @param pUnit The delay unit.
+     * @return The timeout handle (cancel from the server thread).
+     */
+    public final TimerWheel.Timeout schedule(   final TimerWheel.Task pTask,
+                                                final long pDelay,
+                                                final TimeUnit pUnit)
+    {
+        if (!isExecutionThread()) throw new IllegalStateException("not called from the server thread");
+        return _timers.schedule(pTask, pDelay, pUnit, System.nanoTime());
+    }
+
+    /**
+     * Run the task on the server thread. This is thread-safe.
+     * @param pTask The task.
+     */
+    public final void execute(final Runnable pTask) {
+        if (pTask == null) throw new IllegalArgumentException("task not set");
+        _tasks.add(pTask);
+        _selector.wakeup();
+    }
+
+    /**
+     * Returns the server timers. Only the server thread may access them.
+     */
+    public final TimerWheel getTimers() { return _timers; }
+
+    private final void runTasks() {
+        Runnable task;
+        while ((task = _tasks.poll()) != null) {
+            try { task.run();
+            } catch (final Throwable t) { if (LOG.isLoggable(Level.SEVERE)) logError(t); }
+        }
+    }
+
+    /**
+     * Wait for the channel to be readable or for the next timer tick.
+     */
+    private final int select() throws IOException {
+        final long timeout = _timers.nextTimeout(System.nanoTime());
+        if (timeout == 0) return _selector.selectNow();
+
+        markIdle();
+        try {
+            if (timeout < 0) return _selector.select();
+
+            // Round up, a zero timeout blocks.
+            return _selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeout + 999999)));
+        } finally { heartbeat(); }
+    }
 
     public final void run() {
         while (_running) {
             try {
-                if (_selector.select() == 0) continue;
+                heartbeat();
+                runTasks();
+
+                final int selected = select();
                 if (!_running) continue;
 
-                final Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
+                if (selected > 0) {
+                    final Iterator<SelectionKey> iter = _selector.selectedKeys().iterator();
 
-                while (iter.hasNext()) {
-                    final SelectionKey key = iter.next();
-                    iter.remove();
-                    if (!_running) continue;
-                    processMessage(key);
+                    while (iter.hasNext()) {
+                        final SelectionKey key = iter.next();
+                        iter.remove();
+                        if (!_running) continue;
+                        processMessages(key);
+                    }
                 }
 
+                _timers.expire(System.nanoTime());
+
             } catch (final Throwable t) { if (LOG.isLoggable(Level.SEVERE)) logError(t);}
         }
     }
@@ -0,0 +1,155 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.VirtualThreads;
+
+// Java
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The per-message virtual thread dispatcher. Each message is copied and
+ * handled on its own virtual thread, so handlers can block (e.g., on a
+ * database or a downstream service) without tying up a platform thread
+ * each. The copies are pooled; the pool size bounds the messages in
+ * flight. Messages have no ordering guarantee.
+ * <br/><br/>
+ *
+ * The server thread never blocks on a handler. If all the copies are in
+ * flight, the message is dropped and counted. On jvms without virtual
+ * threads, a cached platform thread pool is used (see VirtualThreads).
+ * Created by the server (see DatagramServer.setVirtualDispatch).
+ */
+public final class DatagramVirtualDispatcher {
+
+    private final DatagramServer _server;
+    private final DatagramBatchHandler _handler;
+    private final ArrayBlockingQueue<Slot> _free;
+    private final int _maxInFlight;
+    private final ExecutorService _executor;
+
+    private volatile long _dispatched = 0;
+    private volatile long _dropped = 0;
+    private final AtomicLong _processed = new AtomicLong();
+    private final AtomicLong _failed = new AtomicLong();
+
+    private static final Logger LOG = Logger.getLogger(DatagramVirtualDispatcher.class.getName());
+
+    /**
+     * Create the dispatcher.
+     * @param pServer The server (used to send the responses).
+     * @param pHandler The handler (called with one message at a time).
+     * @param pMaxInFlight The max messages being handled at once.
+     */
+    DatagramVirtualDispatcher(  final DatagramServer pServer,
+                                final DatagramBatchHandler pHandler,
+                                final int pMaxInFlight)
+    {
+        if (pMaxInFlight < 1) throw new IllegalArgumentException("invalid max in flight: " + pMaxInFlight);
+
+        _server = pServer;
+        _handler = pHandler;
+        _maxInFlight = pMaxInFlight;
+        _free = new ArrayBlockingQueue<Slot>(pMaxInFlight);
+        for (int idx=0; idx < pMaxInFlight; idx++) _free.add(new Slot());
+        _executor = VirtualThreads.newThreadPerTaskExecutor(_server.getName() + "-handler");
+    }
+
+    /**
+     * Wait (up to the timeout) for the messages in flight, then interrupt
+     * the handlers.
+     */
+    void shutdown(final long pTimeoutMillis) {
+        _executor.shutdown();
+        try {
+            if (!_executor.awaitTermination(pTimeoutMillis, TimeUnit.MILLISECONDS)) _executor.shutdownNow();
+        } catch (final InterruptedException ie) {
+            _executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copy the messages and hand them to the handler threads. Called by the
+     * server thread.
+     * @param pMsgs The messages.
+     * @param pCount The number of messages.
+     */
+    void dispatch(final DatagramMessage [] pMsgs, final int pCount) {
+        for (int idx=0; idx < pCount; idx++) {
+            final Slot slot = _free.poll();
+            if (slot == null) { _dropped++; continue; }
+
+            final DatagramMessage msg = pMsgs[idx];
+            final DatagramMessage copy = slot.msgs[0];
+            copy.reset();
+            copy.buffer.put(msg.data, copy.offset, msg.buffer.position() - copy.offset);
+            copy.socketAddress = msg.socketAddress;
+
+            try {
+                _executor.execute(slot);
+                _dispatched++;
+            } catch (final RejectedExecutionException ree) {
+                _free.add(slot);
+                _dropped++;
+            }
+        }
+    }
+
+    public final int getMaxInFlight() { return _maxInFlight; }
+
+    /**
+     * Returns the number of messages being handled.
+     */
+    public final int getInFlight() { return _maxInFlight - _free.size(); }
+
+    public final long getDispatched() { return _dispatched; }
+    public final long getProcessed() { return _processed.get(); }
+    public final long getDropped() { return _dropped; }
+    public final long getFailed() { return _failed.get(); }
+
+    /**
+     * A pooled message copy and the handler task.
+     */
+    private final class Slot implements Runnable {
+
+        private final DatagramMessage [] msgs = { new DatagramMessage(_server.getBufferSize(), _server.getBufferOffset()) };
+        private final boolean [] respond = new boolean[1];
+
+        public void run() {
+            try {
+                respond[0] = false;
+                _handler.execute(msgs, 1, respond);
+                if (respond[0]) _server.send(msgs[0].buffer, msgs[0].socketAddress);
+            } catch (final Throwable t) {
+                _failed.incrementAndGet();
+                LOG.log(Level.SEVERE, "handler failed - server: " + _server.getName() + " - " + t.getMessage(), t);
+            } finally {
+                _processed.incrementAndGet();
+                _free.add(this);
+            }
+        }
+    }
+}
+
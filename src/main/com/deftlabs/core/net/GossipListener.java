@@ -0,0 +1,33 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+/**
+ * The gossip membership listener. Called by the membership server thread
+ * when a member joins or changes state, so it must not block.
+ */
+public interface GossipListener {
+
+    /**
+     * Called when the member changes state.
+     * @param pMember The member (new state).
+     * @param pPreviousState The previous state or GossipMember.UNKNOWN if
+     * the member just joined.
+     */
+    public void execute(final GossipMember pMember, final int pPreviousState);
+}
+
@@ -0,0 +1,90 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.NetUtils;
+
+// Java
+import java.net.InetSocketAddress;
+
+/**
+ * A gossip cluster member. This is an immutable view of the member at
+ * the time of the last state change.
+ */
+public final class GossipMember {
+
+    public static final int UNKNOWN = -1;
+    public static final int ALIVE = 0;
+    public static final int SUSPECT = 1;
+    public static final int DEAD = 2;
+
+    private final int _address;
+    private final int _port;
+    private final int _incarnation;
+    private final int _state;
+
+    GossipMember(   final int pAddress,
+                    final int pPort,
+                    final int pIncarnation,
+                    final int pState)
+    {
+        _address = pAddress;
+        _port = pPort;
+        _incarnation = pIncarnation;
+        _state = pState;
+    }
+
+    /**
+     * Returns the address in int format.
+     */
+    public final int getAddress() { return _address; }
+    public final int getPort() { return _port; }
+
+    public final InetSocketAddress getSocketAddress()
+    { return new InetSocketAddress(NetUtils.decodeIpV4Addr(_address), _port); }
+
+    /**
+     * Returns the incarnation. The member increments this to refute a
+     * suspicion about itself.
+     */
+    public final int getIncarnation() { return _incarnation; }
+
+    public final int getState() { return _state; }
+    public final boolean isAlive() { return _state == ALIVE; }
+
+    public static final String stateName(final int pState) {
+        switch (pState) {
+            case ALIVE: return "alive";
+            case SUSPECT: return "suspect";
+            case DEAD: return "dead";
+            default: return "unknown";
+        }
+    }
+
+    public final String toString() {
+        final StringBuilder value = new StringBuilder(NetUtils.decodeIpV4Addr(_address));
+        value.append(':');
+        value.append(_port);
+        value.append(" - incarnation: ");
+        value.append(_incarnation);
+        value.append(" - state: ");
+        value.append(stateName(_state));
+        return value.toString();
+    }
+}
+
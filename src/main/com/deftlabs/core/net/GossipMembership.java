@@ -0,0 +1,789 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+import com.deftlabs.core.util.NetUtils;
+import com.deftlabs.core.util.TimerWheel;
+
+// Java
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SWIM style gossip cluster membership on top of a datagram server. Each
+ * protocol period the node pings the next member in a shuffled round-robin
+ * list. If the ack does not arrive within the probe timeout, it asks a few
+ * random members to ping the target (indirect probe). A member that is not
+ * acked by the end of the period is suspected and then declared dead if
+ * the suspicion is not refuted in time. A member refutes a suspicion about
+ * itself by incrementing its incarnation.
+ * <br/><br/>
+ *
+ * Membership updates are piggy-backed on the protocol messages and each
+ * update is sent a multiple of log(n) times. Each message also carries a
+ * few member entries from a rotating cursor (anti-entropy) so a member
+ * that missed an update catches up. The entries per packet are limited by
+ * the max packet size, so the traffic per node is bounded (one probe per
+ * period plus the indirect probes) regardless of the cluster size.
+ * <br/><br/>
+ *
+ * All of the protocol state is owned by the server thread (the timers run
+ * on it). The member view and the metrics are thread-safe. Only IPv4 is
+ * supported and the bind address must be set because it is the member
+ * identity. The contract is that you must call the startup/shutdown methods.
+ */
+public final class GossipMembership implements DatagramMessageHandler {
+
+    private final DatagramServer _server;
+    private final Node _self;
+
+    private long _periodMillis = 200;
+    private long _probeTimeoutMillis = 60;
+    private int _indirectProbes = 3;
+    private int _suspicionMultiplier = 4;
+    private int _retransmitMultiplier = 4;
+    private final int _maxPacketSize;
+
+    // The server thread state.
+    private final HashMap<Long, Node> _nodes = new HashMap<Long, Node>();
+    private final ArrayList<Node> _probeList = new ArrayList<Node>();
+    private int _probeIndex = 0;
+    private int _fillIndex = 0;
+
+    private final UpdateQueue _updates = new UpdateQueue();
+    private final Update [] _picked = new Update[GossipProtocol.MAX_ENTRIES];
+    private final HashMap<Integer, Relay> _relays = new HashMap<Integer, Relay>();
+
+    private final ArrayList<InetSocketAddress> _seeds = new ArrayList<InetSocketAddress>();
+
+    private Node _probeTarget;
+    private int _probeSequence;
+    private boolean _probeAcked;
+    private int _sequence = 0;
+
+    // The local health (Lifeguard). Raised when this member misses acks or
+    // has to refute, lowered when probes succeed. The probe period and
+    // timeout are scaled by (health + 1) so a slow member backs off
+    // instead of suspecting healthy ones.
+    private int _health = 0;
+
+    private final Random _random;
+    private final ByteBuffer _out;
+    private final byte [] _outData;
+
+    private final ConcurrentHashMap<Long, GossipMember> _view = new ConcurrentHashMap<Long, GossipMember>();
+    private final CopyOnWriteArrayList<GossipListener> _listeners = new CopyOnWriteArrayList<GossipListener>();
+
+    private volatile int _aliveCount = 1;
+
+    private volatile long _messagesSent = 0;
+    private volatile long _bytesSent = 0;
+    private volatile long _messagesReceived = 0;
+    private volatile long _probes = 0;
+    private volatile long _indirectProbesSent = 0;
+    private volatile long _suspicions = 0;
+    private volatile long _failures = 0;
+    private volatile long _refutes = 0;
+
+    private static final int MAX_HEALTH = 8;
+
+    // The member entries added to each message after the updates.
+    private static final int ANTI_ENTROPY_ENTRIES = 8;
+
+    // The dead members are kept (to ignore stale updates) for this long.
+    private static final long DEAD_RETENTION_PERIODS = 150;
+
+    private static final Logger LOG = Logger.getLogger(GossipMembership.class.getName());
+
+    /**
+     * Create a new member with the default packet size (1400 bytes).
+     * @param pBindAddress The bind address (IPv4, must be set).
+     * @param pPort The port.
+     * @throws IOException
+     */
+    public GossipMembership(final String pBindAddress, final int pPort) throws IOException
+    { this(pBindAddress, pPort, 1400); }
+
+    /**
+     * Create a new member.
+     * @param pBindAddress The bind address (IPv4, must be set).
+     * @param pPort The port.
+     * @param pMaxPacketSize The max packet size. This bounds the updates
+     * per packet.
+     * @throws IOException
+     */
+    public GossipMembership(final String pBindAddress,
+                            final int pPort,
+                            final int pMaxPacketSize)
+        throws IOException
+    {
+        if (pBindAddress == null) throw new IllegalArgumentException("bind address not set");
+        if (pMaxPacketSize < GossipProtocol.PING_REQ_HEADER_SIZE + 1 + GossipProtocol.ENTRY_SIZE)
+        { throw new IllegalArgumentException("invalid max packet size: " + pMaxPacketSize); }
+
+        final byte [] address = InetAddress.getByName(pBindAddress).getAddress();
+        if (address.length != 4) throw new IllegalArgumentException("only IPv4 is supported: " + pBindAddress);
+
+        _maxPacketSize = pMaxPacketSize;
+        _self = new Node(ByteUtils.getInt(address, 0), pPort, 0, GossipMember.ALIVE);
+        _random = new Random(id(_self.address, _self.port) ^ System.nanoTime());
+
+        _out = ByteBuffer.allocate(pMaxPacketSize);
+        _outData = _out.array();
+
+        _server = new DatagramServer(this, pMaxPacketSize, 0, pBindAddress, pPort);
+        _server.setName("gossip-" + pBindAddress + ":" + pPort);
+
+        _view.put(_self.id, _self.member);
+    }
+
+    /**
+     * Start the server and the protocol.
+     */
+    public final void startup() {
+        _server.startup();
+        _server.execute(new Runnable() {
+            public void run() {
+                enqueue(_self);
+                schedule(_tick, 0);
+            }
+        });
+    }
+
+    public final void shutdown() { _server.shutdown(); }
+
+    /**
+     * Join the cluster through the seeds. The join is retried every protocol
+     * period until another member is known. This is thread-safe.
+     * @param pSeeds The seed member addresses.
+     */
+    public final void join(final Collection<InetSocketAddress> pSeeds) {
+        final ArrayList<InetSocketAddress> seeds = new ArrayList<InetSocketAddress>(pSeeds);
+        _server.execute(new Runnable() {
+            public void run() {
+                _seeds.addAll(seeds);
+                sendJoin();
+            }
+        });
+    }
+
+    public final void addListener(final GossipListener pListener) { _listeners.add(pListener); }
+    public final void removeListener(final GossipListener pListener) { _listeners.remove(pListener); }
+
+    /**
+     * Returns the members known (including this one and the dead members).
+     * This is thread-safe.
+     */
+    public final List<GossipMember> getMembers() { return new ArrayList<GossipMember>(_view.values()); }
+
+    /**
+     * Returns the number of members that are not dead (alive or suspect,
+     * including this one).
+     */
+    public final int getAliveCount() { return _aliveCount; }
+
+    public final GossipMember getLocalMember() { return _view.get(_self.id); }
+
+    public final long getMessagesSent() { return _messagesSent; }
+    public final long getBytesSent() { return _bytesSent; }
+    public final long getMessagesReceived() { return _messagesReceived; }
+    public final long getProbes() { return _probes; }
+    public final long getIndirectProbes() { return _indirectProbesSent; }
+    public final long getSuspicions() { return _suspicions; }
+    public final long getFailures() { return _failures; }
+    public final long getRefutes() { return _refutes; }
+
+    /**
+     * Set the protocol period (default 200 ms). This must be called before
+     * startup.
+     */
+    public final void setProtocolPeriod(final long pMillis) { checkNotRunning(); _periodMillis = pMillis; }
+    public final long getProtocolPeriod() { return _periodMillis; }
+
+    /**
+     * Set the direct ping ack timeout (default 60 ms). The indirect probes
+     * are sent when it expires, so it must be less than the protocol
+     * period. This must be called before startup.
+     */
+    public final void setProbeTimeout(final long pMillis) { checkNotRunning(); _probeTimeoutMillis = pMillis; }
+
+    /**
+     * Set the number of members asked to probe indirectly (default 3).
+     */
+    public final void setIndirectProbes(final int pV) { checkNotRunning(); _indirectProbes = pV; }
+
+    /**
+     * Set the suspicion timeout multiplier (default 4). A suspect member is
+     * declared dead after (multiplier * max(1, log10(n)) * period).
+     */
+    public final void setSuspicionMultiplier(final int pV) { checkNotRunning(); _suspicionMultiplier = pV; }
+
+    /**
+     * Set the update retransmit multiplier (default 4). Each update is
+     * piggy-backed (multiplier * ceil(log10(n + 1))) times.
+     */
+    public final void setRetransmitMultiplier(final int pV) { checkNotRunning(); _retransmitMultiplier = pV; }
+
+    /**
+     * Returns the underlying server (e.g., to set a pacer).
+     */
+    public final DatagramServer getServer() { return _server; }
+
+    private final void checkNotRunning()
+    { if (_server.isRunning()) throw new IllegalStateException("membership already running"); }
+
+    private final TimerWheel.Task _tick = new TimerWheel.Task() {
+        public void execute(final TimerWheel.Timeout pTimeout) {
+            schedule(this, _periodMillis * (_health + 1));
+            probe();
+        }
+    };
+
+    private final TimerWheel.Timeout schedule(final TimerWheel.Task pTask, final long pMillis)
+    { return _server.schedule(pTask, pMillis, TimeUnit.MILLISECONDS); }
+
+    /**
+     * Start the next protocol period. The previous target is suspected if
+     * it was not acked.
+     */
+    private void probe() {
+        if (_probeTarget != null) {
+            if (_probeAcked) { if (_health > 0) _health--; }
+            else {
+                if (_health < MAX_HEALTH) _health++;
+                suspect(_probeTarget);
+            }
+        }
+        _probeTarget = null;
+
+        if (_probeList.isEmpty()) { if (!_seeds.isEmpty()) sendJoin(); return; }
+
+        if (_probeIndex >= _probeList.size()) {
+            Collections.shuffle(_probeList, _random);
+            _probeIndex = 0;
+        }
+
+        final Node target = _probeList.get(_probeIndex++);
+        final int sequence = ++_sequence;
+
+        _probeTarget = target;
+        _probeSequence = sequence;
+        _probeAcked = false;
+        _probes++;
+
+        start(GossipProtocol.TYPE_PING, sequence);
+        send(target.socketAddress);
+
+        schedule(new TimerWheel.Task() {
+            public void execute(final TimerWheel.Timeout pTimeout) {
+                if (_probeSequence != sequence || _probeAcked) return;
+                probeIndirect(target, sequence);
+            }
+        }, _probeTimeoutMillis * (_health + 1));
+    }
+
+    /**
+     * Ask up to k random members to ping the target.
+     */
+    private void probeIndirect(final Node pTarget, final int pSequence) {
+        final int size = _probeList.size();
+        final int wanted = Math.min(_indirectProbes, size - 1);
+        if (wanted <= 0) return;
+
+        int sent = 0;
+        for (int attempt=0; sent < wanted && attempt < wanted * 4; attempt++) {
+            final Node helper = _probeList.get(_random.nextInt(size));
+            if (helper == pTarget || helper.state != GossipMember.ALIVE) continue;
+
+            start(GossipProtocol.TYPE_PING_REQ, pSequence);
+            _out.putInt(pTarget.address);
+            _out.putShort((short)pTarget.port);
+            send(helper.socketAddress);
+
+            _indirectProbesSent++;
+            sent++;
+        }
+    }
+
+    /**
+     * Send a join (with this member's state) to the seeds.
+     */
+    private void sendJoin() {
+        if (!_probeList.isEmpty()) return;
+        for (final InetSocketAddress seed : _seeds) {
+            start(GossipProtocol.TYPE_JOIN, ++_sequence);
+            _out.put((byte)1);
+            writeEntry(_self.state, _self.address, _self.port, _self.incarnation);
+            transmit(seed);
+        }
+    }
+
+    /**
+     * Reply to a join with the member list. The dead members are included
+     * so a restarted member refutes its death.
+     */
+    private void sendSync(final InetSocketAddress pTarget) {
+        final int perPacket
+        = Math.min(GossipProtocol.MAX_ENTRIES, (_maxPacketSize - GossipProtocol.HEADER_SIZE - 1) / GossipProtocol.ENTRY_SIZE);
+
+        final ArrayList<Node> nodes = new ArrayList<Node>(_nodes.values());
+        nodes.add(_self);
+
+        for (int idx=0; idx < nodes.size(); idx += perPacket) {
+            final int count = Math.min(perPacket, nodes.size() - idx);
+            _out.clear();
+            _out.put(GossipProtocol.TYPE_SYNC);
+            _out.putInt(++_sequence);
+            _out.put((byte)count);
+            for (int entry=0; entry < count; entry++) {
+                final Node node = nodes.get(idx + entry);
+                writeEntry(node.state, node.address, node.port, node.incarnation);
+            }
+            transmit(pTarget);
+        }
+    }
+
+    /**
+     * Process the protocol message. This is called by the server thread.
+     * @param pMsg The datagram message.
+     * @return Always false (the replies are sent directly).
+     */
+    public boolean execute(final DatagramMessage pMsg) {
+        final int length = pMsg.buffer.position() - pMsg.offset;
+        if (length < GossipProtocol.HEADER_SIZE) return false;
+
+        _messagesReceived++;
+
+        final byte [] data = pMsg.data;
+        final int base = pMsg.offset;
+        final byte type = data[base + GossipProtocol.TYPE_POS];
+        final int sequence = ByteUtils.getInt(data, base + GossipProtocol.SEQUENCE_POS);
+
+        final int updates = base + ((type == GossipProtocol.TYPE_PING_REQ) ? GossipProtocol.PING_REQ_HEADER_SIZE : GossipProtocol.HEADER_SIZE);
+        if (updates > pMsg.buffer.position()) return false;
+
+        // Apply the updates first so the sender is known.
+        readUpdates(data, updates, pMsg.buffer.position());
+
+        switch (type) {
+            case GossipProtocol.TYPE_PING:
+                start(GossipProtocol.TYPE_ACK, sequence);
+                send(pMsg.getSocketAddress());
+                break;
+
+            case GossipProtocol.TYPE_ACK:
+                if (_probeTarget != null && sequence == _probeSequence) { _probeAcked = true; break; }
+                final Relay relay = _relays.remove(sequence);
+                if (relay != null) {
+                    start(GossipProtocol.TYPE_ACK, relay.sequence);
+                    send(relay.requester);
+                }
+                break;
+
+            case GossipProtocol.TYPE_PING_REQ:
+                final int targetAddress = ByteUtils.getInt(data, base + GossipProtocol.TARGET_POS);
+                final int targetPort = ByteUtils.getUShort(data, base + GossipProtocol.TARGET_POS + 4);
+                final Node target = _nodes.get(id(targetAddress, targetPort));
+                final InetSocketAddress targetSocketAddress = (target != null)
+                ? target.socketAddress : new InetSocketAddress(NetUtils.decodeIpV4Addr(targetAddress), targetPort);
+
+                final int relaySequence = ++_sequence;
+                _relays.put(relaySequence, new Relay(pMsg.getSocketAddress(), sequence));
+                schedule(new TimerWheel.Task() {
+                    public void execute(final TimerWheel.Timeout pTimeout) { _relays.remove(relaySequence); }
+                }, _periodMillis);
+
+                start(GossipProtocol.TYPE_PING, relaySequence);
+                send(targetSocketAddress);
+                break;
+
+            case GossipProtocol.TYPE_JOIN:
+                sendSync(pMsg.getSocketAddress());
+                break;
+
+            default: break;
+        }
+
+        return false;
+    }
+
+    private void readUpdates(final byte [] pData, final int pPos, final int pLimit) {
+        if (pPos >= pLimit) return;
+        final int count = pData[pPos] & 0xff;
+
+        int pos = pPos + 1;
+        for (int idx=0; idx < count && pos + GossipProtocol.ENTRY_SIZE <= pLimit; idx++) {
+            apply(  pData[pos],
+                    ByteUtils.getInt(pData, pos + 1),
+                    ByteUtils.getUShort(pData, pos + 5),
+                    ByteUtils.getInt(pData, pos + 7));
+            pos += GossipProtocol.ENTRY_SIZE;
+        }
+    }
+
+    /**
+     * Merge the update with the local state (the SWIM override rules).
+     */
+    private void apply(final int pState, final int pAddress, final int pPort, final int pIncarnation) {
+        if (pState < GossipMember.ALIVE || pState > GossipMember.DEAD) return;
+
+        final long id = id(pAddress, pPort);
+
+        if (id == _self.id) {
+            // Refute the suspicion (or the death) of this member.
+            if (pState != GossipMember.ALIVE && pIncarnation >= _self.incarnation) {
+                change(_self, GossipMember.ALIVE, pIncarnation + 1);
+                _refutes++;
+                if (_health < MAX_HEALTH) _health++;
+            }
+            return;
+        }
+
+        final Node node = _nodes.get(id);
+
+        if (node == null) {
+            if (pState == GossipMember.DEAD) return;
+            final Node added = new Node(pAddress, pPort, pIncarnation, pState);
+            _nodes.put(id, added);
+            _probeList.add(_random.nextInt(_probeList.size() + 1), added);
+            _aliveCount++;
+            if (pState == GossipMember.SUSPECT) startSuspicion(added);
+            enqueue(added);
+            publish(added, GossipMember.UNKNOWN);
+            return;
+        }
+
+        switch (pState) {
+            case GossipMember.ALIVE:
+                if (pIncarnation > node.incarnation) change(node, GossipMember.ALIVE, pIncarnation);
+                break;
+
+            case GossipMember.SUSPECT:
+                if (node.state == GossipMember.DEAD) break;
+                if (pIncarnation > node.incarnation || (pIncarnation == node.incarnation && node.state == GossipMember.ALIVE))
+                { change(node, GossipMember.SUSPECT, pIncarnation); }
+                break;
+
+            case GossipMember.DEAD:
+                if (node.state != GossipMember.DEAD && pIncarnation >= node.incarnation)
+                { change(node, GossipMember.DEAD, pIncarnation); }
+                break;
+
+            default: break;
+        }
+    }
+
+    private void suspect(final Node pNode) {
+        if (pNode.state != GossipMember.ALIVE) return;
+        change(pNode, GossipMember.SUSPECT, pNode.incarnation);
+    }
+
+    private void startSuspicion(final Node pNode) {
+        _suspicions++;
+        final int incarnation = pNode.incarnation;
+        final double scale = Math.max(1.0, Math.log10(_nodes.size() + 1));
+        final long timeout = (long)(_suspicionMultiplier * scale * _periodMillis);
+
+        pNode.suspicion = schedule(new TimerWheel.Task() {
+            public void execute(final TimerWheel.Timeout pTimeout) {
+                pNode.suspicion = null;
+                if (pNode.state == GossipMember.SUSPECT && pNode.incarnation == incarnation)
+                { change(pNode, GossipMember.DEAD, incarnation); }
+            }
+        }, timeout);
+    }
+
+    /**
+     * Forget the dead member after the retention time (unless it came back).
+     */
+    private void startReaper(final Node pNode) {
+        final int incarnation = pNode.incarnation;
+        schedule(new TimerWheel.Task() {
+            public void execute(final TimerWheel.Timeout pTimeout) {
+                if (pNode.state != GossipMember.DEAD || pNode.incarnation != incarnation) return;
+                if (_nodes.get(pNode.id) != pNode) return;
+                _nodes.remove(pNode.id);
+                _view.remove(pNode.id);
+                if (pNode.update != null) {
+                    _updates.remove(pNode.update);
+                    pNode.update = null;
+                }
+            }
+        }, DEAD_RETENTION_PERIODS * _periodMillis);
+    }
+
+    /**
+     * Change the node state, gossip it and notify the listeners.
+     */
+    private void change(final Node pNode, final int pState, final int pIncarnation) {
+        final int previous = pNode.state;
+        pNode.incarnation = pIncarnation;
+        pNode.state = pState;
+
+        if (pNode.suspicion != null && pState != GossipMember.SUSPECT) {
+            pNode.suspicion.cancel();
+            pNode.suspicion = null;
+        }
+
+        if (pNode != _self) {
+            if (previous == GossipMember.DEAD && pState != GossipMember.DEAD) {
+                _probeList.add(_random.nextInt(_probeList.size() + 1), pNode);
+                _aliveCount++;
+            } else if (previous != GossipMember.DEAD && pState == GossipMember.DEAD) {
+                removeFromProbeList(pNode);
+                _aliveCount--;
+                _failures++;
+                startReaper(pNode);
+            }
+
+            if (pState == GossipMember.SUSPECT && previous != GossipMember.SUSPECT) startSuspicion(pNode);
+        }
+
+        enqueue(pNode);
+        publish(pNode, previous);
+    }
+
+    private void removeFromProbeList(final Node pNode) {
+        final int idx = _probeList.indexOf(pNode);
+        if (idx < 0) return;
+        _probeList.remove(idx);
+        if (idx < _probeIndex) _probeIndex--;
+        if (_probeTarget == pNode) _probeTarget = null;
+    }
+
+    private void publish(final Node pNode, final int pPrevious) {
+        _view.put(pNode.id, pNode.member = new GossipMember(pNode.address, pNode.port, pNode.incarnation, pNode.state));
+        if (pPrevious == pNode.state) return;
+
+        for (final GossipListener listener : _listeners) {
+            try { listener.execute(pNode.member, pPrevious);
+            } catch (final Throwable t) { LOG.log(Level.SEVERE, "listener failed - " + t.getMessage(), t); }
+        }
+    }
+
+    /**
+     * Queue the node state for dissemination (replaces a queued update).
+     */
+    private void enqueue(final Node pNode) {
+        Update update = pNode.update;
+        if (update == null) {
+            update = new Update(pNode);
+            pNode.update = update;
+        } else _updates.remove(update);
+
+        update.state = pNode.state;
+        update.incarnation = pNode.incarnation;
+        update.transmits = 0;
+        _updates.add(update);
+    }
+
+    private void start(final byte pType, final int pSequence) {
+        _out.clear();
+        _out.put(pType);
+        _out.putInt(pSequence);
+    }
+
+    /**
+     * Piggy-back the least sent updates (as many as fit) and send.
+     */
+    private void send(final InetSocketAddress pTarget) {
+        final int countPos = _out.position();
+        _out.put((byte)0);
+        int written = 0;
+
+        if (!_updates.isEmpty()) {
+            final int room = Math.min(GossipProtocol.MAX_ENTRIES, (_maxPacketSize - _out.position()) / GossipProtocol.ENTRY_SIZE);
+            final int count = _updates.take(_picked, room);
+            final int limit = _retransmitMultiplier * (int)Math.ceil(Math.log10(_nodes.size() + 2));
+
+            for (int idx=0; idx < count; idx++) {
+                final Update update = _picked[idx];
+                _picked[idx] = null;
+                writeEntry(update.state, update.node.address, update.node.port, update.incarnation);
+
+                // Move it to the next count or retire it if sent enough times.
+                _updates.remove(update);
+                update.transmits++;
+                if (update.transmits < limit) _updates.add(update);
+                else update.node.update = null;
+            }
+
+            written = count;
+        }
+
+        // Anti-entropy: this member and a few others from a rotating cursor
+        // so the state still spreads after the updates are retired.
+        final int room = Math.min(GossipProtocol.MAX_ENTRIES - written, (_maxPacketSize - _out.position()) / GossipProtocol.ENTRY_SIZE);
+        final int fill = Math.min(room, ANTI_ENTROPY_ENTRIES);
+        for (int idx=0; idx < fill; idx++) {
+            final Node node;
+            if (idx == 0) node = _self;
+            else {
+                if (_probeList.isEmpty()) break;
+                if (_fillIndex >= _probeList.size()) _fillIndex = 0;
+                node = _probeList.get(_fillIndex++);
+            }
+            writeEntry(node.state, node.address, node.port, node.incarnation);
+            written++;
+        }
+
+        _outData[countPos] = (byte)written;
+        transmit(pTarget);
+    }
+
+    private void writeEntry(final int pState, final int pAddress, final int pPort, final int pIncarnation) {
+        _out.put((byte)pState);
+        _out.putInt(pAddress);
+        _out.putShort((short)pPort);
+        _out.putInt(pIncarnation);
+    }
+
+    private void transmit(final InetSocketAddress pTarget) {
+        _out.flip();
+        final int length = _out.remaining();
+        try {
+            _server.send(_out, pTarget);
+            _messagesSent++;
+            _bytesSent += length;
+        } catch (final IOException ioe) { LOG.log(Level.FINE, "send failed - target: " + pTarget + " - " + ioe.getMessage()); }
+    }
+
+    private static long id(final int pAddress, final int pPort)
+    { return ((pAddress & 0xffffffffL) << 16) | (pPort & 0xffff); }
+
+    /**
+     * The member state (owned by the server thread).
+     */
+    private static final class Node {
+        private final int address;
+        private final int port;
+        private final long id;
+        private final InetSocketAddress socketAddress;
+
+        private int incarnation;
+        private int state;
+        private GossipMember member;
+        private Update update;
+        private TimerWheel.Timeout suspicion;
+
+        private Node(final int pAddress, final int pPort, final int pIncarnation, final int pState) {
+            address = pAddress;
+            port = pPort;
+            id = id(pAddress, pPort);
+            incarnation = pIncarnation;
+            state = pState;
+            member = new GossipMember(pAddress, pPort, pIncarnation, pState);
+            socketAddress = new InetSocketAddress(NetUtils.decodeIpV4Addr(pAddress), pPort);
+        }
+    }
+
+    private static final class Update {
+        private final Node node;
+        private int state;
+        private int incarnation;
+        private int transmits;
+
+        // The links in the transmit count bucket.
+        private boolean queued;
+        private Update prev;
+        private Update next;
+
+        private Update(final Node pNode) { node = pNode; }
+    }
+
+    /**
+     * The queued updates in buckets by transmit count (a list per count), so
+     * the least sent updates are taken without sorting. The transmit count
+     * of an update must only change while it is removed.
+     */
+    private static final class UpdateQueue {
+        private final ArrayList<Update> heads = new ArrayList<Update>();
+        private final ArrayList<Update> tails = new ArrayList<Update>();
+        private int size = 0;
+
+        private boolean isEmpty() { return size == 0; }
+
+        private void add(final Update pUpdate) {
+            while (heads.size() <= pUpdate.transmits) {
+                heads.add(null);
+                tails.add(null);
+            }
+
+            final Update tail = tails.get(pUpdate.transmits);
+            pUpdate.prev = tail;
+            pUpdate.next = null;
+            if (tail == null) heads.set(pUpdate.transmits, pUpdate);
+            else tail.next = pUpdate;
+            tails.set(pUpdate.transmits, pUpdate);
+
+            pUpdate.queued = true;
+            size++;
+        }
+
+        private void remove(final Update pUpdate) {
+            if (!pUpdate.queued) return;
+
+            if (pUpdate.prev == null) heads.set(pUpdate.transmits, pUpdate.next);
+            else pUpdate.prev.next = pUpdate.next;
+            if (pUpdate.next == null) tails.set(pUpdate.transmits, pUpdate.prev);
+            else pUpdate.next.prev = pUpdate.prev;
+
+            pUpdate.prev = null;
+            pUpdate.next = null;
+            pUpdate.queued = false;
+            size--;
+        }
+
+        /**
+         * Copy the least sent updates (oldest first within a count).
+         * @return The number copied.
+         */
+        private int take(final Update [] pDest, final int pMax) {
+            int count = 0;
+            for (int bucket=0; bucket < heads.size() && count < pMax; bucket++) {
+                for (Update update = heads.get(bucket); update != null && count < pMax; update = update.next) pDest[count++] = update;
+            }
+            return count;
+        }
+    }
+
+    private static final class Relay {
+        private final InetSocketAddress requester;
+        private final int sequence;
+
+        private Relay(final InetSocketAddress pRequester, final int pSequence) {
+            requester = pRequester;
+            sequence = pSequence;
+        }
+    }
+}
+
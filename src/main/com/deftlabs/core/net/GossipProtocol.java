@@ -0,0 +1,57 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+/**
+ * The gossip membership wire format. All values are big endian and start
+ * at the message offset.
+ * <br/><br/>
+ *
+ * Ping, ack, join and sync: [type (1)][sequence (4)][updates].<br/>
+ * Ping request: [type (1)][sequence (4)][target address (4)][target port (2)][updates].<br/>
+ * Updates: [count (1)] followed by count entries of
+ * [state (1)][address (4)][port (2)][incarnation (4)].
+ * <br/><br/>
+ *
+ * The ack carries the sequence of the ping it answers. A sync is the reply
+ * to a join and carries the member list (split across packets if needed).
+ */
+public final class GossipProtocol {
+
+    public static final byte TYPE_PING = 1;
+    public static final byte TYPE_ACK = 2;
+    public static final byte TYPE_PING_REQ = 3;
+    public static final byte TYPE_JOIN = 4;
+    public static final byte TYPE_SYNC = 5;
+
+    public static final int TYPE_POS = 0;
+    public static final int SEQUENCE_POS = 1;
+    public static final int TARGET_POS = 5;
+
+    public static final int HEADER_SIZE = 5;
+    public static final int PING_REQ_HEADER_SIZE = 11;
+
+    public static final int ENTRY_SIZE = 11;
+
+    /**
+     * The max entries per packet (the count is one byte).
+     */
+    public static final int MAX_ENTRIES = 255;
+
+    private GossipProtocol() { }
+}
+
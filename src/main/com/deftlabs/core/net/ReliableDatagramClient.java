@@ -0,0 +1,410 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+import com.deftlabs.core.util.ThreadBase;
+
+// Java
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The sending side of the reliable datagram layer. Messages are numbered,
+ * kept in a sliding window until acked and retransmitted when the
+ * retransmission timeout expires (or after three duplicate acks). The
+ * timeout is calculated from the measured round trip time (RFC 6298).
+ * <br/><br/>
+ *
+ * The contract is that you must call the startup/shutdown methods. The
+ * thread reads the acks and handles the retransmits. The send method is
+ * thread-safe and blocks while the window is full.
+ */
+public class ReliableDatagramClient extends ThreadBase {
+
+    private final DatagramChannel _channel;
+    private final Selector _selector;
+    private final InetSocketAddress _address;
+
+    private final int _windowSize;
+    private final int _windowMask;
+    private final int _maxPayload;
+
+    private final ByteBuffer [] _packets;
+    private final long [] _sentAt;
+    private final long [] _deadline;
+    private final boolean [] _acked;
+    private final boolean [] _retransmitted;
+    private final int [] _attempts;
+
+    // Identifies this sender to the receiver (see ReliableDatagramProtocol).
+    private final int _session = ReliableDatagramProtocol.newSession();
+
+    private final ByteBuffer _ackBuffer = ByteBuffer.allocate(ReliableDatagramProtocol.ACK_SIZE);
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _windowOpen = _lock.newCondition();
+
+    // The oldest unacked sequence and the next sequence to send.
+    private int _base = 0;
+    private int _next = 0;
+
+    private int _duplicateAcks = 0;
+
+    // When the client thread's select times out (guarded by the lock).
+    private long _wakeAt = System.nanoTime() + INITIAL_RTO;
+
+    private long _srtt = 0;
+    private long _rttVar = 0;
+    private long _rto;
+
+    private long _minRto = TimeUnit.MILLISECONDS.toNanos(5);
+    private long _maxRto = TimeUnit.SECONDS.toNanos(5);
+
+    private long _sent = 0;
+    private long _retransmits = 0;
+    private long _acksReceived = 0;
+
+    private static final int DUPLICATE_ACK_THRESHOLD = 3;
+    private static final int MAX_BACKOFF = 6;
+    private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long CLOCK_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final Logger LOG = Logger.getLogger(ReliableDatagramClient.class.getName());
+
+    /**
+     * Construct a new client.
+     * @param pHost The server host.
+     * @param pPort The server port.
+     * @param pWindowSize The send window (power of two). This must not be
+     * larger than the server window.
+     * @param pMaxPayload The max payload size per message.
+     * @throws IOException
+     */
+    public ReliableDatagramClient(  final String pHost,
+                                    final int pPort,
+                                    final int pWindowSize,
+                                    final int pMaxPayload)
+        throws IOException
+    {
+        ReliableDatagramProtocol.checkWindowSize(pWindowSize);
+        if (pMaxPayload < 1) throw new IllegalArgumentException("invalid max payload: " + pMaxPayload);
+
+        _windowSize = pWindowSize;
+        _windowMask = pWindowSize - 1;
+        _maxPayload = pMaxPayload;
+        _rto = INITIAL_RTO;
+
+        _packets = new ByteBuffer[_windowSize];
+        for (int idx=0; idx < _windowSize; idx++)
+        { _packets[idx] = ByteBuffer.allocate(ReliableDatagramProtocol.DATA_HEADER_SIZE + _maxPayload); }
+
+        _sentAt = new long[_windowSize];
+        _deadline = new long[_windowSize];
+        _acked = new boolean[_windowSize];
+        _retransmitted = new boolean[_windowSize];
+        _attempts = new int[_windowSize];
+
+        _address = new InetSocketAddress(pHost, pPort);
+
+        _selector = Selector.open();
+        _channel = DatagramChannel.open();
+        _channel.configureBlocking(false);
+        _channel.connect(_address);
+        _channel.register(_selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Send the message. This blocks while the window is full.
+     * @param pData The data.
+     * @param pOffset The offset in the data.
+     * @param pLength The length of the payload.
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public final void send(final byte [] pData, final int pOffset, final int pLength)
+        throws InterruptedException, IOException
+    {
+        if (pLength > _maxPayload) throw new IllegalArgumentException("payload too large: " + pLength);
+
+        _lock.lockInterruptibly();
+        try {
+            while (_next - _base >= _windowSize) {
+                if (!_running) throw new IllegalStateException("client not running");
+                _windowOpen.await();
+            }
+
+            final int seq = _next++;
+            final int slot = seq & _windowMask;
+            final ByteBuffer packet = _packets[slot];
+
+            packet.clear();
+            packet.put(ReliableDatagramProtocol.TYPE_DATA);
+            packet.putInt(_session);
+            packet.putInt(seq);
+            packet.putInt(_base);
+            packet.put(pData, pOffset, pLength);
+            packet.flip();
+
+            _acked[slot] = false;
+            _retransmitted[slot] = false;
+
+            transmit(slot, System.nanoTime());
+
+            // The thread may be waiting out an idle timeout (up to the max rto).
+            if (_deadline[slot] - _wakeAt < 0) {
+                _wakeAt = _deadline[slot];
+                _selector.wakeup();
+            }
+
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Wait until all of the messages sent are acked.
+     * @param pTimeout The max time to wait in milliseconds.
+     * @return True if everything was acked.
+     * @throws InterruptedException
+     */
+    public final boolean flush(final long pTimeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(pTimeout);
+        _lock.lockInterruptibly();
+        try {
+            while (_base != _next) {
+                if (remaining <= 0) return false;
+                remaining = _windowOpen.awaitNanos(remaining);
+            }
+            return true;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Send the packet in the slot. The lock must be held.
+     */
+    private void transmit(final int pSlot, final long pNow) throws IOException {
+        final ByteBuffer packet = _packets[pSlot];
+        packet.putInt(ReliableDatagramProtocol.BASE_POS, _base);
+        packet.rewind();
+        _channel.write(packet);
+
+        // The timeout doubles each time the same packet is resent.
+        final int backoff = _retransmitted[pSlot] ? Math.min(++_attempts[pSlot], MAX_BACKOFF) : (_attempts[pSlot] = 0);
+
+        _sentAt[pSlot] = pNow;
+        _deadline[pSlot] = pNow + Math.min(_maxRto, _rto << backoff);
+        _sent++;
+    }
+
+    /**
+     * Process the ack in the ack buffer. The lock must be held.
+     */
+    private void processAck(final long pNow) throws IOException {
+        if (_ackBuffer.position() < ReliableDatagramProtocol.ACK_SIZE) return;
+
+        final byte [] data = _ackBuffer.array();
+        if (data[ReliableDatagramProtocol.TYPE_POS] != ReliableDatagramProtocol.TYPE_ACK) return;
+        if (ByteUtils.getInt(data, ReliableDatagramProtocol.SESSION_POS) != _session) return;
+
+        _acksReceived++;
+
+        final int cumulative = ByteUtils.getInt(data, ReliableDatagramProtocol.SEQUENCE_POS);
+        final int sack = ByteUtils.getInt(data, ReliableDatagramProtocol.SACK_POS);
+        final int echo = ByteUtils.getInt(data, ReliableDatagramProtocol.ECHO_POS);
+
+        // Ignore acks that are stale or for sequences we never sent.
+        if (cumulative - _base < 0 || cumulative - _next > 0) return;
+
+        // Only the echoed packet is used for the rtt sample (Karn).
+        if (echo - _base >= 0 && echo - _next < 0) ack(echo, pNow, true);
+
+        if (cumulative == _base && _base != _next) {
+            if (++_duplicateAcks == DUPLICATE_ACK_THRESHOLD) {
+                final int slot = _base & _windowMask;
+                if (!_acked[slot]) {
+                    _retransmitted[slot] = true;
+                    _retransmits++;
+                    transmit(slot, pNow);
+                }
+            }
+        } else { _duplicateAcks = 0; }
+
+        for (int seq = _base; seq != cumulative; seq++) ack(seq, pNow, false);
+
+        for (int idx=0; idx < ReliableDatagramProtocol.SACK_BITS; idx++) {
+            if ((sack & (1 << idx)) == 0) continue;
+            final int seq = cumulative + 1 + idx;
+            if (seq - _next >= 0) break;
+            ack(seq, pNow, false);
+        }
+
+        final int before = _base;
+        while (_base != _next && _acked[_base & _windowMask]) _base++;
+        if (_base != before) _windowOpen.signalAll();
+    }
+
+    /**
+     * Mark the sequence as acked.
+     * @param pSeq The sequence.
+     * @param pNow The current time.
+     * @param pSample True if the rtt should be sampled (if only sent once).
+     */
+    private void ack(final int pSeq, final long pNow, final boolean pSample) {
+        final int slot = pSeq & _windowMask;
+        if (_acked[slot]) return;
+        _acked[slot] = true;
+        if (pSample && !_retransmitted[slot]) updateRto(pNow - _sentAt[slot]);
+    }
+
+    /**
+     * Update the smoothed rtt and the retransmission timeout (RFC 6298).
+     * @param pRtt The rtt sample in nanoseconds.
+     */
+    private void updateRto(final long pRtt) {
+        if (_srtt == 0) {
+            _srtt = pRtt;
+            _rttVar = pRtt / 2;
+        } else {
+            _rttVar = (3 * _rttVar + Math.abs(_srtt - pRtt)) / 4;
+            _srtt = (7 * _srtt + pRtt) / 8;
+        }
+        _rto = Math.min(_maxRto, Math.max(_minRto, _srtt + Math.max(CLOCK_GRANULARITY, 4 * _rttVar)));
+    }
+
+    /**
+     * Retransmit the expired packets. The lock must be held.
+     * @return The time (nanos) until the next deadline.
+     */
+    private long retransmitExpired(final long pNow) throws IOException {
+        long next = _maxRto;
+
+        for (int seq = _base; seq != _next; seq++) {
+            final int slot = seq & _windowMask;
+            if (_acked[slot]) continue;
+
+            if (_deadline[slot] - pNow <= 0) {
+                _retransmitted[slot] = true;
+                _retransmits++;
+                transmit(slot, pNow);
+            }
+
+            next = Math.min(next, _deadline[slot] - pNow);
+        }
+
+        return next;
+    }
+
+    public final void run() {
+        long wait = _rto;
+        while (_running) {
+            try {
+                final long timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+
+                if (_selector.select(timeout) > 0) {
+                    _selector.selectedKeys().clear();
+                }
+
+                if (!_running) continue;
+
+                _lock.lock();
+                try {
+                    final long now = System.nanoTime();
+                    while (true) {
+                        _ackBuffer.clear();
+                        if (_channel.receive(_ackBuffer) == null) break;
+                        processAck(now);
+                    }
+                    final long checkTime = System.nanoTime();
+                    wait = retransmitExpired(checkTime);
+                    _wakeAt = checkTime + wait;
+                } finally { _lock.unlock(); }
+
+            } catch (final Throwable t) {
+                if (!_running) continue;
+                LOG.log(Level.SEVERE, "thread name: " + getName() + " - address: " + _address + " - " + t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * Called to shutdown the client. Any blocked senders are released.
+     */
+    public synchronized void shutdown() {
+        if (!_running) return;
+        super.shutdown();
+
+        _lock.lock();
+        try { _windowOpen.signalAll();
+        } finally { _lock.unlock(); }
+
+        try {
+            _selector.close();
+            _channel.close();
+        } catch (Throwable t) { LOG.log(Level.SEVERE, "address: " + _address + " - " + t.getMessage(), t); }
+    }
+
+    /**
+     * Set the timeout bounds.
+     * @param pMin The min retransmission timeout in milliseconds.
+     * @param pMax The max retransmission timeout in milliseconds.
+     */
+    public final void setRtoBounds(final long pMin, final long pMax) {
+        _lock.lock();
+        try {
+            _minRto = TimeUnit.MILLISECONDS.toNanos(pMin);
+            _maxRto = TimeUnit.MILLISECONDS.toNanos(pMax);
+            _rto = Math.min(_maxRto, Math.max(_minRto, _rto));
+        } finally { _lock.unlock(); }
+    }
+
+    public final int getSession() { return _session; }
+    public final int getWindowSize() { return _windowSize; }
+    public final int getMaxPayload() { return _maxPayload; }
+
+    public final long getSent() { return _sent; }
+    public final long getRetransmits() { return _retransmits; }
+    public final long getAcksReceived() { return _acksReceived; }
+
+    /**
+     * Returns the number of messages sent and not acked.
+     */
+    public final int getInFlight() {
+        _lock.lock();
+        try { return _next - _base;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns the smoothed rtt in microseconds.
+     */
+    public final long getSrtt() { return TimeUnit.NANOSECONDS.toMicros(_srtt); }
+
+    /**
+     * Returns the current retransmission timeout in microseconds.
+     */
+    public final long getRto() { return TimeUnit.NANOSECONDS.toMicros(_rto); }
+}
+
@@ -0,0 +1,232 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+import com.deftlabs.core.util.LruMap;
+
+// Java
+import java.net.InetSocketAddress;
+
+/**
+ * The receiving side of the reliable datagram layer. Wrap your handler with
+ * this and pass it to a datagram server. Every data packet is acked (the ack
+ * is written to the message buffer and sent by the server) and messages are
+ * passed to the wrapped handler in sequence order, once per sequence, per peer.
+ * <br/><br/>
+ *
+ * The wrapped handler sees the raw packet. The payload starts at
+ * (offset + ReliableDatagramProtocol.DATA_HEADER_SIZE) and ends at the
+ * buffer position. The return value of the wrapped handler is ignored
+ * because the message buffer is used for the ack. The peer state is kept
+ * in an lru map so idle peers are dropped once the max is reached.
+ * <br/><br/>
+ *
+ * The receive state is resynchronized from the packet header when a peer
+ * starts a new session (a restarted client) or when the sender's base is
+ * past the expected sequence (the peer was evicted). After an eviction,
+ * messages delivered but not yet acked may be delivered again.
+ * <br/><br/>
+ *
+ * Access to this class is NOT thread-safe. It must only be called by the
+ * server thread.
+ */
+public final class ReliableDatagramHandler implements DatagramMessageHandler {
+
+    private final DatagramMessageHandler _handler;
+    private final LruMap<InetSocketAddress, Peer> _peers;
+    private final int _windowSize;
+    private final int _windowMask;
+
+    private long _delivered = 0;
+    private long _duplicates = 0;
+    private long _outOfOrder = 0;
+    private long _outOfWindow = 0;
+    private long _resyncs = 0;
+    private long _staleSessions = 0;
+
+    /**
+     * Construct a new handler.
+     * @param pHandler The handler that in-order messages are passed to.
+     * @param pWindowSize The receive window (power of two). This must be at
+     * least as large as the sender window.
+     * @param pMaxPeers The max number of peers to track.
+     */
+    public ReliableDatagramHandler( final DatagramMessageHandler pHandler,
+                                    final int pWindowSize,
+                                    final int pMaxPeers)
+    {
+        if (pHandler == null) throw new IllegalArgumentException("handler not set");
+        ReliableDatagramProtocol.checkWindowSize(pWindowSize);
+
+        _handler = pHandler;
+        _windowSize = pWindowSize;
+        _windowMask = pWindowSize - 1;
+        _peers = new LruMap<InetSocketAddress, Peer>(pMaxPeers);
+    }
+
+    /**
+     * Process the data packet and write the ack.
+     * @param pMsg The datagram message.
+     * @return True if the ack should be sent.
+     */
+    public boolean execute(final DatagramMessage pMsg) {
+        final int length = pMsg.buffer.position() - pMsg.offset;
+        if (length < ReliableDatagramProtocol.DATA_HEADER_SIZE) return false;
+        if (pMsg.data[pMsg.offset] != ReliableDatagramProtocol.TYPE_DATA) return false;
+
+        final int session = ByteUtils.getInt(pMsg.data, pMsg.offset + ReliableDatagramProtocol.SESSION_POS);
+        final int seq = ByteUtils.getInt(pMsg.data, pMsg.offset + ReliableDatagramProtocol.SEQUENCE_POS);
+        final int base = ByteUtils.getInt(pMsg.data, pMsg.offset + ReliableDatagramProtocol.BASE_POS);
+
+        Peer peer = _peers.get(pMsg.socketAddress);
+        if (peer == null) {
+            peer = new Peer(pMsg.bufferSize, pMsg.offset, session, base);
+            _peers.put(pMsg.socketAddress, peer);
+        } else if (session != peer.session) {
+            if (ReliableDatagramProtocol.isStaleSession(session, peer.session)) { _staleSessions++; return false; }
+            peer.reset(session, base);
+            _resyncs++;
+        }
+
+        // The sender only moves its base past acked sequences, so a base past
+        // the expected sequence means the receive state was lost.
+        if (base - peer.expected > 0) {
+            skipTo(peer, base);
+            deliverBuffered(peer, pMsg.socketAddress);
+            _resyncs++;
+        }
+
+        final int diff = seq - peer.expected;
+
+        if (diff == 0) {
+            deliver(pMsg);
+            peer.expected++;
+            deliverBuffered(peer, pMsg.socketAddress);
+        } else if (diff < 0) { _duplicates++;
+        } else if (diff >= _windowSize) { _outOfWindow++;
+        } else {
+            final int slot = seq & _windowMask;
+            if (peer.present[slot]) _duplicates++;
+            else {
+                if (peer.packets[slot] == null) peer.packets[slot] = new byte[pMsg.bufferSize];
+                System.arraycopy(pMsg.data, 0, peer.packets[slot], 0, pMsg.buffer.position());
+                peer.lengths[slot] = pMsg.buffer.position();
+                peer.present[slot] = true;
+                _outOfOrder++;
+            }
+        }
+
+        writeAck(pMsg, peer, seq);
+        return true;
+    }
+
+    /**
+     * Move the expected sequence forward, dropping the buffered messages
+     * before it.
+     */
+    private void skipTo(final Peer pPeer, final int pSeq) {
+        final int count = Math.min(pSeq - pPeer.expected, _windowSize);
+        for (int idx=0; idx < count; idx++) pPeer.present[(pPeer.expected + idx) & _windowMask] = false;
+        pPeer.expected = pSeq;
+    }
+
+    /**
+     * Deliver the buffered messages that are now in order.
+     */
+    private void deliverBuffered(final Peer pPeer, final InetSocketAddress pAddress) {
+        int slot = pPeer.expected & _windowMask;
+        while (pPeer.present[slot]) {
+            final DatagramMessage msg = pPeer.message;
+            msg.reset();
+            msg.socketAddress = pAddress;
+            msg.buffer.put(pPeer.packets[slot], msg.offset, pPeer.lengths[slot] - msg.offset);
+            pPeer.present[slot] = false;
+            deliver(msg);
+            pPeer.expected++;
+            slot = pPeer.expected & _windowMask;
+        }
+    }
+
+    private void deliver(final DatagramMessage pMsg) {
+        _handler.execute(pMsg);
+        _delivered++;
+    }
+
+    /**
+     * Write the cumulative and selective ack to the message buffer.
+     */
+    private void writeAck(final DatagramMessage pMsg, final Peer pPeer, final int pSeq) {
+        int sack = 0;
+        final int bits = Math.min(ReliableDatagramProtocol.SACK_BITS, _windowSize - 1);
+        for (int idx=0; idx < bits; idx++) {
+            if (pPeer.present[(pPeer.expected + 1 + idx) & _windowMask]) sack |= (1 << idx);
+        }
+
+        pMsg.data[pMsg.offset + ReliableDatagramProtocol.TYPE_POS] = ReliableDatagramProtocol.TYPE_ACK;
+        ByteUtils.setIntB(pMsg.data, pMsg.offset + ReliableDatagramProtocol.SESSION_POS, pPeer.session);
+        ByteUtils.setIntB(pMsg.data, pMsg.offset + ReliableDatagramProtocol.SEQUENCE_POS, pPeer.expected);
+        ByteUtils.setIntB(pMsg.data, pMsg.offset + ReliableDatagramProtocol.SACK_POS, sack);
+        ByteUtils.setIntB(pMsg.data, pMsg.offset + ReliableDatagramProtocol.ECHO_POS, pSeq);
+
+        pMsg.buffer.limit(pMsg.offset + ReliableDatagramProtocol.ACK_SIZE);
+        pMsg.buffer.position(pMsg.offset);
+    }
+
+    public final long getDelivered() { return _delivered; }
+    public final long getDuplicates() { return _duplicates; }
+    public final long getOutOfOrder() { return _outOfOrder; }
+    public final long getOutOfWindow() { return _outOfWindow; }
+
+    /**
+     * Returns the number of times a peer's state was reset from the header
+     * (new session or lost state).
+     */
+    public final long getResyncs() { return _resyncs; }
+
+    /**
+     * Returns the packets dropped from a previous session of the peer.
+     */
+    public final long getStaleSessions() { return _staleSessions; }
+    public final int getPeerCount() { return _peers.size(); }
+
+    /**
+     * The per peer receive state.
+     */
+    private final class Peer {
+        private int session;
+        private int expected;
+        private final byte [][] packets = new byte[_windowSize][];
+        private final int [] lengths = new int[_windowSize];
+        private final boolean [] present = new boolean[_windowSize];
+        private final DatagramMessage message;
+
+        private Peer(final int pBufferSize, final int pOffset, final int pSession, final int pBase) {
+            message = new DatagramMessage(pBufferSize, pOffset);
+            session = pSession;
+            expected = pBase;
+        }
+
+        private void reset(final int pSession, final int pBase) {
+            session = pSession;
+            expected = pBase;
+            for (int idx=0; idx < present.length; idx++) present[idx] = false;
+        }
+    }
+}
+
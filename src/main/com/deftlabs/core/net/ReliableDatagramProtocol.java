@@ -0,0 +1,108 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// Java
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The reliable datagram wire format. All values are big endian and start
+ * at the message offset.
+ * <br/><br/>
+ *
+ * Data packet: [type (1)][session (4)][sequence (4)][base (4)][payload].<br/>
+ * Ack packet: [type (1)][session (4)][next expected sequence (4)][sack bits (4)][echo (4)].
+ * <br/><br/>
+ *
+ * The session identifies a sender instance (it starts at sequence zero).
+ * The base is the sender's oldest unacked sequence when the packet was
+ * (re)sent, so a receiver that lost the peer state (evicted or new session)
+ * can resume from it.
+ * <br/><br/>
+ *
+ * Bit N of the sack bits is set if sequence (next expected + 1 + N) has
+ * been received. The echo is the sequence of the data packet that caused
+ * the ack. It is used for the rtt sample and to ack packets beyond the sack
+ * range. Sequence numbers wrap and must be compared with subtraction.
+ */
+public final class ReliableDatagramProtocol {
+
+    public static final byte TYPE_DATA = 1;
+    public static final byte TYPE_ACK = 2;
+
+    public static final int TYPE_POS = 0;
+    public static final int SESSION_POS = 1;
+    public static final int SEQUENCE_POS = 5;
+    public static final int BASE_POS = 9;
+    public static final int SACK_POS = 9;
+    public static final int ECHO_POS = 13;
+
+    /**
+     * The data header size. The handler payload starts at
+     * (message offset + DATA_HEADER_SIZE).
+     */
+    public static final int DATA_HEADER_SIZE = 13;
+
+    public static final int ACK_SIZE = 17;
+
+    /**
+     * The number of sequences covered by the selective ack bits.
+     */
+    public static final int SACK_BITS = 32;
+
+    /**
+     * A packet from a session up to this much older (in milliseconds) than
+     * the peer's current session is a late packet from a previous sender
+     * and is dropped. Anything else is a new session.
+     */
+    static final int STALE_SESSION_MILLIS = 60000;
+
+    private static final AtomicInteger LAST_SESSION = new AtomicInteger((int)System.currentTimeMillis() - 1);
+
+    private ReliableDatagramProtocol() { }
+
+    /**
+     * Returns a new session id: the clock in milliseconds (truncated to an
+     * int), unique and increasing in this jvm.
+     */
+    static final int newSession() {
+        while (true) {
+            final int last = LAST_SESSION.get();
+            final int now = (int)System.currentTimeMillis();
+            final int next = (now - last > 0) ? now : last + 1;
+            if (LAST_SESSION.compareAndSet(last, next)) return next;
+        }
+    }
+
+    /**
+     * Returns true if the session is a previous session of the current one.
+     */
+    static final boolean isStaleSession(final int pSession, final int pCurrent) {
+        final int age = pCurrent - pSession;
+        return age > 0 && age <= STALE_SESSION_MILLIS;
+    }
+
+    /**
+     * Verify the window size is a positive power of two.
+     * @param pWindowSize The window size.
+     */
+    static final void checkWindowSize(final int pWindowSize) {
+        if (pWindowSize < 1 || (pWindowSize & (pWindowSize - 1)) != 0)
+        { throw new IllegalArgumentException("window size must be a power of two: " + pWindowSize); }
+    }
+}
+
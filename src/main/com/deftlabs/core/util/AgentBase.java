@@ -0,0 +1,166 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A duty-cycle agent thread. Extend this class and implement doWork instead
+ * of writing the run loop. Each duty cycle calls doWork; if it returns zero
+ * (no work), the idle strategy decides what to do (spin, yield, back off or
+ * block). The strategy can come from config (see IdleStrategies.create), so
+ * the cpu/latency trade is made per service without code changes.
+ * <br/><br/>
+ *
+ * Producers should call wakeup after handing work to the agent when a
+ * parking strategy is used. The metrics are written by the agent thread
+ * and may be read by any thread. Subclasses that override beforeStop must
+ * call super.beforeStop (it wakes the agent).
+ */
+public abstract class AgentBase extends ThreadBase {
+
+    private volatile IdleStrategy _idleStrategy;
+
+    private volatile long _cycles = 0;
+    private volatile long _workCycles = 0;
+    private volatile long _work = 0;
+    private volatile long _maxWork = 0;
+    private volatile long _workNanos = 0;
+    private volatile long _idleNanos = 0;
+    private volatile long _errors = 0;
+
+    private static final Logger LOG = Logger.getLogger(AgentBase.class.getName());
+
+    /**
+     * Create a new agent.
+     * @param pIdleStrategy The idle strategy.
+     */
+    protected AgentBase(final IdleStrategy pIdleStrategy) { setIdleStrategy(pIdleStrategy); }
+
+    /**
+     * Do a unit of work. This must not block (the idle strategy handles the
+     * waiting).
+     * @return The amount of work done (zero if none).
+     * @throws Exception Logged and counted; the agent keeps running.
+     */
+    protected abstract int doWork() throws Exception;
+
+    /**
+     * Called by the agent thread after the last duty cycle.
+     */
+    protected void onClose() { }
+
+    public final void run() {
+        while (_running) {
+            heartbeat();
+            final long start = System.nanoTime();
+            int work = 0;
+            try { work = doWork();
+            } catch (final InterruptedException ie) { if (_running) LOG.log(Level.WARNING, getName() + " interrupted");
+            } catch (final Throwable t) {
+                _errors++;
+                LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t);
+            }
+
+            final long worked = System.nanoTime();
+            _workNanos += worked - start;
+            _cycles++;
+
+            final IdleStrategy idleStrategy = _idleStrategy;
+            if (work > 0) {
+                _workCycles++;
+                _work += work;
+                if (work > _maxWork) _maxWork = work;
+                idleStrategy.reset();
+                continue;
+            }
+
+            if (!_running) break;
+            markIdle();
+            idleStrategy.idle();
+            _idleNanos += System.nanoTime() - worked;
+        }
+
+        try { onClose();
+        } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t); }
+    }
+
+    /**
+     * Wake the agent if it is parked by the idle strategy. This is
+     * thread-safe and cheap if the agent is not parked.
+     */
+    public final void wakeup() { LockSupport.unpark(getExecutionThread()); }
+
+    protected void beforeStop() { wakeup(); }
+
+    /**
+     * Set the idle strategy. It is picked up on the next idle cycle.
+     * @param pV The strategy.
+     */
+    public final void setIdleStrategy(final IdleStrategy pV) {
+        if (pV == null) throw new IllegalArgumentException("idle strategy not set");
+        _idleStrategy = pV;
+    }
+
+    public final IdleStrategy getIdleStrategy() { return _idleStrategy; }
+
+    /**
+     * Returns the number of duty cycles.
+     */
+    public final long getCycles() { return _cycles; }
+
+    /**
+     * Returns the number of duty cycles that did work.
+     */
+    public final long getWorkCycles() { return _workCycles; }
+
+    /**
+     * Returns the total work (sum of the doWork results).
+     */
+    public final long getWork() { return _work; }
+
+    public final long getMaxWorkPerCycle() { return _maxWork; }
+
+    /**
+     * Returns the mean work per cycle that did work.
+     */
+    public final double getWorkPerCycle() {
+        final long workCycles = _workCycles;
+        return (workCycles == 0) ? 0 : (double)_work / workCycles;
+    }
+
+    /**
+     * Returns the time spent in doWork and in the idle strategy.
+     */
+    public final long getWorkNanos() { return _workNanos; }
+    public final long getIdleNanos() { return _idleNanos; }
+
+    /**
+     * Returns the share of time spent in doWork (0 - 1).
+     */
+    public final double getDutyCycle() {
+        final long work = _workNanos;
+        final long total = work + _idleNanos;
+        return (total == 0) ? 0 : (double)work / total;
+    }
+
+    public final long getErrors() { return _errors; }
+}
+
@@ -0,0 +1,324 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue that hands items to consumers in batches. Producers put
+ * single items; a batch is ready when max batch size items are queued or
+ * when the oldest item has waited the linger time, whichever comes first.
+ * Put blocks (and offer fails) while the queue is at capacity, so a slow
+ * consumer pushes back on the producers.
+ * <br/><br/>
+ *
+ * This sits between handlers that produce one item at a time (e.g. a
+ * DatagramServer handler) and writers that want batches (a file, a
+ * socket or a database). After close, put is rejected and the remaining
+ * items are handed out without waiting for the linger time.
+ * <br/><br/>
+ *
+ * Access to this class is thread-safe.
+ */
+public final class BatchQueue<T> {
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final Condition _notFull = _lock.newCondition();
+
+    private final Object [] _items;
+    private final long [] _times;
+    private final int _maxBatch;
+    private final long _lingerNanos;
+
+    private int _head = 0;
+    private int _count = 0;
+    private boolean _closed = false;
+
+    // The metrics (written under the lock).
+    private final LogLinearHistogram _batchSizes = new LogLinearHistogram();
+    private volatile long _put = 0;
+    private volatile long _rejected = 0;
+    private volatile long _sizeFlushes = 0;
+    private volatile long _lingerFlushes = 0;
+    private volatile long _putWaitNanos = 0;
+    private volatile long _takeWaitNanos = 0;
+
+    /**
+     * Construct a new queue.
+     * @param pCapacity The max items queued.
+     * @param pMaxBatch The max items in a batch (at most the capacity).
+     * @param pLinger The max time the oldest item waits for a full batch.
+     * @param pUnit The linger time unit.
+     */
+    public BatchQueue(final int pCapacity, final int pMaxBatch, final long pLinger, final TimeUnit pUnit) {
+        if (pCapacity < 1) throw new IllegalArgumentException("invalid capacity: " + pCapacity);
+        if (pMaxBatch < 1 || pMaxBatch > pCapacity) throw new IllegalArgumentException("invalid max batch: " + pMaxBatch);
+        if (pLinger < 0) throw new IllegalArgumentException("invalid linger: " + pLinger);
+
+        _items = new Object[pCapacity];
+        _times = new long[pCapacity];
+        _maxBatch = pMaxBatch;
+        _lingerNanos = pUnit.toNanos(pLinger);
+    }
+
+    /**
+     * Add the item, waiting while the queue is full.
+     * @throws IllegalStateException If the queue is closed.
+     * @throws InterruptedException
+     */
+    public final void put(final T pItem) throws InterruptedException {
+        _lock.lockInterruptibly();
+        try {
+            if (_count == _items.length) {
+                final long start = System.nanoTime();
+                try {
+                    while (_count == _items.length && !_closed) _notFull.await();
+                } finally { _putWaitNanos += System.nanoTime() - start; }
+            }
+            enqueue(pItem);
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Add the item if there is room.
+     * @return False if the queue is full.
+     * @throws IllegalStateException If the queue is closed.
+     */
+    public final boolean offer(final T pItem) {
+        _lock.lock();
+        try {
+            if (_count == _items.length && !_closed) { _rejected++; return false; }
+            enqueue(pItem);
+            return true;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Add the item, waiting up to the timeout for room.
+     * @return False if the queue is still full.
+     * @throws IllegalStateException If the queue is closed.
+     * @throws InterruptedException
+     */
+    public final boolean offer(final T pItem, final long pTimeout, final TimeUnit pUnit) throws InterruptedException {
+        _lock.lockInterruptibly();
+        try {
+            if (_count == _items.length) {
+                long nanos = pUnit.toNanos(pTimeout);
+                final long start = System.nanoTime();
+                try {
+                    while (_count == _items.length && !_closed) {
+                        if (nanos <= 0) { _rejected++; return false; }
+                        nanos = _notFull.awaitNanos(nanos);
+                    }
+                } finally { _putWaitNanos += System.nanoTime() - start; }
+            }
+            enqueue(pItem);
+            return true;
+        } finally { _lock.unlock(); }
+    }
+
+    private void enqueue(final T pItem) {
+        if (pItem == null) throw new NullPointerException();
+        if (_closed) throw new IllegalStateException("queue closed");
+
+        final int tail = (_head + _count) % _items.length;
+        _items[tail] = pItem;
+        _times[tail] = System.nanoTime();
+        _count++;
+        _put++;
+
+        // Wake a consumer to start the linger clock or to take a full batch.
+        if (_count == 1 || _count == _maxBatch) _notEmpty.signal();
+    }
+
+    /**
+     * Take the next batch, waiting until one is ready.
+     * @param pBatch The collection the items are added to.
+     * @return The number of items added (zero only if the queue is closed and
+     * empty).
+     * @throws InterruptedException
+     */
+    public final int take(final Collection<? super T> pBatch) throws InterruptedException {
+        return await(pBatch, false, 0);
+    }
+
+    /**
+     * Take the next batch, waiting up to the timeout for one to be ready.
+     * Items that are still lingering at the timeout stay queued.
+     * @param pBatch The collection the items are added to.
+     * @return The number of items added (zero if no batch was ready).
+     * @throws InterruptedException
+     */
+    public final int poll(final Collection<? super T> pBatch, final long pTimeout, final TimeUnit pUnit) throws InterruptedException {
+        return await(pBatch, true, pUnit.toNanos(pTimeout));
+    }
+
+    /**
+     * Take up to max batch items now, ignoring the linger time.
+     * @return The number of items added.
+     */
+    public final int flush(final Collection<? super T> pBatch) {
+        _lock.lock();
+        try { return drain(pBatch);
+        } finally { _lock.unlock(); }
+    }
+
+    private int await(final Collection<? super T> pBatch, final boolean pTimed, final long pNanos) throws InterruptedException {
+        _lock.lockInterruptibly();
+        final long start = System.nanoTime();
+        try {
+            long nanos = pNanos;
+            while (true) {
+                if (_count >= _maxBatch) { _sizeFlushes++; break; }
+                if (_closed) break;
+
+                long wait = Long.MAX_VALUE;
+                if (_count > 0) {
+                    wait = _times[_head] + _lingerNanos - System.nanoTime();
+                    if (wait <= 0) { _lingerFlushes++; break; }
+                }
+
+                if (pTimed) {
+                    if (nanos <= 0) return 0;
+                    wait = Math.min(wait, nanos);
+                }
+
+                final long before = System.nanoTime();
+                if (wait == Long.MAX_VALUE) _notEmpty.await();
+                else _notEmpty.awaitNanos(wait);
+                nanos -= System.nanoTime() - before;
+            }
+
+            return drain(pBatch);
+
+        } finally {
+            _takeWaitNanos += System.nanoTime() - start;
+            _lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int drain(final Collection<? super T> pBatch) {
+        final int count = Math.min(_count, _maxBatch);
+        if (count == 0) return 0;
+
+        for (int idx=0; idx < count; idx++) {
+            pBatch.add((T)_items[_head]);
+            _items[_head] = null;
+            _head = (_head + 1) % _items.length;
+        }
+
+        _count -= count;
+        _batchSizes.record(count);
+
+        _notFull.signalAll();
+
+        // Let another consumer start on what is left.
+        if (_count > 0) _notEmpty.signal();
+        return count;
+    }
+
+    /**
+     * Close the queue. Waiting producers are released (put throws) and the
+     * remaining items are handed out without the linger wait.
+     */
+    public final void close() {
+        _lock.lock();
+        try {
+            _closed = true;
+            _notEmpty.signalAll();
+            _notFull.signalAll();
+        } finally { _lock.unlock(); }
+    }
+
+    public final boolean isClosed() {
+        _lock.lock();
+        try { return _closed;
+        } finally { _lock.unlock(); }
+    }
+
+    public final int size() {
+        _lock.lock();
+        try { return _count;
+        } finally { _lock.unlock(); }
+    }
+
+    public final int getCapacity() { return _items.length; }
+    public final int getMaxBatch() { return _maxBatch; }
+    public final long getLingerNanos() { return _lingerNanos; }
+
+    /**
+     * Returns a copy of the batch size histogram.
+     */
+    public final LogLinearHistogram getBatchSizes() {
+        final LogLinearHistogram copy = new LogLinearHistogram();
+        _lock.lock();
+        try { copy.merge(_batchSizes);
+        } finally { _lock.unlock(); }
+        return copy;
+    }
+
+    public final long getPut() { return _put; }
+    public final long getRejected() { return _rejected; }
+
+    /**
+     * Returns the batches flushed because they were full.
+     */
+    public final long getSizeFlushes() { return _sizeFlushes; }
+
+    /**
+     * Returns the batches flushed because the oldest item lingered.
+     */
+    public final long getLingerFlushes() { return _lingerFlushes; }
+
+    /**
+     * Returns the total time producers waited for room (backpressure).
+     */
+    public final long getPutWaitNanos() { return _putWaitNanos; }
+
+    /**
+     * Returns the total time consumers waited for batches.
+     */
+    public final long getTakeWaitNanos() { return _takeWaitNanos; }
+
+    /**
+     * Returns the metrics as a string.
+     */
+    public final String getReport() {
+        final LogLinearHistogram sizes = getBatchSizes();
+        _lock.lock();
+        try {
+            return "size: " + _count + "/" + _items.length
+            + " - put: " + _put
+            + " - rejected: " + _rejected
+            + " - batches: " + sizes.getCount()
+            + " (size: " + _sizeFlushes + ", linger: " + _lingerFlushes + ")"
+            + " - batch size mean: " + String.format("%.1f", sizes.getMean())
+            + " p50: " + sizes.getValueAtPercentile(50)
+            + " p99: " + sizes.getValueAtPercentile(99)
+            + " max: " + sizes.getMax()
+            + " - put wait: " + TimeUnit.NANOSECONDS.toMillis(_putWaitNanos) + " ms"
+            + " - take wait: " + TimeUnit.NANOSECONDS.toMillis(_takeWaitNanos) + " ms";
+        } finally { _lock.unlock(); }
+    }
+}
+
@@ -0,0 +1,214 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache with approximate lru eviction (CLOCK). A read is a
+ * ConcurrentHashMap lookup plus setting the entry's reference bit, so reads
+ * never block. Writes take a lock; when the cache is full, the writer
+ * sweeps the clock hand over the entries, clearing reference bits, and
+ * evicts the first entry that was not referenced since the last pass.
+ * <br/><br/>
+ *
+ * Use this instead of LruMap for read heavy caches, where a put in LruMap
+ * blocks every get. The eviction handler is called by the writer under the
+ * write lock. The keySet, values and entrySet views are snapshots.
+ */
+public class ClockCache<K,V> extends AbstractMap<K,V> {
+
+    private final ConcurrentHashMap<K, Node<K, V>> _map;
+    private final LruMap.EvictionHandler<K, V> _handler;
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    // The clock ring and the free slots (guarded by the lock).
+    private final Node<K, V> [] _ring;
+    private final int [] _free;
+    private int _freeCount;
+    private int _hand = 0;
+
+    private volatile long _evictions = 0;
+    private volatile long _sweeps = 0;
+
+    /**
+     * Create a new cache.
+     * @param pSize The max size of the cache.
+     */
+    public ClockCache(final int pSize) { this(pSize, null); }
+
+    /**
+     * Create a new cache.
+     * @param pSize The max size of the cache.
+     * @param pHandler The optional eviction handler.
+     */
+    @SuppressWarnings("unchecked")
+    public ClockCache(final int pSize, final LruMap.EvictionHandler<K, V> pHandler) {
+        if (pSize < 1) throw new IllegalArgumentException("invalid size: " + pSize);
+
+        _handler = pHandler;
+        _map = new ConcurrentHashMap<K, Node<K, V>>((int)Math.ceil(pSize / 0.75f) + 1);
+        _ring = (Node<K, V> [])new Node<?, ?>[pSize];
+        _free = new int[pSize];
+
+        for (int idx=0; idx < pSize; idx++) _free[idx] = pSize - 1 - idx;
+        _freeCount = pSize;
+    }
+
+    @Override public V get(final Object pKey) {
+        final Node<K, V> node = _map.get(pKey);
+        if (node == null) return null;
+
+        // Only write when the bit is clear, so hot entries stay read-only.
+        if (!node._referenced) node._referenced = true;
+        return node._value;
+    }
+
+    @Override public boolean containsKey(final Object pKey) { return _map.containsKey(pKey); }
+
+    @Override public V put(final K pKey, final V pValue) { return put(pKey, pValue, false); }
+
+    /**
+     * Add the value if the key is not in the cache.
+     * @return The existing value or null if the value was added.
+     */
+    public V putIfAbsent(final K pKey, final V pValue) { return put(pKey, pValue, true); }
+
+    private V put(final K pKey, final V pValue, final boolean pIfAbsent) {
+        if (pKey == null || pValue == null) throw new NullPointerException();
+
+        _lock.lock();
+        try {
+            final Node<K, V> existing = _map.get(pKey);
+            if (existing != null) {
+                final V old = existing._value;
+                if (!pIfAbsent) existing._value = pValue;
+                existing._referenced = true;
+                return old;
+            }
+
+            if (_freeCount == 0) evict();
+
+            final Node<K, V> node = new Node<K, V>(pKey, pValue, _free[--_freeCount]);
+            _ring[node._slot] = node;
+            _map.put(pKey, node);
+            return null;
+
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Sweep the hand to the first entry that was not referenced, clearing
+     * the bits it passes, and evict it. Called with the lock held and the
+     * ring full.
+     */
+    private void evict() {
+        long sweeps = 0;
+        Node<K, V> victim;
+        while (true) {
+            victim = _ring[_hand];
+            _hand = (_hand + 1 == _ring.length) ? 0 : _hand + 1;
+            sweeps++;
+
+            if (!victim._referenced) break;
+            victim._referenced = false;
+        }
+
+        _sweeps += sweeps;
+        _evictions++;
+        release(victim);
+        _map.remove(victim._key);
+
+        if (_handler != null) _handler.execute(victim);
+    }
+
+    private void release(final Node<K, V> pNode) {
+        _ring[pNode._slot] = null;
+        _free[_freeCount++] = pNode._slot;
+    }
+
+    @Override public V remove(final Object pKey) {
+        _lock.lock();
+        try {
+            final Node<K, V> node = _map.remove(pKey);
+            if (node == null) return null;
+            release(node);
+            return node._value;
+        } finally { _lock.unlock(); }
+    }
+
+    @Override public void clear() {
+        _lock.lock();
+        try {
+            for (final Node<K, V> node : _map.values()) release(node);
+            _map.clear();
+        } finally { _lock.unlock(); }
+    }
+
+    @Override public int size() { return _map.size(); }
+
+    @Override public boolean isEmpty() { return _map.isEmpty(); }
+
+    /**
+     * Returns a snapshot of the entries.
+     */
+    @Override public Set<Map.Entry<K,V>> entrySet() {
+        final HashMap<K, V> copy = new HashMap<K, V>();
+        for (final Node<K, V> node : _map.values()) copy.put(node._key, node._value);
+        return copy.entrySet();
+    }
+
+    public final int getMaxSize() { return _ring.length; }
+
+    public final long getEvictions() { return _evictions; }
+
+    /**
+     * Returns the mean entries the hand passed per eviction (one means
+     * the hand always found an unreferenced entry at once).
+     */
+    public final double getMeanSweep() {
+        final long evictions = _evictions;
+        return (evictions == 0) ? 0 : (double)_sweeps / evictions;
+    }
+
+    /**
+     * The cache entry.
+     */
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+        private final K _key;
+        private final int _slot;
+        private volatile V _value;
+        private volatile boolean _referenced = false;
+
+        private Node(final K pKey, final V pValue, final int pSlot) {
+            _key = pKey;
+            _value = pValue;
+            _slot = pSlot;
+        }
+
+        public K getKey() { return _key; }
+        public V getValue() { return _value; }
+        public V setValue(final V pValue) { throw new UnsupportedOperationException(); }
+    }
+}
+
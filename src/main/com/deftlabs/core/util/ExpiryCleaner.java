@@ -0,0 +1,91 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread that removes the expired entries of LruMaps on an interval, so
+ * quiet maps do not hold expired entries (and do not wait for their own
+ * reads and writes to clean up). Each map is only locked for its own
+ * cleanup.
+ */
+public final class ExpiryCleaner extends ThreadBase {
+
+    private final CopyOnWriteArrayList<LruMap<?, ?>> _maps = new CopyOnWriteArrayList<LruMap<?, ?>>();
+    private final long _intervalMillis;
+
+    private volatile long _removed = 0;
+
+    private static final Logger LOG = Logger.getLogger(ExpiryCleaner.class.getName());
+
+    /**
+     * Create a new cleaner.
+     * @param pName The thread name.
+     * @param pInterval The cleanup interval.
+     * @param pUnit The interval unit.
+     */
+    public ExpiryCleaner(final String pName, final long pInterval, final TimeUnit pUnit) {
+        if (pInterval < 1) throw new IllegalArgumentException("invalid interval: " + pInterval);
+        setName(pName);
+        _intervalMillis = Math.max(1, pUnit.toMillis(pInterval));
+    }
+
+    /**
+     * Add the map (once). Maps are tracked by identity because LruMap equals
+     * compares the entries.
+     */
+    public final synchronized void add(final LruMap<?, ?> pMap) {
+        if (indexOf(pMap) < 0) _maps.add(pMap);
+    }
+
+    public final synchronized void remove(final LruMap<?, ?> pMap) {
+        final int idx = indexOf(pMap);
+        if (idx >= 0) _maps.remove(idx);
+    }
+
+    private int indexOf(final LruMap<?, ?> pMap) {
+        for (int idx=0; idx < _maps.size(); idx++) if (_maps.get(idx) == pMap) return idx;
+        return -1;
+    }
+
+    /**
+     * Returns the number of expired entries removed by this thread.
+     */
+    public final long getRemoved() { return _removed; }
+
+    public void run() {
+        while (_running) {
+            try {
+                heartbeat();
+                long removed = 0;
+                for (final LruMap<?, ?> map : _maps) removed += map.cleanUp();
+                if (removed > 0) _removed += removed;
+
+                markIdle();
+                Thread.sleep(_intervalMillis);
+
+            } catch (final InterruptedException ie) { if (_running) LOG.log(Level.WARNING, getName() + " interrupted");
+            } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t); }
+        }
+    }
+}
+
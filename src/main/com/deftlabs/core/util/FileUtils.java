@@ -30,6 +30,7 @@ import java.io.FileWriter;
 import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.UUID;
@@ -241,6 +242,31 @@ public final class FileUtils {
         }
     }
 
+    /**
+     * Map a file to a shared, writable memory mapped buffer. The file is
+     * created (or extended) to the size. Writes are visible to the other
+     * processes mapping the file.
+     * @param pFileName The file name.
+     * @param pSize The mapped size.
+     * @throws OemException
+     */
+    public static final MappedByteBuffer mapFileToBuffer(   final String pFileName,
+                                                            final long pSize)
+        throws OemException
+    {
+        try {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(pFileName, "rw");
+                if (raf.length() < pSize) raf.setLength(pSize);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, pSize);
+
+            } finally { if (raf != null) raf.close(); }
+        } catch (Throwable t) {
+            throw new OemException(("error on file: " + pFileName), t);
+        }
+    }
+
     /**
      * Write the entire byte buffer to a file. This calls clear on the buffer.
      * @param pBuffer The buffer.
@@ -0,0 +1,115 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * A count-min sketch of 4 bit counters that estimates how often keys were
+ * seen (up to 15). Each key maps to four counters, one in each of four
+ * longs (16 counters per long), and the estimate is the smallest. After
+ * ten times the max size increments, every counter is halved, so the
+ * counts age and old popularity fades.
+ * <br/><br/>
+ *
+ * Access to this class is NOT thread-safe.
+ */
+final class FrequencySketch {
+
+    private static final long [] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long [] _table;
+    private final int _mask;
+    private final int _sampleSize;
+    private int _additions = 0;
+    private long _resets = 0;
+
+    /**
+     * Create a new sketch.
+     * @param pMaxSize The max number of keys tracked (the cache size).
+     */
+    FrequencySketch(final int pMaxSize) {
+        final int size = Math.max(16, pMaxSize);
+        int length = Integer.highestOneBit(size);
+        if (length < size) length <<= 1;
+
+        _table = new long[length];
+        _mask = length - 1;
+        _sampleSize = (size > Integer.MAX_VALUE / 10) ? Integer.MAX_VALUE : size * 10;
+    }
+
+    /**
+     * Returns the estimated frequency (0 - 15).
+     */
+    final int frequency(final Object pKey) {
+        final int hash = spread(pKey.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int idx=0; idx < 4; idx++) {
+            final int shift = (start + idx) << 2;
+            final int count = (int)((_table[index(hash, idx)] >>> shift) & 0xfL);
+            if (count < frequency) frequency = count;
+        }
+        return frequency;
+    }
+
+    /**
+     * Count the key.
+     */
+    final void increment(final Object pKey) {
+        final int hash = spread(pKey.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int idx=0; idx < 4; idx++) {
+            final int index = index(hash, idx);
+            final int shift = (start + idx) << 2;
+            if (((_table[index] >>> shift) & 0xfL) == 0xfL) continue;
+            _table[index] += 1L << shift;
+            added = true;
+        }
+
+        if (added && ++_additions == _sampleSize) reset();
+    }
+
+    /**
+     * Halve every counter.
+     */
+    private void reset() {
+        for (int idx=0; idx < _table.length; idx++) _table[idx] = (_table[idx] >>> 1) & RESET_MASK;
+        _additions >>>= 1;
+        _resets++;
+    }
+
+    final void clear() {
+        for (int idx=0; idx < _table.length; idx++) _table[idx] = 0;
+        _additions = 0;
+    }
+
+    final long getResets() { return _resets; }
+
+    private int index(final int pHash, final int pDepth) {
+        long hash = (pHash + SEEDS[pDepth]) * SEEDS[pDepth];
+        hash += hash >>> 32;
+        return ((int)hash) & _mask;
+    }
+
+    private static int spread(final int pHash) {
+        int hash = ((pHash >>> 16) ^ pHash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
+
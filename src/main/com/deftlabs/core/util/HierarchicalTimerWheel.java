@@ -0,0 +1,409 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hierarchical hashed timing wheel for millions of pending timeouts.
+ * There are four levels of 256 buckets. A timeout is hashed into the lowest
+ * level that covers its deadline and is cascaded down a level each time the
+ * level below wraps, so schedule and cancel are O(1) and a timeout is moved
+ * at most three times. Unlike TimerWheel, there are no round counts, so the
+ * buckets far from the current tick are never scanned. Deadlines past the
+ * top level (2^32 ticks) are parked in the top level and re-hashed when it
+ * comes around.
+ * <br/><br/>
+ *
+ * The timeout handles can be recycled (see the constructor) so a steady
+ * schedule/expire load does not allocate. A recycled handle must not be used
+ * after its task has run or it has been cancelled, unless it is cancelled
+ * with the sequence number read when it was scheduled.
+ * <br/><br/>
+ *
+ * Access to this class is NOT thread-safe. It is meant to be owned by one
+ * thread (e.g., an event loop). See TimerThread for a thread-safe scheduler
+ * driven by its own thread.
+ */
+public final class HierarchicalTimerWheel {
+
+    private final long _tickNanos;
+    private final long _startTime;
+    private final Timeout [][] _levels;
+    private final int [] _counts;
+
+    // The next tick to process.
+    private long _currentTick = 0;
+    private int _size = 0;
+
+    // The recycled handles (singly linked through next).
+    private final int _maxPooled;
+    private Timeout _pool;
+    private int _pooled = 0;
+
+    private static final int LEVELS = 4;
+    private static final int LEVEL_BITS = 8;
+    private static final int BUCKETS = 1 << LEVEL_BITS;
+    private static final int MASK = BUCKETS - 1;
+    private static final long MAX_TICKS = 1L << (LEVELS * LEVEL_BITS);
+
+    private static final int PENDING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+    private static final int FREE = 3;
+
+    private static final int FIRING = -1;
+
+    private static final Logger LOG = Logger.getLogger(HierarchicalTimerWheel.class.getName());
+
+    /**
+     * Create a new timer wheel that does not recycle handles.
+     * @param pTickDuration The tick duration (the timer resolution).
+     * @param pUnit The tick duration unit.
+     * @param pNow The current time (System.nanoTime()).
+     */
+    public HierarchicalTimerWheel(final long pTickDuration, final TimeUnit pUnit, final long pNow)
+    { this(pTickDuration, pUnit, pNow, 0); }
+
+    /**
+     * Create a new timer wheel.
+     * @param pTickDuration The tick duration (the timer resolution).
+     * @param pUnit The tick duration unit.
+     * @param pNow The current time (System.nanoTime()).
+     * @param pMaxPooled The max number of handles kept for reuse (zero
+     * disables recycling).
+     */
+    public HierarchicalTimerWheel(  final long pTickDuration,
+                                    final TimeUnit pUnit,
+                                    final long pNow,
+                                    final int pMaxPooled)
+    {
+        if (pTickDuration < 1) throw new IllegalArgumentException("invalid tick duration: " + pTickDuration);
+        if (pMaxPooled < 0) throw new IllegalArgumentException("invalid max pooled: " + pMaxPooled);
+
+        _tickNanos = pUnit.toNanos(pTickDuration);
+        _startTime = pNow;
+        _maxPooled = pMaxPooled;
+        _levels = new Timeout[LEVELS][BUCKETS];
+        _counts = new int[LEVELS];
+    }
+
+    /**
+     * Schedule the task.
+     * @param pTask The task.
+     * @param pDelay The delay.
+     * @param pUnit The delay unit.
+     * @param pNow The current time (System.nanoTime()).
+     * @return The timeout handle (used to cancel).
+     */
+    public final Timeout schedule(  final Task pTask,
+                                    final long pDelay,
+                                    final TimeUnit pUnit,
+                                    final long pNow)
+    {
+        if (pTask == null) throw new IllegalArgumentException("task not set");
+
+        Timeout timeout = _pool;
+        if (timeout != null) {
+            _pool = timeout.next;
+            _pooled--;
+            timeout.next = null;
+            timeout.sequence++;
+        } else timeout = new Timeout(this);
+
+        timeout.task = pTask;
+        timeout.deadline = pNow + pUnit.toNanos(Math.max(0, pDelay));
+        timeout.state = PENDING;
+
+        // Round up so the timeout never fires early.
+        final long elapsed = timeout.deadline - _startTime;
+        timeout.tick = (elapsed <= 0) ? 0 : (elapsed + _tickNanos - 1) / _tickNanos;
+
+        add(timeout);
+        _size++;
+        return timeout;
+    }
+
+    /**
+     * Hash the timeout into the lowest level that covers its deadline.
+     */
+    private void add(final Timeout pTimeout) {
+        long tick = pTimeout.tick;
+        if (tick < _currentTick) tick = _currentTick;
+
+        long delta = tick - _currentTick;
+        if (delta >= MAX_TICKS) {
+            // Park it in the top level; it is re-hashed when cascaded.
+            delta = MAX_TICKS - 1;
+            tick = _currentTick + delta;
+        }
+
+        int level = 0;
+        while (delta >= BUCKETS) { delta >>>= LEVEL_BITS; level++; }
+
+        final int bucket = (int)((tick >>> (level * LEVEL_BITS)) & MASK);
+        pTimeout.slot = (level << LEVEL_BITS) | bucket;
+
+        final Timeout [] buckets = _levels[level];
+        final Timeout head = buckets[bucket];
+        pTimeout.prev = null;
+        pTimeout.next = head;
+        if (head != null) head.prev = pTimeout;
+        buckets[bucket] = pTimeout;
+        _counts[level]++;
+    }
+
+    private void unlink(final Timeout pTimeout) {
+        final int level = pTimeout.slot >>> LEVEL_BITS;
+        final Timeout [] buckets = _levels[level];
+        if (pTimeout.prev != null) pTimeout.prev.next = pTimeout.next;
+        else buckets[pTimeout.slot & MASK] = pTimeout.next;
+        if (pTimeout.next != null) pTimeout.next.prev = pTimeout.prev;
+        pTimeout.prev = null;
+        pTimeout.next = null;
+        _counts[level]--;
+    }
+
+    /**
+     * Cancel the timeout.
+     * @return True if the timeout was pending.
+     */
+    final boolean cancel(final Timeout pTimeout) {
+        if (pTimeout.state != PENDING) return false;
+        pTimeout.state = CANCELLED;
+        if (pTimeout.slot != FIRING) {
+            unlink(pTimeout);
+            _size--;
+            recycle(pTimeout);
+        }
+        return true;
+    }
+
+    private void recycle(final Timeout pTimeout) {
+        if (_pooled >= _maxPooled) return;
+        pTimeout.task = null;
+        pTimeout.state = FREE;
+        pTimeout.next = _pool;
+        _pool = pTimeout;
+        _pooled++;
+    }
+
+    /**
+     * Move the bucket's timeouts down to the lower levels.
+     */
+    private void cascade(final int pLevel, final int pBucket) {
+        final Timeout [] buckets = _levels[pLevel];
+        Timeout node = buckets[pBucket];
+        buckets[pBucket] = null;
+        while (node != null) {
+            final Timeout next = node.next;
+            _counts[pLevel]--;
+            add(node);
+            node = next;
+        }
+    }
+
+    /**
+     * Jump to the next cascade of the lowest non-empty level (no timeouts
+     * are due before it), so long idle periods are not walked tick by tick.
+     */
+    private void skipEmptyTicks(final long pNowTick) {
+        int level = 0;
+        while (level < LEVELS && _counts[level] == 0) level++;
+        if (level == 0 || level == LEVELS) return;
+
+        final long span = 1L << (level * LEVEL_BITS);
+        final long next = (_currentTick + span - 1) & ~(span - 1);
+        _currentTick = Math.min(next, pNowTick + 1);
+    }
+
+    /**
+     * Run the tasks that are due.
+     * @param pNow The current time (System.nanoTime()).
+     * @return The number of tasks run.
+     */
+    public final int expire(final long pNow) {
+        final long elapsed = pNow - _startTime;
+        if (elapsed < 0) return 0;
+
+        final long nowTick = elapsed / _tickNanos;
+
+        // Nothing to cascade or fire, so skip the idle ticks.
+        if (_size == 0) {
+            if (_currentTick <= nowTick) _currentTick = nowTick + 1;
+            return 0;
+        }
+
+        int fired = 0;
+
+        while (_currentTick <= nowTick) {
+            final long tick = _currentTick;
+
+            // Cascade each level whose lower level wrapped, highest last.
+            for (int level=1; level < LEVELS; level++) {
+                final int shift = level * LEVEL_BITS;
+                if ((tick & ((1L << shift) - 1)) != 0) break;
+                cascade(level, (int)((tick >>> shift) & MASK));
+            }
+
+            final int bucket = (int)(tick & MASK);
+            Timeout due = _levels[0][bucket];
+            _levels[0][bucket] = null;
+            _currentTick = tick + 1;
+
+            if (due == null) { skipEmptyTicks(nowTick); continue; }
+
+            // Detach the due timeouts first so the tasks can schedule and
+            // cancel freely while they run.
+            for (Timeout node = due; node != null; node = node.next) {
+                node.prev = null;
+                node.slot = FIRING;
+                _counts[0]--;
+                _size--;
+            }
+
+            while (due != null) {
+                final Timeout timeout = due;
+                due = timeout.next;
+                timeout.next = null;
+                if (timeout.state == PENDING) {
+                    timeout.state = EXPIRED;
+                    fired++;
+                    try { timeout.task.execute(timeout);
+                    } catch (final Throwable t) { LOG.log(Level.SEVERE, "timer task failed - " + t.getMessage(), t); }
+                }
+                recycle(timeout);
+            }
+
+            if (_size == 0) {
+                if (_currentTick <= nowTick) _currentTick = nowTick + 1;
+                break;
+            }
+
+            skipEmptyTicks(nowTick);
+        }
+
+        return fired;
+    }
+
+    /**
+     * Returns the time until the next tick that needs processing. This is
+     * exact for the timeouts in the lowest level and otherwise the next
+     * cascade (which may wake the owner early).
+     * @param pNow The current time (System.nanoTime()).
+     * @return The nanoseconds to wait (zero if due now) or -1 if there are
+     * no timeouts.
+     */
+    public final long nextTimeout(final long pNow) {
+        if (_size == 0) return -1;
+
+        final Timeout [] buckets = _levels[0];
+        long tick = _currentTick;
+        for (int idx=0; idx < BUCKETS; idx++, tick++) {
+            if (buckets[(int)(tick & MASK)] != null || (tick & MASK) == 0) break;
+        }
+
+        final long wait = _startTime + (tick * _tickNanos) - pNow;
+        return (wait > 0) ? wait : 0;
+    }
+
+    /**
+     * Returns the number of pending timeouts.
+     */
+    public final int size() { return _size; }
+
+    /**
+     * Returns the number of handles waiting to be reused.
+     */
+    public final int getPooled() { return _pooled; }
+
+    public final long getTickNanos() { return _tickNanos; }
+
+    /**
+     * The timer task. Called by the thread driving the wheel.
+     */
+    public static interface Task {
+        /**
+         * Called when the timeout expires.
+         * @param pTimeout The timeout.
+         */
+        public void execute(Timeout pTimeout);
+    }
+
+    /**
+     * The timeout handle.
+     */
+    public static final class Timeout {
+
+        private final HierarchicalTimerWheel wheel;
+
+        private Task task;
+        private long deadline;
+        private long tick;
+        private int slot;
+        private int state;
+        private int sequence;
+
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(final HierarchicalTimerWheel pWheel) { wheel = pWheel; }
+
+        /**
+         * Cancel the timeout. This must be called by the thread that owns
+         * the wheel.
+         * @return True if the timeout was pending.
+         */
+        public final boolean cancel() { return wheel.cancel(this); }
+
+        /**
+         * Cancel the timeout if the handle has not been reused since the
+         * sequence was read. This must be called by the thread that owns the
+         * wheel.
+         * @param pSequence The sequence read after scheduling.
+         * @return True if the timeout was pending.
+         */
+        public final boolean cancel(final int pSequence) {
+            if (sequence != pSequence) return false;
+            return wheel.cancel(this);
+        }
+
+        /**
+         * Returns the task (null once a recycled handle is released).
+         */
+        public final Task getTask() { return task; }
+
+        /**
+         * Returns the deadline (System.nanoTime() based).
+         */
+        public final long getDeadline() { return deadline; }
+
+        /**
+         * Returns the sequence number. It changes each time the handle is
+         * reused.
+         */
+        public final int getSequence() { return sequence; }
+
+        public final boolean isPending() { return state == PENDING; }
+        public final boolean isExpired() { return state == EXPIRED; }
+        public final boolean isCancelled() { return state == CANCELLED; }
+    }
+}
+
@@ -0,0 +1,163 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The idle strategies. They trade cpu for wake up latency, from busy spin
+ * (lowest latency, one core burned) to blocking (no cpu, the agent must be
+ * woken). The parking strategies return early when the agent thread is
+ * unparked (AgentBase.wakeup) or interrupted.
+ * <br/><br/>
+ *
+ * Strategies can be created from config strings: "spin", "yield",
+ * "backoff" or "backoff:[spins],[yields],[min park micros],[max park micros]"
+ * and "blocking" or "blocking:[max park millis]".
+ */
+public final class IdleStrategies {
+
+    private IdleStrategies() { }
+
+    /**
+     * Create a strategy from the config string.
+     * @param pConfig The config (see the class comment).
+     * @return A new strategy.
+     */
+    public static final IdleStrategy create(final String pConfig) {
+        if (pConfig == null) throw new IllegalArgumentException("idle strategy not set");
+
+        final String config = pConfig.trim();
+        final int colon = config.indexOf(':');
+        final String name = (colon < 0) ? config : config.substring(0, colon);
+        final String [] args = (colon < 0) ? new String[0] : config.substring(colon + 1).split(",");
+
+        try {
+            if (name.equals("spin")) return new BusySpin();
+            if (name.equals("yield")) return new Yielding();
+
+            if (name.equals("backoff")) {
+                if (args.length == 0) return new Backoff();
+                if (args.length != 4) throw new IllegalArgumentException("invalid backoff config: " + pConfig);
+                return new Backoff(   Integer.parseInt(args[0].trim()),
+                                      Integer.parseInt(args[1].trim()),
+                                      TimeUnit.MICROSECONDS.toNanos(Long.parseLong(args[2].trim())),
+                                      TimeUnit.MICROSECONDS.toNanos(Long.parseLong(args[3].trim())));
+            }
+
+            if (name.equals("blocking")) {
+                if (args.length == 0) return new Blocking(0);
+                return new Blocking(TimeUnit.MILLISECONDS.toNanos(Long.parseLong(args[0].trim())));
+            }
+
+        } catch (final NumberFormatException nfe) { throw new IllegalArgumentException("invalid idle strategy: " + pConfig, nfe); }
+
+        throw new IllegalArgumentException("unknown idle strategy: " + pConfig);
+    }
+
+    /**
+     * Spin (lowest latency, burns the core).
+     */
+    public static final class BusySpin implements IdleStrategy {
+        public void idle() { }
+        public void reset() { }
+    }
+
+    /**
+     * Yield the cpu to other runnable threads.
+     */
+    public static final class Yielding implements IdleStrategy {
+        public void idle() { Thread.yield(); }
+        public void reset() { }
+    }
+
+    /**
+     * Spin, then yield, then park with an exponential backoff (doubling
+     * from the min to the max park time). Reset after work.
+     */
+    public static final class Backoff implements IdleStrategy {
+
+        private final int _maxSpins;
+        private final int _maxYields;
+        private final long _minParkNanos;
+        private final long _maxParkNanos;
+
+        private int _spins = 0;
+        private int _yields = 0;
+        private long _parkNanos;
+
+        /**
+         * Create with the defaults (100 spins, 10 yields, park 1 us to 1 ms).
+         */
+        public Backoff() { this(100, 10, TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(1)); }
+
+        public Backoff( final int pMaxSpins,
+                        final int pMaxYields,
+                        final long pMinParkNanos,
+                        final long pMaxParkNanos)
+        {
+            if (pMinParkNanos < 1 || pMaxParkNanos < pMinParkNanos)
+            { throw new IllegalArgumentException("invalid park times: " + pMinParkNanos + " - " + pMaxParkNanos); }
+
+            _maxSpins = pMaxSpins;
+            _maxYields = pMaxYields;
+            _minParkNanos = pMinParkNanos;
+            _maxParkNanos = pMaxParkNanos;
+            _parkNanos = pMinParkNanos;
+        }
+
+        public void idle() {
+            if (_spins < _maxSpins) { _spins++; return; }
+            if (_yields < _maxYields) { _yields++; Thread.yield(); return; }
+
+            LockSupport.parkNanos(_parkNanos);
+            _parkNanos = Math.min(_parkNanos << 1, _maxParkNanos);
+        }
+
+        public void reset() {
+            _spins = 0;
+            _yields = 0;
+            _parkNanos = _minParkNanos;
+        }
+
+        /**
+         * Returns the next park time (zero while spinning or yielding).
+         */
+        public final long getParkNanos() { return (_spins < _maxSpins || _yields < _maxYields) ? 0 : _parkNanos; }
+    }
+
+    /**
+     * Park until woken (AgentBase.wakeup), interrupted or the max park time
+     * (zero parks without a timeout). The producer must wake the agent.
+     */
+    public static final class Blocking implements IdleStrategy {
+
+        private final long _maxParkNanos;
+
+        public Blocking(final long pMaxParkNanos) { _maxParkNanos = pMaxParkNanos; }
+
+        public void idle() {
+            if (_maxParkNanos > 0) LockSupport.parkNanos(_maxParkNanos);
+            else LockSupport.park();
+        }
+
+        public void reset() { }
+    }
+}
+
@@ -0,0 +1,36 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * Decides what an agent thread does in a duty cycle with no work (see
+ * AgentBase). Implementations are owned by one thread and are NOT
+ * thread-safe. See IdleStrategies for the implementations.
+ */
+public interface IdleStrategy {
+
+    /**
+     * Called after a duty cycle that did no work.
+     */
+    public void idle();
+
+    /**
+     * Called after a duty cycle that did work (e.g., to reset a backoff).
+     */
+    public void reset();
+}
+
@@ -0,0 +1,522 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// OEMware
+import com.deftlabs.core.OemException;
+
+// Java
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache over an LruMap that loads missing values. Concurrent misses on
+ * a key are coalesced into one load (single flight): the first caller
+ * loads and the others wait for its result, so a hot key that is evicted
+ * causes one backend call instead of one per thread.
+ * <br/><br/>
+ *
+ * Loads run on the caller's thread (get, getAll) or on the executor
+ * (getAsync, refresh). With a refresh after write set, a value older than
+ * the refresh time is still returned while one reload runs on the
+ * executor. getAll loads all the missing keys that are not already in
+ * flight with one Loader.loadAll call. A null value or a failed load is
+ * not cached (every waiter gets the failure).
+ * <br/><br/>
+ *
+ * Access to this class is thread-safe.
+ */
+public final class LoadingCache<K, V> {
+
+    private final LruMap<K, Loaded<V>> _map;
+    private final ConcurrentHashMap<K, Slot<V>> _loading = new ConcurrentHashMap<K, Slot<V>>();
+    private final Loader<K, V> _loader;
+    private final Executor _executor;
+    private final ExecutorService _ownedExecutor;
+
+    // Orders the cache writes of loads and refreshes with invalidation.
+    private final ReentrantLock _writeLock = new ReentrantLock();
+
+    private volatile long _refreshNanos = 0;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _coalesced = new AtomicLong();
+    private final AtomicLong _loads = new AtomicLong();
+    private final AtomicLong _loadFailures = new AtomicLong();
+    private final AtomicLong _refreshes = new AtomicLong();
+    private final AtomicLong _loadNanos = new AtomicLong();
+
+    private static final Logger LOG = Logger.getLogger(LoadingCache.class.getName());
+
+    /**
+     * Create a new cache. The async loads and refreshes run on a thread per
+     * task executor (virtual threads if available) owned by the cache.
+     * @param pSize The max size of the cache.
+     * @param pLoader The default loader (optional if a loader is passed to
+     * each call).
+     */
+    public LoadingCache(final int pSize, final Loader<K, V> pLoader) { this(pSize, pLoader, null); }
+
+    /**
+     * Create a new cache.
+     * @param pSize The max size of the cache.
+     * @param pLoader The default loader (optional).
+     * @param pExecutor The executor for async loads and refreshes (if null,
+     * the cache creates one and shuts it down in shutdown).
+     */
+    public LoadingCache(final int pSize, final Loader<K, V> pLoader, final Executor pExecutor) {
+        _map = new LruMap<K, Loaded<V>>(pSize, null, false);
+        _loader = pLoader;
+        _ownedExecutor = (pExecutor == null) ? VirtualThreads.newThreadPerTaskExecutor("loading-cache") : null;
+        _executor = (pExecutor == null) ? _ownedExecutor : pExecutor;
+    }
+
+    /**
+     * Reload values older than the duration in the background (the old
+     * value is returned until the reload completes).
+     * @param pDuration The duration, zero to never refresh.
+     * @param pUnit The duration unit.
+     */
+    public void setRefreshAfterWrite(final long pDuration, final TimeUnit pUnit) { _refreshNanos = pUnit.toNanos(pDuration); }
+
+    /**
+     * Returns the cached value, loading it with the default loader on a
+     * miss.
+     * @throws OemException If the load fails.
+     */
+    public V get(final K pKey) { return get(pKey, defaultLoader()); }
+
+    /**
+     * Returns the cached value, loading it on a miss (or waiting for the
+     * load already in flight).
+     * @throws OemException If the load fails.
+     */
+    public V get(final K pKey, final Loader<K, V> pLoader) {
+        final Loaded<V> loaded = _map.get(pKey);
+        if (loaded != null) {
+            _hits.incrementAndGet();
+            refreshIfStale(pKey, loaded, pLoader);
+            return loaded._value;
+        }
+
+        _misses.incrementAndGet();
+
+        final Slot<V> slot = new Slot<V>();
+        final Slot<V> inFlight = _loading.putIfAbsent(pKey, slot);
+        if (inFlight != null) {
+            _coalesced.incrementAndGet();
+            return await(pKey, inFlight);
+        }
+
+        // A load may have completed between the miss and the claim.
+        final Loaded<V> loadedByOther = _map.get(pKey);
+        if (loadedByOther != null) {
+            _loading.remove(pKey, slot);
+            slot.complete(loadedByOther._value);
+            return loadedByOther._value;
+        }
+
+        load(pKey, slot, pLoader);
+        return await(pKey, slot);
+    }
+
+    /**
+     * Returns the value as a future, loading it on the executor on a miss.
+     */
+    public Future<V> getAsync(final K pKey) { return getAsync(pKey, defaultLoader()); }
+
+    /**
+     * Returns the value as a future, loading it on the executor on a miss
+     * (or returning the load already in flight). The future is shared by
+     * the callers of the key, so it can not be cancelled.
+     */
+    public Future<V> getAsync(final K pKey, final Loader<K, V> pLoader) {
+        final Loaded<V> loaded = _map.get(pKey);
+        if (loaded != null) {
+            _hits.incrementAndGet();
+            refreshIfStale(pKey, loaded, pLoader);
+            final Slot<V> done = new Slot<V>();
+            done.complete(loaded._value);
+            return done;
+        }
+
+        _misses.incrementAndGet();
+
+        final Slot<V> slot = new Slot<V>();
+        final Slot<V> inFlight = _loading.putIfAbsent(pKey, slot);
+        if (inFlight != null) {
+            _coalesced.incrementAndGet();
+            return inFlight;
+        }
+
+        final Loaded<V> loadedByOther = _map.get(pKey);
+        if (loadedByOther != null) {
+            _loading.remove(pKey, slot);
+            slot.complete(loadedByOther._value);
+            return slot;
+        }
+
+        try {
+            _executor.execute(new Runnable() {
+                public void run() { load(pKey, slot, pLoader); }
+            });
+        } catch (final RuntimeException re) {
+            _loading.remove(pKey, slot);
+            slot.fail(re);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the values of the keys (the keys without a value are left
+     * out), loading the missing keys that are not in flight with one
+     * loadAll call.
+     */
+    public Map<K, V> getAll(final Collection<? extends K> pKeys) { return getAll(pKeys, defaultLoader()); }
+
+    /**
+     * Returns the values of the keys (the keys without a value are left
+     * out), loading the missing keys that are not in flight with one
+     * loadAll call.
+     * @throws OemException If a load fails.
+     */
+    public Map<K, V> getAll(final Collection<? extends K> pKeys, final Loader<K, V> pLoader) {
+        final Map<K, V> values = new LinkedHashMap<K, V>();
+        final Map<K, Slot<V>> waiting = new LinkedHashMap<K, Slot<V>>();
+        final Map<K, Slot<V>> owned = new LinkedHashMap<K, Slot<V>>();
+
+        for (final K key : pKeys) {
+            if (values.containsKey(key) || waiting.containsKey(key)) continue;
+
+            final Loaded<V> loaded = _map.get(key);
+            if (loaded != null) {
+                _hits.incrementAndGet();
+                refreshIfStale(key, loaded, pLoader);
+                values.put(key, loaded._value);
+                continue;
+            }
+
+            _misses.incrementAndGet();
+
+            final Slot<V> slot = new Slot<V>();
+            final Slot<V> inFlight = _loading.putIfAbsent(key, slot);
+            if (inFlight != null) {
+                _coalesced.incrementAndGet();
+                waiting.put(key, inFlight);
+                continue;
+            }
+
+            final Loaded<V> loadedByOther = _map.get(key);
+            if (loadedByOther != null) {
+                _loading.remove(key, slot);
+                slot.complete(loadedByOther._value);
+                values.put(key, loadedByOther._value);
+                continue;
+            }
+
+            owned.put(key, slot);
+            waiting.put(key, slot);
+        }
+
+        if (!owned.isEmpty()) loadAll(owned, pLoader);
+
+        for (final Map.Entry<K, Slot<V>> entry : waiting.entrySet()) {
+            final V value = await(entry.getKey(), entry.getValue());
+            if (value != null) values.put(entry.getKey(), value);
+        }
+
+        // Keep the order of the keys.
+        final Map<K, V> ordered = new LinkedHashMap<K, V>();
+        for (final K key : pKeys) if (values.containsKey(key)) ordered.put(key, values.get(key));
+        return ordered;
+    }
+
+    /**
+     * Put the value (replacing a cached or loading value). A load in flight
+     * completes for its waiters but is not cached.
+     */
+    public void put(final K pKey, final V pValue) {
+        _writeLock.lock();
+        try {
+            _map.put(pKey, new Loaded<V>(pValue, System.nanoTime()));
+            final Slot<V> slot = _loading.get(pKey);
+            if (slot != null) slot._invalidated = true;
+        } finally { _writeLock.unlock(); }
+    }
+
+    /**
+     * Remove the value. A load in flight completes for its waiters but is
+     * not cached.
+     */
+    public void invalidate(final K pKey) {
+        _writeLock.lock();
+        try {
+            _map.remove(pKey);
+            final Slot<V> slot = _loading.get(pKey);
+            if (slot != null) slot._invalidated = true;
+        } finally { _writeLock.unlock(); }
+    }
+
+    public void invalidateAll() {
+        _writeLock.lock();
+        try {
+            _map.clear();
+            for (final Slot<V> slot : _loading.values()) slot._invalidated = true;
+        } finally { _writeLock.unlock(); }
+    }
+
+    /**
+     * Returns the cached value without loading it (or null).
+     */
+    public V getIfPresent(final K pKey) {
+        final Loaded<V> loaded = _map.get(pKey);
+        return (loaded == null) ? null : loaded._value;
+    }
+
+    public int size() { return _map.size(); }
+
+    /**
+     * Shut down the executor if the cache created it.
+     */
+    public void shutdown() { if (_ownedExecutor != null) _ownedExecutor.shutdown(); }
+
+    private Loader<K, V> defaultLoader() {
+        if (_loader == null) throw new IllegalStateException("no default loader");
+        return _loader;
+    }
+
+    /**
+     * Load the key and complete the slot. The value is cached before the
+     * slot leaves the in flight map, so a later miss always finds one or
+     * the other.
+     */
+    private void load(final K pKey, final Slot<V> pSlot, final Loader<K, V> pLoader) {
+        final long start = System.nanoTime();
+        try {
+            final V value = pLoader.load(pKey);
+            _loads.incrementAndGet();
+            cache(pKey, pSlot, value, System.nanoTime());
+            pSlot.complete(value);
+        } catch (final Throwable t) {
+            _loadFailures.incrementAndGet();
+            pSlot.fail(t);
+        } finally {
+            _loadNanos.addAndGet(System.nanoTime() - start);
+            _loading.remove(pKey, pSlot);
+        }
+    }
+
+    private void loadAll(final Map<K, Slot<V>> pSlots, final Loader<K, V> pLoader) {
+        final long start = System.nanoTime();
+        try {
+            final Map<K, V> values = pLoader.loadAll(new ArrayList<K>(pSlots.keySet()));
+            _loads.incrementAndGet();
+            final long now = System.nanoTime();
+            for (final Map.Entry<K, Slot<V>> entry : pSlots.entrySet()) {
+                final V value = (values == null) ? null : values.get(entry.getKey());
+                cache(entry.getKey(), entry.getValue(), value, now);
+                entry.getValue().complete(value);
+            }
+        } catch (final Throwable t) {
+            _loadFailures.incrementAndGet();
+            for (final Slot<V> slot : pSlots.values()) slot.fail(t);
+        } finally {
+            _loadNanos.addAndGet(System.nanoTime() - start);
+            for (final Map.Entry<K, Slot<V>> entry : pSlots.entrySet()) _loading.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void cache(final K pKey, final Slot<V> pSlot, final V pValue, final long pNow) {
+        if (pValue == null) return;
+        _writeLock.lock();
+        try { if (!pSlot._invalidated) _map.put(pKey, new Loaded<V>(pValue, pNow));
+        } finally { _writeLock.unlock(); }
+    }
+
+    /**
+     * Start one background reload if the value is older than the refresh
+     * time. The stale value stays cached until the reload replaces it; a
+     * failed reload is logged and retried on a later access.
+     */
+    private void refreshIfStale(final K pKey, final Loaded<V> pLoaded, final Loader<K, V> pLoader) {
+        final long refreshNanos = _refreshNanos;
+        if (refreshNanos <= 0 || System.nanoTime() - pLoaded._writeNanos < refreshNanos) return;
+
+        synchronized (pLoaded) {
+            if (pLoaded._refreshing) return;
+            pLoaded._refreshing = true;
+        }
+
+        _refreshes.incrementAndGet();
+        try {
+            _executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        final V value = pLoader.reload(pKey, pLoaded._value);
+                        _loads.incrementAndGet();
+                        if (value == null) return;
+
+                        // Only replace the value that was refreshed (not an
+                        // invalidated or newer one).
+                        _writeLock.lock();
+                        try { if (_map.get(pKey) == pLoaded) _map.put(pKey, new Loaded<V>(value, System.nanoTime()));
+                        } finally { _writeLock.unlock(); }
+
+                    } catch (final Throwable t) {
+                        _loadFailures.incrementAndGet();
+                        LOG.log(Level.WARNING, "refresh failed - key: " + pKey + " - " + t.getMessage(), t);
+                    } finally {
+                        synchronized (pLoaded) { pLoaded._refreshing = false; }
+                    }
+                }
+            });
+        } catch (final RuntimeException re) {
+            synchronized (pLoaded) { pLoaded._refreshing = false; }
+            LOG.log(Level.WARNING, "refresh not started - key: " + pKey + " - " + re.getMessage());
+        }
+    }
+
+    private V await(final K pKey, final Slot<V> pSlot) {
+        try { return pSlot.get();
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new OemException("interrupted loading key: " + pKey, ie);
+        } catch (final ExecutionException ee) { throw new OemException("load failed - key: " + pKey, ee.getCause()); }
+    }
+
+    public long getHits() { return _hits.get(); }
+    public long getMisses() { return _misses.get(); }
+
+    /**
+     * Returns the misses that waited for a load already in flight.
+     */
+    public long getCoalesced() { return _coalesced.get(); }
+
+    /**
+     * Returns the loader calls (load, loadAll and reload).
+     */
+    public long getLoads() { return _loads.get(); }
+    public long getLoadFailures() { return _loadFailures.get(); }
+    public long getRefreshes() { return _refreshes.get(); }
+    public long getLoadNanos() { return _loadNanos.get(); }
+
+    /**
+     * Returns the metrics as a string.
+     */
+    public String getReport() {
+        final long hits = getHits();
+        final long requests = hits + getMisses();
+        return "size: " + size()
+        + " - hit ratio: " + String.format("%.2f", (requests == 0) ? 0 : hits * 100.0 / requests) + "%"
+        + " - misses: " + getMisses()
+        + " - coalesced: " + getCoalesced()
+        + " - loads: " + getLoads()
+        + " - failures: " + getLoadFailures()
+        + " - refreshes: " + getRefreshes()
+        + " - load time: " + TimeUnit.NANOSECONDS.toMillis(getLoadNanos()) + " ms";
+    }
+
+    /**
+     * The loader. Override loadAll to batch the backend calls of getAll
+     * and reload to refresh differently from a load.
+     */
+    public static abstract class Loader<K, V> {
+
+        /**
+         * Load the value.
+         * @return The value or null if there is none.
+         * @throws Exception If the load fails.
+         */
+        public abstract V load(K pKey) throws Exception;
+
+        /**
+         * Load the values (by default, one load per key).
+         * @return The values found.
+         * @throws Exception If the load fails.
+         */
+        public Map<K, V> loadAll(final Collection<K> pKeys) throws Exception {
+            final Map<K, V> values = new LinkedHashMap<K, V>();
+            for (final K key : pKeys) {
+                final V value = load(key);
+                if (value != null) values.put(key, value);
+            }
+            return values;
+        }
+
+        /**
+         * Reload a value for a refresh (by default, a load).
+         * @param pKey The key.
+         * @param pOldValue The value being refreshed.
+         * @return The new value, or null to keep the old one.
+         * @throws Exception If the reload fails.
+         */
+        public V reload(final K pKey, final V pOldValue) throws Exception { return load(pKey); }
+    }
+
+    /**
+     * A cached value and the time it was written.
+     */
+    private static final class Loaded<V> {
+        private final V _value;
+        private final long _writeNanos;
+        private boolean _refreshing = false;
+
+        private Loaded(final V pValue, final long pWriteNanos) {
+            _value = pValue;
+            _writeNanos = pWriteNanos;
+        }
+    }
+
+    /**
+     * A load in flight, completed by the loading thread.
+     */
+    private static final class Slot<V> extends FutureTask<V> {
+
+        private static final Callable<Object> UNUSED = new Callable<Object>() {
+            public Object call() { throw new IllegalStateException("slot is completed, not run"); }
+        };
+
+        private volatile boolean _invalidated = false;
+
+        @SuppressWarnings("unchecked")
+        private Slot() { super((Callable<V>)UNUSED); }
+
+        private void complete(final V pValue) { set(pValue); }
+
+        // Shared by every caller of the key, so one caller can not cancel it.
+        @Override public boolean cancel(final boolean pMayInterrupt) { return false; }
+
+        private void fail(final Throwable pThrowable) { setException(pThrowable); }
+    }
+}
+
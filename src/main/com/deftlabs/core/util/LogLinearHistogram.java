@@ -0,0 +1,137 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * A log-linear histogram of non-negative long values. Each power of two is
+ * split into 16 linear sub-buckets, so the relative error of a recorded
+ * value is at most 1/16 (values below 32 are exact). The bucket layout is
+ * fixed, so histograms merge by adding the bucket counts. Recording does
+ * not allocate.
+ * <br/><br/>
+ *
+ * Access to this class is NOT thread-safe.
+ */
+public final class LogLinearHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR_MAX = SUB_COUNT * 2;
+
+    /**
+     * The number of buckets (enough for Long.MAX_VALUE).
+     */
+    public static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final long [] _counts = new long[BUCKETS];
+
+    private long _count = 0;
+    private long _sum = 0;
+    private long _min = Long.MAX_VALUE;
+    private long _max = 0;
+
+    /**
+     * Record the value. Negative values are recorded as zero.
+     * @param pValue The value.
+     */
+    public final void record(final long pValue) {
+        final long value = (pValue < 0) ? 0 : pValue;
+        _counts[bucket(value)]++;
+        _count++;
+        _sum += value;
+        if (value < _min) _min = value;
+        if (value > _max) _max = value;
+    }
+
+    /**
+     * Add the other histogram's values to this one.
+     * @param pOther The other histogram.
+     */
+    public final void merge(final LogLinearHistogram pOther) {
+        if (pOther._count == 0) return;
+        for (int idx=0; idx < BUCKETS; idx++) _counts[idx] += pOther._counts[idx];
+        _count += pOther._count;
+        _sum += pOther._sum;
+        if (pOther._min < _min) _min = pOther._min;
+        if (pOther._max > _max) _max = pOther._max;
+    }
+
+    /**
+     * Clear the values.
+     */
+    public final void reset() {
+        if (_count == 0) return;
+        for (int idx=0; idx < BUCKETS; idx++) _counts[idx] = 0;
+        _count = 0;
+        _sum = 0;
+        _min = Long.MAX_VALUE;
+        _max = 0;
+    }
+
+    /**
+     * Returns the bucket index for the value.
+     */
+    static final int bucket(final long pValue) {
+        if (pValue < LINEAR_MAX) return (int)pValue;
+        final int shift = (63 - Long.numberOfLeadingZeros(pValue)) - SUB_BITS;
+        return (shift * SUB_COUNT) + (int)(pValue >>> shift);
+    }
+
+    /**
+     * Returns the lowest value in the bucket.
+     */
+    static final long lowest(final int pBucket) {
+        if (pBucket < LINEAR_MAX) return pBucket;
+        final int shift = (pBucket >> SUB_BITS) - 1;
+        return ((long)((pBucket & (SUB_COUNT - 1)) + SUB_COUNT)) << shift;
+    }
+
+    /**
+     * Returns the highest value in the bucket.
+     */
+    static final long highest(final int pBucket) {
+        if (pBucket < LINEAR_MAX) return pBucket;
+        final int shift = (pBucket >> SUB_BITS) - 1;
+        return lowest(pBucket) + ((1L << shift) - 1);
+    }
+
+    /**
+     * Returns the value at the percentile (the bucket midpoint, clamped to
+     * the min and max recorded).
+     * @param pPercentile The percentile (0 - 100).
+     */
+    public final long getValueAtPercentile(final double pPercentile) {
+        if (_count == 0) return 0;
+
+        final long rank = Math.max(1, (long)Math.ceil((pPercentile / 100.0) * _count));
+        long seen = 0;
+        for (int idx=0; idx < BUCKETS; idx++) {
+            seen += _counts[idx];
+            if (seen < rank) continue;
+            final long value = lowest(idx) + ((highest(idx) - lowest(idx)) / 2);
+            return Math.max(_min, Math.min(_max, value));
+        }
+        return _max;
+    }
+
+    public final long getCount() { return _count; }
+    public final long getSum() { return _sum; }
+    public final long getMin() { return (_count == 0) ? 0 : _min; }
+    public final long getMax() { return _max; }
+    public final double getMean() { return (_count == 0) ? 0 : (double)_sum / _count; }
+}
+
@@ -0,0 +1,261 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.Arrays;
+
+/**
+ * An lru map with long keys, without boxing or a node per entry. The
+ * entries live in parallel arrays (key, value, and the previous and next
+ * entry of the recency list), allocated up front for the max size. An
+ * open addressing index (linear probing, at most half full) maps a key to
+ * its entry. Removed entries are reused through a free list, so put and
+ * remove do not allocate.
+ * <br/><br/>
+ *
+ * Access to this class is NOT thread-safe. It is meant for tables owned by
+ * one thread (e.g., per source state in a server thread).
+ */
+public final class LongLruMap<V> {
+
+    private static final int NIL = -1;
+
+    private final long [] _keys;
+    private final Object [] _values;
+    private final int [] _prev;
+    private final int [] _next;
+
+    // The index: entry + 1 (zero is empty).
+    private final int [] _table;
+    private final int _mask;
+
+    private final LongLruMap.EvictionHandler<V> _handler;
+
+    // The eldest and the newest entries, and the free list (through _next).
+    private int _head = NIL;
+    private int _tail = NIL;
+    private int _free;
+    private int _size = 0;
+
+    /**
+     * Create a new map.
+     * @param pMaxSize The max size of the map.
+     */
+    public LongLruMap(final int pMaxSize) { this(pMaxSize, null); }
+
+    /**
+     * Create a new map.
+     * @param pMaxSize The max size of the map.
+     * @param pHandler The optional eviction handler.
+     */
+    public LongLruMap(final int pMaxSize, final LongLruMap.EvictionHandler<V> pHandler) {
+        if (pMaxSize < 1 || pMaxSize > (1 << 29)) throw new IllegalArgumentException("invalid max size: " + pMaxSize);
+
+        _keys = new long[pMaxSize];
+        _values = new Object[pMaxSize];
+        _prev = new int[pMaxSize];
+        _next = new int[pMaxSize];
+
+        int slots = Integer.highestOneBit(pMaxSize * 2);
+        if (slots < pMaxSize * 2) slots <<= 1;
+        _table = new int[slots];
+        _mask = slots - 1;
+
+        _handler = pHandler;
+        resetFreeList();
+    }
+
+    /**
+     * Returns the value (and makes the entry the most recently used) or
+     * null.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final long pKey) {
+        final int slot = find(pKey);
+        if (slot < 0) return null;
+        final int entry = _table[slot] - 1;
+        moveToTail(entry);
+        return (V)_values[entry];
+    }
+
+    /**
+     * Returns true if the key is in the map (the recency is unchanged).
+     */
+    public boolean containsKey(final long pKey) { return find(pKey) >= 0; }
+
+    /**
+     * Put the value, evicting the eldest entry if the map is full.
+     * @return The previous value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(final long pKey, final V pValue) {
+        final int slot = find(pKey);
+        if (slot >= 0) {
+            final int entry = _table[slot] - 1;
+            final V previous = (V)_values[entry];
+            _values[entry] = pValue;
+            moveToTail(entry);
+            return previous;
+        }
+
+        if (_size == _keys.length) {
+            final int eldest = _head;
+            final long key = _keys[eldest];
+            final V value = (V)_values[eldest];
+            removeEntry(find(key), eldest);
+            if (_handler != null) _handler.execute(key, value);
+        }
+
+        final int entry = _free;
+        _free = _next[entry];
+
+        _keys[entry] = pKey;
+        _values[entry] = pValue;
+        linkTail(entry);
+
+        int index = hash(pKey) & _mask;
+        while (_table[index] != 0) index = (index + 1) & _mask;
+        _table[index] = entry + 1;
+
+        _size++;
+        return null;
+    }
+
+    /**
+     * Remove the entry.
+     * @return The value or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(final long pKey) {
+        final int slot = find(pKey);
+        if (slot < 0) return null;
+        final int entry = _table[slot] - 1;
+        final V value = (V)_values[entry];
+        removeEntry(slot, entry);
+        return value;
+    }
+
+    public void clear() {
+        Arrays.fill(_table, 0);
+        Arrays.fill(_values, null);
+        _head = _tail = NIL;
+        _size = 0;
+        resetFreeList();
+    }
+
+    public int size() { return _size; }
+
+    public boolean isEmpty() { return _size == 0; }
+
+    public int getMaxSize() { return _keys.length; }
+
+    /**
+     * Returns the keys, eldest first.
+     */
+    public long [] keys() {
+        final long [] keys = new long[_size];
+        int idx = 0;
+        for (int entry = _head; entry != NIL; entry = _next[entry]) keys[idx++] = _keys[entry];
+        return keys;
+    }
+
+    private int find(final long pKey) {
+        int slot = hash(pKey) & _mask;
+        while (true) {
+            final int entry = _table[slot];
+            if (entry == 0) return -1;
+            if (_keys[entry - 1] == pKey) return slot;
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    private void removeEntry(final int pSlot, final int pEntry) {
+        deleteSlot(pSlot);
+        unlink(pEntry);
+        _values[pEntry] = null;
+        _next[pEntry] = _free;
+        _free = pEntry;
+        _size--;
+    }
+
+    /**
+     * Delete the index slot, shifting the rest of the probe run back.
+     */
+    private void deleteSlot(final int pSlot) {
+        int hole = pSlot;
+        int next = (hole + 1) & _mask;
+        while (true) {
+            final int entry = _table[next];
+            if (entry == 0) break;
+            final int ideal = hash(_keys[entry - 1]) & _mask;
+            if (((next - ideal) & _mask) >= ((next - hole) & _mask)) {
+                _table[hole] = entry;
+                hole = next;
+            }
+            next = (next + 1) & _mask;
+        }
+        _table[hole] = 0;
+    }
+
+    private void moveToTail(final int pEntry) {
+        if (pEntry == _tail) return;
+        unlink(pEntry);
+        linkTail(pEntry);
+    }
+
+    private void linkTail(final int pEntry) {
+        _prev[pEntry] = _tail;
+        _next[pEntry] = NIL;
+        if (_tail == NIL) _head = pEntry;
+        else _next[_tail] = pEntry;
+        _tail = pEntry;
+    }
+
+    private void unlink(final int pEntry) {
+        final int prev = _prev[pEntry];
+        final int next = _next[pEntry];
+        if (prev == NIL) _head = next;
+        else _next[prev] = next;
+        if (next == NIL) _tail = prev;
+        else _prev[next] = prev;
+    }
+
+    private void resetFreeList() {
+        for (int idx=0; idx < _next.length; idx++) _next[idx] = idx + 1;
+        _next[_next.length - 1] = NIL;
+        _free = 0;
+    }
+
+    private static int hash(final long pKey) {
+        final long hash = pKey * 0x9e3779b97f4a7c15L;
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    /**
+     * The eviction handler interface.
+     */
+    public static interface EvictionHandler<V> {
+        /**
+         * The eldest entry removed from the map.
+         * @param pKey The key.
+         * @param pValue The value.
+         */
+        public void execute(long pKey, V pValue);
+    }
+}
+
@@ -17,26 +17,73 @@
 package com.deftlabs.core.util;
 
 // Java
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An lru linked hash map. Access to this map is thread-safe. This class also
  * supports an optional eviction handler. To handle old data that is removed
  * from the map.
+ * <br/><br/>
+ *
+ * Entries can also expire: after a time to live (since the entry was
+ * written) and/or a time to idle (since it was last read or written), set
+ * for the map or per entry. An expired entry is never returned. The
+ * deadlines are kept in a timer wheel that is advanced by the map's own
+ * writes and every 64th read, so the cleanup is amortized O(1) per
+ * operation; call cleanUp (or use an ExpiryCleaner) to remove the expired
+ * entries of a quiet map. The keySet, values and entrySet views may
+ * include expired entries that have not been removed yet.
+ * <br/><br/>
+ *
+ * The map can be bounded by total weight instead of entry count (e.g.,
+ * bytes, with a ByteArrayWeigher). The eldest entries are evicted until
+ * the total weight fits. The weigher must return the same weight for an
+ * entry while it is in the map. Removing entries through the views
+ * bypasses the expiry and weight bookkeeping.
  */
 public class LruMap<K,V> implements Map<K, V> {
 
     private final LinkedHashMap<K,V> _map;
     private final LruMap.EvictionHandler<K, V> _handler;
     private final int _size;
-    private final ReentrantLock _lock = new ReentrantLock(true);
+    private final ReentrantLock _lock;
+
+    // The weight bound (the weigher is null for a count bound).
+    private final LruMap.Weigher<K, V> _weigher;
+    private final long _maxWeight;
+    private long _weight = 0;
+
+    // The weight charged for each entry when it was put (null without a
+    // weigher), so removal subtracts exactly what was added. The views
+    // expose the entries directly, so the weight is not kept in the entry;
+    // ByteArrayWeigher counts this map in its overhead.
+    private final HashMap<K, Integer> _weights;
 
     private static final float LOAD_FACTOR = 0.75f;
 
+    // The expiry state (guarded by the lock, created on first use).
+    private HashMap<K, Expiry> _expiries;
+    private TimerWheel _wheel;
+    private long _timeToLiveNanos = 0;
+    private long _timeToIdleNanos = 0;
+    private int _reads = 0;
+    private long _expired = 0;
+
+    private LruMap.RemovalHandler<K, V> _removalHandler;
+
+    private static final long EXPIRY_TICK_MILLIS = 10;
+    private static final int EXPIRY_TICKS = 1024;
+    private static final int CLEANUP_READS = 64;
+
     /**
      * Create a new lru map.
      * @param pSize The max size of the map.
@@ -50,11 +97,50 @@ public class LruMap<K,V> implements Map<K, V> {
      */
     public LruMap(  final int pSize,
                     final LruMap.EvictionHandler<K, V> pHandler)
+    { this(pSize, pHandler, true); }
+
+    /**
+     * Create a new lru linked hash map.
+     * @param pSize The max size of the map.
+     * @param pHandler The optional eviction handler (called for entries
+     * removed on size or expiry).
+     * @param pFair True for a fair lock (slower under contention).
+     */
+    public LruMap(  final int pSize,
+                    final LruMap.EvictionHandler<K, V> pHandler,
+                    final boolean pFair)
+    { this(pSize, 0, null, pHandler, pFair); }
+
+    /**
+     * Create a new lru linked hash map bounded by total weight.
+     * @param pMaxWeight The max total weight of the entries.
+     * @param pWeigher The entry weigher.
+     * @param pHandler The optional eviction handler (called for entries
+     * removed on weight or expiry).
+     * @param pFair True for a fair lock (slower under contention).
+     */
+    public LruMap(  final long pMaxWeight,
+                    final LruMap.Weigher<K, V> pWeigher,
+                    final LruMap.EvictionHandler<K, V> pHandler,
+                    final boolean pFair)
+    { this(Integer.MAX_VALUE, pMaxWeight, pWeigher, pHandler, pFair); }
+
+    private LruMap( final int pSize,
+                    final long pMaxWeight,
+                    final LruMap.Weigher<K, V> pWeigher,
+                    final LruMap.EvictionHandler<K, V> pHandler,
+                    final boolean pFair)
     {
+        if (pWeigher != null && pMaxWeight < 0) throw new IllegalArgumentException("invalid max weight: " + pMaxWeight);
+
         _size = pSize;
+        _maxWeight = pMaxWeight;
+        _weigher = pWeigher;
+        _weights = (pWeigher != null) ? new HashMap<K, Integer>() : null;
         _handler = pHandler;
+        _lock = new ReentrantLock(pFair);
 
-        final int capacity = (int)Math.ceil(_size / LOAD_FACTOR) + 1;
+        final int capacity = (pWeigher != null) ? 16 : (int)Math.ceil(_size / LOAD_FACTOR) + 1;
 
         _map = new LinkedHashMap<K,V>(capacity, LOAD_FACTOR, true) {
             private static final long serialVersionUID = 1L;
@@ -62,9 +148,8 @@ public class LruMap<K,V> implements Map<K, V> {
                 final boolean remove = (size() > LruMap.this._size);
                 if (!remove) return remove;
 
-                if (_handler == null) return remove;
-
-                LruMap.this._handler.execute(pEldest);
+                cancelExpiry(pEldest.getKey());
+                notifyRemoval(pEldest, RemovalCause.SIZE);
 
                 return remove;
             }
@@ -74,13 +159,20 @@ public class LruMap<K,V> implements Map<K, V> {
     @Override public void clear() {
         try {
             _lock.lock();
+            final ArrayList<Map.Entry<K, V>> removed = (_removalHandler == null) ? null : new ArrayList<Map.Entry<K, V>>(_map.entrySet());
             _map.clear();
+            if (_weights != null) _weights.clear();
+            _weight = 0;
+            _expiries = null;
+            _wheel = null;
+            if (removed != null) for (final Map.Entry<K, V> entry : removed) notifyRemoval(entry, RemovalCause.EXPLICIT);
         } finally { _lock.unlock(); }
     }
 
     @Override public int size() {
         try {
             _lock.lock();
+            expireEntries();
             return _map.size();
         } finally { _lock.unlock(); }
     }
@@ -102,20 +194,50 @@ public class LruMap<K,V> implements Map<K, V> {
     @Override public V get (final Object pKey) {
         try {
             _lock.lock();
-            return _map.get(pKey);
+            if (_expiries == null) return _map.get(pKey);
+
+            final long now = System.nanoTime();
+            if (++_reads >= CLEANUP_READS) {
+                _reads = 0;
+                _wheel.expire(now);
+            }
+
+            final V value = _map.get(pKey);
+            if (value == null || _expiries == null) return value;
+
+            final Expiry expiry = _expiries.get(pKey);
+            if (expiry == null) return value;
+
+            if (expiry.deadline() - now <= 0) {
+                expire(expiry);
+                return null;
+            }
+
+            if (expiry._timeToIdleNanos > 0) expiry._accessDeadline = now + expiry._timeToIdleNanos;
+            return value;
+
         } finally { _lock.unlock(); }
     }
 
     @Override public boolean containsKey(final Object pKey) {
         try {
             _lock.lock();
+            if (_expiries == null) return _map.containsKey(pKey);
+
+            final Expiry expiry = _expiries.get(pKey);
+            if (expiry != null && expiry.deadline() - System.nanoTime() <= 0) {
+                expire(expiry);
+                return false;
+            }
             return _map.containsKey(pKey);
+
         } finally { _lock.unlock(); }
     }
 
     @Override public boolean containsValue(final Object pValue) {
         try {
             _lock.lock();
+            expireEntries();
             return _map.containsValue(pValue);
         } finally { _lock.unlock(); }
     }
@@ -130,6 +252,7 @@ public class LruMap<K,V> implements Map<K, V> {
     @Override public boolean isEmpty() {
         try {
             _lock.lock();
+            expireEntries();
             return _map.isEmpty();
         } finally { _lock.unlock(); }
     }
@@ -144,21 +267,111 @@ public class LruMap<K,V> implements Map<K, V> {
     @Override public V put (K pKey, V pValue) {
         try {
             _lock.lock();
-            return _map.put(pKey, pValue);
+            return put(pKey, pValue, _timeToLiveNanos, _timeToIdleNanos);
         } finally { _lock.unlock(); }
     }
 
+    /**
+     * Put the value with its own expiry (in place of the map's).
+     * @param pKey The key.
+     * @param pValue The value.
+     * @param pTimeToLive The time to live (since written), zero for none.
+     * @param pTimeToIdle The time to idle (since last accessed), zero for none.
+     * @param pUnit The time unit.
+     * @return The previous value.
+     */
+    public V put(   final K pKey,
+                    final V pValue,
+                    final long pTimeToLive,
+                    final long pTimeToIdle,
+                    final TimeUnit pUnit)
+    {
+        try {
+            _lock.lock();
+            return put(pKey, pValue, pUnit.toNanos(pTimeToLive), pUnit.toNanos(pTimeToIdle));
+        } finally { _lock.unlock(); }
+    }
+
+    private V put(final K pKey, final V pValue, final long pTimeToLiveNanos, final long pTimeToIdleNanos) {
+        if (_expiries == null && _weigher == null && pTimeToLiveNanos <= 0 && pTimeToIdleNanos <= 0) return _map.put(pKey, pValue);
+
+        final long now = System.nanoTime();
+        if (_wheel != null) _wheel.expire(now);
+
+        final V previous;
+        if (_weigher != null) {
+            final int weight = weigh(pKey, pValue);
+
+            // Remove first so the map keeps the key that was weighed (an equal
+            // key can retain a different backing array).
+            previous = _map.remove(pKey);
+            unweigh(pKey);
+            _map.put(pKey, pValue);
+            _weights.put(pKey, weight);
+            _weight += weight;
+        } else previous = _map.put(pKey, pValue);
+
+        if (pTimeToLiveNanos > 0 || pTimeToIdleNanos > 0) setExpiry(pKey, pTimeToLiveNanos, pTimeToIdleNanos, now);
+        else cancelExpiry(pKey);
+
+        if (_weight > _maxWeight && _weigher != null) evictToWeight();
+        return previous;
+    }
+
+    /**
+     * Evict the eldest entries until the total weight fits (this can
+     * include the entry just put, if it is heavier than the max weight).
+     */
+    private void evictToWeight() {
+        while (_weight > _maxWeight && !_map.isEmpty()) {
+            final Iterator<Map.Entry<K, V>> iterator = _map.entrySet().iterator();
+            final Map.Entry<K, V> eldest = iterator.next();
+            final K key = eldest.getKey();
+            final V value = eldest.getValue();
+            iterator.remove();
+
+            unweigh(key);
+            cancelExpiry(key);
+            notifyRemoval(new AbstractMap.SimpleImmutableEntry<K, V>(key, value), RemovalCause.SIZE);
+        }
+    }
+
+    private int weigh(final K pKey, final V pValue) {
+        if (_weigher == null || pValue == null) return 0;
+        final int weight = _weigher.weigh(pKey, pValue);
+        if (weight < 0) throw new IllegalArgumentException("negative weight: " + weight + " - key: " + pKey);
+        return weight;
+    }
+
+    private void unweigh(final Object pKey) {
+        if (_weights == null) return;
+        final Integer weight = _weights.remove(pKey);
+        if (weight != null) _weight -= weight.intValue();
+    }
+
     @Override public V remove(final Object pKey) {
         try {
             _lock.lock();
-            return _map.remove(pKey);
+            expireEntries();
+            cancelExpiry(pKey);
+
+            if (_removalHandler == null && _weigher == null) return _map.remove(pKey);
+            if (!_map.containsKey(pKey)) return null;
+
+            final V value = _map.remove(pKey);
+            unweigh(pKey);
+            if (_removalHandler != null) notifyRemoval(new AbstractMap.SimpleImmutableEntry<K, V>(cast(pKey), value), RemovalCause.EXPLICIT);
+            return value;
+
         } finally { _lock.unlock(); }
     }
 
     @Override public void putAll(Map <? extends K, ? extends V> pValues) {
         try {
             _lock.lock();
-            _map.putAll(pValues);
+            for (final Map.Entry<? extends K, ? extends V> entry : pValues.entrySet()) {
+                put(entry.getKey(), entry.getValue(), _timeToLiveNanos, _timeToIdleNanos);
+            }
         } finally { _lock.unlock(); }
     }
 
@@ -169,6 +382,177 @@ public class LruMap<K,V> implements Map<K, V> {
         } finally { _lock.unlock(); }
     }
 
+    /**
+     * Remove the expired entries now.
+     * @return The number of entries removed.
+     */
+    public int cleanUp() {
+        try {
+            _lock.lock();
+            final long expired = _expired;
+            expireEntries();
+            return (int)(_expired - expired);
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Set the time to live (since written) for entries put from now on.
+     * @param pDuration The duration, zero for none.
+     * @param pUnit The duration unit.
+     */
+    public void setTimeToLive(final long pDuration, final TimeUnit pUnit) {
+        try {
+            _lock.lock();
+            _timeToLiveNanos = pUnit.toNanos(pDuration);
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Set the time to idle (since last read or written) for entries put
+     * from now on.
+     * @param pDuration The duration, zero for none.
+     * @param pUnit The duration unit.
+     */
+    public void setTimeToIdle(final long pDuration, final TimeUnit pUnit) {
+        try {
+            _lock.lock();
+            _timeToIdleNanos = pUnit.toNanos(pDuration);
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Set the handler called for every removal (with the cause), in
+     * addition to the eviction handler.
+     */
+    public void setRemovalHandler(final LruMap.RemovalHandler<K, V> pHandler) {
+        try {
+            _lock.lock();
+            _removalHandler = pHandler;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns the number of entries removed on expiry.
+     */
+    public long getExpired() {
+        try {
+            _lock.lock();
+            return _expired;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns the max size of the map (Integer.MAX_VALUE if it is bounded by
+     * weight).
+     */
+    public final int getMaxSize() { return _size; }
+
+    /**
+     * Returns the total weight of the entries (zero without a weigher).
+     */
+    public long getWeight() {
+        try {
+            _lock.lock();
+            return _weight;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns the max total weight (zero without a weigher).
+     */
+    public final long getMaxWeight() { return _maxWeight; }
+
+    /**
+     * Copy the entries (eldest first) under the lock.
+     */
+    final void copyTo(final Map<K, V> pTarget) {
+        try {
+            _lock.lock();
+            expireEntries();
+            pTarget.putAll(_map);
+        } finally { _lock.unlock(); }
+    }
+
+    private void expireEntries() { if (_wheel != null) _wheel.expire(System.nanoTime()); }
+
+    private void setExpiry(final K pKey, final long pTimeToLiveNanos, final long pTimeToIdleNanos, final long pNow) {
+        if (_expiries == null) {
+            _expiries = new HashMap<K, Expiry>();
+            _wheel = new TimerWheel(EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS, EXPIRY_TICKS, pNow);
+        }
+
+        Expiry expiry = _expiries.get(pKey);
+        if (expiry == null) {
+            expiry = new Expiry(pKey);
+            _expiries.put(pKey, expiry);
+        }
+
+        expiry._timeToLiveNanos = pTimeToLiveNanos;
+        expiry._timeToIdleNanos = pTimeToIdleNanos;
+        expiry._writeDeadline = pNow + pTimeToLiveNanos;
+        expiry._accessDeadline = pNow + pTimeToIdleNanos;
+
+        // A later deadline is picked up when the current timeout fires.
+        final long deadline = expiry.deadline();
+        if (expiry._timeout != null && expiry._timeout.getDeadline() - deadline > 0) {
+            expiry._timeout.cancel();
+            expiry._timeout = null;
+        }
+        if (expiry._timeout == null) expiry._timeout = _wheel.schedule(expiry, deadline - pNow, TimeUnit.NANOSECONDS, pNow);
+    }
+
+    private void cancelExpiry(final Object pKey) {
+        if (_expiries == null) return;
+        final Expiry expiry = _expiries.remove(pKey);
+        if (expiry != null && expiry._timeout != null) expiry._timeout.cancel();
+    }
+
+    private void expire(final Expiry pExpiry) {
+        if (pExpiry._timeout != null) pExpiry._timeout.cancel();
+        _expiries.remove(pExpiry._key);
+        final V value = _map.remove(pExpiry._key);
+        unweigh(pExpiry._key);
+        _expired++;
+        notifyRemoval(new AbstractMap.SimpleImmutableEntry<K, V>(pExpiry._key, value), RemovalCause.EXPIRED);
+    }
+
+    private void notifyRemoval(final Map.Entry<K, V> pEntry, final int pCause) {
+        if (_handler != null && pCause != RemovalCause.EXPLICIT) _handler.execute(pEntry);
+        if (_removalHandler != null) _removalHandler.execute(pEntry, pCause);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K cast(final Object pKey) { return (K)pKey; }
+
+    /**
+     * The expiry deadlines of an entry. The wheel timeout is only moved
+     * earlier; when it fires early it is rescheduled.
+     */
+    private final class Expiry implements TimerWheel.Task {
+        private final K _key;
+        private long _timeToLiveNanos;
+        private long _timeToIdleNanos;
+        private long _writeDeadline;
+        private long _accessDeadline;
+        private TimerWheel.Timeout _timeout;
+
+        private Expiry(final K pKey) { _key = pKey; }
+
+        private long deadline() {
+            if (_timeToIdleNanos <= 0) return _writeDeadline;
+            if (_timeToLiveNanos <= 0) return _accessDeadline;
+            return (_writeDeadline - _accessDeadline < 0) ? _writeDeadline : _accessDeadline;
+        }
+
+        public void execute(final TimerWheel.Timeout pTimeout) {
+            _timeout = null;
+            final long now = System.nanoTime();
+            final long deadline = deadline();
+            if (deadline - now > 0) _timeout = _wheel.schedule(this, deadline - now, TimeUnit.NANOSECONDS, now);
+            else expire(this);
+        }
+    }
+
     /**
      * The eviction handler interface. Implement this interface to work with
      * the removed entry.
@@ -180,5 +564,58 @@ public class LruMap<K,V> implements Map<K, V> {
          */
         public void execute(Map.Entry<K,V> pEldest);
     }
-}
 
+    /**
+     * The weigher interface. Returns the weight of an entry (e.g., its size
+     * in bytes).
+     */
+    public static interface Weigher<K, V> {
+        /**
+         * Returns the entry weight (zero or more).
+         * @param pKey The key.
+         * @param pValue The value.
+         */
+        public int weigh(K pKey, V pValue);
+    }
+
+    /**
+     * A weigher of ByteArray values that estimates the heap retained by an
+     * entry: the whole backing array (not just the length in use) plus the
+     * object and map entry overhead, including the entry in the map of
+     * charged weights. ByteArray keys are counted the same way.
+     */
+    public static final class ByteArrayWeigher<K> implements Weigher<K, ByteArray> {
+
+        // The charged weight: the weight map node, its table slot and the
+        // boxed Integer (64 bit, compressed oops).
+        static final int WEIGHT_OVERHEAD = 32 + 8 + 16;
+
+        // The map entry (plus the weight), ByteArray and array headers.
+        static final int ENTRY_OVERHEAD = 40 + WEIGHT_OVERHEAD;
+        static final int BYTE_ARRAY_OVERHEAD = 24 + 16;
+
+        public int weigh(final K pKey, final ByteArray pValue) {
+            int weight = ENTRY_OVERHEAD + size(pValue);
+            if (pKey instanceof ByteArray) weight += size((ByteArray)pKey);
+            return weight;
+        }
+
+        private static int size(final ByteArray pValue) {
+            final byte [] data = pValue.data;
+            return BYTE_ARRAY_OVERHEAD + ((data == null) ? 0 : (data.length + 7) & ~7);
+        }
+    }
+
+    /**
+     * The removal handler interface. Called for every entry removed, with
+     * the cause (see RemovalCause).
+     */
+    public static interface RemovalHandler<K, V> {
+        /**
+         * The entry removed from the map.
+         * @param pEntry The entry.
+         * @param pCause The cause.
+         */
+        public void execute(Map.Entry<K,V> pEntry, int pCause);
+    }
+}
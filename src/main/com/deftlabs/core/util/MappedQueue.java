@@ -0,0 +1,444 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// OEMware
+import com.deftlabs.core.OemException;
+
+// Java
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * A cross-process, single writer, multiple reader queue of variable length
+ * records in a memory mapped file. Every reader sees every record (the
+ * readers are independent). The file is a header page followed by the
+ * ring:
+ * <br/><br/>
+ *
+ * header: magic (4), version (4), capacity (8) ... tail (8, at 64) ...
+ * reader positions (8 each, one per 64 byte slot from 128)<br/>
+ * record: length (4), data, padded to 8 bytes (a negative length skips to
+ * the end of the ring)
+ * <br/><br/>
+ *
+ * The writer copies a record into the ring and then publishes it by
+ * advancing the tail, with a volatile write between the two so the record
+ * is visible before the tail. The readers read up to the tail they see and
+ * publish their position the same way. The writer never overwrites a
+ * record that an attached reader has not read (offer returns false), so
+ * the slowest reader sets the pace.
+ * <br/><br/>
+ *
+ * Recovery: the tail and the reader positions live in the file, so a
+ * restarted writer appends after the last published record (a record that
+ * was being written during a crash was never published) and a restarted
+ * reader resumes from its position. A reader that is gone for good must be
+ * detached or it will hold back the writer. The writer holds a file lock,
+ * so there is only one per file.
+ * <br/><br/>
+ *
+ * The ordering relies on the volatile fences of the jvm (no Unsafe), which
+ * is sound on the HotSpot/x86 style memory models this is meant for.
+ */
+public final class MappedQueue {
+
+    public static final int HEADER_SIZE = 4096;
+
+    private static final int MAGIC = 0x4d515545;
+    private static final int VERSION = 1;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int TAIL_OFFSET = 64;
+    private static final int READERS_OFFSET = 128;
+    private static final int READER_SLOT_SIZE = 64;
+
+    /**
+     * The max number of readers.
+     */
+    public static final int MAX_READERS = (HEADER_SIZE - READERS_OFFSET) / READER_SLOT_SIZE;
+
+    private static final int RECORD_HEADER_SIZE = 4;
+    private static final int ALIGNMENT = 8;
+
+    private static final long DETACHED = -1;
+
+    private MappedQueue() { }
+
+    /**
+     * Open the queue for writing. The file is created if it does not exist;
+     * otherwise the writer recovers after the last published record.
+     * @param pFileName The file name.
+     * @param pCapacity The ring size in bytes (a power of two, at least 1k).
+     * @throws OemException If the file has another writer or a different
+     * capacity.
+     */
+    public static Writer openWriter(final String pFileName, final int pCapacity) {
+        if (pCapacity < 1024 || (pCapacity & (pCapacity - 1)) != 0)
+        { throw new IllegalArgumentException("invalid capacity (power of two, at least 1024): " + pCapacity); }
+        return new Writer(pFileName, pCapacity);
+    }
+
+    /**
+     * Open the queue for reading. A reader resumes from the position saved
+     * under its id; a new (or detached) reader starts at the tail.
+     * @param pFileName The file name.
+     * @param pReaderId The reader id (0 to MAX_READERS - 1), stable across
+     * restarts.
+     * @throws OemException If the file is not a queue.
+     */
+    public static Reader openReader(final String pFileName, final int pReaderId) {
+        if (pReaderId < 0 || pReaderId >= MAX_READERS) throw new IllegalArgumentException("invalid reader id: " + pReaderId);
+        return new Reader(pFileName, pReaderId);
+    }
+
+    private static int align(final int pSize) { return (pSize + ALIGNMENT - 1) & ~(ALIGNMENT - 1); }
+
+    private static int readerOffset(final int pReaderId) { return READERS_OFFSET + (pReaderId * READER_SLOT_SIZE); }
+
+    /**
+     * Read the capacity from the header of an existing queue file (zero if
+     * it is not initialized).
+     */
+    private static long readCapacity(final RandomAccessFile pFile) throws IOException {
+        if (pFile.length() < HEADER_SIZE) return 0;
+        pFile.seek(MAGIC_OFFSET);
+        if (pFile.readInt() != MAGIC) return 0;
+        if (pFile.readInt() != VERSION) throw new OemException("unsupported queue version");
+        return pFile.readLong();
+    }
+
+    /**
+     * The record handler. The buffer is the mapped file; read the record
+     * with absolute gets and do not keep a reference to it.
+     */
+    public static interface Handler {
+        /**
+         * Called for each record.
+         * @param pBuffer The mapped buffer.
+         * @param pOffset The record data offset.
+         * @param pLength The record data length.
+         */
+        public void execute(ByteBuffer pBuffer, int pOffset, int pLength);
+    }
+
+    /**
+     * The writer. Access is NOT thread-safe (one writer thread).
+     */
+    public static final class Writer {
+
+        private final String _fileName;
+        private final RandomAccessFile _file;
+        private final FileLock _lock;
+        private final MappedByteBuffer _buffer;
+        private final ByteBuffer _view;
+        private final long _capacity;
+        private final long _mask;
+
+        private long _tail;
+        private long _minReader;
+        private long _offered = 0;
+        private long _rejected = 0;
+
+        // Written to order the record before the tail.
+        private volatile long _fence;
+
+        private Writer(final String pFileName, final int pCapacity) {
+            _fileName = pFileName;
+            _capacity = pCapacity;
+            _mask = pCapacity - 1;
+
+            try {
+                _file = new RandomAccessFile(pFileName, "rw");
+                FileLock lock = null;
+                try { lock = _file.getChannel().tryLock();
+                } catch (final OverlappingFileLockException ofle) { }
+
+                if (lock == null) {
+                    _file.close();
+                    throw new OemException("queue already has a writer: " + pFileName);
+                }
+                _lock = lock;
+
+                final long capacity = readCapacity(_file);
+                if (capacity != 0 && capacity != pCapacity) {
+                    close();
+                    throw new OemException("queue capacity mismatch: " + pFileName + " - expected: " + pCapacity + " - found: " + capacity);
+                }
+
+                _buffer = FileUtils.mapFileToBuffer(pFileName, HEADER_SIZE + _capacity);
+                _view = _buffer.duplicate();
+
+                if (capacity == 0) {
+                    // Initialize, with the magic written last.
+                    for (int idx=0; idx < MAX_READERS; idx++) _buffer.putLong(readerOffset(idx), DETACHED);
+                    _buffer.putLong(TAIL_OFFSET, 0);
+                    _buffer.putLong(CAPACITY_OFFSET, _capacity);
+                    _buffer.putInt(VERSION_OFFSET, VERSION);
+                    _fence = 0;
+                    _buffer.putInt(MAGIC_OFFSET, MAGIC);
+                }
+
+                _tail = _buffer.getLong(TAIL_OFFSET);
+
+                // Attached readers may still be behind a restarted writer, so
+                // force a scan of the reader slots on the first offer.
+                _minReader = _tail - _capacity;
+
+            } catch (final IOException ioe) { throw new OemException("error on file: " + pFileName, ioe); }
+        }
+
+        /**
+         * Append the record.
+         * @return False if the slowest reader has not freed enough room.
+         */
+        public final boolean offer(final byte [] pData) { return offer(pData, 0, pData.length); }
+
+        /**
+         * Append the record.
+         * @param pData The data.
+         * @param pOffset The data offset.
+         * @param pLength The data length (at most a quarter of the capacity).
+         * @return False if the slowest reader has not freed enough room.
+         */
+        public final boolean offer(final byte [] pData, final int pOffset, final int pLength) {
+            final int size = align(RECORD_HEADER_SIZE + pLength);
+            if (pLength < 0 || size > _capacity / 4) throw new IllegalArgumentException("invalid record length: " + pLength);
+
+            int position = (int)(_tail & _mask);
+            final int toEnd = (int)(_capacity - position);
+            final int needed = (size > toEnd) ? toEnd + size : size;
+
+            if (!hasRoom(needed)) { _rejected++; return false; }
+
+            long tail = _tail;
+            if (size > toEnd) {
+                _buffer.putInt(HEADER_SIZE + position, -toEnd);
+                tail += toEnd;
+                position = 0;
+            }
+
+            _view.position(HEADER_SIZE + position + RECORD_HEADER_SIZE);
+            _view.put(pData, pOffset, pLength);
+            _buffer.putInt(HEADER_SIZE + position, pLength);
+
+            publish(tail + size);
+            _offered++;
+            return true;
+        }
+
+        // A volatile read, so the reader positions are not read early.
+        private long acquire() { return _fence; }
+
+        private void publish(final long pTail) {
+            _fence = pTail;
+            _buffer.putLong(TAIL_OFFSET, pTail);
+            _tail = pTail;
+        }
+
+        /**
+         * Check the room against the slowest attached reader (cached until
+         * the room runs out).
+         */
+        private boolean hasRoom(final int pNeeded) {
+            if (_tail + pNeeded - _minReader <= _capacity) return true;
+
+            long min = _tail;
+            acquire();
+            for (int idx=0; idx < MAX_READERS; idx++) {
+                final long position = _buffer.getLong(readerOffset(idx));
+                if (position != DETACHED && position < min) min = position;
+            }
+
+            _minReader = min;
+            return _tail + pNeeded - _minReader <= _capacity;
+        }
+
+        /**
+         * Returns the reader's position (-1 if detached).
+         */
+        public final long getReaderPosition(final int pReaderId) {
+            acquire();
+            return _buffer.getLong(readerOffset(pReaderId));
+        }
+
+        /**
+         * Detach a reader that is gone for good, so it no longer holds back
+         * the writer. If it reopens, it starts at the tail.
+         */
+        public final void detachReader(final int pReaderId) {
+            _buffer.putLong(readerOffset(pReaderId), DETACHED);
+            _fence = DETACHED;
+        }
+
+        /**
+         * Returns the write position (bytes written since the file was
+         * created).
+         */
+        public final long getTail() { return _tail; }
+
+        public final long getOffered() { return _offered; }
+        public final long getRejected() { return _rejected; }
+        public final long getCapacity() { return _capacity; }
+        public final String getFileName() { return _fileName; }
+
+        /**
+         * Release the writer lock. The mapping is released when the writer
+         * is garbage collected.
+         */
+        public final void close() {
+            try { if (_lock != null) _lock.release();
+            } catch (final IOException ioe) { }
+            try { _file.close();
+            } catch (final IOException ioe) { }
+        }
+    }
+
+    /**
+     * A reader. Access is NOT thread-safe (one thread per reader).
+     */
+    public static final class Reader {
+
+        private final int _readerId;
+        private final int _slot;
+        private final MappedByteBuffer _buffer;
+        private final long _capacity;
+        private final long _mask;
+
+        private long _position;
+        private long _read = 0;
+
+        // Read before the tail and written before the position.
+        private volatile long _fence;
+
+        private Reader(final String pFileName, final int pReaderId) {
+            _readerId = pReaderId;
+            _slot = readerOffset(pReaderId);
+
+            try {
+                final RandomAccessFile file = new RandomAccessFile(pFileName, "r");
+                try { _capacity = readCapacity(file);
+                } finally { file.close(); }
+            } catch (final IOException ioe) { throw new OemException("error on file: " + pFileName, ioe); }
+
+            if (_capacity == 0) throw new OemException("not a queue file: " + pFileName);
+
+            _mask = _capacity - 1;
+            _buffer = FileUtils.mapFileToBuffer(pFileName, HEADER_SIZE + _capacity);
+
+            final long tail = tail();
+            long position = _buffer.getLong(_slot);
+            if (position == DETACHED || position > tail || tail - position > _capacity) position = tail;
+            _position = position;
+            savePosition();
+        }
+
+        // The volatile read after the tail keeps the record reads after it.
+        private long tail() {
+            final long tail = _buffer.getLong(TAIL_OFFSET);
+            acquire();
+            return tail;
+        }
+
+        private long acquire() { return _fence; }
+
+        private void savePosition() {
+            _fence = _position;
+            _buffer.putLong(_slot, _position);
+        }
+
+        /**
+         * Read up to the limit records.
+         * @param pHandler The record handler.
+         * @param pLimit The max records.
+         * @return The number of records read (zero if there are none).
+         */
+        public final int read(final Handler pHandler, final int pLimit) {
+            final long tail = tail();
+            long position = _position;
+            int count = 0;
+
+            try {
+                while (position < tail && count < pLimit) {
+                    final int offset = HEADER_SIZE + (int)(position & _mask);
+                    final int length = _buffer.getInt(offset);
+
+                    if (length < 0) { position -= length; continue; }
+
+                    position += align(RECORD_HEADER_SIZE + length);
+                    count++;
+                    pHandler.execute(_buffer, offset + RECORD_HEADER_SIZE, length);
+                }
+            } finally {
+                if (position != _position) {
+                    _position = position;
+                    _read += count;
+                    savePosition();
+                }
+            }
+
+            return count;
+        }
+
+        /**
+         * Read up to the limit records, waiting with the idle strategy until
+         * there is at least one. The writer is another process, so it cannot
+         * wake a parked reader; use a spinning, yielding or backoff strategy.
+         * @param pHandler The record handler.
+         * @param pLimit The max records.
+         * @param pIdleStrategy The wait strategy.
+         * @return The number of records read.
+         * @throws InterruptedException If interrupted while waiting.
+         */
+        public final int take(final Handler pHandler, final int pLimit, final IdleStrategy pIdleStrategy) throws InterruptedException {
+            int count;
+            while ((count = read(pHandler, pLimit)) == 0) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                pIdleStrategy.idle();
+            }
+            pIdleStrategy.reset();
+            return count;
+        }
+
+        /**
+         * Returns the bytes published but not read yet.
+         */
+        public final long getLag() { return tail() - _position; }
+
+        public final long getPosition() { return _position; }
+        public final long getRead() { return _read; }
+        public final int getReaderId() { return _readerId; }
+
+        /**
+         * Close the reader.
+         * @param pDetach True if the reader is gone for good (the writer stops
+         * waiting for it), false to resume from the position on reopen.
+         */
+        public final void close(final boolean pDetach) {
+            if (!pDetach) return;
+            _buffer.putLong(_slot, DETACHED);
+            _fence = DETACHED;
+        }
+    }
+}
+
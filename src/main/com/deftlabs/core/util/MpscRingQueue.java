@@ -0,0 +1,55 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * A bounded, lock-free multiple producer, single consumer ring queue. The
+ * producers claim a slot by advancing the tail sequence (CAS) and then
+ * publish the element into it. The producers share a cached copy of the
+ * consumer sequence, so they only read the consumer's counter when the
+ * queue looks full. Only one thread may consume.
+ */
+public final class MpscRingQueue<T> extends RingQueueBase<T> {
+
+    // The producers' copy of the consumer sequence.
+    private final PaddedSequence _headCache = new PaddedSequence(0);
+
+    /**
+     * Create a new queue.
+     * @param pCapacity The capacity (rounded up to a power of two).
+     */
+    public MpscRingQueue(final int pCapacity) { super(pCapacity); }
+
+    public final boolean offer(final T pItem) {
+        if (pItem == null) throw new IllegalArgumentException("item not set");
+
+        long tail;
+        do {
+            tail = _tail.get();
+            if (tail - _headCache.get() >= _capacity) {
+                final long head = _head.get();
+                if (tail - head >= _capacity) return false;
+                _headCache.lazySet(head);
+            }
+        } while (!_tail.compareAndSet(tail, tail + 1));
+
+        _buffer.set((int)tail & _mask, pItem);
+        signal();
+        return true;
+    }
+}
+
@@ -0,0 +1,486 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ByteArray to ByteArray cache stored in direct memory. The heap
+ * footprint is a few objects per segment, whatever the number of entries,
+ * so a large cache adds nothing for the gc to trace.
+ * <br/><br/>
+ *
+ * Each segment has its own lock, a data slab used as a ring log and an
+ * open addressing (linear probing) index, both direct buffers. An index
+ * slot is a long: the key hash and the record offset. A record is the
+ * header, the key and the value, appended at the tail of the ring. The
+ * eviction is CLOCK over the log: the record at the head is evicted unless
+ * it was read since it was written, in which case it gets a second chance
+ * (it is copied to the tail with its reference bit cleared). Removed and
+ * replaced records are marked dead and skipped when the head reaches them.
+ * <br/><br/>
+ *
+ * Lookups hash and compare the caller's key bytes in place (no copy) and
+ * copy the value into the caller's buffer. The direct memory is released
+ * when the cache is garbage collected. Access to this class is thread-safe.
+ */
+public final class OffHeapCache {
+
+    // The record header: size, hash, key length, value length, flags.
+    private static final int SIZE_OFFSET = 0;
+    private static final int HASH_OFFSET = 4;
+    private static final int KEY_LENGTH_OFFSET = 8;
+    private static final int VALUE_LENGTH_OFFSET = 12;
+    private static final int FLAGS_OFFSET = 16;
+    private static final int HEADER_SIZE = 24;
+
+    private static final byte REFERENCED = 1;
+    private static final byte DEAD = 2;
+
+    private static final int ALIGNMENT = 8;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    private final Segment [] _segments;
+    private final int _segmentShift;
+    private final long _capacity;
+    private final int _maxEntries;
+
+    /**
+     * Create a new cache.
+     * @param pCapacity The data memory in bytes (split over the segments).
+     * @param pMaxEntries The max number of entries (sizes the index).
+     * @param pSegments The number of segments (rounded up to a power of two,
+     * and raised so no segment is over 1 GB).
+     */
+    public OffHeapCache(final long pCapacity, final int pMaxEntries, final int pSegments) {
+        if (pCapacity < 1024) throw new IllegalArgumentException("invalid capacity: " + pCapacity);
+        if (pMaxEntries < 1) throw new IllegalArgumentException("invalid max entries: " + pMaxEntries);
+        if (pSegments < 1) throw new IllegalArgumentException("invalid segments: " + pSegments);
+
+        int segments = 1;
+        while (segments < pSegments || pCapacity / segments > MAX_SEGMENT_BYTES) segments <<= 1;
+
+        _segments = new Segment[segments];
+        _segmentShift = 32 - Integer.numberOfTrailingZeros(segments);
+        _capacity = pCapacity;
+        _maxEntries = pMaxEntries;
+
+        final int segmentBytes = (int)((pCapacity / segments) & ~(ALIGNMENT - 1));
+        final int segmentEntries = Math.max(1, (int)Math.ceil((double)pMaxEntries / segments));
+        for (int idx=0; idx < segments; idx++) _segments[idx] = new Segment(segmentBytes, segmentEntries);
+    }
+
+    private Segment segment(final int pHash) {
+        return (_segmentShift == 32) ? _segments[0] : _segments[(pHash * 0x9e3779b9) >>> _segmentShift];
+    }
+
+    /**
+     * Put the value (both are copied into the cache).
+     * @return False if the entry is too large (over half a segment).
+     */
+    public boolean put(final ByteArray pKey, final ByteArray pValue) {
+        final int hash = hash(pKey);
+        return segment(hash).put(hash, pKey, pValue);
+    }
+
+    /**
+     * Copy the value into the buffer. The value is copied to pValue.data at
+     * pValue.offset and pValue.length is set, if it fits in the rest of the
+     * array.
+     * @param pKey The key.
+     * @param pValue The buffer.
+     * @return The value length (larger than the room in the buffer if
+     * nothing was copied) or -1 if the key is not cached.
+     */
+    public int get(final ByteArray pKey, final ByteArray pValue) {
+        final int hash = hash(pKey);
+        return segment(hash).get(hash, pKey, pValue);
+    }
+
+    /**
+     * Returns a copy of the value or null if the key is not cached.
+     */
+    public ByteArray get(final ByteArray pKey) {
+        final ByteArray value = new ByteArray(new byte[64]);
+        value.offset = 0;
+        while (true) {
+            final int length = get(pKey, value);
+            if (length < 0) return null;
+            if (length <= value.data.length) return value;
+            value.data = new byte[length];
+        }
+    }
+
+    public boolean containsKey(final ByteArray pKey) {
+        final int hash = hash(pKey);
+        return segment(hash).containsKey(hash, pKey);
+    }
+
+    /**
+     * Remove the entry.
+     * @return True if the key was cached.
+     */
+    public boolean remove(final ByteArray pKey) {
+        final int hash = hash(pKey);
+        return segment(hash).remove(hash, pKey);
+    }
+
+    public void clear() { for (final Segment segment : _segments) segment.clear(); }
+
+    public int size() {
+        int size = 0;
+        for (final Segment segment : _segments) size += segment.metric(0);
+        return size;
+    }
+
+    /**
+     * Returns the data bytes in use (live, dead and not yet reclaimed).
+     */
+    public long getMemoryUsed() { return sum(1); }
+
+    public long getHits() { return sum(2); }
+    public long getMisses() { return sum(3); }
+    public long getEvictions() { return sum(4); }
+
+    /**
+     * Returns the records given a second chance (copied to the tail).
+     */
+    public long getReinserted() { return sum(5); }
+
+    public long getCapacity() { return _capacity; }
+    public int getMaxEntries() { return _maxEntries; }
+    public int getSegmentCount() { return _segments.length; }
+
+    private long sum(final int pMetric) {
+        long sum = 0;
+        for (final Segment segment : _segments) sum += segment.metric(pMetric);
+        return sum;
+    }
+
+    /**
+     * Returns the metrics as a string.
+     */
+    public String getReport() {
+        return "entries: " + size() + "/" + _maxEntries
+        + " - memory: " + getMemoryUsed() + "/" + _capacity
+        + " - segments: " + _segments.length
+        + " - hits: " + getHits()
+        + " - misses: " + getMisses()
+        + " - evictions: " + getEvictions()
+        + " - reinserted: " + getReinserted();
+    }
+
+    static int hash(final ByteArray pKey) {
+        final byte [] data = pKey.data;
+        final int end = pKey.offset + pKey.length;
+        int hash = 0x811c9dc5 ^ pKey.length;
+        for (int idx=pKey.offset; idx < end; idx++) hash = (hash ^ data[idx]) * 0x01000193;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int align(final int pSize) { return (pSize + ALIGNMENT - 1) & ~(ALIGNMENT - 1); }
+
+    /**
+     * A segment: the ring of records and its index.
+     */
+    private static final class Segment {
+
+        private final ReentrantLock _lock = new ReentrantLock();
+
+        private final ByteBuffer _data;
+        private final ByteBuffer _view;
+        private final ByteBuffer _source;
+        private final int _dataSize;
+
+        private final LongBuffer _index;
+        private final int _mask;
+        private final int _maxEntries;
+
+        // The ring positions (bytes written since the segment was created).
+        private long _head = 0;
+        private long _tail = 0;
+        private int _count = 0;
+
+        private long _hits = 0;
+        private long _misses = 0;
+        private long _evictions = 0;
+        private long _reinserted = 0;
+
+        private Segment(final int pDataSize, final int pMaxEntries) {
+            _dataSize = pDataSize;
+            _data = ByteBuffer.allocateDirect(pDataSize);
+            _view = _data.duplicate();
+            _source = _data.duplicate();
+
+            final int minSlots = (int)Math.ceil(pMaxEntries / LOAD_FACTOR) + 1;
+            int slots = Integer.highestOneBit(minSlots);
+            if (slots < minSlots) slots <<= 1;
+
+            _index = ByteBuffer.allocateDirect(slots * 8).asLongBuffer();
+            _mask = slots - 1;
+            _maxEntries = pMaxEntries;
+        }
+
+        private boolean put(final int pHash, final ByteArray pKey, final ByteArray pValue) {
+            final int size = align(HEADER_SIZE + pKey.length + pValue.length);
+            if (size > _dataSize / 2) return false;
+
+            _lock.lock();
+            try {
+                final int existing = find(pHash, pKey);
+                if (existing >= 0) {
+                    final int offset = offset(_index.get(existing));
+                    _data.put(offset + FLAGS_OFFSET, DEAD);
+                    deleteSlot(existing);
+                    _count--;
+                }
+
+                while (_count >= _maxEntries) evictHead();
+
+                final int offset = allocate(size);
+                _data.putInt(offset + SIZE_OFFSET, size);
+                _data.putInt(offset + HASH_OFFSET, pHash);
+                _data.putInt(offset + KEY_LENGTH_OFFSET, pKey.length);
+                _data.putInt(offset + VALUE_LENGTH_OFFSET, pValue.length);
+                _data.putInt(offset + FLAGS_OFFSET, 0);
+
+                _view.limit(_dataSize);
+                _view.position(offset + HEADER_SIZE);
+                _view.put(pKey.data, pKey.offset, pKey.length);
+                _view.put(pValue.data, pValue.offset, pValue.length);
+
+                int slot = pHash & _mask;
+                while (_index.get(slot) != 0) slot = (slot + 1) & _mask;
+                _index.put(slot, slot(pHash, offset));
+                _count++;
+                return true;
+
+            } finally { _lock.unlock(); }
+        }
+
+        private int get(final int pHash, final ByteArray pKey, final ByteArray pValue) {
+            _lock.lock();
+            try {
+                final int slot = find(pHash, pKey);
+                if (slot < 0) { _misses++; return -1; }
+                _hits++;
+
+                final int offset = offset(_index.get(slot));
+                if (_data.get(offset + FLAGS_OFFSET) == 0) _data.put(offset + FLAGS_OFFSET, REFERENCED);
+
+                final int length = _data.getInt(offset + VALUE_LENGTH_OFFSET);
+                if (length > pValue.data.length - pValue.offset) return length;
+
+                _view.limit(_dataSize);
+                _view.position(offset + HEADER_SIZE + _data.getInt(offset + KEY_LENGTH_OFFSET));
+                _view.get(pValue.data, pValue.offset, length);
+                pValue.length = length;
+                return length;
+
+            } finally { _lock.unlock(); }
+        }
+
+        private boolean containsKey(final int pHash, final ByteArray pKey) {
+            _lock.lock();
+            try { return find(pHash, pKey) >= 0;
+            } finally { _lock.unlock(); }
+        }
+
+        private boolean remove(final int pHash, final ByteArray pKey) {
+            _lock.lock();
+            try {
+                final int slot = find(pHash, pKey);
+                if (slot < 0) return false;
+                _data.put(offset(_index.get(slot)) + FLAGS_OFFSET, DEAD);
+                deleteSlot(slot);
+                _count--;
+                return true;
+            } finally { _lock.unlock(); }
+        }
+
+        private void clear() {
+            _lock.lock();
+            try {
+                for (int idx=0; idx <= _mask; idx++) _index.put(idx, 0);
+                _head = _tail = 0;
+                _count = 0;
+            } finally { _lock.unlock(); }
+        }
+
+        private long metric(final int pMetric) {
+            _lock.lock();
+            try {
+                switch (pMetric) {
+                    case 0: return _count;
+                    case 1: return _tail - _head;
+                    case 2: return _hits;
+                    case 3: return _misses;
+                    case 4: return _evictions;
+                    default: return _reinserted;
+                }
+            } finally { _lock.unlock(); }
+        }
+
+        /**
+         * Returns the index slot of the key or -1.
+         */
+        private int find(final int pHash, final ByteArray pKey) {
+            int slot = pHash & _mask;
+            while (true) {
+                final long entry = _index.get(slot);
+                if (entry == 0) return -1;
+                if ((int)(entry >>> 32) == pHash && keyEquals(offset(entry), pKey)) return slot;
+                slot = (slot + 1) & _mask;
+            }
+        }
+
+        /**
+         * Returns the index slot pointing at the record.
+         */
+        private int slotOf(final int pHash, final int pOffset) {
+            int slot = pHash & _mask;
+            while (offset(_index.get(slot)) != pOffset) slot = (slot + 1) & _mask;
+            return slot;
+        }
+
+        private boolean keyEquals(final int pOffset, final ByteArray pKey) {
+            if (_data.getInt(pOffset + KEY_LENGTH_OFFSET) != pKey.length) return false;
+            final byte [] data = pKey.data;
+            final int start = pOffset + HEADER_SIZE;
+            for (int idx=0; idx < pKey.length; idx++) if (_data.get(start + idx) != data[pKey.offset + idx]) return false;
+            return true;
+        }
+
+        /**
+         * Delete the slot, shifting the following entries of the probe run
+         * back so no tombstones are needed.
+         */
+        private void deleteSlot(final int pSlot) {
+            int hole = pSlot;
+            int next = (hole + 1) & _mask;
+            while (true) {
+                final long entry = _index.get(next);
+                if (entry == 0) break;
+                final int ideal = ((int)(entry >>> 32)) & _mask;
+                if (((next - ideal) & _mask) >= ((next - hole) & _mask)) {
+                    _index.put(hole, entry);
+                    hole = next;
+                }
+                next = (next + 1) & _mask;
+            }
+            _index.put(hole, 0);
+        }
+
+        /**
+         * Reserve the record space at the tail, evicting from the head until
+         * it fits. A record does not wrap: the end of the ring is skipped
+         * with a padding record.
+         */
+        private int allocate(final int pSize) {
+            while (true) {
+                int offset = (int)(_tail % _dataSize);
+                final int toEnd = _dataSize - offset;
+                final int needed = (pSize > toEnd) ? toEnd + pSize : pSize;
+
+                if (_dataSize - (_tail - _head) >= needed) {
+                    if (pSize > toEnd) {
+                        _data.putInt(offset + SIZE_OFFSET, -toEnd);
+                        _tail += toEnd;
+                        offset = 0;
+                    }
+                    _tail += pSize;
+                    return offset;
+                }
+
+                evictHead();
+            }
+        }
+
+        /**
+         * Advance the clock hand (the head) past one record: skip it if it
+         * is padding or dead, give it a second chance if it was referenced,
+         * otherwise evict it. A second chance moves the record to the tail:
+         * in place if the ring is full (the tail is at the head), else by
+         * copying it. If it does not fit, the gap at the tail is padded so
+         * the next call can move it.
+         */
+        private void evictHead() {
+            final int offset = (int)(_head % _dataSize);
+            final int size = _data.getInt(offset + SIZE_OFFSET);
+
+            if (size < 0) { _head -= size; return; }
+
+            final byte flags = _data.get(offset + FLAGS_OFFSET);
+            if (flags == DEAD) { _head += size; return; }
+
+            if (flags == REFERENCED) {
+                final int tailOffset = (int)(_tail % _dataSize);
+                final int free = (int)(_dataSize - (_tail - _head));
+                final int toEnd = _dataSize - tailOffset;
+
+                if (free == 0) {
+                    _data.put(offset + FLAGS_OFFSET, (byte)0);
+                    _head += size;
+                    _tail += size;
+                    _reinserted++;
+                    return;
+                }
+
+                if (free < size || toEnd < size) {
+                    final int padding = Math.min(free, toEnd);
+                    _data.putInt(tailOffset + SIZE_OFFSET, -padding);
+                    _tail += padding;
+                    return;
+                }
+
+                final int hash = _data.getInt(offset + HASH_OFFSET);
+                final int slot = slotOf(hash, offset);
+
+                _source.limit(offset + size);
+                _source.position(offset);
+                _view.limit(_dataSize);
+                _view.position(tailOffset);
+                _view.put(_source);
+
+                _data.put(tailOffset + FLAGS_OFFSET, (byte)0);
+                _index.put(slot, slot(hash, tailOffset));
+                _head += size;
+                _tail += size;
+                _reinserted++;
+                return;
+            }
+
+            deleteSlot(slotOf(_data.getInt(offset + HASH_OFFSET), offset));
+            _count--;
+            _evictions++;
+            _head += size;
+        }
+
+        private static long slot(final int pHash, final int pOffset) { return (((long)pHash) << 32) | ((pOffset + 1) & 0xffffffffL); }
+
+        private static int offset(final long pSlot) { return ((int)pSlot) - 1; }
+    }
+}
+
@@ -0,0 +1,35 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sequence counter padded to its own cache line, so counters written by
+ * different threads (e.g., a queue's head and tail) do not false share.
+ */
+final class PaddedSequence extends AtomicLong {
+
+    private static final long serialVersionUID = 3523472813396174335L;
+
+    // The padding (never read).
+    long p1, p2, p3, p4, p5, p6, p7;
+
+    PaddedSequence(final long pValue) { super(pValue); }
+}
+
@@ -0,0 +1,59 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * The reasons an entry is removed from a cache (see
+ * LruMap.RemovalHandler).
+ */
+public final class RemovalCause {
+
+    /**
+     * Evicted because the cache was full.
+     */
+    public static final int SIZE = 1;
+
+    /**
+     * Removed because its time to live or time to idle passed.
+     */
+    public static final int EXPIRED = 2;
+
+    /**
+     * Removed by the caller (remove or clear).
+     */
+    public static final int EXPLICIT = 3;
+
+    private RemovalCause() { }
+
+    /**
+     * Returns the cause name.
+     */
+    public static String toString(final int pCause) {
+        switch (pCause) {
+            case SIZE: return "size";
+            case EXPIRED: return "expired";
+            case EXPLICIT: return "explicit";
+            default: return "unknown: " + pCause;
+        }
+    }
+
+    /**
+     * Returns true if the map removed the entry on its own (size or expiry).
+     */
+    public static boolean isEviction(final int pCause) { return pCause == SIZE || pCause == EXPIRED; }
+}
+
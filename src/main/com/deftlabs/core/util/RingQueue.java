@@ -0,0 +1,76 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * A bounded, lock-free ring buffer queue with a single consumer (see
+ * SpscRingQueue and MpscRingQueue). The consumer methods (poll, drain and
+ * take) must only be called by one thread at a time. Null elements are not
+ * allowed.
+ */
+public interface RingQueue<T> {
+
+    /**
+     * Add the element if there is room. This never blocks.
+     * @param pItem The element.
+     * @return False if the queue is full.
+     */
+    public boolean offer(T pItem);
+
+    /**
+     * Remove the head element.
+     * @return The element or null if the queue is empty.
+     */
+    public T poll();
+
+    /**
+     * Remove up to the limit elements and pass them to the handler.
+     * @param pHandler The handler.
+     * @param pLimit The max elements.
+     * @return The number of elements drained.
+     */
+    public int drain(Handler<T> pHandler, int pLimit);
+
+    /**
+     * Remove the head element, waiting with the idle strategy while the
+     * queue is empty. The producers wake the consumer, so a parking strategy
+     * (e.g., IdleStrategies.Blocking) does not wait for its timeout.
+     * @param pIdleStrategy The wait strategy.
+     * @return The element.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public T take(IdleStrategy pIdleStrategy) throws InterruptedException;
+
+    /**
+     * Returns the approximate number of elements.
+     */
+    public int size();
+
+    public int capacity();
+
+    /**
+     * The drain handler. Called by the consumer thread.
+     */
+    public static interface Handler<T> {
+        /**
+         * Called for each element drained.
+         * @param pItem The element.
+         */
+        public void execute(T pItem);
+    }
+}
+
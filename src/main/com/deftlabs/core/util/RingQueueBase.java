@@ -0,0 +1,135 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ring queue consumer side. A slot holds an element from the time it
+ * is published until the consumer clears it, so the consumer only reads
+ * the slots; the tail (producer) sequence is only read to tell an empty
+ * queue from a claimed but not yet published slot.
+ */
+abstract class RingQueueBase<T> implements RingQueue<T> {
+
+    protected final AtomicReferenceArray<T> _buffer;
+    protected final int _capacity;
+    protected final int _mask;
+
+    // The consumer sequence (the next slot to read).
+    protected final PaddedSequence _head = new PaddedSequence(0);
+
+    // The producer sequence (the next slot to claim).
+    protected final PaddedSequence _tail = new PaddedSequence(0);
+
+    // The consumer thread when it is waiting in take.
+    private volatile Thread _waiter;
+
+    /**
+     * @param pCapacity The capacity (rounded up to a power of two).
+     */
+    protected RingQueueBase(final int pCapacity) {
+        if (pCapacity < 1 || pCapacity > (1 << 30)) throw new IllegalArgumentException("invalid capacity: " + pCapacity);
+
+        int capacity = 1;
+        while (capacity < pCapacity) capacity <<= 1;
+
+        _capacity = capacity;
+        _mask = capacity - 1;
+        _buffer = new AtomicReferenceArray<T>(capacity);
+    }
+
+    public final T poll() {
+        final long head = _head.get();
+        final int idx = (int)head & _mask;
+
+        final T item = slot(idx, head);
+        if (item == null) return null;
+
+        _buffer.lazySet(idx, null);
+        _head.lazySet(head + 1);
+        return item;
+    }
+
+    public final int drain(final Handler<T> pHandler, final int pLimit) {
+        final long head = _head.get();
+        int count = 0;
+
+        try {
+            while (count < pLimit) {
+                final int idx = (int)(head + count) & _mask;
+                final T item = slot(idx, head + count);
+                if (item == null) break;
+
+                _buffer.lazySet(idx, null);
+                count++;
+                pHandler.execute(item);
+            }
+        } finally { if (count > 0) _head.lazySet(head + count); }
+
+        return count;
+    }
+
+    /**
+     * Returns the slot's element, waiting for it if a producer has claimed
+     * the slot but not published it yet.
+     */
+    private T slot(final int pIdx, final long pSequence) {
+        T item = _buffer.get(pIdx);
+        if (item != null) return item;
+        if (pSequence >= _tail.get()) return null;
+
+        while ((item = _buffer.get(pIdx)) == null) Thread.yield();
+        return item;
+    }
+
+    public final T take(final IdleStrategy pIdleStrategy) throws InterruptedException {
+        T item = poll();
+        if (item != null) return item;
+
+        _waiter = Thread.currentThread();
+        try {
+            while ((item = poll()) == null) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                pIdleStrategy.idle();
+            }
+        } finally { _waiter = null; }
+
+        pIdleStrategy.reset();
+        return item;
+    }
+
+    /**
+     * Wake the consumer if it is waiting. Called by the producers after
+     * publishing (the publish must be a volatile write so the waiter read is
+     * not reordered before it).
+     */
+    protected final void signal() {
+        final Thread waiter = _waiter;
+        if (waiter != null) LockSupport.unpark(waiter);
+    }
+
+    public final int size() {
+        final long size = _tail.get() - _head.get();
+        return (int)Math.max(0, Math.min(size, _capacity));
+    }
+
+    public final int capacity() { return _capacity; }
+}
+
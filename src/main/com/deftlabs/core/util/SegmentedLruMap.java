@@ -0,0 +1,144 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A concurrent lru map split into segments, each an LruMap with its own
+ * (non-fair) lock and its own share of the max size. A key always maps to
+ * the same segment, so threads working on different segments never
+ * contend. The eviction order is lru within a segment, which approximates
+ * a global lru when the keys hash evenly. The eviction handler is called
+ * under the segment lock, as with LruMap.
+ * <br/><br/>
+ *
+ * The keySet, values and entrySet views are snapshots (each segment is
+ * copied under its lock), not live views.
+ */
+public class SegmentedLruMap<K,V> extends AbstractMap<K,V> {
+
+    private final LruMap<K, V> [] _segments;
+    private final int _mask;
+    private final int _size;
+
+    /**
+     * Create a new map with a segment count based on the processors.
+     * @param pSize The max size of the map.
+     */
+    public SegmentedLruMap(final int pSize) { this(pSize, defaultSegments(), null); }
+
+    /**
+     * Create a new map.
+     * @param pSize The max size of the map.
+     * @param pSegments The number of segments (rounded up to a power of two
+     * and limited to the size).
+     * @param pHandler The optional eviction handler.
+     */
+    @SuppressWarnings("unchecked")
+    public SegmentedLruMap( final int pSize,
+                            final int pSegments,
+                            final LruMap.EvictionHandler<K, V> pHandler)
+    {
+        if (pSize < 1) throw new IllegalArgumentException("invalid size: " + pSize);
+        if (pSegments < 1) throw new IllegalArgumentException("invalid segments: " + pSegments);
+
+        int segments = Integer.highestOneBit(pSegments);
+        if (segments < pSegments) segments <<= 1;
+        while (segments > 1 && segments > pSize) segments >>= 1;
+
+        _size = pSize;
+        _mask = segments - 1;
+        _segments = (LruMap<K, V> [])new LruMap<?, ?>[segments];
+
+        // Spread the remainder so the segment sizes add up to the size.
+        for (int idx=0; idx < segments; idx++) {
+            final int size = (pSize / segments) + ((idx < pSize % segments) ? 1 : 0);
+            _segments[idx] = new LruMap<K, V>(size, pHandler, false);
+        }
+    }
+
+    private static int defaultSegments() { return Runtime.getRuntime().availableProcessors() * 4; }
+
+    private LruMap<K, V> segment(final Object pKey) {
+        int hash = pKey.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return _segments[hash & _mask];
+    }
+
+    @Override public V get(final Object pKey) { return segment(pKey).get(pKey); }
+
+    @Override public boolean containsKey(final Object pKey) { return segment(pKey).containsKey(pKey); }
+
+    @Override public V put(final K pKey, final V pValue) { return segment(pKey).put(pKey, pValue); }
+
+    @Override public V remove(final Object pKey) { return segment(pKey).remove(pKey); }
+
+    @Override public void putAll(final Map<? extends K, ? extends V> pValues) {
+        for (final Map.Entry<? extends K, ? extends V> entry : pValues.entrySet()) put(entry.getKey(), entry.getValue());
+    }
+
+    @Override public boolean containsValue(final Object pValue) {
+        for (final LruMap<K, V> segment : _segments) if (segment.containsValue(pValue)) return true;
+        return false;
+    }
+
+    @Override public void clear() { for (final LruMap<K, V> segment : _segments) segment.clear(); }
+
+    @Override public int size() {
+        int size = 0;
+        for (final LruMap<K, V> segment : _segments) size += segment.size();
+        return size;
+    }
+
+    @Override public boolean isEmpty() {
+        for (final LruMap<K, V> segment : _segments) if (!segment.isEmpty()) return false;
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of the entries (eldest first within each segment).
+     */
+    @Override public Set<Map.Entry<K,V>> entrySet() {
+        final LinkedHashMap<K, V> copy = new LinkedHashMap<K, V>();
+        for (final LruMap<K, V> segment : _segments) segment.copyTo(copy);
+        return copy.entrySet();
+    }
+
+    /**
+     * Returns the max size of the map.
+     */
+    public final int getMaxSize() { return _size; }
+
+    public final int getSegmentCount() { return _segments.length; }
+
+    /**
+     * Returns the number of entries in each segment.
+     */
+    public final int [] getSegmentSizes() {
+        final int [] sizes = new int[_segments.length];
+        for (int idx=0; idx < _segments.length; idx++) sizes[idx] = _segments[idx].size();
+        return sizes;
+    }
+}
+
@@ -0,0 +1,388 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// OEMware
+import com.deftlabs.core.OemException;
+
+// Java
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Starts and stops a dependency graph of services in parallel. A service
+ * is started once all of its dependencies have started and is shut down
+ * once all of the services that depend on it have shut down; everything
+ * else runs concurrently on a pool of worker threads. Both directions have
+ * an overall deadline and the time spent starting and stopping each service
+ * is recorded (see the reports).
+ * <br/><br/>
+ *
+ * If a service fails to start or the startup deadline passes, the services
+ * started by that call are shut down (in dependency order) and an
+ * OemException is thrown; services that were already running are left
+ * running. Note that ThreadBase logs and swallows lifecycle method
+ * exceptions, so a failing beforeStart is not seen here. The group methods
+ * are synchronized.
+ */
+public final class ServiceGroup {
+
+    private final String _name;
+    private final int _threads;
+
+    private final Map<ThreadBase, Node> _nodes = new IdentityHashMap<ThreadBase, Node>();
+    private final List<Node> _order = new ArrayList<Node>();
+
+    private long _startupNanos = 0;
+    private long _shutdownNanos = 0;
+
+    private static final Logger LOG = Logger.getLogger(ServiceGroup.class.getName());
+
+    /**
+     * Create a new service group.
+     * @param pName The group name (used to name the worker threads).
+     * @param pThreads The max number of services started or stopped at once.
+     */
+    public ServiceGroup(final String pName, final int pThreads) {
+        if (pThreads < 1) throw new IllegalArgumentException("invalid thread count: " + pThreads);
+        _name = pName;
+        _threads = pThreads;
+    }
+
+    /**
+     * Add the service. The dependencies are added if they are not in the
+     * group yet. A service can be added more than once to add dependencies.
+     * @param pService The service.
+     * @param pDependencies The services that must be started first (and
+     * shut down last).
+     */
+    public synchronized void add(final ThreadBase pService, final ThreadBase ... pDependencies) {
+        if (pService == null) throw new IllegalArgumentException("service not set");
+
+        final Node node = node(pService);
+        for (final ThreadBase dependency : pDependencies) {
+            if (dependency == null) throw new IllegalArgumentException("dependency not set");
+            if (dependency == pService) throw new IllegalArgumentException("service depends on itself: " + pService.getName());
+            final Node depNode = node(dependency);
+            if (node.dependencies.contains(depNode)) continue;
+            node.dependencies.add(depNode);
+            depNode.dependents.add(node);
+        }
+    }
+
+    private Node node(final ThreadBase pService) {
+        Node node = _nodes.get(pService);
+        if (node == null) {
+            node = new Node(pService);
+            _nodes.put(pService, node);
+            _order.add(node);
+        }
+        return node;
+    }
+
+    /**
+     * Start the services. The services that are already running are
+     * treated as started (and are not shut down if the startup fails).
+     * @param pTimeout The overall deadline.
+     * @param pUnit The deadline unit.
+     * @throws OemException If there is a cycle, a service failed or the
+     * deadline passed (the services this call started are shut down).
+     */
+    public synchronized void startup(final long pTimeout, final TimeUnit pUnit) {
+        checkForCycles();
+
+        for (final Node node : _order) { node.startOffset = node.startNanos = 0; node.started = false; }
+
+        final long start = System.nanoTime();
+        final Run run = execute(true, false, start + pUnit.toNanos(pTimeout));
+        _startupNanos = System.nanoTime() - start;
+
+        if (run.error == null) return;
+
+        LOG.log(Level.SEVERE, "group: " + _name + " - startup failed - " + run.error + " - shutting down");
+        rollback(pTimeout, pUnit);
+        throw new OemException("group: " + _name + " - " + run.error, run.cause);
+    }
+
+    /**
+     * Shut down the running services.
+     * @param pTimeout The overall deadline.
+     * @param pUnit The deadline unit.
+     * @return True if all the services were shut down in time.
+     */
+    public synchronized boolean shutdown(final long pTimeout, final TimeUnit pUnit) {
+        return stop(false, pTimeout, pUnit);
+    }
+
+    /**
+     * Shut down the services the failed startup started.
+     */
+    private boolean rollback(final long pTimeout, final TimeUnit pUnit) { return stop(true, pTimeout, pUnit); }
+
+    private boolean stop(final boolean pStartedOnly, final long pTimeout, final TimeUnit pUnit) {
+        for (final Node node : _order) { node.stopOffset = node.stopNanos = 0; }
+
+        final long start = System.nanoTime();
+        final Run run = execute(false, pStartedOnly, start + pUnit.toNanos(pTimeout));
+        _shutdownNanos = System.nanoTime() - start;
+
+        if (run.error == null) return true;
+        LOG.log(Level.SEVERE, "group: " + _name + " - shutdown failed - " + run.error);
+        return false;
+    }
+
+    /**
+     * Run the services through the graph (forward to start, reverse to stop).
+     * When stopping the started only, the other services are passed through
+     * so the order is kept.
+     */
+    private Run execute(final boolean pStartup, final boolean pStartedOnly, final long pDeadline) {
+        final Run run = new Run();
+        final long start = System.nanoTime();
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(_threads, new ThreadFactory() {
+            public Thread newThread(final Runnable pRunnable) {
+                final Thread thread = new Thread(pRunnable, _name + "-" + (pStartup ? "startup-" : "shutdown-") + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final ExecutorCompletionService<Node> completion = new ExecutorCompletionService<Node>(executor);
+
+        try {
+            int pending = 0;
+            for (final Node node : _order) {
+                node.waiting = pStartup ? node.dependencies.size() : node.dependents.size();
+                if (node.waiting == 0) { submit(completion, node, pStartup, pStartedOnly, start); pending++; }
+            }
+
+            int done = 0;
+            while (done < _order.size()) {
+                if (pending == 0) break;
+
+                final long remaining = pDeadline - System.nanoTime();
+                final Future<Node> future = (remaining > 0) ? completion.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (future == null) {
+                    run.error = "timed out - waiting on: " + waitingOn();
+                    break;
+                }
+
+                pending--;
+                final Node node = future.get();
+                if (node.error != null) {
+                    run.error = node.service.getName() + " - " + (pStartup ? "startup" : "shutdown") + " failed";
+                    run.cause = node.error;
+                    LOG.log(Level.SEVERE, "group: " + _name + " - " + run.error, node.error);
+                    if (pStartup) break;
+                }
+
+                done++;
+                for (final Node next : pStartup ? node.dependents : node.dependencies) {
+                    if (--next.waiting == 0) { submit(completion, next, pStartup, pStartedOnly, start); pending++; }
+                }
+            }
+
+        } catch (final InterruptedException ie) {
+            run.error = "interrupted";
+            run.cause = ie;
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ee) {
+            run.error = "failed";
+            run.cause = ee.getCause();
+        } finally { executor.shutdownNow(); }
+
+        return run;
+    }
+
+    private void submit(final ExecutorCompletionService<Node> pCompletion,
+                        final Node pNode,
+                        final boolean pStartup,
+                        final boolean pStartedOnly,
+                        final long pStart)
+    {
+        pNode.active = true;
+        pNode.error = null;
+        pCompletion.submit(new Callable<Node>() {
+            public Node call() {
+                final long begin = System.nanoTime();
+                try {
+                    if (pStartup) {
+                        if (!pNode.service.isRunning()) { pNode.started = true; pNode.service.startup(); }
+                    } else if (!pStartedOnly || pNode.started) pNode.service.shutdown();
+                } catch (final Throwable t) { pNode.error = t;
+                } finally {
+                    final long end = System.nanoTime();
+                    if (pStartup) { pNode.startOffset = begin - pStart; pNode.startNanos = end - begin; }
+                    else { pNode.stopOffset = begin - pStart; pNode.stopNanos = end - begin; }
+                    pNode.active = false;
+                }
+                return pNode;
+            }
+        });
+    }
+
+    private String waitingOn() {
+        final StringBuilder names = new StringBuilder();
+        for (final Node node : _order) {
+            if (!node.active) continue;
+            if (names.length() > 0) names.append(", ");
+            names.append(node.service.getName());
+        }
+        return names.toString();
+    }
+
+    /**
+     * Kahn's algorithm; the nodes left over are in (or behind) a cycle.
+     */
+    private void checkForCycles() {
+        final Map<Node, Integer> waiting = new IdentityHashMap<Node, Integer>();
+        final List<Node> ready = new ArrayList<Node>();
+        for (final Node node : _order) {
+            waiting.put(node, node.dependencies.size());
+            if (node.dependencies.isEmpty()) ready.add(node);
+        }
+
+        int visited = 0;
+        while (!ready.isEmpty()) {
+            final Node node = ready.remove(ready.size() - 1);
+            visited++;
+            for (final Node next : node.dependents) {
+                final int count = waiting.get(next) - 1;
+                waiting.put(next, count);
+                if (count == 0) ready.add(next);
+            }
+        }
+
+        if (visited == _order.size()) return;
+
+        final StringBuilder names = new StringBuilder();
+        for (final Node node : _order) {
+            if (waiting.get(node) == 0) continue;
+            if (names.length() > 0) names.append(", ");
+            names.append(node.service.getName());
+        }
+        throw new OemException("group: " + _name + " - dependency cycle: " + names);
+    }
+
+    /**
+     * Returns the time the last startup or shutdown took.
+     */
+    public synchronized long getStartupNanos() { return _startupNanos; }
+    public synchronized long getShutdownNanos() { return _shutdownNanos; }
+
+    /**
+     * Returns the time the service took to start (zero if not started).
+     */
+    public synchronized long getStartupNanos(final ThreadBase pService) { return find(pService).startNanos; }
+
+    /**
+     * Returns the time the service took to shut down (zero if not stopped).
+     */
+    public synchronized long getShutdownNanos(final ThreadBase pService) { return find(pService).stopNanos; }
+
+    private Node find(final ThreadBase pService) {
+        final Node node = _nodes.get(pService);
+        if (node == null) throw new IllegalArgumentException("service not in group: " + pService.getName());
+        return node;
+    }
+
+    /**
+     * Returns the startup timing, slowest service first, with the time
+     * each service was started relative to the group.
+     */
+    public synchronized String getStartupReport() { return report(true); }
+
+    /**
+     * Returns the shutdown timing, slowest service first.
+     */
+    public synchronized String getShutdownReport() { return report(false); }
+
+    private String report(final boolean pStartup) {
+        final List<Node> nodes = new ArrayList<Node>(_order);
+        Collections.sort(nodes, new Comparator<Node>() {
+            public int compare(final Node pA, final Node pB) {
+                final long a = pStartup ? pA.startNanos : pA.stopNanos;
+                final long b = pStartup ? pB.startNanos : pB.stopNanos;
+                return (a < b) ? 1 : (a > b) ? -1 : 0;
+            }
+        });
+
+        final StringBuilder report = new StringBuilder("group: ");
+        report.append(_name);
+        report.append(pStartup ? " - startup: " : " - shutdown: ");
+        report.append(String.format("%.1f ms", (pStartup ? _startupNanos : _shutdownNanos) / 1000000.0));
+        report.append(" - services: ").append(nodes.size());
+
+        for (final Node node : nodes) {
+            report.append("\n").append(node.service.getName());
+            report.append(String.format(" - at: %.1f ms - took: %.1f ms",
+                                        (pStartup ? node.startOffset : node.stopOffset) / 1000000.0,
+                                        (pStartup ? node.startNanos : node.stopNanos) / 1000000.0));
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * The outcome of a startup or shutdown.
+     */
+    private static final class Run {
+        private String error;
+        private Throwable cause;
+    }
+
+    /**
+     * The graph node. The counts are only used by the calling thread; the
+     * timings (and whether the last startup started the service) are
+     * written by the workers.
+     */
+    private static final class Node {
+        private final ThreadBase service;
+        private final List<Node> dependencies = new ArrayList<Node>();
+        private final List<Node> dependents = new ArrayList<Node>();
+
+        private int waiting;
+
+        private volatile boolean active = false;
+        private volatile boolean started = false;
+        private volatile Throwable error;
+        private volatile long startOffset;
+        private volatile long startNanos;
+        private volatile long stopOffset;
+        private volatile long stopNanos;
+
+        private Node(final ThreadBase pService) { service = pService; }
+    }
+}
+
@@ -0,0 +1,48 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * A bounded, lock-free single producer, single consumer ring queue. The
+ * producer checks its slot instead of the consumer sequence, so the two
+ * threads only share the slots they hand over. Only one thread may offer
+ * and only one thread may consume.
+ */
+public final class SpscRingQueue<T> extends RingQueueBase<T> {
+
+    /**
+     * Create a new queue.
+     * @param pCapacity The capacity (rounded up to a power of two).
+     */
+    public SpscRingQueue(final int pCapacity) { super(pCapacity); }
+
+    public final boolean offer(final T pItem) {
+        if (pItem == null) throw new IllegalArgumentException("item not set");
+
+        final long tail = _tail.get();
+        final int idx = (int)tail & _mask;
+
+        // The slot is cleared by the consumer when it is read.
+        if (_buffer.get(idx) != null) return false;
+
+        _buffer.set(idx, pItem);
+        _tail.lazySet(tail + 1);
+        signal();
+        return true;
+    }
+}
+
@@ -41,6 +41,15 @@ public abstract class ThreadBase extends Thread {
 
     protected long _joinTimeout = 0;
 
+    // The last heartbeat (System.nanoTime()), zero if none.
+    private volatile long _heartbeat = 0;
+
+    static final long IDLE = Long.MIN_VALUE;
+
+    // Set to run on a virtual thread (see setVirtual).
+    private boolean _virtual = false;
+    private volatile Thread _executionThread;
+
     // The lifecycle states.
     private static final int BEFORE_START = 1;
     private static final int AFTER_START = 2;
@@ -55,7 +64,7 @@ public abstract class ThreadBase extends Thread {
     private final void executeLifecycleMethod(final int pState) {
         try {
             switch (pState) {
-                case START: start(); break;
+                case START: if (_virtual) startVirtual(); else start(); break;
                 case BEFORE_START: beforeStart(); break;
                 case AFTER_START: afterStart(); break;
                 case BEFORE_STOP: beforeStop(); break;
@@ -66,6 +75,16 @@ public abstract class ThreadBase extends Thread {
         }
     }
 
+    /**
+     * Run this thread's run method on a virtual thread (see VirtualThreads).
+     */
+    private final void startVirtual() {
+        final Thread thread = VirtualThreads.newFactory(getName()).newThread(this);
+        thread.setName(getName());
+        _executionThread = thread;
+        thread.start();
+    }
+
     /**
      * This must be implemented for the thread to work.
      */
@@ -81,22 +100,25 @@ public abstract class ThreadBase extends Thread {
         executeLifecycleMethod(BEFORE_START);
         _running = true;
         executeLifecycleMethod(START);
+        ThreadMonitor.register(this);
         executeLifecycleMethod(AFTER_START);
     }
 
     public synchronized void shutdown() {
         if (!_running) return;
         _running = false;
+        ThreadMonitor.unregister(this);
         executeLifecycleMethod(BEFORE_STOP);
 
-        if (isAlive() && !interrupted()) {
+        final Thread thread = getExecutionThread();
+        if (thread.isAlive() && !interrupted()) {
             try {
                 if (_joinThread) {
-                    try { join(_joinTimeout);
+                    try { thread.join(_joinTimeout);
                     } catch (InterruptedException ie) {
                         BASE_LOG.log(Level.WARNING, "failed to join thread: " + getName() + " in " + _joinTimeout + " (ms)");
                     }
-                } else { interrupt(); }
+                } else { thread.interrupt(); }
             } catch (Throwable t) {
                 BASE_LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t);
             }
@@ -105,6 +127,55 @@ public abstract class ThreadBase extends Thread {
         executeLifecycleMethod(AFTER_STOP);
     }
 
+    /**
+     * Record loop progress. Call this once per loop iteration so the
+     * ThreadMonitor can flag the thread if it stalls.
+     */
+    protected final void heartbeat() { _heartbeat = System.nanoTime(); }
+
+    /**
+     * Mark the thread as waiting for work (so it is not flagged as stalled)
+     * until the next heartbeat.
+     */
+    protected final void markIdle() { _heartbeat = IDLE; }
+
+    /**
+     * Returns the last heartbeat (System.nanoTime()), zero if the thread
+     * has none and Long.MIN_VALUE if it is idle.
+     */
+    public final long getHeartbeat() { return _heartbeat; }
+
+    /**
+     * Run the service on a virtual thread instead of this (platform)
+     * thread. The lifecycle is unchanged: the before/after methods are
+     * called by the caller of startup/shutdown and shutdown joins or
+     * interrupts the virtual thread. If the jvm does not support virtual
+     * threads, a platform daemon thread is used. In this mode this Thread
+     * object is never started, so use getExecutionThread to join or check if
+     * it is alive. This must be called before startup.
+     * @param pV True to run on a virtual thread.
+     */
+    public final synchronized void setVirtual(final boolean pV) {
+        if (_running) throw new IllegalStateException("thread already running: " + getName());
+        _virtual = pV;
+    }
+
+    public final synchronized boolean isVirtual() { return _virtual; }
+
+    /**
+     * Returns the thread running the run method: this thread or, in virtual
+     * mode, the virtual thread (once started).
+     */
+    public final Thread getExecutionThread() {
+        final Thread thread = _executionThread;
+        return (thread == null) ? this : thread;
+    }
+
+    /**
+     * Returns true if called by the thread running the run method.
+     */
+    public final boolean isExecutionThread() { return Thread.currentThread() == getExecutionThread(); }
+
     public final void setJoinThread(final boolean pV) { _joinThread = pV; }
     public final boolean getJoinThread() { return _joinThread; }
 
@@ -0,0 +1,352 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Samples every running ThreadBase (they register on startup) for cpu time
+ * and allocated bytes through the ThreadMXBean and checks their heartbeat.
+ * A thread is flagged as stalled when its heartbeat is older than the stall
+ * time (threads that never call heartbeat, or have marked themselves idle,
+ * are not flagged) and as hot when every sample in the window is at or over
+ * the hot cpu percent (e.g., a hot looping event loop). Flag changes are
+ * logged and the rolling stats are exposed over JMX as
+ * "com.deftlabs.core:type=ThreadMonitor,name=[thread name]".
+ * <br/><br/>
+ *
+ * The allocation stats need the com.sun.management extension (HotSpot);
+ * they are -1 if it is not available, as is the cpu time if the jvm does
+ * not support it.
+ */
+public final class ThreadMonitor extends ThreadBase implements ThreadMonitorMXBean {
+
+    // The running threads (registered by ThreadBase). The keys are weak and
+    // ended threads are pruned on register, so threads that are never shut
+    // down do not leak when no monitor is running. Guarded by itself.
+    private static final WeakHashMap<ThreadBase, Boolean> REGISTRY = new WeakHashMap<ThreadBase, Boolean>();
+
+    private final long _intervalMillis;
+    private final long _stallMillis;
+    private final int _hotPercent;
+    private final int _window;
+
+    private final ThreadMXBean _threadBean;
+    private final Method _allocatedBytes;
+    private ObjectName _objectName;
+
+    // Not this: startup holds the thread's monitor while the mbean registers.
+    private final Object _lock = new Object();
+
+    // Guarded by _lock.
+    private final Map<ThreadBase, Tracked> _tracked = new IdentityHashMap<ThreadBase, Tracked>();
+
+    private static final Logger LOG = Logger.getLogger(ThreadMonitor.class.getName());
+
+    /**
+     * Create a monitor that samples every second, flags a stall after five
+     * seconds and flags threads at 95% cpu for ten samples.
+     */
+    public ThreadMonitor() { this(1000, 5000, 95, 10); }
+
+    /**
+     * Create a new monitor.
+     * @param pIntervalMillis The sample interval.
+     * @param pStallMillis The max heartbeat age.
+     * @param pHotPercent The cpu percent that is hot.
+     * @param pWindow The number of samples in the rolling stats.
+     */
+    public ThreadMonitor(   final long pIntervalMillis,
+                            final long pStallMillis,
+                            final int pHotPercent,
+                            final int pWindow)
+    {
+        if (pIntervalMillis < 1) throw new IllegalArgumentException("invalid interval: " + pIntervalMillis);
+        if (pWindow < 1) throw new IllegalArgumentException("invalid window: " + pWindow);
+
+        _intervalMillis = pIntervalMillis;
+        _stallMillis = pStallMillis;
+        _hotPercent = pHotPercent;
+        _window = pWindow;
+        setName("thread-monitor");
+
+        _threadBean = ManagementFactory.getThreadMXBean();
+        try {
+            if (_threadBean.isThreadCpuTimeSupported() && !_threadBean.isThreadCpuTimeEnabled()) _threadBean.setThreadCpuTimeEnabled(true);
+        } catch (final UnsupportedOperationException uoe) { LOG.log(Level.WARNING, "thread cpu time not supported"); }
+
+        _allocatedBytes = allocatedBytesMethod(_threadBean);
+    }
+
+    /**
+     * Returns the com.sun.management allocated bytes method (if available).
+     */
+    private static Method allocatedBytesMethod(final ThreadMXBean pThreadBean) {
+        try {
+            final Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(pThreadBean)) return null;
+            final Method method = type.getMethod("getThreadAllocatedBytes", long.class);
+            method.invoke(pThreadBean, Thread.currentThread().getId());
+            return method;
+        } catch (final Throwable t) { return null; }
+    }
+
+    static void register(final ThreadBase pThread) {
+        synchronized (REGISTRY) {
+            final Iterator<ThreadBase> iter = REGISTRY.keySet().iterator();
+            while (iter.hasNext()) if (!iter.next().getExecutionThread().isAlive()) iter.remove();
+            REGISTRY.put(pThread, Boolean.TRUE);
+        }
+    }
+
+    static void unregister(final ThreadBase pThread) {
+        synchronized (REGISTRY) { REGISTRY.remove(pThread); }
+    }
+
+    static boolean isRegistered(final ThreadBase pThread) {
+        synchronized (REGISTRY) { return REGISTRY.containsKey(pThread); }
+    }
+
+    private static List<ThreadBase> registered() {
+        synchronized (REGISTRY) { return new ArrayList<ThreadBase>(REGISTRY.keySet()); }
+    }
+
+    protected void afterStart() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            _objectName = new ObjectName("com.deftlabs.core:type=ThreadMonitor,name=" + ObjectName.quote(getName()));
+            server.registerMBean(this, _objectName);
+        } catch (final Exception e) { LOG.log(Level.WARNING, "failed to register the mbean - " + e.getMessage(), e); }
+    }
+
+    protected void afterStop() {
+        if (_objectName == null) return;
+        try { ManagementFactory.getPlatformMBeanServer().unregisterMBean(_objectName);
+        } catch (final Exception e) { LOG.log(Level.WARNING, "failed to unregister the mbean - " + e.getMessage(), e); }
+    }
+
+    public void run() {
+        while (_running) {
+            try {
+                heartbeat();
+                sample();
+                markIdle();
+                Thread.sleep(_intervalMillis);
+            } catch (final InterruptedException ie) { if (_running) LOG.log(Level.WARNING, getName() + " interrupted");
+            } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t); }
+        }
+    }
+
+    /**
+     * Sample the registered threads. Called by the monitor thread (exposed
+     * so the owner can also sample on demand). Threads whose run method
+     * returned without a shutdown are unregistered.
+     */
+    public void sample() {
+        synchronized (_lock) {
+            final long now = System.nanoTime();
+
+            final List<ThreadBase> registered = registered();
+            for (final ThreadBase thread : registered) {
+                if (!thread.getExecutionThread().isAlive()) {
+                    unregister(thread);
+                    continue;
+                }
+
+                Tracked tracked = _tracked.get(thread);
+                if (tracked == null) {
+                    tracked = new Tracked(thread, _window);
+                    _tracked.put(thread, tracked);
+                }
+                tracked.sample(now);
+            }
+
+            final Iterator<Map.Entry<ThreadBase, Tracked>> iter = _tracked.entrySet().iterator();
+            while (iter.hasNext()) {
+                final ThreadBase thread = iter.next().getKey();
+                if (!isRegistered(thread) || !thread.getExecutionThread().isAlive()) iter.remove();
+            }
+        }
+    }
+
+    private long cpuNanos(final long pId) {
+        try { return _threadBean.getThreadCpuTime(pId);
+        } catch (final UnsupportedOperationException uoe) { return -1; }
+    }
+
+    private long allocatedBytes(final long pId) {
+        if (_allocatedBytes == null) return -1;
+        try { return ((Long)_allocatedBytes.invoke(_threadBean, pId)).longValue();
+        } catch (final Throwable t) { return -1; }
+    }
+
+    public long getIntervalMillis() { return _intervalMillis; }
+    public long getStallMillis() { return _stallMillis; }
+    public int getHotPercent() { return _hotPercent; }
+
+    public int getThreadCount() {
+        synchronized (_lock) { return _tracked.size(); }
+    }
+
+    public String [] getStalledThreads() {
+        final List<String> names = new ArrayList<String>();
+        synchronized (_lock) {
+            for (final Tracked tracked : _tracked.values()) if (tracked.stalled) names.add(tracked.thread.getName());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    public String [] getHotThreads() {
+        final List<String> names = new ArrayList<String>();
+        synchronized (_lock) {
+            for (final Tracked tracked : _tracked.values()) if (tracked.hot) names.add(tracked.thread.getName());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    public ThreadMonitorStats [] getThreads() {
+        synchronized (_lock) {
+            final ThreadMonitorStats [] stats = new ThreadMonitorStats[_tracked.size()];
+            int idx = 0;
+            for (final Tracked tracked : _tracked.values()) stats[idx++] = tracked.stats();
+            return stats;
+        }
+    }
+
+    /**
+     * Returns the stats for the thread (null if it is not monitored).
+     */
+    public ThreadMonitorStats getStats(final ThreadBase pThread) {
+        synchronized (_lock) {
+            final Tracked tracked = _tracked.get(pThread);
+            return (tracked == null) ? null : tracked.stats();
+        }
+    }
+
+    public String getReport() {
+        final StringBuilder report = new StringBuilder("threads: ");
+        final ThreadMonitorStats [] stats = getThreads();
+        report.append(stats.length);
+        for (final ThreadMonitorStats stat : stats) report.append('\n').append(stat);
+        return report.toString();
+    }
+
+    /**
+     * The per-thread samples (accessed with the lock held).
+     */
+    private final class Tracked {
+        private final ThreadBase thread;
+        private final long id;
+        private final double [] cpuPercents;
+        private final double [] allocRates;
+
+        private int samples = 0;
+        private int next = 0;
+
+        private long lastTime = 0;
+        private long cpuNanos = -1;
+        private long allocated = -1;
+        private long heartbeatAge = -1;
+        private boolean idle = false;
+        private boolean stalled = false;
+        private boolean hot = false;
+
+        private Tracked(final ThreadBase pThread, final int pWindow) {
+            thread = pThread;
+            id = pThread.getExecutionThread().getId();
+            cpuPercents = new double[pWindow];
+            allocRates = new double[pWindow];
+        }
+
+        private void sample(final long pNow) {
+            final long cpu = cpuNanos(id);
+            final long alloc = allocatedBytes(id);
+
+            if (lastTime != 0 && pNow > lastTime) {
+                final long wall = pNow - lastTime;
+                cpuPercents[next] = (cpu < 0 || cpuNanos < 0) ? -1 : ((cpu - cpuNanos) * 100.0) / wall;
+                allocRates[next] = (alloc < 0 || allocated < 0) ? -1 : ((alloc - allocated) * 1000000000.0) / wall;
+                next = (next + 1) % cpuPercents.length;
+                if (samples < cpuPercents.length) samples++;
+            }
+
+            lastTime = pNow;
+            cpuNanos = cpu;
+            allocated = alloc;
+
+            final long heartbeat = thread.getHeartbeat();
+            idle = heartbeat == IDLE;
+            heartbeatAge = (heartbeat == 0 || idle) ? -1 : TimeUnit.NANOSECONDS.toMillis(pNow - heartbeat);
+
+            final boolean wasStalled = stalled;
+            stalled = heartbeatAge > _stallMillis;
+            if (stalled && !wasStalled) LOG.log(Level.WARNING, "thread stalled: " + thread.getName() + " - heartbeat age: " + heartbeatAge + " (ms)");
+            else if (!stalled && wasStalled) LOG.log(Level.INFO, "thread recovered: " + thread.getName());
+
+            final boolean wasHot = hot;
+            hot = samples == cpuPercents.length && min(cpuPercents) >= _hotPercent;
+            if (hot && !wasHot) LOG.log(Level.WARNING, "thread hot: " + thread.getName() + " - cpu: " + String.format("%.1f%%", last(cpuPercents)));
+            else if (!hot && wasHot) LOG.log(Level.INFO, "thread cooled: " + thread.getName());
+        }
+
+        private ThreadMonitorStats stats() {
+            return new ThreadMonitorStats(  thread.getName(), id, thread.getExecutionThread().getState().name(),
+                                            cpuNanos, last(cpuPercents), mean(cpuPercents), max(cpuPercents),
+                                            allocated, last(allocRates), mean(allocRates),
+                                            heartbeatAge, idle, stalled, hot);
+        }
+
+        private double last(final double [] pValues) {
+            if (samples == 0) return 0;
+            return pValues[(next + pValues.length - 1) % pValues.length];
+        }
+
+        private double mean(final double [] pValues) {
+            if (samples == 0) return 0;
+            double sum = 0;
+            for (int idx=0; idx < samples; idx++) sum += pValues[idx];
+            return sum / samples;
+        }
+
+        private double max(final double [] pValues) {
+            double max = (samples == 0) ? 0 : pValues[0];
+            for (int idx=1; idx < samples; idx++) max = Math.max(max, pValues[idx]);
+            return max;
+        }
+
+        private double min(final double [] pValues) {
+            double min = (samples == 0) ? 0 : pValues[0];
+            for (int idx=1; idx < samples; idx++) min = Math.min(min, pValues[idx]);
+            return min;
+        }
+    }
+}
+
@@ -0,0 +1,56 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * The thread monitor management interface (see ThreadMonitor).
+ */
+public interface ThreadMonitorMXBean {
+
+    public long getIntervalMillis();
+
+    public long getStallMillis();
+
+    public int getHotPercent();
+
+    /**
+     * Returns the number of monitored threads.
+     */
+    public int getThreadCount();
+
+    /**
+     * Returns the names of the threads with a stale heartbeat.
+     */
+    public String [] getStalledThreads();
+
+    /**
+     * Returns the names of the threads at (or over) the hot cpu percent for
+     * the whole window.
+     */
+    public String [] getHotThreads();
+
+    /**
+     * Returns the latest stats for each monitored thread.
+     */
+    public ThreadMonitorStats [] getThreads();
+
+    /**
+     * Returns a report with one line per thread.
+     */
+    public String getReport();
+}
+
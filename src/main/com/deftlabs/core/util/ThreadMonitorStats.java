@@ -0,0 +1,115 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * A snapshot of a monitored thread's stats (see ThreadMonitor). The rates
+ * are per sample interval and the mean and max are over the window. The
+ * cpu and allocation values are -1 if the jvm does not support them.
+ */
+public final class ThreadMonitorStats {
+
+    private final String _name;
+    private final long _id;
+    private final String _state;
+    private final long _cpuNanos;
+    private final double _cpuPercent;
+    private final double _meanCpuPercent;
+    private final double _maxCpuPercent;
+    private final long _allocatedBytes;
+    private final double _allocatedBytesPerSecond;
+    private final double _meanAllocatedBytesPerSecond;
+    private final long _heartbeatAgeMillis;
+    private final boolean _idle;
+    private final boolean _stalled;
+    private final boolean _hot;
+
+    ThreadMonitorStats( final String pName,
+                        final long pId,
+                        final String pState,
+                        final long pCpuNanos,
+                        final double pCpuPercent,
+                        final double pMeanCpuPercent,
+                        final double pMaxCpuPercent,
+                        final long pAllocatedBytes,
+                        final double pAllocatedBytesPerSecond,
+                        final double pMeanAllocatedBytesPerSecond,
+                        final long pHeartbeatAgeMillis,
+                        final boolean pIdle,
+                        final boolean pStalled,
+                        final boolean pHot)
+    {
+        _name = pName;
+        _id = pId;
+        _state = pState;
+        _cpuNanos = pCpuNanos;
+        _cpuPercent = pCpuPercent;
+        _meanCpuPercent = pMeanCpuPercent;
+        _maxCpuPercent = pMaxCpuPercent;
+        _allocatedBytes = pAllocatedBytes;
+        _allocatedBytesPerSecond = pAllocatedBytesPerSecond;
+        _meanAllocatedBytesPerSecond = pMeanAllocatedBytesPerSecond;
+        _heartbeatAgeMillis = pHeartbeatAgeMillis;
+        _idle = pIdle;
+        _stalled = pStalled;
+        _hot = pHot;
+    }
+
+    public String getName() { return _name; }
+    public long getId() { return _id; }
+
+    /**
+     * Returns the thread state (Thread.State name).
+     */
+    public String getState() { return _state; }
+
+    /**
+     * Returns the total cpu time.
+     */
+    public long getCpuNanos() { return _cpuNanos; }
+
+    public double getCpuPercent() { return _cpuPercent; }
+    public double getMeanCpuPercent() { return _meanCpuPercent; }
+    public double getMaxCpuPercent() { return _maxCpuPercent; }
+
+    /**
+     * Returns the total bytes allocated by the thread.
+     */
+    public long getAllocatedBytes() { return _allocatedBytes; }
+
+    public double getAllocatedBytesPerSecond() { return _allocatedBytesPerSecond; }
+    public double getMeanAllocatedBytesPerSecond() { return _meanAllocatedBytesPerSecond; }
+
+    /**
+     * Returns the time since the last heartbeat (-1 if the thread has no
+     * heartbeat or is idle).
+     */
+    public long getHeartbeatAgeMillis() { return _heartbeatAgeMillis; }
+
+    public boolean isIdle() { return _idle; }
+    public boolean isStalled() { return _stalled; }
+    public boolean isHot() { return _hot; }
+
+    public String toString() {
+        return String.format("%s - id: %d - state: %s - cpu: %.1f%% (mean: %.1f%% - max: %.1f%%) - alloc: %.0f B/s (mean: %.0f B/s) - heartbeat: %s%s%s",
+                             _name, _id, _state, _cpuPercent, _meanCpuPercent, _maxCpuPercent,
+                             _allocatedBytesPerSecond, _meanAllocatedBytesPerSecond,
+                             _idle ? "idle" : (_heartbeatAgeMillis < 0) ? "none" : (_heartbeatAgeMillis + " ms"),
+                             _stalled ? " - STALLED" : "", _hot ? " - HOT" : "");
+    }
+}
+
@@ -0,0 +1,133 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread-safe scheduler driven by its own tick thread. It wraps a
+ * HierarchicalTimerWheel behind a lock, so schedule and cancel are O(1)
+ * from any thread. The tasks are run by the timer thread and should be
+ * short (hand off slow work to another thread).
+ * <br/><br/>
+ *
+ * The thread sleeps until the next timeout is due (or indefinitely if
+ * there are none) and is only woken by a schedule call that moves the next
+ * deadline earlier.
+ */
+public final class TimerThread extends ThreadBase {
+
+    private final Object _lock = new Object();
+    private final HierarchicalTimerWheel _wheel;
+
+    // The time the thread will wake (guarded by the lock).
+    private long _wakeTime;
+    private boolean _waiting = false;
+    private boolean _waitingForever = false;
+
+    private static final Logger LOG = Logger.getLogger(TimerThread.class.getName());
+
+    /**
+     * Create a new timer thread.
+     * @param pName The thread name.
+     * @param pTickDuration The tick duration (the timer resolution).
+     * @param pUnit The tick duration unit.
+     * @param pMaxPooled The max number of handles kept for reuse (zero
+     * disables recycling).
+     */
+    public TimerThread( final String pName,
+                        final long pTickDuration,
+                        final TimeUnit pUnit,
+                        final int pMaxPooled)
+    {
+        setName(pName);
+        _wheel = new HierarchicalTimerWheel(pTickDuration, pUnit, System.nanoTime(), pMaxPooled);
+    }
+
+    /**
+     * Schedule the task.
+     * @param pTask The task (run by the timer thread).
+     * @param pDelay The delay.
+     * @param pUnit The delay unit.
+     * @return The timeout handle. Cancel it with this class's cancel methods.
+     */
+    public final HierarchicalTimerWheel.Timeout schedule(   final HierarchicalTimerWheel.Task pTask,
+                                                            final long pDelay,
+                                                            final TimeUnit pUnit)
+    {
+        synchronized (_lock) {
+            final long now = System.nanoTime();
+            final HierarchicalTimerWheel.Timeout timeout = _wheel.schedule(pTask, pDelay, pUnit, now);
+            if (_waitingForever || (_waiting && timeout.getDeadline() - _wakeTime < 0)) _lock.notify();
+            return timeout;
+        }
+    }
+
+    /**
+     * Cancel the timeout.
+     * @return True if the timeout was pending.
+     */
+    public final boolean cancel(final HierarchicalTimerWheel.Timeout pTimeout)
+    { synchronized (_lock) { return pTimeout.cancel(); } }
+
+    /**
+     * Cancel the timeout if the handle has not been reused since the
+     * sequence was read (see HierarchicalTimerWheel).
+     * @return True if the timeout was pending.
+     */
+    public final boolean cancel(final HierarchicalTimerWheel.Timeout pTimeout, final int pSequence)
+    { synchronized (_lock) { return pTimeout.cancel(pSequence); } }
+
+    /**
+     * Returns the number of pending timeouts.
+     */
+    public final int size() { synchronized (_lock) { return _wheel.size(); } }
+
+    protected void beforeStop() { synchronized (_lock) { _lock.notify(); } }
+
+    public void run() {
+        while (_running) {
+            try {
+                synchronized (_lock) {
+                    heartbeat();
+                    _wheel.expire(System.nanoTime());
+
+                    final long now = System.nanoTime();
+                    final long wait = _wheel.nextTimeout(now);
+                    if (wait == 0 || !_running) continue;
+
+                    markIdle();
+                    try {
+                        if (wait < 0) {
+                            _waitingForever = true;
+                            _lock.wait();
+                        } else {
+                            _wakeTime = now + wait;
+                            _waiting = true;
+                            TimeUnit.NANOSECONDS.timedWait(_lock, wait);
+                        }
+                    } finally { _waiting = _waitingForever = false; }
+                }
+            } catch (final InterruptedException ie) { if (_running) LOG.log(Level.WARNING, getName() + " interrupted");
+            } catch (final Throwable t) { LOG.log(Level.SEVERE, "thread name: " + getName() + " - " + t.getMessage(), t); }
+        }
+    }
+}
+
@@ -0,0 +1,267 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel. Timeouts are hashed into a bucket by their
+ * deadline tick and kept in doubly linked lists, so schedule and cancel
+ * are O(1). Timeouts further out than one revolution carry a round count.
+ * A timeout never fires before its deadline and fires at most one tick
+ * after it.
+ * <br/><br/>
+ *
+ * The wheel is driven by the owner calling expire. Access to this class is
+ * NOT thread-safe. It is meant to be owned by one thread (e.g., an event
+ * loop) and the tasks are run by that thread.
+ */
+public final class TimerWheel {
+
+    private final long _tickNanos;
+    private final int _mask;
+    private final Timeout [] _buckets;
+    private final long _startTime;
+
+    // The next tick to process.
+    private long _currentTick = 0;
+    private int _size = 0;
+
+    private static final int PENDING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+
+    private static final int FIRING = -1;
+
+    private static final Logger LOG = Logger.getLogger(TimerWheel.class.getName());
+
+    /**
+     * Create a new timer wheel.
+     * @param pTickDuration The tick duration (the timer resolution).
+     * @param pUnit The tick duration unit.
+     * @param pTicksPerWheel The number of buckets (rounded up to a power of two).
+     * @param pNow The current time (System.nanoTime()).
+     */
+    public TimerWheel(  final long pTickDuration,
+                        final TimeUnit pUnit,
+                        final int pTicksPerWheel,
+                        final long pNow)
+    {
+        if (pTickDuration < 1) throw new IllegalArgumentException("invalid tick duration: " + pTickDuration);
+        if (pTicksPerWheel < 1 || pTicksPerWheel > (1 << 30))
+        { throw new IllegalArgumentException("invalid ticks per wheel: " + pTicksPerWheel); }
+
+        int ticks = 1;
+        while (ticks < pTicksPerWheel) ticks <<= 1;
+
+        _tickNanos = pUnit.toNanos(pTickDuration);
+        _mask = ticks - 1;
+        _buckets = new Timeout[ticks];
+        _startTime = pNow;
+    }
+
+    /**
+     * Schedule the task.
+     * @param pTask The task.
+     * @param pDelay The delay.
+     * @param pUnit The delay unit.
+     * @param pNow The current time (System.nanoTime()).
+     * @return The timeout handle (used to cancel).
+     */
+    public final Timeout schedule(  final Task pTask,
+                                    final long pDelay,
+                                    final TimeUnit pUnit,
+                                    final long pNow)
+    {
+        if (pTask == null) throw new IllegalArgumentException("task not set");
+
+        final Timeout timeout = new Timeout(this, pTask, pNow + pUnit.toNanos(Math.max(0, pDelay)));
+        add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Hash the timeout into its bucket.
+     */
+    private void add(final Timeout pTimeout) {
+        // Round up so the timeout never fires early.
+        final long elapsed = pTimeout.deadline - _startTime;
+        long tick = (elapsed <= 0) ? 0 : (elapsed + _tickNanos - 1) / _tickNanos;
+        if (tick < _currentTick) tick = _currentTick;
+
+        pTimeout.rounds = (tick - _currentTick) / _buckets.length;
+        pTimeout.bucket = (int)(tick & _mask);
+
+        final Timeout head = _buckets[pTimeout.bucket];
+        pTimeout.prev = null;
+        pTimeout.next = head;
+        if (head != null) head.prev = pTimeout;
+        _buckets[pTimeout.bucket] = pTimeout;
+
+        _size++;
+    }
+
+    private void unlink(final Timeout pTimeout) {
+        if (pTimeout.prev != null) pTimeout.prev.next = pTimeout.next;
+        else _buckets[pTimeout.bucket] = pTimeout.next;
+        if (pTimeout.next != null) pTimeout.next.prev = pTimeout.prev;
+        pTimeout.prev = null;
+        pTimeout.next = null;
+        _size--;
+    }
+
+    /**
+     * Cancel the timeout.
+     * @return True if the timeout was pending.
+     */
+    final boolean cancel(final Timeout pTimeout) {
+        if (pTimeout.state != PENDING) return false;
+        pTimeout.state = CANCELLED;
+        if (pTimeout.bucket != FIRING) unlink(pTimeout);
+        return true;
+    }
+
+    /**
+     * Run the tasks that are due.
+     * @param pNow The current time (System.nanoTime()).
+     * @return The number of tasks run.
+     */
+    public final int expire(final long pNow) {
+        final long elapsed = pNow - _startTime;
+        if (elapsed < 0) return 0;
+
+        final long nowTick = elapsed / _tickNanos;
+        int fired = 0;
+
+        while (_currentTick <= nowTick) {
+            final int bucket = (int)(_currentTick & _mask);
+            _currentTick++;
+
+            if (_buckets[bucket] == null) continue;
+
+            // Collect the due timeouts first so the tasks can schedule and
+            // cancel freely while they run.
+            Timeout due = null;
+            Timeout node = _buckets[bucket];
+            while (node != null) {
+                final Timeout next = node.next;
+                if (node.rounds > 0) node.rounds--;
+                else {
+                    unlink(node);
+                    node.bucket = FIRING;
+                    node.next = due;
+                    due = node;
+                }
+                node = next;
+            }
+
+            while (due != null) {
+                final Timeout timeout = due;
+                due = timeout.next;
+                timeout.next = null;
+                if (timeout.state != PENDING) continue;
+                timeout.state = EXPIRED;
+                fired++;
+                try { timeout.task.execute(timeout);
+                } catch (final Throwable t) { LOG.log(Level.SEVERE, "timer task failed - " + t.getMessage(), t); }
+            }
+        }
+
+        return fired;
+    }
+
+    /**
+     * Returns the time until the next non-empty tick is due.
+     * @param pNow The current time (System.nanoTime()).
+     * @return The nanoseconds to wait (zero if due now) or -1 if there are
+     * no timeouts.
+     */
+    public final long nextTimeout(final long pNow) {
+        if (_size == 0) return -1;
+
+        long tick = _currentTick;
+        for (int idx=0; idx < _buckets.length; idx++, tick++) {
+            if (_buckets[(int)(tick & _mask)] != null) break;
+        }
+
+        final long wait = _startTime + (tick * _tickNanos) - pNow;
+        return (wait > 0) ? wait : 0;
+    }
+
+    /**
+     * Returns the number of pending timeouts.
+     */
+    public final int size() { return _size; }
+
+    public final long getTickNanos() { return _tickNanos; }
+    public final int getTicksPerWheel() { return _buckets.length; }
+
+    /**
+     * The timer task. Called by the thread driving the wheel.
+     */
+    public static interface Task {
+        /**
+         * Called when the timeout expires.
+         * @param pTimeout The timeout.
+         */
+        public void execute(Timeout pTimeout);
+    }
+
+    /**
+     * The timeout handle.
+     */
+    public static final class Timeout {
+
+        private final TimerWheel wheel;
+        private final Task task;
+        private final long deadline;
+
+        private long rounds;
+        private int bucket;
+        private int state = PENDING;
+
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(final TimerWheel pWheel, final Task pTask, final long pDeadline) {
+            wheel = pWheel;
+            task = pTask;
+            deadline = pDeadline;
+        }
+
+        /**
+         * Cancel the timeout. This must be called by the thread that owns
+         * the wheel.
+         * @return True if the timeout was pending.
+         */
+        public final boolean cancel() { return wheel.cancel(this); }
+
+        public final Task getTask() { return task; }
+
+        /**
+         * Returns the deadline (System.nanoTime() based).
+         */
+        public final long getDeadline() { return deadline; }
+
+        public final boolean isExpired() { return state == EXPIRED; }
+        public final boolean isCancelled() { return state == CANCELLED; }
+    }
+}
+
@@ -0,0 +1,340 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A size bounded map with W-TinyLFU eviction. New entries go to a small
+ * lru window (1% of the size). An entry leaving the window only enters the
+ * main region if a frequency sketch says it is more popular than the main
+ * region's eviction victim; otherwise it is evicted. The main region is a
+ * segmented lru: entries start on probation and are protected (80% of the
+ * main region) once they are hit again. One-hit wonders such as scans pass
+ * through the window without flushing the popular entries, which plain lru
+ * (LruMap) does not survive.
+ * <br/><br/>
+ *
+ * Access to this map is thread-safe (one lock, as with LruMap; get also
+ * updates the sketch and the order). The eviction handler is called under
+ * the lock. The keySet, values and entrySet views are snapshots.
+ */
+public class TinyLfuMap<K,V> extends AbstractMap<K,V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final HashMap<K, Node<K, V>> _map;
+    private final FrequencySketch _sketch;
+    private final LruMap.EvictionHandler<K, V> _handler;
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    private final Region<K, V> _window = new Region<K, V>();
+    private final Region<K, V> _probation = new Region<K, V>();
+    private final Region<K, V> _protected = new Region<K, V>();
+
+    private final int _size;
+    private final int _windowSize;
+    private final int _mainSize;
+    private final int _protectedSize;
+
+    private long _admitted = 0;
+    private long _rejected = 0;
+
+    /**
+     * Create a new map.
+     * @param pSize The max size of the map.
+     */
+    public TinyLfuMap(final int pSize) { this(pSize, null); }
+
+    /**
+     * Create a new map.
+     * @param pSize The max size of the map.
+     * @param pHandler The optional eviction handler.
+     */
+    public TinyLfuMap(final int pSize, final LruMap.EvictionHandler<K, V> pHandler) {
+        if (pSize < 1) throw new IllegalArgumentException("invalid size: " + pSize);
+
+        _size = pSize;
+        _handler = pHandler;
+        _windowSize = Math.max(1, pSize / 100);
+        _mainSize = pSize - _windowSize;
+        _protectedSize = (int)(_mainSize * 0.8);
+
+        _map = new HashMap<K, Node<K, V>>((int)Math.ceil(pSize / 0.75f) + 1);
+        _sketch = new FrequencySketch(pSize);
+    }
+
+    @Override public V get(final Object pKey) {
+        _lock.lock();
+        try {
+            _sketch.increment(pKey);
+            final Node<K, V> node = _map.get(pKey);
+            if (node == null) return null;
+            onHit(node);
+            return node._value;
+        } finally { _lock.unlock(); }
+    }
+
+    @Override public boolean containsKey(final Object pKey) {
+        _lock.lock();
+        try { return _map.containsKey(pKey);
+        } finally { _lock.unlock(); }
+    }
+
+    @Override public V put(final K pKey, final V pValue) {
+        if (pKey == null) throw new NullPointerException();
+
+        _lock.lock();
+        try {
+            final Node<K, V> existing = _map.get(pKey);
+            if (existing != null) {
+                final V old = existing._value;
+                existing._value = pValue;
+                onHit(existing);
+                return old;
+            }
+
+            _sketch.increment(pKey);
+            final Node<K, V> node = new Node<K, V>(pKey, pValue);
+            _map.put(pKey, node);
+            _window.add(node, WINDOW);
+
+            if (_window._count > _windowSize) admit(_window.first());
+            return null;
+
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Move the entry to the front of its region, promoting a probation entry
+     * to protected (which may demote the eldest protected entry).
+     */
+    private void onHit(final Node<K, V> pNode) {
+        switch (pNode._region) {
+            case WINDOW: _window.moveToEnd(pNode); break;
+            case PROTECTED: _protected.moveToEnd(pNode); break;
+            case PROBATION:
+                _probation.remove(pNode);
+                _protected.add(pNode, PROTECTED);
+                if (_protected._count > _protectedSize) {
+                    final Node<K, V> demoted = _protected.first();
+                    _protected.remove(demoted);
+                    _probation.add(demoted, PROBATION);
+                }
+                break;
+        }
+    }
+
+    /**
+     * The candidate leaves the window. It enters the main region if there
+     * is room or if it is seen more often than the victim (the eldest
+     * probation entry); the loser is evicted.
+     */
+    private void admit(final Node<K, V> pCandidate) {
+        _window.remove(pCandidate);
+
+        if (_probation._count + _protected._count < _mainSize) {
+            _probation.add(pCandidate, PROBATION);
+            return;
+        }
+
+        Node<K, V> victim = _probation.first();
+        if (victim == null) victim = _protected.first();
+
+        if (victim != null && _sketch.frequency(pCandidate._key) > _sketch.frequency(victim._key)) {
+            _admitted++;
+            if (victim._region == PROBATION) _probation.remove(victim);
+            else _protected.remove(victim);
+            _probation.add(pCandidate, PROBATION);
+            evict(victim);
+        } else {
+            _rejected++;
+            evict(pCandidate);
+        }
+    }
+
+    private void evict(final Node<K, V> pNode) {
+        _map.remove(pNode._key);
+        if (_handler != null) _handler.execute(pNode);
+    }
+
+    private Region<K, V> region(final Node<K, V> pNode) {
+        switch (pNode._region) {
+            case WINDOW: return _window;
+            case PROBATION: return _probation;
+            default: return _protected;
+        }
+    }
+
+    @Override public V remove(final Object pKey) {
+        _lock.lock();
+        try {
+            final Node<K, V> node = _map.remove(pKey);
+            if (node == null) return null;
+            region(node).remove(node);
+            return node._value;
+        } finally { _lock.unlock(); }
+    }
+
+    @Override public void clear() {
+        _lock.lock();
+        try {
+            _map.clear();
+            _window.clear();
+            _probation.clear();
+            _protected.clear();
+            _sketch.clear();
+        } finally { _lock.unlock(); }
+    }
+
+    @Override public int size() {
+        _lock.lock();
+        try { return _map.size();
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns a snapshot of the entries.
+     */
+    @Override public Set<Map.Entry<K,V>> entrySet() {
+        _lock.lock();
+        try {
+            final LinkedHashMap<K, V> copy = new LinkedHashMap<K, V>();
+            for (final Node<K, V> node : _map.values()) copy.put(node._key, node._value);
+            return copy.entrySet();
+        } finally { _lock.unlock(); }
+    }
+
+    public final int getMaxSize() { return _size; }
+
+    /**
+     * Returns the estimated frequency of the key (0 - 15).
+     */
+    public final int getFrequency(final Object pKey) {
+        _lock.lock();
+        try { return _sketch.frequency(pKey);
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns the window candidates that replaced a main region entry.
+     */
+    public final long getAdmitted() {
+        _lock.lock();
+        try { return _admitted;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns the window candidates evicted by the admission policy.
+     */
+    public final long getRejected() {
+        _lock.lock();
+        try { return _rejected;
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * Returns the region sizes as a string.
+     */
+    public final String getReport() {
+        _lock.lock();
+        try {
+            return "size: " + _map.size() + "/" + _size
+            + " - window: " + _window._count + "/" + _windowSize
+            + " - probation: " + _probation._count
+            + " - protected: " + _protected._count + "/" + _protectedSize
+            + " - admitted: " + _admitted
+            + " - rejected: " + _rejected
+            + " - sketch resets: " + _sketch.getResets();
+        } finally { _lock.unlock(); }
+    }
+
+    /**
+     * An lru list (eldest first).
+     */
+    private static final class Region<K, V> {
+        private final Node<K, V> _head = new Node<K, V>(null, null);
+        private int _count = 0;
+
+        private Region() {
+            _head._prev = _head;
+            _head._next = _head;
+        }
+
+        private Node<K, V> first() { return (_count == 0) ? null : _head._next; }
+
+        private void add(final Node<K, V> pNode, final int pRegion) {
+            pNode._region = pRegion;
+            pNode._prev = _head._prev;
+            pNode._next = _head;
+            _head._prev._next = pNode;
+            _head._prev = pNode;
+            _count++;
+        }
+
+        private void remove(final Node<K, V> pNode) {
+            pNode._prev._next = pNode._next;
+            pNode._next._prev = pNode._prev;
+            pNode._prev = null;
+            pNode._next = null;
+            _count--;
+        }
+
+        private void moveToEnd(final Node<K, V> pNode) {
+            if (_head._prev == pNode) return;
+            final int region = pNode._region;
+            remove(pNode);
+            add(pNode, region);
+        }
+
+        private void clear() {
+            _head._prev = _head;
+            _head._next = _head;
+            _count = 0;
+        }
+    }
+
+    /**
+     * The map entry.
+     */
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+        private final K _key;
+        private V _value;
+        private int _region;
+        private Node<K, V> _prev;
+        private Node<K, V> _next;
+
+        private Node(final K pKey, final V pValue) {
+            _key = pKey;
+            _value = pValue;
+        }
+
+        public K getKey() { return _key; }
+        public V getValue() { return _value; }
+        public V setValue(final V pValue) { throw new UnsupportedOperationException(); }
+    }
+}
+
@@ -0,0 +1,82 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A nanosecond token bucket. Instead of counting tokens, this tracks the
+ * time all of the reserved tokens are paid for (a virtual clock). A
+ * reservation moves the clock forward by the cost of the tokens and returns
+ * how long the caller must wait before using them. Up to the burst size of
+ * tokens can be used without waiting after the bucket has been idle.
+ * <br/><br/>
+ *
+ * Access to this class is thread-safe.
+ */
+public final class TokenBucket {
+
+    private final double _nanosPerToken;
+    private final long _burstNanos;
+
+    private long _paidUntil;
+
+    /**
+     * Create a new token bucket.
+     * @param pRate The tokens per second. Must be greater than zero.
+     * @param pBurst The number of tokens that can be used at once.
+     */
+    public TokenBucket(final double pRate, final long pBurst) {
+        if (pRate <= 0) throw new IllegalArgumentException("invalid rate: " + pRate);
+        if (pBurst < 1) throw new IllegalArgumentException("invalid burst: " + pBurst);
+
+        _nanosPerToken = TimeUnit.SECONDS.toNanos(1) / pRate;
+        _burstNanos = (long)(_nanosPerToken * pBurst);
+        _paidUntil = System.nanoTime();
+    }
+
+    /**
+     * Reserve the tokens.
+     * @param pTokens The number of tokens.
+     * @param pNow The current time (System.nanoTime()).
+     * @return The nanoseconds to wait before the tokens can be used (zero if
+     * they can be used now).
+     */
+    public final synchronized long reserve(final long pTokens, final long pNow) {
+        // An idle bucket never holds more than the burst.
+        if (_paidUntil - pNow < 0) _paidUntil = pNow;
+
+        _paidUntil += (long)(_nanosPerToken * pTokens);
+
+        final long wait = _paidUntil - _burstNanos - pNow;
+        return (wait > 0) ? wait : 0;
+    }
+
+    /**
+     * Returns the number of tokens available now.
+     * @param pNow The current time (System.nanoTime()).
+     */
+    public final synchronized long available(final long pNow) {
+        final long credit = _burstNanos - Math.max(0, _paidUntil - pNow);
+        if (credit <= 0) return 0;
+        return (long)(credit / _nanosPerToken);
+    }
+
+    public final double getRate() { return TimeUnit.SECONDS.toNanos(1) / _nanosPerToken; }
+}
+
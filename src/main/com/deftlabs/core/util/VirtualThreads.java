@@ -0,0 +1,133 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Virtual thread support. The library is built for old source levels, so
+ * the virtual thread api (Thread.ofVirtual and
+ * Executors.newThreadPerTaskExecutor, JDK 21) is looked up reflectively. On
+ * older jvms the methods fall back to platform daemon threads (and a
+ * cached pool, i.e., a thread per concurrent task), so code can opt in to
+ * virtual threads without a hard dependency on the jvm version.
+ */
+public final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method BUILDER_NAME;
+    private static final Method BUILDER_FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    private static final Logger LOG = Logger.getLogger(VirtualThreads.class.getName());
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class, long.class);
+            builderFactory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+
+            // Preview builds throw here unless preview features are enabled.
+            ofVirtual.invoke(null);
+        } catch (final Throwable t) {
+            LOG.log(Level.FINE, "virtual threads not available - using platform threads");
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() { }
+
+    /**
+     * Returns true if the jvm supports virtual threads.
+     */
+    public static boolean isAvailable() { return OF_VIRTUAL != null; }
+
+    /**
+     * Returns a factory for virtual threads (or platform daemon threads if
+     * they are not available) named with the prefix and a counter.
+     * @param pPrefix The thread name prefix.
+     */
+    public static ThreadFactory newFactory(final String pPrefix) {
+        if (OF_VIRTUAL != null) {
+            try {
+                final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), pPrefix + "-", 1L);
+                return (ThreadFactory)BUILDER_FACTORY.invoke(builder);
+            } catch (final Throwable t) { LOG.log(Level.WARNING, "failed to create a virtual thread factory - " + t.getMessage(), t); }
+        }
+        return newPlatformFactory(pPrefix);
+    }
+
+    /**
+     * Returns a factory for platform daemon threads named with the prefix
+     * and a counter.
+     * @param pPrefix The thread name prefix.
+     */
+    public static ThreadFactory newPlatformFactory(final String pPrefix) {
+        final AtomicLong count = new AtomicLong();
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable pRunnable) {
+                final Thread thread = new Thread(pRunnable, pPrefix + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread (or
+     * on a cached pool of platform threads if virtual threads are not
+     * available).
+     * @param pPrefix The thread name prefix.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(final String pPrefix) {
+        if (OF_VIRTUAL != null) {
+            try { return (ExecutorService)NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, newFactory(pPrefix));
+            } catch (final Throwable t) { LOG.log(Level.WARNING, "failed to create a virtual thread executor - " + t.getMessage(), t); }
+        }
+        return newCachedExecutor(newPlatformFactory(pPrefix));
+    }
+
+    /**
+     * Returns an unbounded cached pool (a thread per concurrent task, idle
+     * threads are reused for a minute).
+     * @param pFactory The thread factory.
+     */
+    public static ExecutorService newCachedExecutor(final ThreadFactory pFactory) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), pFactory);
+    }
+}
+
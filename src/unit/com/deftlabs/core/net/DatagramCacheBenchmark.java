@@ -0,0 +1,130 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// Java
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The cache server load test. Closed loop clients (one request in flight
+ * per client) run a get/set mix over a preloaded key space and the ops/sec
+ * and latency percentiles are reported.
+ * <br/><br/>
+ *
+ * Usage: DatagramCacheBenchmark [clients] [seconds] [keys] [value size] [get percent]
+ */
+public final class DatagramCacheBenchmark {
+
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int PORT = 39420;
+    private static final int PACKET_SIZE = 1400;
+    private static final int MAX_SAMPLES = 4 * 1024 * 1024;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int clients = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 4;
+        final int seconds = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 5;
+        final int keys = (pArgs.length > 2) ? Integer.parseInt(pArgs[2]) : 100000;
+        final int valueSize = (pArgs.length > 3) ? Integer.parseInt(pArgs[3]) : 100;
+        final int getPercent = (pArgs.length > 4) ? Integer.parseInt(pArgs[4]) : 90;
+
+        final DatagramCacheStore store = new DatagramCacheStore(16, 256L * 1024 * 1024);
+        for (int idx=0; idx < keys; idx++) store.put(key(idx), new byte[valueSize]);
+
+        final DatagramCacheServer server = new DatagramCacheServer(store, 32, PACKET_SIZE, LOOPBACK, PORT);
+        server.startup();
+
+        final long [][] samples = new long[clients][];
+        final int [] counts = new int[clients];
+        final Thread [] threads = new Thread[clients];
+        final long end = System.currentTimeMillis() + (seconds * 1000L);
+
+        try {
+            for (int idx=0; idx < clients; idx++) {
+                final int client = idx;
+                samples[idx] = new long[MAX_SAMPLES / clients];
+                threads[idx] = new Thread() {
+                    public void run() {
+                        try { load(client, samples[client], counts, end, keys, valueSize, getPercent);
+                        } catch (final Exception e) { e.printStackTrace(); }
+                    }
+                };
+            }
+
+            final long start = System.nanoTime();
+            for (final Thread thread : threads) thread.start();
+            for (final Thread thread : threads) thread.join();
+            final double elapsed = (System.nanoTime() - start) / 1000000000.0;
+
+            int total = 0;
+            for (final int count : counts) total += count;
+
+            final long [] all = new long[total];
+            int pos = 0;
+            for (int idx=0; idx < clients; idx++) {
+                System.arraycopy(samples[idx], 0, all, pos, counts[idx]);
+                pos += counts[idx];
+            }
+            Arrays.sort(all);
+
+            System.out.println("clients: " + clients + " - keys: " + keys + " - value size: " + valueSize + " - gets: " + getPercent + "%");
+            System.out.println(String.format("ops/sec: %.0f", total / elapsed));
+            System.out.println(String.format("latency us - p50: %.1f - p99: %.1f - p99.9: %.1f - max: %.1f",
+                                             percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999),
+                                             all[all.length - 1] / 1000.0));
+            System.out.println("hits: " + store.getHits() + " - misses: " + store.getMisses() + " - errors: " + server.getErrors());
+
+        } finally { server.shutdown(); }
+    }
+
+    private static void load(   final int pClient,
+                                final long [] pSamples,
+                                final int [] pCounts,
+                                final long pEnd,
+                                final int pKeys,
+                                final int pValueSize,
+                                final int pGetPercent)
+        throws Exception
+    {
+        final DatagramCacheClient client = new DatagramCacheClient(new InetSocketAddress(LOOPBACK, PORT), PACKET_SIZE, 1000, 3);
+        final Random random = new Random(pClient);
+        final byte [] value = new byte[pValueSize];
+
+        int count = 0;
+        try {
+            while (count < pSamples.length && System.currentTimeMillis() < pEnd) {
+                final byte [] key = key(random.nextInt(pKeys));
+                final long start = System.nanoTime();
+                if (random.nextInt(100) < pGetPercent) client.get(key);
+                else client.set(key, value);
+                pSamples[count++] = System.nanoTime() - start;
+            }
+        } finally {
+            pCounts[pClient] = count;
+            client.close();
+        }
+    }
+
+    private static double percentile(final long [] pSorted, final double pPercentile) {
+        if (pSorted.length == 0) return 0;
+        return pSorted[Math.min(pSorted.length - 1, (int)(pSorted.length * pPercentile))] / 1000.0;
+    }
+
+    private static byte [] key(final int pId) { return ("key:" + pId).getBytes(); }
+}
+
@@ -0,0 +1,118 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteArray;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.net.InetSocketAddress;
+
+/**
+ * The datagram cache tests.
+ */
+public final class DatagramCacheUnitTests {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    @Test
+    public final void testStoreEvictsByBytes() throws Exception {
+        final int entry = 4 + 100 + DatagramCacheStore.ENTRY_OVERHEAD;
+        final DatagramCacheStore store = new DatagramCacheStore(1, entry * 10);
+
+        for (int idx=0; idx < 20; idx++) assertTrue(store.put(key(idx), new byte[100]));
+
+        assertEquals(10, store.size());
+        assertEquals(10, store.getEvictions());
+        assertTrue(store.getBytes() <= store.getMaxBytes());
+
+        // The most recent entries are kept.
+        assertNull(store.get(new ByteArray(key(0))));
+        assertNotNull(store.get(new ByteArray(key(19))));
+
+        // The probe may point into any buffer.
+        final byte [] buffer = new byte[] { 9, 9, 'k', '0', '1', '5', 9 };
+        final byte [] dest = new byte[100];
+        assertEquals(100, store.get(new ByteArray(buffer, 2, 4), dest, 0, dest.length));
+        assertEquals(100, store.get(new ByteArray(buffer, 2, 4), dest, 0, 10));
+
+        assertTrue(store.remove(new ByteArray(key(15))));
+        assertFalse(store.remove(new ByteArray(key(15))));
+        assertEquals(9, store.size());
+
+        // Larger than the budget.
+        assertFalse(store.put(key(1), new byte[entry * 10]));
+    }
+
+    @Test
+    public final void testStoreOverwriteReleasesOldEntry() throws Exception {
+        final DatagramCacheStore store = new DatagramCacheStore(2, 1 << 20);
+
+        for (int idx=0; idx < 50; idx++) assertTrue(store.put(key(idx), new byte[1000]));
+        for (int idx=0; idx < 50; idx++) assertTrue(store.put(key(idx), new byte[10]));
+
+        // The old key/value arrays are not retained.
+        assertEquals(50, store.size());
+        assertEquals(50 * (4 + 10 + DatagramCacheStore.ENTRY_OVERHEAD), store.getBytes());
+        assertEquals(store.getBytes(), store.getRetainedBytes());
+        assertEquals(10, store.get(new ByteArray(key(7))).length);
+    }
+
+    @Test
+    public final void testServer() throws Exception {
+        final int port = 39410;
+        final DatagramCacheServer server = new DatagramCacheServer(new DatagramCacheStore(4, 1 << 20), 16, 512, LOOPBACK, port);
+        server.startup();
+
+        final DatagramCacheClient client = new DatagramCacheClient(new InetSocketAddress(LOOPBACK, port), 512, 1000, 2);
+        try {
+            assertNull(client.get(key(1)));
+            assertTrue(client.set(key(1), "one".getBytes()));
+            assertEquals("one", new String(client.get(key(1))));
+
+            assertTrue(client.set(key(2), new byte[200]));
+            assertTrue(client.set(key(3), new byte[200]));
+
+            // The response is truncated and the rest is requested again.
+            final byte [][] values = client.getMulti(new byte[][] { key(1), key(2), key(9), key(3) });
+            assertEquals("one", new String(values[0]));
+            assertEquals(200, values[1].length);
+            assertNull(values[2]);
+            assertEquals(200, values[3].length);
+
+            assertTrue(client.delete(key(1)));
+            assertFalse(client.delete(key(1)));
+            assertNull(client.get(key(1)));
+
+            assertEquals(0, server.getErrors());
+            assertEquals(2, server.getStore().size());
+
+        } finally {
+            client.close();
+            server.shutdown();
+        }
+    }
+
+    private static byte [] key(final int pId) {
+        return String.format("k%03d", pId).getBytes();
+    }
+}
+
@@ -0,0 +1,94 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// Java
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The log server benchmark. Unpaced senders blast datagrams at the server
+ * for the duration; the sustained MB/s written to the segments and the
+ * drops (in the server and in the kernel) are reported.
+ * <br/><br/>
+ *
+ * Usage: DatagramLogBenchmark [data dir] [senders] [seconds] [message size]
+ */
+public final class DatagramLogBenchmark {
+
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int PORT = 39450;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final String dir = (pArgs.length > 0) ? pArgs[0] : System.getProperty("java.io.tmpdir") + "/log-benchmark";
+        final int senders = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 2;
+        final int seconds = (pArgs.length > 2) ? Integer.parseInt(pArgs[2]) : 10;
+        final int size = (pArgs.length > 3) ? Integer.parseInt(pArgs[3]) : 512;
+
+        final DatagramLogServer server = new DatagramLogServer(  dir, "bench", (short)1, (byte)1,
+                                                                64L * 1024 * 1024, 60000,
+                                                                1024 * 1024, 16, 50,
+                                                                64, 2048, LOOPBACK, PORT);
+        server.startup();
+
+        final AtomicLong sent = new AtomicLong();
+        final long end = System.currentTimeMillis() + (seconds * 1000L);
+        final Thread [] threads = new Thread[senders];
+
+        for (int idx=0; idx < senders; idx++) {
+            threads[idx] = new Thread() {
+                public void run() {
+                    try {
+                        final DatagramSocket socket = new DatagramSocket();
+                        final DatagramPacket packet = new DatagramPacket(new byte[size], size, new InetSocketAddress(LOOPBACK, PORT));
+                        long count = 0;
+                        while (System.currentTimeMillis() < end) {
+                            for (int burst=0; burst < 64; burst++) socket.send(packet);
+                            count += 64;
+                        }
+                        sent.addAndGet(count);
+                        socket.close();
+                    } catch (final Exception e) { e.printStackTrace(); }
+                }
+            };
+        }
+
+        final long start = System.nanoTime();
+        for (final Thread thread : threads) thread.start();
+        for (final Thread thread : threads) thread.join();
+        Thread.sleep(200);
+        server.shutdown();
+        final double elapsed = (System.nanoTime() - start) / 1000000000.0;
+
+        final long received = server.getReceived();
+        System.out.println("senders: " + senders + " - message size: " + size + " - seconds: " + seconds);
+        System.out.println(String.format("written: %.1f MB/s - %.0f msg/s - segments: %d",
+                                         server.getBytesWritten() / elapsed / (1024 * 1024),
+                                         (received - server.getDropped()) / elapsed,
+                                         server.getSegments()));
+        System.out.println("sent: " + sent.get() + " - received: " + received
+                           + " - dropped (writer behind): " + server.getDropped()
+                           + " - dropped (kernel): " + (sent.get() - received));
+
+        final File [] files = new File(dir).listFiles();
+        if (files != null) for (final File file : files) file.delete();
+    }
+}
+
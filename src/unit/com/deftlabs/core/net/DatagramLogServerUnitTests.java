@@ -0,0 +1,148 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * The log server tests.
+ */
+public final class DatagramLogServerUnitTests {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    @Test
+    public final void testSegmentsRoll() throws Exception {
+        final String dir = tmpDir();
+        final int port = 39440;
+        final int messages = 600;
+
+        final DatagramLogServer server
+        = new DatagramLogServer(dir, "syslog", (short)1, (byte)2, 32 * 1024, 60000, 4096, 8, 20, 16, 512, LOOPBACK, port);
+        server.startup();
+
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            final InetSocketAddress address = new InetSocketAddress(LOOPBACK, port);
+            final byte [] data = new byte[200];
+            for (int idx=0; idx < messages; idx++) {
+                ByteUtils.setIntB(data, 0, idx);
+                socket.send(new DatagramPacket(data, data.length, address));
+                if (idx % 20 == 0) Thread.sleep(1);
+            }
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (server.getReceived() < messages && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+        } finally {
+            socket.close();
+            server.shutdown();
+        }
+
+        assertEquals(messages, server.getReceived());
+        assertEquals(0, server.getDropped());
+        assertEquals(messages * (200 + DatagramLogServer.RECORD_HEADER_SIZE), server.getBytesWritten());
+        assertTrue(server.getSegments() > 1);
+
+        final String [] files = new File(dir).list();
+        assertEquals(server.getSegments(), files.length);
+        Arrays.sort(files);
+
+        // The records of each segment are in order and no value is missing.
+        final boolean [] seen = new boolean[messages];
+        final byte [] payload = new byte[512];
+        for (final String file : files) {
+            assertTrue(file.startsWith("syslog-1-2-2-1-"));
+            assertTrue(file.endsWith(".log"));
+            assertTrue(new File(dir, file).length() <= 32 * 1024);
+
+            final DatagramLogReader reader = new DatagramLogReader(dir + "/" + file);
+            int previous = -1;
+            while (reader.next()) {
+                assertEquals(200, reader.getPayloadLength());
+                assertTrue(socketPortCheck(reader));
+                reader.getPayload(payload, 0);
+                final int value = ByteUtils.getInt(payload, 0);
+                assertTrue(value > previous);
+                seen[value] = true;
+                previous = value;
+            }
+        }
+
+        for (final boolean value : seen) assertTrue(value);
+        delete(dir);
+    }
+
+    @Test
+    public final void testRecoverActiveSegment() throws Exception {
+        final String dir = tmpDir();
+        new File(dir).mkdirs();
+
+        // A crashed segment: one record then the pre-allocated zero tail.
+        final RandomAccessFile file = new RandomAccessFile(dir + "/syslog.active", "rw");
+        file.setLength(8192);
+        file.writeInt(3);
+        file.writeLong(System.currentTimeMillis());
+        file.writeInt(0x7f000001);
+        file.writeShort(514);
+        file.write(new byte[] { 'a', 'b', 'c' });
+        file.close();
+
+        final DatagramLogServer server
+        = new DatagramLogServer(dir, "syslog", (short)1, (byte)2, 32 * 1024, 60000, 4096, 8, 20, 16, 512, LOOPBACK, 39441);
+        server.startup();
+        server.shutdown();
+
+        final String [] files = new File(dir).list();
+        assertEquals(1, files.length);
+
+        final DatagramLogReader reader = new DatagramLogReader(dir + "/" + files[0]);
+        assertTrue(reader.next());
+        assertEquals(3, reader.getPayloadLength());
+        assertEquals(514, reader.getSourcePort());
+        assertFalse(reader.next());
+        delete(dir);
+    }
+
+    private static boolean socketPortCheck(final DatagramLogReader pReader) {
+        return pReader.getSourceAddress() == 0x7f000001 && pReader.getSourcePort() > 0;
+    }
+
+    private static String tmpDir() {
+        return System.getProperty("java.io.tmpdir") + "/log-server-" + System.nanoTime();
+    }
+
+    private static void delete(final String pDir) {
+        final File [] files = new File(pDir).listFiles();
+        if (files != null) for (final File file : files) file.delete();
+        new File(pDir).delete();
+    }
+}
+
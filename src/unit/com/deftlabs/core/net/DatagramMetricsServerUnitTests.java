@@ -0,0 +1,155 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.FileUtils;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The metrics server tests.
+ */
+public final class DatagramMetricsServerUnitTests {
+
+    @Test
+    public final void testAggregate() throws Exception {
+        // The metrics are reset after the sink returns, so copy the values.
+        final Map<String, Double> values = new HashMap<String, Double>();
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        final Map<String, Long> timers = new HashMap<String, Long>();
+
+        final DatagramMetricsServer server = new DatagramMetricsServer(new DatagramMetricsSink() {
+            public void execute(final long pTimestamp, final long pIntervalMillis, final Collection<DatagramMetric> pMetrics) {
+                values.clear();
+                for (final DatagramMetric metric : pMetrics) {
+                    final String key = metric.getKey().toString() + "|" + (char)metric.getType();
+                    values.put(key, (metric.getType() == DatagramMetric.COUNTER) ? metric.getSum() : metric.getValue());
+                    counts.put(key, metric.getCount());
+                    if (metric.getType() != DatagramMetric.TIMER) continue;
+                    timers.put("min", metric.getHistogram().getMin());
+                    timers.put("max", metric.getHistogram().getMax());
+                }
+            }
+        }, 60000, 8, 1024, "127.0.0.1", 39430);
+
+        try {
+            ingest(server, "hits:1|c\nhits:2|c|@0.5\nload:10|g\r\nlatency:1.5|ms\nlatency:3|ms\n");
+            ingest(server, "load:+5|g\nload:-2|g\nbad line\nbad:1|x\nlatency:2.25|h");
+
+            assertEquals(10, server.getLines());
+            assertEquals(2, server.getErrors());
+
+            server.flush();
+
+            assertEquals(5.0, values.get("hits|c"), 0.0);
+            assertEquals(2, counts.get("hits|c").longValue());
+            assertEquals(13.0, values.get("load|g"), 0.0);
+
+            assertEquals(3, counts.get("latency|t").longValue());
+            assertEquals(1500, timers.get("min").longValue());
+            assertEquals(3000, timers.get("max").longValue());
+
+            // Counters and timers reset, gauges keep their value.
+            server.flush();
+            assertNull(values.get("hits|c"));
+            assertNull(values.get("latency|t"));
+            assertEquals(13.0, values.get("load|g"), 0.0);
+
+        } finally { server.getServer().shutdown(); }
+    }
+
+    @Test
+    public final void testFileSinkRolls() throws Exception {
+        final String dir = System.getProperty("java.io.tmpdir") + "/metrics-sink-" + System.nanoTime();
+        final DatagramMetricsFileSink sink = new DatagramMetricsFileSink(dir, "metrics", (short)1, (byte)2, 64, 60000);
+
+        final DatagramMetricsServer server = new DatagramMetricsServer(sink, 60000, 8, 1024, "127.0.0.1", 39431);
+        try {
+            for (int idx=0; idx < 3; idx++) {
+                ingest(server, "requests:1|c\nlatency:" + idx + "|ms");
+                server.flush();
+            }
+            sink.close();
+
+            final String [] files = new File(dir).list();
+            assertEquals(3, files.length);
+            for (final String file : files) {
+                assertTrue(file.startsWith("metrics-1-2-1-1-"));
+                assertTrue(FileUtils.readFileStr(dir + "/" + file).contains(" requests c 1.0 1 "));
+            }
+
+        } finally {
+            server.getServer().shutdown();
+            for (final File file : new File(dir).listFiles()) file.delete();
+            new File(dir).delete();
+        }
+    }
+
+    @Test
+    public final void testEndedThreadsAreDropped() throws Exception {
+        final DatagramMetricsServer server = new DatagramMetricsServer(new DatagramMetricsSink() {
+            public void execute(final long pTimestamp, final long pIntervalMillis, final Collection<DatagramMetric> pMetrics) { }
+        }, 60000, 8, 1024, "127.0.0.1", 39432);
+
+        try {
+            // Each thread ingests once and ends.
+            for (int idx=0; idx < 20; idx++) {
+                final Thread thread = new Thread() {
+                    public void run() { ingest(server, "hits:1|c\nbad line"); }
+                };
+                thread.start();
+                thread.join();
+            }
+
+            assertEquals(20, server.getAggregatorCount());
+            server.flush();
+            assertEquals(0, server.getAggregatorCount());
+
+            // Their counts are kept.
+            assertEquals(40, server.getLines());
+            assertEquals(20, server.getErrors());
+
+        } finally { server.getServer().shutdown(); }
+
+        // A thread per message is rejected.
+        final DatagramMetricsServer virtual = new DatagramMetricsServer(new DatagramMetricsSink() {
+            public void execute(final long pTimestamp, final long pIntervalMillis, final Collection<DatagramMetric> pMetrics) { }
+        }, 60000, 8, 1024, "127.0.0.1", 39433);
+        virtual.getServer().setVirtualDispatch(16);
+        try {
+            virtual.startup();
+            fail("virtual dispatch allowed");
+        } catch (final IllegalStateException ise) { }
+    }
+
+    private static void ingest(final DatagramMetricsServer pServer, final String pLines) {
+        final DatagramMessage msg = new DatagramMessage(1024, 0);
+        msg.reset();
+        msg.buffer.put(pLines.getBytes());
+        pServer.execute(new DatagramMessage [] { msg }, 1, new boolean[1]);
+    }
+}
+
@@ -0,0 +1,202 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// JUnit
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The datagram pacer tests. The packets are sent over loopback.
+ */
+public final class DatagramPacerUnitTests {
+
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int PORT = 39480;
+    private static final double TOLERANCE = 0.15;
+    private static final long MILLISECOND = 1000000L;
+
+    private DatagramChannel _receiver;
+    private DatagramChannel _sender;
+    private InetSocketAddress _target;
+
+    @Before
+    public final void setUp() throws Exception {
+        _target = new InetSocketAddress(LOOPBACK, PORT);
+        _receiver = DatagramChannel.open();
+        _receiver.socket().bind(_target);
+        _receiver.configureBlocking(false);
+        _sender = DatagramChannel.open();
+    }
+
+    @After
+    public final void tearDown() throws Exception {
+        _sender.close();
+        _receiver.close();
+    }
+
+    @Test
+    public final void testPacketRate() throws Exception {
+        final int rate = 2000;
+        final int burst = 10;
+        final int packets = 1000;
+        final DatagramPacer pacer = new DatagramPacer(rate, 100 * 1024 * 1024, burst, 100);
+        final ByteBuffer buffer = ByteBuffer.allocate(100);
+
+        final long start = System.nanoTime();
+        for (int idx=0; idx < packets; idx++) {
+            buffer.clear();
+            assertEquals(100, pacer.send(_sender, buffer, _target));
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        // The burst goes out at once and the rest at the rate.
+        final long expected = TimeUnit.SECONDS.toNanos(packets - burst) / rate;
+        assertTrue("elapsed: " + elapsed, elapsed >= expected * (1 - TOLERANCE));
+        assertTrue("elapsed: " + elapsed, elapsed <= expected * (1 + TOLERANCE));
+
+        assertEquals(packets, pacer.getPacketsSent());
+        assertEquals(packets * 100L, pacer.getBytesSent());
+        assertEquals(rate, pacer.getPacketRate(), rate * TOLERANCE);
+        assertEquals(rate * 100.0, pacer.getByteRate(), rate * 100.0 * TOLERANCE);
+    }
+
+    @Test
+    public final void testByteRate() throws Exception {
+        final int size = 1000;
+        final int packets = 300;
+        final int bytesPerSecond = 1000 * size;
+        final DatagramPacer pacer = new DatagramPacer(100000, bytesPerSecond, 1, size);
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+
+        _sender.connect(_target);
+        final long start = System.nanoTime();
+        for (int idx=0; idx < packets; idx++) {
+            buffer.clear();
+            assertEquals(size, pacer.write(_sender, buffer));
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        // The byte rate (1000 packets per second) is the limit.
+        final long expected = TimeUnit.SECONDS.toNanos(packets - 1) / 1000;
+        assertTrue("elapsed: " + elapsed, elapsed >= expected * (1 - TOLERANCE));
+        assertTrue("elapsed: " + elapsed, elapsed <= expected * (1 + TOLERANCE));
+        assertEquals(bytesPerSecond, pacer.getByteRate(), bytesPerSecond * TOLERANCE);
+    }
+
+    @Test
+    public final void testBurstIsCapped() throws Exception {
+        final int burst = 5;
+        final int packets = 20;
+        final DatagramPacer pacer = new DatagramPacer(1000, 100 * 1024 * 1024, burst, 64);
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        // Idle time does not add more than the burst.
+        Thread.sleep(100);
+
+        final long [] sentAt = new long[packets];
+        final long start = System.nanoTime();
+        for (int idx=0; idx < packets; idx++) {
+            buffer.clear();
+            pacer.send(_sender, buffer, _target);
+            sentAt[idx] = System.nanoTime() - start;
+        }
+
+        // Only the burst goes out without waiting; each later packet waits
+        // for its token (one per millisecond).
+        for (int idx=burst; idx < packets; idx++) {
+            assertTrue("packet: " + idx + " - sent at: " + sentAt[idx], sentAt[idx] >= (idx - burst + 1) * MILLISECOND * (1 - TOLERANCE));
+        }
+
+        int received = 0;
+        final ByteBuffer receive = ByteBuffer.allocate(64);
+        final long deadline = System.currentTimeMillis() + 1000;
+        while (received < packets && System.currentTimeMillis() < deadline) {
+            receive.clear();
+            if (_receiver.receive(receive) != null) received++;
+        }
+        assertEquals(packets, received);
+    }
+
+    @Test
+    public final void testPacingErrorMetrics() throws Exception {
+        final DatagramPacer pacer = new DatagramPacer(1000, 100 * 1024 * 1024, 1, 64);
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        for (int idx=0; idx < 100; idx++) {
+            buffer.clear();
+            pacer.send(_sender, buffer, _target);
+        }
+
+        // Paced packets are sent at or after their scheduled time, and the
+        // spin keeps them close to it.
+        final long mean = pacer.getMeanPacingError();
+        final long max = pacer.getMaxPacingError();
+        assertTrue("mean: " + mean, mean >= 0);
+        assertTrue("mean: " + mean, mean < 2 * MILLISECOND);
+        assertTrue("max: " + max, max >= mean);
+
+        pacer.reset();
+        assertEquals(0, pacer.getPacketsSent());
+        assertEquals(0, pacer.getBytesSent());
+        assertEquals(0, pacer.getMeanPacingError());
+        assertEquals(0, pacer.getMaxPacingError());
+
+        // Packets due within the batch slack are not paced (and not measured).
+        pacer.setBatchSlack(TimeUnit.SECONDS.toMicros(10));
+        final long start = System.nanoTime();
+        for (int idx=0; idx < 100; idx++) {
+            buffer.clear();
+            pacer.send(_sender, buffer, _target);
+        }
+        assertTrue(System.nanoTime() - start < 50 * MILLISECOND);
+        assertEquals(100, pacer.getPacketsSent());
+        assertEquals(0, pacer.getMeanPacingError());
+    }
+
+    @Test
+    public final void testInterruptedSendIsSkipped() throws Exception {
+        final DatagramPacer pacer = new DatagramPacer(1, 100 * 1024 * 1024, 1, 64);
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        // The burst goes out, the next packet waits a second.
+        assertEquals(64, pacer.send(_sender, buffer, _target));
+
+        buffer.clear();
+        Thread.currentThread().interrupt();
+        final long start = System.nanoTime();
+        try {
+            pacer.send(_sender, buffer, _target);
+            fail("interrupted send not skipped");
+        } catch (final InterruptedIOException iioe) {
+            assertTrue(Thread.interrupted());
+        } finally { Thread.interrupted(); }
+
+        assertTrue(System.nanoTime() - start < 500 * MILLISECOND);
+        assertEquals(1, pacer.getPacketsSent());
+        assertEquals(64, buffer.remaining());
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+import com.deftlabs.core.util.TimerWheel;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.nio.ByteBuffer;
+import java.net.InetSocketAddress;
+import java.net.DatagramSocket;
+import java.net.DatagramPacket;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The datagram server tests.
+ */
+public final class DatagramServerUnitTests {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    @Test
+    public final void testBatchHandlerAdapter() throws Exception {
+        final DatagramBatchHandlerAdapter adapter = new DatagramBatchHandlerAdapter(new DatagramMessageHandler() {
+            public boolean execute(final DatagramMessage pMsg) { return ByteUtils.getInt(pMsg.data, pMsg.offset) % 2 == 0; }
+        });
+
+        final DatagramMessage [] msgs = new DatagramMessage[4];
+        for (int idx=0; idx < msgs.length; idx++) {
+            msgs[idx] = new DatagramMessage(16, 0);
+            msgs[idx].reset();
+            msgs[idx].buffer.putInt(idx);
+        }
+
+        final boolean [] respond = new boolean[4];
+        adapter.execute(msgs, 3, respond);
+
+        assertTrue(respond[0]);
+        assertFalse(respond[1]);
+        assertTrue(respond[2]);
+        assertFalse(respond[3]);
+    }
+
+    @Test
+    public final void testBatchServer() throws Exception {
+        final int port = 39401;
+        final int batchSize = 8;
+        final int messages = 100;
+        final int [] maxCount = new int[1];
+
+        final DatagramBatchHandler handler = new DatagramBatchHandler() {
+            public void execute(final DatagramMessage [] pMsgs, final int pCount, final boolean [] pRespond) {
+                maxCount[0] = Math.max(maxCount[0], pCount);
+                for (int idx=0; idx < pCount; idx++) {
+                    final DatagramMessage msg = pMsgs[idx];
+                    if (ByteUtils.getInt(msg.data, msg.offset) % 2 != 0) continue;
+                    msg.buffer.flip();
+                    pRespond[idx] = true;
+                }
+            }
+        };
+
+        final DatagramServer server = new DatagramServer(handler, null, batchSize, 64, 0, LOOPBACK, port);
+        server.startup();
+
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(2000);
+            final InetSocketAddress address = new InetSocketAddress(LOOPBACK, port);
+            final byte [] data = new byte[4];
+
+            for (int idx=0; idx < messages; idx++) {
+                ByteUtils.setIntB(data, 0, idx);
+                socket.send(new DatagramPacket(data, data.length, address));
+            }
+
+            final Set<Integer> replies = new HashSet<Integer>();
+            final DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+            try {
+                while (replies.size() < messages / 2) {
+                    socket.receive(packet);
+                    replies.add(ByteUtils.getInt(packet.getData(), 0));
+                }
+            } catch (SocketTimeoutException ste) { }
+
+            assertEquals(messages / 2, replies.size());
+            for (final Integer value : replies) assertEquals(0, value % 2);
+            assertTrue(maxCount[0] <= batchSize);
+
+        } finally {
+            socket.close();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public final void testDispatchLanesKeepSourceOrder() throws Exception {
+        final int port = 39402;
+        final int sources = 6;
+        final int messages = 200;
+
+        final Map<Integer, Integer> last = new ConcurrentHashMap<Integer, Integer>();
+        final AtomicBoolean ordered = new AtomicBoolean(true);
+        final AtomicInteger handled = new AtomicInteger();
+
+        final DatagramServer server = new DatagramServer(new DatagramMessageHandler() {
+            public boolean execute(final DatagramMessage pMsg) {
+                final int value = ByteUtils.getInt(pMsg.data, pMsg.offset);
+                final Integer previous = last.put(pMsg.getSourcePort(), value);
+                if (previous != null && previous.intValue() >= value) ordered.set(false);
+                handled.incrementAndGet();
+                return false;
+            }
+        }, 64, 0, LOOPBACK, port);
+
+        server.setDispatchLanes(4, 1024);
+        server.startup();
+
+        final DatagramSocket [] sockets = new DatagramSocket[sources];
+        try {
+            final InetSocketAddress address = new InetSocketAddress(LOOPBACK, port);
+            final byte [] data = new byte[4];
+
+            for (int idx=0; idx < sources; idx++) sockets[idx] = new DatagramSocket();
+
+            for (int value=0; value < messages; value++) {
+                ByteUtils.setIntB(data, 0, value);
+                for (final DatagramSocket socket : sockets) socket.send(new DatagramPacket(data, data.length, address));
+
+                // Don't overrun the socket receive buffer.
+                Thread.sleep(1);
+            }
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (handled.get() < sources * messages && System.currentTimeMillis() < deadline) Thread.sleep(10);
+
+            final DatagramLanes lanes = server.getLanes();
+            long processed = 0;
+            for (int idx=0; idx < lanes.getLaneCount(); idx++) processed += lanes.getProcessed(idx);
+
+            assertEquals(sources * messages, handled.get());
+            assertEquals(sources * messages, processed);
+            assertTrue(ordered.get());
+            assertEquals(sources, last.size());
+            assertTrue(lanes.getSkewReport().startsWith("lanes: 4"));
+
+        } finally {
+            for (final DatagramSocket socket : sockets) if (socket != null) socket.close();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public final void testTimersFireOnServerThread() throws Exception {
+        final int port = 39403;
+        final AtomicInteger onServerThread = new AtomicInteger();
+        final CountDownLatch fired = new CountDownLatch(3);
+
+        final DatagramServer server = new DatagramServer(new DatagramMessageHandler() {
+            public boolean execute(final DatagramMessage pMsg) { return false; }
+        }, 64, 0, LOOPBACK, port);
+
+        server.startup();
+
+        try {
+            final long start = System.nanoTime();
+            final long [] elapsed = new long[1];
+
+            server.execute(new Runnable() {
+                public void run() {
+                    final TimerWheel.Task task = new TimerWheel.Task() {
+                        public void execute(final TimerWheel.Timeout pTimeout) {
+                            if (Thread.currentThread() == server) onServerThread.incrementAndGet();
+                            elapsed[0] = System.nanoTime() - start;
+                            fired.countDown();
+                        }
+                    };
+
+                    server.schedule(task, 5, TimeUnit.MILLISECONDS);
+                    server.schedule(task, 20, TimeUnit.MILLISECONDS);
+                    server.schedule(task, 50, TimeUnit.MILLISECONDS);
+                    server.schedule(task, 60, TimeUnit.MILLISECONDS).cancel();
+                }
+            });
+
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertEquals(3, onServerThread.get());
+            assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(50));
+
+            // Scheduling is only allowed from the server thread.
+            try {
+                server.schedule(new TimerWheel.Task() {
+                    public void execute(final TimerWheel.Timeout pTimeout) { }
+                }, 1, TimeUnit.MILLISECONDS);
+                fail("schedule allowed from another thread");
+            } catch (final IllegalStateException ise) { }
+
+        } finally { server.shutdown(); }
+    }
+
+    @Test
+    public final void testVirtualDispatchBlockingHandler() throws Exception {
+        final int port = 39404;
+        final int messages = 200;
+
+        // Each call blocks for 50 ms; a single thread would take 10 seconds.
+        final DatagramServer server = new DatagramServer(new DatagramMessageHandler() {
+            public boolean execute(final DatagramMessage pMsg) {
+                try { Thread.sleep(50);
+                } catch (final InterruptedException ie) { return false; }
+                pMsg.buffer.flip();
+                return true;
+            }
+        }, 64, 0, LOOPBACK, port);
+
+        server.setVirtualDispatch(messages);
+        try {
+            server.setDispatchLanes(2, 16);
+            fail("lanes allowed with virtual dispatch");
+        } catch (final IllegalStateException ise) { }
+
+        server.startup();
+
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(3000);
+            final InetSocketAddress address = new InetSocketAddress(LOOPBACK, port);
+            final byte [] data = new byte[4];
+
+            final long start = System.nanoTime();
+            for (int idx=0; idx < messages; idx++) {
+                ByteUtils.setIntB(data, 0, idx);
+                socket.send(new DatagramPacket(data, data.length, address));
+            }
+
+            final Set<Integer> replies = new HashSet<Integer>();
+            final DatagramPacket packet = new DatagramPacket(new byte[64], 64);
+            try {
+                while (replies.size() < messages) {
+                    socket.receive(packet);
+                    replies.add(ByteUtils.getInt(packet.getData(), 0));
+                }
+            } catch (SocketTimeoutException ste) { }
+
+            assertEquals(messages, replies.size());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+
+            final DatagramVirtualDispatcher dispatcher = server.getVirtualDispatcher();
+            assertEquals(messages, dispatcher.getDispatched());
+            assertEquals(0, dispatcher.getDropped());
+
+        } finally {
+            socket.close();
+            server.shutdown();
+        }
+    }
+}
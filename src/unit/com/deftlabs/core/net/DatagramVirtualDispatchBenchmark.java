@@ -0,0 +1,189 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.LogLinearHistogram;
+import com.deftlabs.core.util.VirtualThreads;
+
+// Java
+import java.nio.ByteBuffer;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the virtual thread dispatch mode with fixed platform thread
+ * pools for an i/o bound handler (it sleeps for the i/o time, then
+ * echoes). Each
+ * client thread keeps its share of the requests outstanding (closed loop),
+ * so the concurrency is fixed and the throughput shows how many handlers
+ * can block at once. On jvms without virtual threads the virtual mode runs
+ * on a cached platform pool (a thread per request in flight).
+ * <br/><br/>
+ *
+ * Usage: DatagramVirtualDispatchBenchmark [concurrency] [io millis] [seconds] [pool threads,...]
+ */
+public final class DatagramVirtualDispatchBenchmark {
+
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int PORT = 39460;
+    private static final int CLIENTS = 16;
+    private static final int MESSAGE_SIZE = 12;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int concurrency = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 1024;
+        final int ioMillis = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 20;
+        final int seconds = (pArgs.length > 2) ? Integer.parseInt(pArgs[2]) : 5;
+        final String [] pools = ((pArgs.length > 3) ? pArgs[3] : "16,64,256").split(",");
+
+        System.out.println("virtual threads available: " + VirtualThreads.isAvailable() + " - java: " + System.getProperty("java.version"));
+        System.out.println("concurrency: " + concurrency + " - io: " + ioMillis + " ms - clients: " + CLIENTS);
+
+        run("virtual", 0, concurrency, ioMillis, seconds);
+        for (final String threads : pools) run("platform pool: " + threads, Integer.parseInt(threads.trim()), concurrency, ioMillis, seconds);
+    }
+
+    private static void run(final String pMode,
+                            final int pThreads,
+                            final int pConcurrency,
+                            final int pIoMillis,
+                            final int pSeconds)
+        throws Exception
+    {
+        final DatagramServer [] holder = new DatagramServer[1];
+        final ExecutorService pool = (pThreads > 0) ? Executors.newFixedThreadPool(pThreads) : null;
+
+        final DatagramMessageHandler handler;
+        if (pool == null) {
+            handler = new DatagramMessageHandler() {
+                public boolean execute(final DatagramMessage pMsg) {
+                    if (!io(pIoMillis)) return false;
+                    pMsg.buffer.flip();
+                    return true;
+                }
+            };
+        } else {
+            // The platform pool: copy the message and respond from the pool.
+            handler = new DatagramMessageHandler() {
+                public boolean execute(final DatagramMessage pMsg) {
+                    final byte [] copy = new byte[pMsg.buffer.position()];
+                    System.arraycopy(pMsg.data, 0, copy, 0, copy.length);
+                    final InetSocketAddress source = pMsg.socketAddress;
+                    pool.execute(new Runnable() {
+                        public void run() {
+                            if (!io(pIoMillis)) return;
+                            try { holder[0].send(ByteBuffer.wrap(copy), source);
+                            } catch (final Exception e) { }
+                        }
+                    });
+                    return false;
+                }
+            };
+        }
+
+        final DatagramServer server = new DatagramServer(new DatagramBatchHandlerAdapter(handler), null, 64, MESSAGE_SIZE, 0, LOOPBACK, PORT);
+        holder[0] = server;
+        if (pool == null) server.setVirtualDispatch(pConcurrency);
+
+        server.startup();
+
+        try {
+            final long end = System.currentTimeMillis() + (pSeconds * 1000L);
+            final LogLinearHistogram [] histograms = new LogLinearHistogram[CLIENTS];
+            final long [] timeouts = new long[CLIENTS];
+            final Thread [] threads = new Thread[CLIENTS];
+
+            for (int idx=0; idx < CLIENTS; idx++) {
+                final int client = idx;
+                histograms[client] = new LogLinearHistogram();
+                threads[client] = new Thread() {
+                    public void run() {
+                        try { timeouts[client] = load(histograms[client], Math.max(1, pConcurrency / CLIENTS), end);
+                        } catch (final Exception e) { e.printStackTrace(); }
+                    }
+                };
+            }
+
+            final long start = System.nanoTime();
+            for (final Thread thread : threads) thread.start();
+            for (final Thread thread : threads) thread.join();
+            final double elapsed = (System.nanoTime() - start) / 1000000000.0;
+
+            final LogLinearHistogram all = new LogLinearHistogram();
+            long lost = 0;
+            for (int idx=0; idx < CLIENTS; idx++) { all.merge(histograms[idx]); lost += timeouts[idx]; }
+
+            System.out.println(pMode);
+            System.out.println(String.format("  requests/sec: %.0f - lost: %d", all.getCount() / elapsed, lost));
+            System.out.println(String.format("  latency ms - p50: %.1f - p99: %.1f - max: %.1f",
+                                             all.getValueAtPercentile(50) / 1000000.0,
+                                             all.getValueAtPercentile(99) / 1000000.0,
+                                             all.getMax() / 1000000.0));
+
+        } finally {
+            server.shutdown();
+            if (pool != null) pool.shutdownNow();
+            Thread.sleep(pIoMillis * 2L);
+        }
+    }
+
+    /**
+     * Simulate blocking i/o.
+     */
+    private static boolean io(final int pIoMillis) {
+        try { Thread.sleep(pIoMillis); return true;
+        } catch (final InterruptedException ie) { return false; }
+    }
+
+    /**
+     * Keep the requests outstanding until the end time.
+     * @return The number of requests lost (timed out).
+     */
+    private static long load(final LogLinearHistogram pHistogram, final int pOutstanding, final long pEnd) throws Exception {
+        final DatagramSocket socket = new DatagramSocket();
+        final InetSocketAddress address = new InetSocketAddress(LOOPBACK, PORT);
+        final byte [] data = new byte[MESSAGE_SIZE];
+        final DatagramPacket request = new DatagramPacket(data, data.length, address);
+        final DatagramPacket reply = new DatagramPacket(new byte[MESSAGE_SIZE], MESSAGE_SIZE);
+        long lost = 0;
+
+        try {
+            socket.setSoTimeout(1000);
+            for (int idx=0; idx < pOutstanding; idx++) send(socket, request, data);
+
+            while (System.currentTimeMillis() < pEnd) {
+                try {
+                    socket.receive(reply);
+                    pHistogram.record(System.nanoTime() - ByteBuffer.wrap(reply.getData()).getLong(0));
+                } catch (final SocketTimeoutException ste) { lost++; }
+                send(socket, request, data);
+            }
+
+        } finally { socket.close(); }
+        return lost;
+    }
+
+    private static void send(final DatagramSocket pSocket, final DatagramPacket pRequest, final byte [] pData) throws Exception {
+        ByteBuffer.wrap(pData).putLong(0, System.nanoTime());
+        pSocket.send(pRequest);
+    }
+}
+
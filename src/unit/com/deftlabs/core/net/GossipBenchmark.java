@@ -0,0 +1,107 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// Java
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The gossip membership benchmark. Starts hundreds of members in one jvm on
+ * distinct loopback ports, measures the time to converge, the time for all
+ * members to declare a failed member dead and the traffic per member.
+ * <br/><br/>
+ *
+ * Usage: GossipBenchmark [members] [period ms]
+ */
+public final class GossipBenchmark {
+
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int BASE_PORT = 40000;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int members = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 200;
+        final long period = (pArgs.length > 1) ? Long.parseLong(pArgs[1]) : 200;
+        final int failedPort = BASE_PORT + members - 1;
+
+        final GossipMembership [] nodes = new GossipMembership[members];
+        final AtomicInteger failed = new AtomicInteger();
+
+        try {
+            for (int idx=0; idx < members; idx++) {
+                nodes[idx] = new GossipMembership(LOOPBACK, BASE_PORT + idx);
+                nodes[idx].setProtocolPeriod(period);
+                nodes[idx].setProbeTimeout(period / 3);
+                nodes[idx].addListener(new GossipListener() {
+                    public void execute(final GossipMember pMember, final int pPreviousState) {
+                        if (pMember.getState() == GossipMember.DEAD && pMember.getPort() == failedPort) failed.incrementAndGet();
+                    }
+                });
+                nodes[idx].startup();
+            }
+
+            final long start = System.currentTimeMillis();
+            final InetSocketAddress seed = new InetSocketAddress(LOOPBACK, BASE_PORT);
+            for (int idx=1; idx < members; idx++) nodes[idx].join(Collections.singletonList(seed));
+
+            while (!converged(nodes, members, members)) Thread.sleep(10);
+            final long converged = System.currentTimeMillis() - start;
+
+            // Measure the steady state traffic.
+            long messages = sent(nodes, members);
+            long bytes = bytes(nodes, members);
+            final long steadyStart = System.currentTimeMillis();
+            Thread.sleep(period * 20);
+            final double seconds = (System.currentTimeMillis() - steadyStart) / 1000.0;
+            messages = sent(nodes, members) - messages;
+            bytes = bytes(nodes, members) - bytes;
+
+            nodes[members - 1].shutdown();
+            final long failStart = System.currentTimeMillis();
+            while (failed.get() < members - 1) Thread.sleep(10);
+            final long detected = System.currentTimeMillis() - failStart;
+
+            System.out.println("members: " + members + " - period: " + period + " ms");
+            System.out.println("converged: " + converged + " ms");
+            System.out.println("failure detected by all: " + detected + " ms");
+            System.out.println(String.format("per member: %.1f msg/s - %.0f bytes/s - %.0f bytes/msg",
+                                             messages / seconds / members,
+                                             bytes / seconds / members,
+                                             (double)bytes / messages));
+
+        } finally { for (final GossipMembership node : nodes) if (node != null) node.shutdown(); }
+    }
+
+    private static boolean converged(final GossipMembership [] pNodes, final int pCount, final int pAlive) {
+        for (int idx=0; idx < pCount; idx++) if (pNodes[idx].getAliveCount() != pAlive) return false;
+        return true;
+    }
+
+    private static long sent(final GossipMembership [] pNodes, final int pCount) {
+        long total = 0;
+        for (int idx=0; idx < pCount; idx++) total += pNodes[idx].getMessagesSent();
+        return total;
+    }
+
+    private static long bytes(final GossipMembership [] pNodes, final int pCount) {
+        long total = 0;
+        for (int idx=0; idx < pCount; idx++) total += pNodes[idx].getBytesSent();
+        return total;
+    }
+}
+
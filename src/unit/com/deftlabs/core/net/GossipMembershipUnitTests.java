@@ -0,0 +1,95 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The gossip membership tests.
+ */
+public final class GossipMembershipUnitTests {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    @Test
+    public final void testConvergeAndDetectFailure() throws Exception {
+        final int members = 30;
+        final int basePort = 39500;
+
+        final GossipMembership [] nodes = new GossipMembership[members];
+        final AtomicInteger failed = new AtomicInteger();
+
+        try {
+            for (int idx=0; idx < members; idx++) {
+                nodes[idx] = new GossipMembership(LOOPBACK, basePort + idx);
+                nodes[idx].setProtocolPeriod(50);
+                nodes[idx].setProbeTimeout(15);
+                nodes[idx].addListener(new GossipListener() {
+                    public void execute(final GossipMember pMember, final int pPreviousState) {
+                        if (pMember.getState() == GossipMember.DEAD && pMember.getPort() == basePort + members - 1)
+                        { failed.incrementAndGet(); }
+                    }
+                });
+                nodes[idx].startup();
+            }
+
+            final InetSocketAddress seed = new InetSocketAddress(LOOPBACK, basePort);
+            for (int idx=1; idx < members; idx++) nodes[idx].join(Collections.singletonList(seed));
+
+            assertTrue(waitFor(nodes, members - 1, members, 10000));
+
+            // Fail the last member.
+            nodes[members - 1].shutdown();
+
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (failed.get() < members - 1 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+
+            assertEquals(members - 1, failed.get());
+            assertTrue(waitFor(nodes, members - 1, members - 1, 1000));
+
+            for (int idx=0; idx < members - 1; idx++) {
+                assertTrue(nodes[idx].getProbes() > 0);
+                assertEquals(0, nodes[idx].getLocalMember().getIncarnation() - nodes[idx].getRefutes());
+            }
+
+        } finally { for (final GossipMembership node : nodes) if (node != null) node.shutdown(); }
+    }
+
+    private static boolean waitFor(final GossipMembership [] pNodes,
+                                   final int pCount,
+                                   final int pAlive,
+                                   final long pTimeout)
+        throws Exception
+    {
+        final long deadline = System.currentTimeMillis() + pTimeout;
+        while (System.currentTimeMillis() < deadline) {
+            boolean done = true;
+            for (int idx=0; idx < pCount && done; idx++) done = (pNodes[idx].getAliveCount() == pAlive);
+            if (done) return true;
+            Thread.sleep(20);
+        }
+        return false;
+    }
+}
+
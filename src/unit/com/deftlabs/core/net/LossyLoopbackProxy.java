@@ -0,0 +1,183 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ThreadBase;
+
+// Java
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.net.SocketAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Selector;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.Random;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A loopback udp proxy that drops and delays packets in both directions.
+ * The client sends to the listen port and the proxy forwards to the
+ * target port. Replies are sent back to the last client address seen.
+ */
+final class LossyLoopbackProxy extends ThreadBase {
+
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final DatagramChannel _front;
+    private final DatagramChannel _back;
+    private final Selector _selector;
+    private final InetSocketAddress _target;
+
+    private final double _loss;
+    private final long _latency;
+    private final long _jitter;
+    private final Random _random;
+
+    private final PriorityQueue<Packet> _pending = new PriorityQueue<Packet>();
+    private final ByteBuffer _buffer = ByteBuffer.allocate(65536);
+
+    private SocketAddress _client;
+
+    private volatile long _forwarded = 0;
+    private volatile long _dropped = 0;
+
+    /**
+     * Construct a new proxy.
+     * @param pListenPort The port the client sends to.
+     * @param pTargetPort The server port.
+     * @param pLoss The drop probability (0 - 1) in each direction.
+     * @param pLatency The one way latency in microseconds.
+     * @param pJitter The max random jitter added to the latency in microseconds.
+     * @param pSeed The random seed.
+     * @throws IOException
+     */
+    LossyLoopbackProxy( final int pListenPort,
+                        final int pTargetPort,
+                        final double pLoss,
+                        final long pLatency,
+                        final long pJitter,
+                        final long pSeed)
+        throws IOException
+    {
+        _loss = pLoss;
+        _latency = TimeUnit.MICROSECONDS.toNanos(pLatency);
+        _jitter = TimeUnit.MICROSECONDS.toNanos(pJitter);
+        _random = new Random(pSeed);
+        _target = new InetSocketAddress(LOOPBACK, pTargetPort);
+
+        _selector = Selector.open();
+
+        _front = DatagramChannel.open();
+        _front.socket().setReuseAddress(true);
+        _front.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        _front.socket().bind(new InetSocketAddress(LOOPBACK, pListenPort));
+        _front.configureBlocking(false);
+        _front.register(_selector, SelectionKey.OP_READ);
+
+        _back = DatagramChannel.open();
+        _back.socket().setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        _back.socket().bind(new InetSocketAddress(LOOPBACK, 0));
+        _back.configureBlocking(false);
+        _back.register(_selector, SelectionKey.OP_READ);
+    }
+
+    public void run() {
+        while (_running) {
+            try {
+                final Packet next = _pending.peek();
+                final long wait = (next == null) ? 10 : TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime());
+
+                if (wait > 0) _selector.select(wait);
+                else _selector.selectNow();
+                _selector.selectedKeys().clear();
+
+                SocketAddress from;
+                while ((from = read(_front)) != null) {
+                    _client = from;
+                    enqueue(_back, _target);
+                }
+
+                while (read(_back) != null) {
+                    if (_client != null) enqueue(_front, _client);
+                }
+
+                final long now = System.nanoTime();
+                while (!_pending.isEmpty() && _pending.peek().due - now <= 0) {
+                    final Packet packet = _pending.poll();
+                    packet.channel.send(ByteBuffer.wrap(packet.data), packet.to);
+                    _forwarded++;
+                }
+            } catch (final Throwable t) { if (_running) t.printStackTrace(); }
+        }
+    }
+
+    private SocketAddress read(final DatagramChannel pChannel) throws IOException {
+        _buffer.clear();
+        final SocketAddress from = pChannel.receive(_buffer);
+        _buffer.flip();
+        return from;
+    }
+
+    private void enqueue(final DatagramChannel pChannel, final SocketAddress pTo) {
+        if (_random.nextDouble() < _loss) { _dropped++; return; }
+
+        final byte [] data = new byte[_buffer.remaining()];
+        _buffer.get(data);
+
+        long delay = _latency;
+        if (_jitter > 0) delay += (long)(_random.nextDouble() * _jitter);
+
+        _pending.add(new Packet(System.nanoTime() + delay, data, pChannel, pTo));
+    }
+
+    public synchronized void shutdown() {
+        if (!_running) return;
+        super.shutdown();
+        try {
+            _selector.close();
+            _front.close();
+            _back.close();
+        } catch (IOException ioe) { ioe.printStackTrace(); }
+    }
+
+    long getForwarded() { return _forwarded; }
+    long getDropped() { return _dropped; }
+
+    private static final class Packet implements Comparable<Packet> {
+        private final long due;
+        private final byte [] data;
+        private final DatagramChannel channel;
+        private final SocketAddress to;
+
+        private Packet(final long pDue, final byte [] pData, final DatagramChannel pChannel, final SocketAddress pTo) {
+            due = pDue;
+            data = pData;
+            channel = pChannel;
+            to = pTo;
+        }
+
+        public int compareTo(final Packet pOther) {
+            final long diff = due - pOther.due;
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+    }
+}
+
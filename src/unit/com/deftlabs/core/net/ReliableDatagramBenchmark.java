@@ -0,0 +1,94 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+
+// Java
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the reliable datagram throughput through the lossy loopback
+ * proxy at 0%, 1% and 5% loss. This is not run with the unit tests.
+ * <br/><br/>
+ *
+ * Usage: ReliableDatagramBenchmark [messages] [payload] [window] [latency micros]
+ */
+public final class ReliableDatagramBenchmark {
+
+    private static final double [] LOSS = { 0.0, 0.01, 0.05 };
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int messages = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 200000;
+        final int payload = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 1024;
+        final int window = (pArgs.length > 2) ? Integer.parseInt(pArgs[2]) : 256;
+        final long latency = (pArgs.length > 3) ? Long.parseLong(pArgs[3]) : 250;
+
+        int port = 39301;
+        for (final double loss : LOSS) {
+            run(loss, messages, payload, window, latency, port, port + 100);
+            port++;
+        }
+    }
+
+    private static void run(final double pLoss,
+                            final int pMessages,
+                            final int pPayload,
+                            final int pWindow,
+                            final long pLatency,
+                            final int pServerPort,
+                            final int pProxyPort)
+        throws Exception
+    {
+        final AtomicLong received = new AtomicLong();
+        final DatagramMessageHandler counter = new DatagramMessageHandler() {
+            public boolean execute(final DatagramMessage pMsg) { received.lazySet(received.get() + 1); return false; }
+        };
+
+        final DatagramServer server = new DatagramServer(
+            new ReliableDatagramHandler(counter, pWindow, 16), pPayload + 64, 0, "127.0.0.1", pServerPort);
+        final LossyLoopbackProxy proxy = new LossyLoopbackProxy(pProxyPort, pServerPort, pLoss, pLatency, pLatency / 4, 7);
+        final ReliableDatagramClient client = new ReliableDatagramClient("127.0.0.1", pProxyPort, pWindow, pPayload);
+
+        server.startup();
+        proxy.startup();
+        client.startup();
+
+        try {
+            final byte [] data = new byte[pPayload];
+            final long start = System.nanoTime();
+            for (int idx=0; idx < pMessages; idx++) {
+                ByteUtils.setIntB(data, 0, idx);
+                client.send(data, 0, data.length);
+            }
+            if (!client.flush(120000)) System.out.println("flush timed out");
+            final double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(String.format(
+                "loss: %4.1f%% - messages: %d - delivered: %d - msgs/sec: %.0f - MB/sec: %.2f - retransmits: %d - srtt: %d us",
+                pLoss * 100, pMessages, received.get(), pMessages / seconds,
+                (((double)pMessages * pPayload) / (1024 * 1024)) / seconds, client.getRetransmits(), client.getSrtt()));
+
+        } finally {
+            client.shutdown();
+            proxy.shutdown();
+            server.shutdown();
+        }
+    }
+}
+
@@ -0,0 +1,238 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.net;
+
+// OEMware
+import com.deftlabs.core.util.ByteUtils;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.net.InetSocketAddress;
+
+/**
+ * The reliable datagram tests.
+ */
+public final class ReliableDatagramUnitTests {
+
+    private static final int BUFFER_SIZE = 1024;
+    private static final int WINDOW_SIZE = 64;
+    private static final int MESSAGES = 5000;
+
+    @Test
+    public final void testOutOfOrderDelivery() throws Exception {
+        final SequenceHandler delegate = new SequenceHandler();
+        final ReliableDatagramHandler handler = new ReliableDatagramHandler(delegate, WINDOW_SIZE, 10);
+        final DatagramMessage msg = new DatagramMessage(BUFFER_SIZE, 0);
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9999);
+
+        assertTrue(handler.execute(data(msg, address, 7, 2)));
+        assertAck(msg, 0, 0x2, 2);
+
+        assertTrue(handler.execute(data(msg, address, 7, 1)));
+        assertAck(msg, 0, 0x3, 1);
+        assertEquals(0, delegate.count);
+
+        assertTrue(handler.execute(data(msg, address, 7, 0)));
+        assertAck(msg, 3, 0, 0);
+        assertEquals(3, delegate.count);
+
+        // Duplicate.
+        assertTrue(handler.execute(data(msg, address, 7, 1)));
+        assertAck(msg, 3, 0, 1);
+        assertEquals(3, delegate.count);
+        assertEquals(1, handler.getDuplicates());
+        assertTrue(delegate.ordered);
+    }
+
+    @Test
+    public final void testEvictedPeerResumes() throws Exception {
+        final SequenceHandler delegate = new SequenceHandler();
+        final ReliableDatagramHandler handler = new ReliableDatagramHandler(delegate, WINDOW_SIZE, 1);
+        final DatagramMessage msg = new DatagramMessage(BUFFER_SIZE, 0);
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9999);
+        final InetSocketAddress other = new InetSocketAddress("127.0.0.1", 9998);
+
+        final int messages = WINDOW_SIZE * 3;
+        for (int idx=0; idx < messages; idx++) assertTrue(handler.execute(data(msg, address, 7, idx, idx, idx)));
+        assertEquals(messages, delegate.count);
+
+        // Another peer evicts the state (its message is the next value).
+        assertTrue(handler.execute(data(msg, other, 9, 0, 0, messages)));
+        assertEquals(1, handler.getPeerCount());
+
+        // The sender's base resumes delivery (out of order within the window).
+        assertTrue(handler.execute(data(msg, address, 7, messages + 1, messages, messages + 2)));
+        assertAck(msg, messages, 0x1, messages + 1);
+        assertTrue(handler.execute(data(msg, address, 7, messages, messages, messages + 1)));
+        assertAck(msg, messages + 2, 0, messages);
+
+        assertEquals(0, handler.getOutOfWindow());
+        assertEquals(messages + 3, delegate.count);
+        assertTrue(delegate.ordered);
+    }
+
+    @Test
+    public final void testNewSessionResets() throws Exception {
+        final SequenceHandler delegate = new SequenceHandler();
+        final ReliableDatagramHandler handler = new ReliableDatagramHandler(delegate, WINDOW_SIZE, 10);
+        final DatagramMessage msg = new DatagramMessage(BUFFER_SIZE, 0);
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9999);
+
+        final int first = ReliableDatagramProtocol.newSession();
+        for (int idx=0; idx < 100; idx++) assertTrue(handler.execute(data(msg, address, first, idx, idx, idx)));
+
+        // The restarted client starts again at zero.
+        final int second = ReliableDatagramProtocol.newSession();
+        delegate.count = 0;
+        for (int idx=0; idx < 10; idx++) assertTrue(handler.execute(data(msg, address, second, idx, 0, idx)));
+        assertAck(msg, 10, 0, 9);
+        assertEquals(10, delegate.count);
+        assertEquals(1, handler.getResyncs());
+        assertEquals(0, handler.getDuplicates());
+
+        // A late packet from the old session is dropped without an ack.
+        assertFalse(handler.execute(data(msg, address, first, 100, 100, 100)));
+        assertEquals(1, handler.getStaleSessions());
+        assertTrue(handler.execute(data(msg, address, second, 10, 10, 10)));
+        assertEquals(11, delegate.count);
+        assertTrue(delegate.ordered);
+    }
+
+    @Test
+    public final void testNoLoss() throws Exception { transfer(0.0, 39101, 39201); }
+
+    @Test
+    public final void testOnePercentLoss() throws Exception { transfer(0.01, 39102, 39202); }
+
+    @Test
+    public final void testFivePercentLoss() throws Exception { transfer(0.05, 39103, 39203); }
+
+    @Test
+    public final void testIdleSendIsRetransmittedAfterRto() throws Exception {
+        final SequenceHandler delegate = new SequenceHandler();
+        final DatagramServer server
+        = new DatagramServer(new ReliableDatagramHandler(delegate, WINDOW_SIZE, 10), BUFFER_SIZE, 0, "127.0.0.1", 39104);
+        final LossyLoopbackProxy proxy = new LossyLoopbackProxy(39204, 39104, 0.3, 500, 500, 42);
+        final ReliableDatagramClient client = new ReliableDatagramClient("127.0.0.1", 39204, WINDOW_SIZE, 512);
+
+        server.startup();
+        proxy.startup();
+        client.startup();
+
+        try {
+            // Each send starts from an empty window, where the client thread
+            // waits for up to the max rto (5 seconds).
+            final byte [] payload = new byte[64];
+            for (int idx=0; idx < 20; idx++) {
+                ByteUtils.setIntB(payload, 0, idx);
+                final long start = System.currentTimeMillis();
+                client.send(payload, 0, payload.length);
+                assertTrue(client.flush(10000));
+                final long elapsed = System.currentTimeMillis() - start;
+                assertTrue("message: " + idx + " - flush: " + elapsed + " (ms)", elapsed < 2000);
+            }
+
+            assertEquals(20, delegate.count);
+            assertTrue(delegate.ordered);
+            assertTrue(client.getRetransmits() > 0);
+
+        } finally {
+            client.shutdown();
+            proxy.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private final void transfer(final double pLoss, final int pServerPort, final int pProxyPort)
+        throws Exception
+    {
+        final SequenceHandler delegate = new SequenceHandler();
+        final DatagramServer server
+        = new DatagramServer(new ReliableDatagramHandler(delegate, WINDOW_SIZE, 10), BUFFER_SIZE, 0, "127.0.0.1", pServerPort);
+        final LossyLoopbackProxy proxy = new LossyLoopbackProxy(pProxyPort, pServerPort, pLoss, 500, 500, 42);
+        final ReliableDatagramClient client = new ReliableDatagramClient("127.0.0.1", pProxyPort, WINDOW_SIZE, 512);
+
+        server.startup();
+        proxy.startup();
+        client.startup();
+
+        try {
+            final byte [] payload = new byte[512];
+            for (int idx=0; idx < MESSAGES; idx++) {
+                ByteUtils.setIntB(payload, 0, idx);
+                client.send(payload, 0, payload.length);
+            }
+
+            assertTrue(client.flush(30000));
+            assertEquals(MESSAGES, delegate.count);
+            assertTrue(delegate.ordered);
+            if (pLoss > 0) assertTrue(client.getRetransmits() > 0);
+
+        } finally {
+            client.shutdown();
+            proxy.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private static DatagramMessage data(final DatagramMessage pMsg, final InetSocketAddress pAddress, final int pSession, final int pSeq)
+    { return data(pMsg, pAddress, pSession, pSeq, 0, pSeq); }
+
+    private static DatagramMessage data(    final DatagramMessage pMsg,
+                                            final InetSocketAddress pAddress,
+                                            final int pSession,
+                                            final int pSeq,
+                                            final int pBase,
+                                            final int pValue)
+    {
+        pMsg.reset();
+        pMsg.socketAddress = pAddress;
+        pMsg.buffer.put(ReliableDatagramProtocol.TYPE_DATA);
+        pMsg.buffer.putInt(pSession);
+        pMsg.buffer.putInt(pSeq);
+        pMsg.buffer.putInt(pBase);
+        pMsg.buffer.putInt(pValue);
+        return pMsg;
+    }
+
+    private static void assertAck(final DatagramMessage pMsg, final int pExpected, final int pSack, final int pEcho) {
+        assertEquals(ReliableDatagramProtocol.ACK_SIZE, pMsg.buffer.remaining());
+        assertEquals(ReliableDatagramProtocol.TYPE_ACK, pMsg.data[ReliableDatagramProtocol.TYPE_POS]);
+        assertEquals(pExpected, ByteUtils.getInt(pMsg.data, ReliableDatagramProtocol.SEQUENCE_POS));
+        assertEquals(pSack, ByteUtils.getInt(pMsg.data, ReliableDatagramProtocol.SACK_POS));
+        assertEquals(pEcho, ByteUtils.getInt(pMsg.data, ReliableDatagramProtocol.ECHO_POS));
+    }
+
+    /**
+     * Verifies the payload sequence numbers arrive in order.
+     */
+    private static final class SequenceHandler implements DatagramMessageHandler {
+        private volatile int count = 0;
+        private volatile boolean ordered = true;
+
+        public boolean execute(final DatagramMessage pMsg) {
+            final int value = ByteUtils.getInt(pMsg.data, pMsg.offset + ReliableDatagramProtocol.DATA_HEADER_SIZE);
+            if (value != count) ordered = false;
+            count++;
+            return true;
+        }
+    }
+}
+
@@ -0,0 +1,142 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The agent and idle strategy tests.
+ */
+public final class AgentBaseUnitTests {
+
+    @Test
+    public final void testCreateFromConfig() throws Exception {
+        assertTrue(IdleStrategies.create("spin") instanceof IdleStrategies.BusySpin);
+        assertTrue(IdleStrategies.create(" yield ") instanceof IdleStrategies.Yielding);
+        assertTrue(IdleStrategies.create("backoff") instanceof IdleStrategies.Backoff);
+        assertTrue(IdleStrategies.create("backoff:10,5,1,100") instanceof IdleStrategies.Backoff);
+        assertTrue(IdleStrategies.create("blocking") instanceof IdleStrategies.Blocking);
+        assertTrue(IdleStrategies.create("blocking:10") instanceof IdleStrategies.Blocking);
+
+        final String [] invalid = { "sleep", "backoff:1,2", "backoff:a,b,c,d", "blocking:x", "backoff:1,1,10,1" };
+        for (final String config : invalid) {
+            try { IdleStrategies.create(config); fail("created: " + config);
+            } catch (final IllegalArgumentException iae) { }
+        }
+    }
+
+    @Test
+    public final void testBackoff() throws Exception {
+        final IdleStrategies.Backoff backoff = new IdleStrategies.Backoff(2, 1, 1000, 4000);
+
+        // Spin, spin, yield, then park 1, 2, 4, 4 us.
+        for (int idx=0; idx < 3; idx++) { assertEquals(0, backoff.getParkNanos()); backoff.idle(); }
+        final long [] expected = { 1000, 2000, 4000, 4000 };
+        for (final long parkNanos : expected) { assertEquals(parkNanos, backoff.getParkNanos()); backoff.idle(); }
+
+        backoff.reset();
+        assertEquals(0, backoff.getParkNanos());
+    }
+
+    @Test
+    public final void testAgentWithEachStrategy() throws Exception {
+        final String [] configs = { "spin", "yield", "backoff", "blocking" };
+        for (final String config : configs) runAgent(IdleStrategies.create(config));
+    }
+
+    private void runAgent(final IdleStrategy pIdleStrategy) throws Exception {
+        final int items = 1000;
+        final ConcurrentLinkedQueue<Integer> queue = new ConcurrentLinkedQueue<Integer>();
+        final AtomicInteger sum = new AtomicInteger();
+
+        final AgentBase agent = new AgentBase(pIdleStrategy) {
+            protected int doWork() {
+                int work = 0;
+                Integer item;
+                while (work < 16 && (item = queue.poll()) != null) { sum.addAndGet(item); work++; }
+                return work;
+            }
+        };
+
+        agent.startup();
+        try {
+            int expected = 0;
+            for (int idx=0; idx < items; idx++) {
+                queue.add(idx);
+                expected += idx;
+                agent.wakeup();
+                if (idx % 100 == 0) Thread.sleep(1);
+            }
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (sum.get() != expected && System.currentTimeMillis() < deadline) Thread.sleep(1);
+
+            assertEquals(expected, sum.get());
+            assertEquals(items, agent.getWork());
+            assertTrue(agent.getWorkCycles() > 0);
+            assertTrue(agent.getCycles() >= agent.getWorkCycles());
+            assertTrue(agent.getMaxWorkPerCycle() <= 16);
+            assertTrue(agent.getWorkPerCycle() >= 1 && agent.getWorkPerCycle() <= 16);
+            assertTrue(agent.getDutyCycle() > 0 && agent.getDutyCycle() <= 1);
+
+        } finally { agent.shutdown(); }
+
+        agent.join(TimeUnit.SECONDS.toMillis(2));
+        assertFalse(agent.isAlive());
+    }
+
+    @Test
+    public final void testVirtualMode() throws Exception {
+        final AtomicInteger work = new AtomicInteger();
+        final AgentBase agent = new AgentBase(IdleStrategies.create("blocking")) {
+            protected int doWork() { return (work.get() > 0 && work.decrementAndGet() >= 0) ? 1 : 0; }
+        };
+
+        agent.setName("virtual-agent");
+        agent.setVirtual(true);
+        agent.startup();
+
+        try {
+            final Thread thread = agent.getExecutionThread();
+            assertTrue(thread != agent);
+            assertTrue(thread.isAlive());
+            assertFalse(agent.isAlive());
+            assertEquals("virtual-agent", thread.getName());
+
+            try { agent.setVirtual(false); fail("mode changed while running");
+            } catch (final IllegalStateException ise) { }
+
+            work.set(10);
+            agent.wakeup();
+
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (agent.getWork() < 10 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertEquals(10, agent.getWork());
+
+        } finally { agent.shutdown(); }
+
+        agent.getExecutionThread().join(2000);
+        assertFalse(agent.getExecutionThread().isAlive());
+    }
+}
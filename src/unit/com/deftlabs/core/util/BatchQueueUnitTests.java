@@ -0,0 +1,157 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The batch queue tests.
+ */
+public final class BatchQueueUnitTests {
+
+    @Test
+    public final void testSizeAndLingerFlush() throws Exception {
+        final BatchQueue<Integer> queue = new BatchQueue<Integer>(100, 10, 100, TimeUnit.MILLISECONDS);
+        final List<Integer> batch = new ArrayList<Integer>();
+
+        // A full batch is handed over at once.
+        for (int idx=0; idx < 25; idx++) queue.put(idx);
+        long start = System.nanoTime();
+        assertEquals(10, queue.take(batch));
+        assertEquals(10, queue.take(batch));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(2, queue.getSizeFlushes());
+
+        // The rest waits for the linger time.
+        start = System.nanoTime();
+        assertEquals(5, queue.take(batch));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertEquals(1, queue.getLingerFlushes());
+
+        for (int idx=0; idx < 25; idx++) assertEquals(idx, batch.get(idx).intValue());
+
+        final LogLinearHistogram sizes = queue.getBatchSizes();
+        assertEquals(3, sizes.getCount());
+        assertEquals(5, sizes.getMin());
+        assertEquals(10, sizes.getMax());
+        assertTrue(queue.getReport().contains("batches: 3"));
+    }
+
+    @Test
+    public final void testTimedPoll() throws Exception {
+        final BatchQueue<Integer> queue = new BatchQueue<Integer>(100, 10, 200, TimeUnit.MILLISECONDS);
+        final List<Integer> batch = new ArrayList<Integer>();
+
+        assertEquals(0, queue.poll(batch, 20, TimeUnit.MILLISECONDS));
+
+        // Lingering items stay queued at the timeout.
+        queue.put(1);
+        assertEquals(0, queue.poll(batch, 20, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+        assertEquals(1, queue.poll(batch, 1, TimeUnit.SECONDS));
+
+        // A batch filled by another thread ends the wait early.
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                    for (int idx=0; idx < 10; idx++) queue.put(idx);
+                } catch (final InterruptedException ie) { }
+            }
+        }.start();
+
+        final long start = System.nanoTime();
+        assertEquals(10, queue.poll(batch, 1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(150));
+
+        assertEquals(0, queue.flush(batch));
+        queue.put(5);
+        assertEquals(1, queue.flush(batch));
+    }
+
+    @Test
+    public final void testBackpressure() throws Exception {
+        final BatchQueue<Integer> queue = new BatchQueue<Integer>(4, 2, 0, TimeUnit.MILLISECONDS);
+        for (int idx=0; idx < 4; idx++) assertTrue(queue.offer(idx));
+        assertFalse(queue.offer(4));
+        assertFalse(queue.offer(4, 10, TimeUnit.MILLISECONDS));
+        assertEquals(2, queue.getRejected());
+
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            public void run() {
+                try {
+                    queue.put(4);
+                    done.countDown();
+                } catch (final InterruptedException ie) { }
+            }
+        }.start();
+
+        assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+
+        final List<Integer> batch = new ArrayList<Integer>();
+        assertEquals(2, queue.take(batch));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(queue.getPutWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public final void testCloseDrainsAndReleases() throws Exception {
+        final BatchQueue<Integer> queue = new BatchQueue<Integer>(10, 5, 1, TimeUnit.HOURS);
+        final List<Integer> batch = new ArrayList<Integer>();
+        final AtomicBoolean finished = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        queue.put(1);
+        queue.put(2);
+
+        // A consumer lingering on the partial batch.
+        new Thread() {
+            public void run() {
+                try {
+                    while (queue.take(batch) > 0);
+                    finished.set(true);
+                } catch (final InterruptedException ie) { }
+                done.countDown();
+            }
+        }.start();
+
+        Thread.sleep(50);
+        assertTrue(batch.isEmpty());
+
+        queue.close();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(finished.get());
+        assertEquals(2, batch.size());
+
+        try {
+            queue.put(3);
+            fail("put allowed after close");
+        } catch (final IllegalStateException ise) { }
+    }
+}
+
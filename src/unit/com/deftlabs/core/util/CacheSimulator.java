@@ -0,0 +1,128 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The cache trace simulator. Replays an access trace against each cache
+ * (a miss puts the key) and reports the hit ratios of LruMap, ClockCache
+ * and TinyLfuMap. The trace file is one access per line; the first token
+ * (up to a space, tab or comma) is the key, so most access logs work once
+ * the key column is first. Without a file, a synthetic trace is used: a
+ * zipf (0.9) workload over 100k keys with a scan of 20k new keys every
+ * 100k accesses.
+ * <br/><br/>
+ *
+ * Usage: CacheSimulator [cache size] [trace file]
+ */
+public final class CacheSimulator {
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int size = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 10000;
+        final String [] trace = (pArgs.length > 1) ? readTrace(pArgs[1]) : syntheticTrace(2000000, 100000, 0.9, 100000, 20000);
+
+        System.out.println("trace: " + ((pArgs.length > 1) ? pArgs[1] : "synthetic (zipf 0.9 + scans)")
+                           + " - accesses: " + trace.length + " - cache size: " + size);
+
+        report("LruMap", new LruMap<String, String>(size, null, false), trace);
+        report("ClockCache", new ClockCache<String, String>(size), trace);
+
+        final TinyLfuMap<String, String> tinyLfu = new TinyLfuMap<String, String>(size);
+        report("TinyLfuMap", tinyLfu, trace);
+        System.out.println("  " + tinyLfu.getReport());
+    }
+
+    private static void report(final String pName, final Map<String, String> pCache, final String [] pTrace) {
+        long hits = 0;
+        final long start = System.nanoTime();
+        for (final String key : pTrace) {
+            if (pCache.get(key) != null) hits++;
+            else pCache.put(key, key);
+        }
+        final double millis = (System.nanoTime() - start) / 1000000.0;
+        System.out.println(String.format("%-10s hit ratio: %6.2f%% - %.0f ms", pName, hits * 100.0 / pTrace.length, millis));
+    }
+
+    private static String [] readTrace(final String pFileName) throws Exception {
+        final List<String> keys = new ArrayList<String>();
+        final Map<String, String> interned = new HashMap<String, String>();
+        final BufferedReader reader = new BufferedReader(new FileReader(pFileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0) continue;
+
+                int end = 0;
+                while (end < line.length() && " \t,".indexOf(line.charAt(end)) < 0) end++;
+
+                final String key = line.substring(0, end);
+                final String existing = interned.get(key);
+                if (existing == null) interned.put(key, key);
+                keys.add((existing == null) ? key : existing);
+            }
+        } finally { reader.close(); }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    /**
+     * Build a zipf trace with periodic scans of keys that are never seen
+     * again.
+     */
+    static String [] syntheticTrace(final int pAccesses,
+                                    final int pKeys,
+                                    final double pSkew,
+                                    final int pScanEvery,
+                                    final int pScanLength)
+    {
+        final double [] cdf = new double[pKeys];
+        double sum = 0;
+        for (int idx=0; idx < pKeys; idx++) {
+            sum += 1.0 / Math.pow(idx + 1, pSkew);
+            cdf[idx] = sum;
+        }
+
+        final String [] names = new String[pKeys];
+        for (int idx=0; idx < pKeys; idx++) names[idx] = "k" + idx;
+
+        final Random random = new Random(42);
+        final String [] trace = new String[pAccesses];
+        int scanned = 0;
+
+        for (int idx=0; idx < pAccesses; idx++) {
+            if (pScanEvery > 0 && idx % pScanEvery >= pScanEvery - pScanLength) {
+                trace[idx] = "s" + scanned++;
+                continue;
+            }
+
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            if (rank < 0) rank = Math.min(pKeys - 1, -rank - 1);
+            trace[idx] = names[rank];
+        }
+        return trace;
+    }
+}
+
@@ -0,0 +1,108 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The clock cache benchmark. Reader threads time every get while writer
+ * threads put new keys as fast as they can (forcing evictions); the get
+ * latency of LruMap and ClockCache is reported.
+ * <br/><br/>
+ *
+ * Usage: ClockCacheBenchmark [readers] [writers] [seconds]
+ */
+public final class ClockCacheBenchmark {
+
+    private static final int SIZE = 100000;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int readers = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 2;
+        final int writers = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 2;
+        final int seconds = (pArgs.length > 2) ? Integer.parseInt(pArgs[2]) : 3;
+
+        System.out.println("processors: " + Runtime.getRuntime().availableProcessors() + " - readers: " + readers + " - writers: " + writers);
+        report("LruMap", run(new LruMap<Integer, Integer>(SIZE), readers, writers, seconds));
+        report("ClockCache", run(new ClockCache<Integer, Integer>(SIZE), readers, writers, seconds));
+    }
+
+    private static LogLinearHistogram run(  final Map<Integer, Integer> pMap,
+                                            final int pReaders,
+                                            final int pWriters,
+                                            final int pSeconds) throws Exception
+    {
+        for (int idx=0; idx < SIZE; idx++) pMap.put(idx, idx);
+
+        final LogLinearHistogram [] histograms = new LogLinearHistogram[pReaders];
+        final CountDownLatch done = new CountDownLatch(pReaders + pWriters);
+        final long end = System.nanoTime() + (pSeconds * 1000000000L);
+
+        for (int thread=0; thread < pReaders; thread++) {
+            final LogLinearHistogram histogram = new LogLinearHistogram();
+            histograms[thread] = histogram;
+            final int seed = thread + 1;
+            new Thread() {
+                public void run() {
+                    int random = seed * 0x9e3779b9;
+                    long now = System.nanoTime();
+                    while (now < end) {
+                        random ^= random << 13;
+                        random ^= random >>> 17;
+                        random ^= random << 5;
+                        final Integer key = (random & 0x7fffffff) % SIZE;
+                        pMap.get(key);
+                        final long after = System.nanoTime();
+                        histogram.record(after - now);
+                        now = after;
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        for (int thread=0; thread < pWriters; thread++) {
+            final int base = SIZE * (thread + 1);
+            new Thread() {
+                public void run() {
+                    int key = 0;
+                    while (System.nanoTime() < end) {
+                        for (int idx=0; idx < 100; idx++) pMap.put(base + (key++ % (SIZE * 10)), key);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        done.await();
+
+        final LogLinearHistogram total = new LogLinearHistogram();
+        for (final LogLinearHistogram histogram : histograms) total.merge(histogram);
+        return total;
+    }
+
+    private static void report(final String pName, final LogLinearHistogram pHistogram) {
+        System.out.println(String.format("%-10s get - count: %d - p50: %d ns - p99: %d ns - p99.9: %d ns - p99.99: %d ns",
+                                         pName, pHistogram.getCount(),
+                                         pHistogram.getValueAtPercentile(50),
+                                         pHistogram.getValueAtPercentile(99),
+                                         pHistogram.getValueAtPercentile(99.9),
+                                         pHistogram.getValueAtPercentile(99.99)));
+    }
+}
+
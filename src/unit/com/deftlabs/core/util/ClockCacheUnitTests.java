@@ -0,0 +1,112 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The clock cache tests.
+ */
+public final class ClockCacheUnitTests {
+
+    @Test
+    public final void testReferencedEntriesSurvive() throws Exception {
+        final List<Integer> evicted = new ArrayList<Integer>();
+        final ClockCache<Integer, String> cache = new ClockCache<Integer, String>(10, new LruMap.EvictionHandler<Integer, String>() {
+            public void execute(final Map.Entry<Integer, String> pEldest) { evicted.add(pEldest.getKey()); }
+        });
+
+        for (int idx=0; idx < 10; idx++) assertNull(cache.put(idx, "v" + idx));
+        assertEquals(10, cache.size());
+
+        // Keys 0 - 4 are read, so 5 - 9 go first.
+        for (int idx=0; idx < 5; idx++) assertEquals("v" + idx, cache.get(idx));
+        for (int idx=10; idx < 15; idx++) cache.put(idx, "v" + idx);
+
+        assertEquals(10, cache.size());
+        assertEquals(5, evicted.size());
+        for (final Integer key : evicted) assertTrue(key >= 5 && key <= 9);
+        for (int idx=0; idx < 5; idx++) assertTrue(cache.containsKey(idx));
+        assertEquals(5, cache.getEvictions());
+        assertTrue(cache.getMeanSweep() >= 1);
+    }
+
+    @Test
+    public final void testUpdateAndRemove() throws Exception {
+        final ClockCache<String, String> cache = new ClockCache<String, String>(3);
+
+        assertNull(cache.put("a", "1"));
+        assertEquals("1", cache.put("a", "2"));
+        assertEquals("2", cache.putIfAbsent("a", "3"));
+        assertEquals("2", cache.get("a"));
+
+        // A removed entry frees its slot without an eviction.
+        cache.put("b", "1");
+        cache.put("c", "1");
+        assertEquals("1", cache.remove("b"));
+        assertNull(cache.remove("b"));
+        cache.put("d", "1");
+        assertEquals(0, cache.getEvictions());
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.entrySet().size());
+
+        cache.clear();
+        assertTrue(cache.isEmpty());
+        for (int idx=0; idx < 3; idx++) cache.put("k" + idx, "v");
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public final void testConcurrentAccess() throws Exception {
+        final ClockCache<Integer, Integer> cache = new ClockCache<Integer, Integer>(500);
+        final AtomicBoolean valid = new AtomicBoolean(true);
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int thread=0; thread < threads; thread++) {
+            final int seed = thread;
+            new Thread() {
+                public void run() {
+                    for (int idx=0; idx < 50000; idx++) {
+                        final int key = (idx * 31 + seed) % 2000;
+                        if (idx % 4 == 0) cache.put(key, key);
+                        else if (idx % 97 == 0) cache.remove(key);
+                        else {
+                            final Integer value = cache.get(key);
+                            if (value != null && value.intValue() != key) valid.set(false);
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        done.await();
+        assertTrue(valid.get());
+        assertTrue(cache.size() <= 500);
+    }
+}
+
@@ -0,0 +1,117 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hierarchical timer wheel benchmark. It schedules the timeouts with
+ * random delays, cancels a quarter of them, then drives a virtual clock to
+ * the last deadline and reports the schedule, cancel and expire rates and
+ * the heap per pending timeout. The second pass reuses the recycled
+ * handles. A ScheduledThreadPoolExecutor is run with a tenth of the
+ * timeouts for comparison.
+ * <br/><br/>
+ *
+ * Usage: HierarchicalTimerWheelBenchmark [timeouts] [max delay seconds]
+ * (run with a large heap, e.g., -Xmx3g for 10M timeouts)
+ */
+public final class HierarchicalTimerWheelBenchmark {
+
+    private static final long MS = 1000000L;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int count = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 10000000;
+        final int maxDelay = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 600;
+
+        final long maxDelayMillis = maxDelay * 1000L;
+        final long [] delays = new long[count];
+        final Random random = new Random(42);
+        for (int idx=0; idx < count; idx++) delays[idx] = (long)(random.nextDouble() * maxDelayMillis) + 1;
+
+        final long [] fired = new long[1];
+        final HierarchicalTimerWheel.Task task = new HierarchicalTimerWheel.Task() {
+            public void execute(final HierarchicalTimerWheel.Timeout pTimeout) { fired[0]++; }
+        };
+
+        final HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, TimeUnit.MILLISECONDS, 0, count);
+        final HierarchicalTimerWheel.Timeout [] handles = new HierarchicalTimerWheel.Timeout[count];
+
+        for (int pass=1; pass <= 2; pass++) {
+            final long baseTime = (pass - 1) * (maxDelayMillis + 1) * MS;
+            final long heapBefore = usedHeap();
+
+            long start = System.nanoTime();
+            for (int idx=0; idx < count; idx++) handles[idx] = wheel.schedule(task, delays[idx], TimeUnit.MILLISECONDS, baseTime);
+            final long scheduleNanos = System.nanoTime() - start;
+            final long heapAfter = usedHeap();
+
+            start = System.nanoTime();
+            for (int idx=0; idx < count; idx += 4) handles[idx].cancel();
+            final long cancelNanos = System.nanoTime() - start;
+            final int pending = wheel.size();
+
+            fired[0] = 0;
+            start = System.nanoTime();
+            for (long tick=0; tick <= maxDelayMillis; tick++) wheel.expire(baseTime + tick * MS);
+            final long expireNanos = System.nanoTime() - start;
+
+            for (int idx=0; idx < count; idx++) handles[idx] = null;
+
+            System.out.println("pass: " + pass + ((pass == 1) ? " (allocating)" : " (recycled)"));
+            System.out.println("  schedule: " + rate(count, scheduleNanos) + " - heap per timeout: " + ((heapAfter - heapBefore) / count) + " bytes");
+            System.out.println("  cancel: " + rate((count + 3) / 4, cancelNanos));
+            System.out.println("  expire: " + rate(fired[0], expireNanos) + " - fired: " + fired[0] + " of " + pending);
+            System.out.println("  pooled: " + wheel.getPooled());
+        }
+
+        // The heap based executor with a tenth of the timeouts.
+        final int executorCount = count / 10;
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        final Runnable noop = new Runnable() { public void run() { } };
+        final ScheduledFuture<?> [] futures = new ScheduledFuture<?>[executorCount];
+
+        long start = System.nanoTime();
+        for (int idx=0; idx < executorCount; idx++) futures[idx] = executor.schedule(noop, delays[idx] + maxDelayMillis, TimeUnit.MILLISECONDS);
+        final long scheduleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int idx=0; idx < executorCount; idx += 4) futures[idx].cancel(false);
+        final long cancelNanos = System.nanoTime() - start;
+
+        executor.shutdownNow();
+        System.out.println("scheduled executor (" + executorCount + " timeouts)");
+        System.out.println("  schedule: " + rate(executorCount, scheduleNanos));
+        System.out.println("  cancel: " + rate((executorCount + 3) / 4, cancelNanos));
+    }
+
+    private static String rate(final long pCount, final long pNanos) {
+        return String.format("%,.0f/s (%.1f ns/op)", pCount * 1000000000.0 / pNanos, (double)pNanos / Math.max(1, pCount));
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int idx=0; idx < 3; idx++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
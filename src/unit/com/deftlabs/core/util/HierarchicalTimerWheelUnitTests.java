@@ -0,0 +1,189 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hierarchical timer wheel tests.
+ */
+public final class HierarchicalTimerWheelUnitTests {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public final void testCascadeFiresOnTime() throws Exception {
+        final HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, TimeUnit.MILLISECONDS, 0);
+        final Random random = new Random(42);
+        final long [] now = new long[1];
+        final int [] fired = new int[1];
+        final boolean [] onTime = { true };
+
+        final HierarchicalTimerWheel.Task task = new HierarchicalTimerWheel.Task() {
+            public void execute(final HierarchicalTimerWheel.Timeout pTimeout) {
+                // Never early and at most one tick late.
+                final long late = now[0] - pTimeout.getDeadline();
+                if (late < 0 || late > MS) onTime[0] = false;
+                fired[0]++;
+            }
+        };
+
+        // The delays span the first three levels (up to 2^24 ticks).
+        final int count = 5000;
+        int cancelled = 0;
+        for (int idx=0; idx < count; idx++) {
+            final long delay = (idx % 3 == 0) ? random.nextInt(256) : (idx % 3 == 1) ? random.nextInt(65536) : random.nextInt(300000);
+            final HierarchicalTimerWheel.Timeout timeout = wheel.schedule(task, delay * MS + random.nextInt((int)MS), TimeUnit.NANOSECONDS, 0);
+            if (idx % 10 == 0) { assertTrue(timeout.cancel()); cancelled++; }
+        }
+
+        assertEquals(count - cancelled, wheel.size());
+
+        for (long tick=0; tick <= 300001; tick++) {
+            now[0] = tick * MS;
+            wheel.expire(now[0]);
+        }
+
+        assertTrue(onTime[0]);
+        assertEquals(count - cancelled, fired[0]);
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.nextTimeout(now[0]));
+    }
+
+    @Test
+    public final void testFarDeadlines() throws Exception {
+        final HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, TimeUnit.MILLISECONDS, 0);
+        final long [] now = new long[1];
+        final int [] fired = new int[1];
+
+        final HierarchicalTimerWheel.Task task = new HierarchicalTimerWheel.Task() {
+            public void execute(final HierarchicalTimerWheel.Timeout pTimeout) {
+                assertTrue(now[0] >= pTimeout.getDeadline());
+                fired[0]++;
+            }
+        };
+
+        // Past the top level (2^32 ticks).
+        wheel.schedule(task, 1L << 33, TimeUnit.MILLISECONDS, 0);
+        wheel.schedule(task, (1L << 24) + 7, TimeUnit.MILLISECONDS, 0);
+
+        // Ticks are processed one at a time, so advance in coarse steps.
+        final long step = 1L << 20;
+        for (long tick=0; tick <= (1L << 33) + step; tick += step) {
+            now[0] = tick * MS;
+            wheel.expire(now[0]);
+            if (tick < (1L << 24)) assertEquals(0, fired[0]);
+        }
+
+        assertEquals(2, fired[0]);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public final void testRecycle() throws Exception {
+        final HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, TimeUnit.MILLISECONDS, 0, 2);
+        final int [] fired = new int[1];
+        final HierarchicalTimerWheel.Task task = new HierarchicalTimerWheel.Task() {
+            public void execute(final HierarchicalTimerWheel.Timeout pTimeout) { fired[0]++; }
+        };
+
+        final HierarchicalTimerWheel.Timeout [] handles = new HierarchicalTimerWheel.Timeout[3];
+        final int [] sequences = new int[3];
+        for (int idx=0; idx < handles.length; idx++) {
+            handles[idx] = wheel.schedule(task, 1, TimeUnit.MILLISECONDS, 0);
+            sequences[idx] = handles[idx].getSequence();
+        }
+
+        assertEquals(3, wheel.expire(MS));
+        assertEquals(2, wheel.getPooled());
+
+        // The handles are reused and a stale sequence does not cancel.
+        final HierarchicalTimerWheel.Timeout first = wheel.schedule(task, 5, TimeUnit.MILLISECONDS, MS);
+        wheel.schedule(task, 5, TimeUnit.MILLISECONDS, MS);
+        assertEquals(0, wheel.getPooled());
+
+        int sequence = -1;
+        for (int idx=0; idx < handles.length; idx++) if (handles[idx] == first) sequence = sequences[idx];
+        assertTrue(sequence >= 0);
+        assertFalse(first.cancel(sequence));
+        assertTrue(first.isPending());
+
+        assertTrue(first.cancel(first.getSequence()));
+        assertEquals(1, wheel.getPooled());
+        assertEquals(1, wheel.expire(10 * MS));
+        assertEquals(4, fired[0]);
+        assertEquals(2, wheel.getPooled());
+    }
+
+    @Test
+    public final void testNextTimeout() throws Exception {
+        final HierarchicalTimerWheel wheel = new HierarchicalTimerWheel(1, TimeUnit.MILLISECONDS, 0);
+        final HierarchicalTimerWheel.Task task = new HierarchicalTimerWheel.Task() {
+            public void execute(final HierarchicalTimerWheel.Timeout pTimeout) { }
+        };
+
+        wheel.expire(0);
+        wheel.schedule(task, 10, TimeUnit.MILLISECONDS, 0);
+        assertEquals(10 * MS, wheel.nextTimeout(0));
+        assertEquals(4 * MS, wheel.nextTimeout(6 * MS));
+
+        // A higher level timeout wakes the owner at the next cascade.
+        wheel.expire(11 * MS);
+        wheel.schedule(task, 1000, TimeUnit.MILLISECONDS, 11 * MS);
+        assertEquals(245 * MS, wheel.nextTimeout(11 * MS));
+    }
+
+    @Test
+    public final void testTimerThread() throws Exception {
+        final TimerThread timer = new TimerThread("timer", 1, TimeUnit.MILLISECONDS, 64);
+        timer.startup();
+
+        try {
+            final CountDownLatch fired = new CountDownLatch(3);
+            final long start = System.nanoTime();
+            final long [] last = new long[1];
+
+            final HierarchicalTimerWheel.Task task = new HierarchicalTimerWheel.Task() {
+                public void execute(final HierarchicalTimerWheel.Timeout pTimeout) {
+                    last[0] = System.nanoTime() - start;
+                    fired.countDown();
+                }
+            };
+
+            // The later timeout is scheduled first so the earlier ones must
+            // wake the sleeping thread.
+            timer.schedule(task, 60, TimeUnit.MILLISECONDS);
+            Thread.sleep(5);
+            timer.schedule(task, 10, TimeUnit.MILLISECONDS);
+            timer.schedule(task, 20, TimeUnit.MILLISECONDS);
+            assertTrue(timer.cancel(timer.schedule(task, 30, TimeUnit.MILLISECONDS)));
+
+            assertTrue(fired.await(2, TimeUnit.SECONDS));
+            assertTrue(last[0] >= 60 * MS);
+            assertEquals(0, timer.size());
+
+        } finally { timer.shutdown(); }
+    }
+}
+
@@ -0,0 +1,105 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+/**
+ * The int lru map benchmark. Fills an LruMap&lt;Integer, Object&gt; and an
+ * IntLruMap with the same keys (e.g., source addresses) and reports the
+ * heap retained, the bytes allocated by a run of random gets (and puts
+ * with evictions on a miss), and the throughput.
+ * <br/><br/>
+ *
+ * Usage: IntLruMapBenchmark [size] [operations]
+ */
+public final class IntLruMapBenchmark {
+
+    private static final Object VALUE = new Object();
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int size = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 1000000;
+        final int operations = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 20000000;
+
+        System.out.println("size: " + size + " - operations: " + operations);
+
+        long baseline = usedHeap();
+        final LruMap<Integer, Object> boxed = new LruMap<Integer, Object>(size, null, false);
+        for (int idx=0; idx < size; idx++) boxed.put(address(idx), VALUE);
+        long heap = usedHeap() - baseline;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        long found = 0;
+        random = 1;
+        for (int idx=0; idx < operations; idx++) {
+            final int key = address(next() % (size + size / 4));
+            if (boxed.get(key) != null) found++;
+            else boxed.put(key, VALUE);
+        }
+        report("LruMap", heap, allocatedBytes() - allocated, operations, System.nanoTime() - start, found);
+
+        baseline = usedHeap();
+        final IntLruMap<Object> primitive = new IntLruMap<Object>(size);
+        for (int idx=0; idx < size; idx++) primitive.put(address(idx), VALUE);
+        heap = usedHeap() - baseline;
+        allocated = allocatedBytes();
+        start = System.nanoTime();
+        found = 0;
+        random = 1;
+        for (int idx=0; idx < operations; idx++) {
+            final int key = address(next() % (size + size / 4));
+            if (primitive.get(key) != null) found++;
+            else primitive.put(key, VALUE);
+        }
+        report("IntLruMap", heap, allocatedBytes() - allocated, operations, System.nanoTime() - start, found);
+
+        // Keep the boxed map live through the second measurement.
+        if (boxed.size() == 0) System.out.println("empty");
+    }
+
+    private static int random;
+
+    private static int next() {
+        random ^= random << 13;
+        random ^= random >>> 17;
+        random ^= random << 5;
+        return random & 0x7fffffff;
+    }
+
+    // An ipv4 like address (10.x.x.x).
+    private static int address(final int pIndex) { return 0x0a000000 | (pIndex & 0xffffff); }
+
+    private static long allocatedBytes() {
+        try {
+            final Object bean = java.lang.management.ManagementFactory.getThreadMXBean();
+            return ((Long)Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class)
+                    .invoke(bean, Thread.currentThread().getId())).longValue();
+        } catch (final Exception e) { return 0; }
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(final String pName, final long pHeap, final long pAllocated, final int pOperations, final long pNanos, final long pFound) {
+        System.out.println(String.format("%-10s heap: %6.1f MB - allocated: %7.1f MB - %.1f M ops/s - hits: %d",
+                                         pName, pHeap / (1024.0 * 1024), pAllocated / (1024.0 * 1024),
+                                         pOperations / (pNanos / 1000.0), pFound));
+    }
+}
+
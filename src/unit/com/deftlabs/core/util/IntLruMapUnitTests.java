@@ -0,0 +1,120 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The primitive key lru map tests (IntLruMap and LongLruMap).
+ */
+public final class IntLruMapUnitTests {
+
+    @Test
+    public final void testLruOrderAndEviction() throws Exception {
+        final List<String> evicted = new ArrayList<String>();
+        final IntLruMap<String> map = new IntLruMap<String>(3, new IntLruMap.EvictionHandler<String>() {
+            public void execute(final int pKey, final String pValue) { evicted.add(pKey + "=" + pValue); }
+        });
+
+        assertNull(map.put(1, "a"));
+        assertNull(map.put(2, "b"));
+        assertNull(map.put(3, "c"));
+        assertEquals("a", map.get(1));
+        assertNull(map.put(4, "d"));
+
+        assertEquals("[2=b]", evicted.toString());
+        assertEquals("[3, 1, 4]", Arrays.toString(map.keys()));
+
+        // Replacing updates the recency.
+        assertEquals("c", map.put(3, "C"));
+        assertEquals("[1, 4, 3]", Arrays.toString(map.keys()));
+
+        // A contains check does not.
+        assertTrue(map.containsKey(1));
+        assertEquals("[1, 4, 3]", Arrays.toString(map.keys()));
+
+        assertEquals("d", map.remove(4));
+        assertNull(map.remove(4));
+        assertEquals(2, map.size());
+        map.put(5, "e");
+        map.put(6, "f");
+        assertEquals("[2=b, 1=a]", evicted.toString());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(3));
+        for (int idx=0; idx < 3; idx++) map.put(idx, "x");
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public final void testAgainstLinkedHashMap() throws Exception {
+        final int size = 200;
+        final IntLruMap<Integer> map = new IntLruMap<Integer>(size);
+        final LinkedHashMap<Integer, Integer> model = new LinkedHashMap<Integer, Integer>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override protected boolean removeEldestEntry(final Map.Entry<Integer, Integer> pEldest) { return size() > size; }
+        };
+
+        final Random random = new Random(11);
+        for (int idx=0; idx < 200000; idx++) {
+            // Negative and colliding keys included.
+            final int key = (random.nextInt(600) - 300) * 1024;
+            switch (random.nextInt(4)) {
+                case 0: assertEquals(model.put(key, idx), map.put(key, idx)); break;
+                case 1: assertEquals(model.remove(key), map.remove(key)); break;
+                default: assertEquals(model.get(key), map.get(key));
+            }
+        }
+
+        assertEquals(model.size(), map.size());
+        final int [] keys = map.keys();
+        int idx = 0;
+        for (final Integer key : model.keySet()) assertEquals(key.intValue(), keys[idx++]);
+    }
+
+    @Test
+    public final void testLongKeys() throws Exception {
+        final long [] evicted = new long[1];
+        final LongLruMap<String> map = new LongLruMap<String>(2, new LongLruMap.EvictionHandler<String>() {
+            public void execute(final long pKey, final String pValue) { evicted[0] = pKey; }
+        });
+
+        final long big = 1L << 40;
+        map.put(big, "a");
+        map.put(big + 1, "b");
+        map.get(big);
+        map.put(-big, "c");
+
+        assertEquals(big + 1, evicted[0]);
+        assertEquals("a", map.get(big));
+        assertEquals("c", map.get(-big));
+        assertFalse(map.containsKey(big + 1));
+        assertEquals("[" + big + ", " + (-big) + "]", Arrays.toString(map.keys()));
+    }
+}
+
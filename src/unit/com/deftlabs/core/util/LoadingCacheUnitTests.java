@@ -0,0 +1,269 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// OEMware
+import com.deftlabs.core.OemException;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The loading cache tests.
+ */
+public final class LoadingCacheUnitTests {
+
+    @Test
+    public final void testConcurrentMissesLoadOnce() throws Exception {
+        final int threads = 16;
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final LoadingCache<String, String> cache = new LoadingCache<String, String>(100, new LoadingCache.Loader<String, String>() {
+            public String load(final String pKey) throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return pKey.toUpperCase();
+            }
+        });
+
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger correct = new AtomicInteger();
+
+        for (int idx=0; idx < threads; idx++) {
+            new Thread() {
+                public void run() {
+                    try { if ("HOT".equals(cache.get("hot"))) correct.incrementAndGet();
+                    } finally { done.countDown(); }
+                }
+            }.start();
+        }
+
+        // Wait for every thread to miss before the load completes.
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getMisses() < threads && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(threads, correct.get());
+        assertEquals(1, loads.get());
+
+        // A miss that claims the key just after the load is published reads
+        // the value instead of waiting.
+        assertTrue(cache.getCoalesced() > 0 && cache.getCoalesced() <= threads - 1);
+
+        assertEquals("HOT", cache.get("hot"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, loads.get());
+        cache.shutdown();
+    }
+
+    @Test
+    public final void testFailuresReachWaitersAndAreNotCached() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final LoadingCache<String, String> cache = new LoadingCache<String, String>(100, new LoadingCache.Loader<String, String>() {
+            public String load(final String pKey) throws Exception {
+                if (loads.incrementAndGet() == 1) throw new IllegalStateException("backend down");
+                return pKey;
+            }
+        });
+
+        try {
+            cache.get("a");
+            fail("failed load returned a value");
+        } catch (final OemException oe) { assertTrue(oe.getCause() instanceof IllegalStateException); }
+
+        assertEquals(1, cache.getLoadFailures());
+        assertEquals(0, cache.size());
+        assertEquals("a", cache.get("a"));
+        assertEquals(2, loads.get());
+
+        // A null value is not cached.
+        final LoadingCache.Loader<String, String> empty = new LoadingCache.Loader<String, String>() {
+            public String load(final String pKey) { loads.incrementAndGet(); return null; }
+        };
+        assertNull(cache.get("b", empty));
+        assertNull(cache.get("b", empty));
+        assertEquals(4, loads.get());
+        cache.shutdown();
+    }
+
+    @Test
+    public final void testAsync() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+
+        final LoadingCache<Integer, Integer> cache = new LoadingCache<Integer, Integer>(100, new LoadingCache.Loader<Integer, Integer>() {
+            public Integer load(final Integer pKey) throws Exception {
+                loads.incrementAndGet();
+                release.await();
+                return pKey * 2;
+            }
+        });
+
+        final Future<Integer> first = cache.getAsync(21);
+        final Future<Integer> second = cache.getAsync(21);
+        assertSame(first, second);
+        assertFalse(first.isDone());
+
+        release.countDown();
+        assertEquals(42, first.get(5, TimeUnit.SECONDS).intValue());
+
+        final Future<Integer> hit = cache.getAsync(21);
+        assertTrue(hit.isDone());
+        assertEquals(42, hit.get().intValue());
+        assertEquals(1, loads.get());
+        cache.shutdown();
+    }
+
+    @Test
+    public final void testRefreshServesStaleValue() throws Exception {
+        final AtomicInteger version = new AtomicInteger();
+        final CountDownLatch reloading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final LoadingCache<String, String> cache = new LoadingCache<String, String>(100, new LoadingCache.Loader<String, String>() {
+            public String load(final String pKey) { return pKey + version.incrementAndGet(); }
+
+            public String reload(final String pKey, final String pOldValue) throws Exception {
+                reloading.countDown();
+                release.await();
+                return load(pKey);
+            }
+        });
+
+        cache.setRefreshAfterWrite(20, TimeUnit.MILLISECONDS);
+        assertEquals("k1", cache.get("k"));
+
+        Thread.sleep(40);
+
+        // The stale value is returned while a single reload runs.
+        assertEquals("k1", cache.get("k"));
+        assertTrue(reloading.await(5, TimeUnit.SECONDS));
+        assertEquals("k1", cache.get("k"));
+        assertEquals(1, cache.getRefreshes());
+
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!"k2".equals(cache.getIfPresent("k")) && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals("k2", cache.get("k"));
+        assertEquals(1, cache.getRefreshes());
+        cache.shutdown();
+    }
+
+    @Test
+    public final void testGetAllBatches() throws Exception {
+        final AtomicInteger batches = new AtomicInteger();
+        final AtomicInteger keys = new AtomicInteger();
+
+        final LoadingCache<Integer, String> cache = new LoadingCache<Integer, String>(100, new LoadingCache.Loader<Integer, String>() {
+            public String load(final Integer pKey) { throw new UnsupportedOperationException(); }
+
+            public Map<Integer, String> loadAll(final Collection<Integer> pKeys) {
+                batches.incrementAndGet();
+                keys.addAndGet(pKeys.size());
+                final Map<Integer, String> values = new LinkedHashMap<Integer, String>();
+                for (final Integer key : pKeys) if (key.intValue() != 4) values.put(key, "v" + key);
+                return values;
+            }
+        });
+
+        cache.put(1, "one");
+
+        final Map<Integer, String> values = cache.getAll(Arrays.asList(3, 1, 2, 4, 3));
+        assertEquals(Arrays.asList(3, 1, 2), new java.util.ArrayList<Integer>(values.keySet()));
+        assertEquals("one", values.get(1));
+        assertEquals("v2", values.get(2));
+        assertEquals(1, batches.get());
+        assertEquals(3, keys.get());
+
+        // The loaded values are cached (the missing key is not).
+        cache.getAll(Arrays.asList(1, 2, 3));
+        assertEquals(1, batches.get());
+        assertEquals(3, cache.size());
+        assertTrue(cache.getReport().startsWith("size: 3"));
+        cache.shutdown();
+    }
+
+    @Test
+    public final void testInvalidateDuringLoad() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final LoadingCache<String, String> cache = new LoadingCache<String, String>(100, new LoadingCache.Loader<String, String>() {
+            public String load(final String pKey) throws Exception {
+                loading.countDown();
+                release.await();
+                return "old";
+            }
+        });
+
+        final Future<String> future = cache.getAsync("a");
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        cache.invalidate("a");
+        release.countDown();
+
+        // The waiters get the value but it is not cached.
+        assertEquals("old", future.get(5, TimeUnit.SECONDS));
+        assertNull(cache.getIfPresent("a"));
+        cache.shutdown();
+    }
+
+    @Test
+    public final void testPutDuringLoad() throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final LoadingCache<String, String> cache = new LoadingCache<String, String>(100, new LoadingCache.Loader<String, String>() {
+            public String load(final String pKey) throws Exception {
+                loading.countDown();
+                release.await();
+                return "old";
+            }
+        });
+
+        final Future<String> first = cache.getAsync("k");
+        final Future<String> second = cache.getAsync("k");
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+        // One caller can not cancel the shared load.
+        assertFalse(second.cancel(true));
+        assertFalse(second.isCancelled());
+
+        cache.put("k", "new");
+        release.countDown();
+
+        // The slower load does not replace the explicit put.
+        assertEquals("old", first.get(5, TimeUnit.SECONDS));
+        assertEquals("old", second.get(5, TimeUnit.SECONDS));
+        assertEquals("new", cache.getIfPresent("k"));
+        assertEquals("new", cache.get("k"));
+        cache.shutdown();
+    }
+}
+
@@ -0,0 +1,63 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The log-linear histogram tests.
+ */
+public final class LogLinearHistogramUnitTests {
+
+    @Test
+    public final void testBuckets() throws Exception {
+        int previous = -1;
+        for (long value=0; value < 100000; value++) {
+            final int bucket = LogLinearHistogram.bucket(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(LogLinearHistogram.lowest(bucket) <= value);
+            assertTrue(LogLinearHistogram.highest(bucket) >= value);
+            previous = bucket;
+        }
+        assertEquals(LogLinearHistogram.BUCKETS - 1, LogLinearHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public final void testPercentilesAndMerge() throws Exception {
+        final LogLinearHistogram first = new LogLinearHistogram();
+        final LogLinearHistogram second = new LogLinearHistogram();
+
+        for (long value=1; value <= 5000; value++) first.record(value);
+        for (long value=5001; value <= 10000; value++) second.record(value);
+
+        first.merge(second);
+        assertEquals(10000, first.getCount());
+        assertEquals(1, first.getMin());
+        assertEquals(10000, first.getMax());
+
+        // Within the bucket error (1/16).
+        assertEquals(5000, first.getValueAtPercentile(50), 5000 / 16);
+        assertEquals(9900, first.getValueAtPercentile(99), 9900 / 16);
+
+        first.reset();
+        assertEquals(0, first.getCount());
+        assertEquals(0, first.getValueAtPercentile(99));
+    }
+}
+
@@ -0,0 +1,270 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lru map tests.
+ */
+public final class LruMapUnitTests {
+
+    @Test
+    public final void testTimeToLive() throws Exception {
+        final List<String> causes = new ArrayList<String>();
+        final List<String> evicted = new ArrayList<String>();
+
+        final LruMap<String, String> map = new LruMap<String, String>(3, new LruMap.EvictionHandler<String, String>() {
+            public void execute(final Map.Entry<String, String> pEldest) { evicted.add(pEldest.getKey()); }
+        });
+        map.setRemovalHandler(new LruMap.RemovalHandler<String, String>() {
+            public void execute(final Map.Entry<String, String> pEntry, final int pCause) {
+                causes.add(pEntry.getKey() + ":" + RemovalCause.toString(pCause));
+            }
+        });
+
+        map.setTimeToLive(50, TimeUnit.MILLISECONDS);
+        map.put("a", "1");
+        map.put("b", "2", 0, 0, TimeUnit.MILLISECONDS);
+        map.put("c", "3", 1, 0, TimeUnit.HOURS);
+
+        assertEquals("1", map.get("a"));
+        Thread.sleep(80);
+
+        // Reading does not extend a time to live.
+        assertNull(map.get("a"));
+        assertFalse(map.containsKey("a"));
+        assertEquals("2", map.get("b"));
+        assertEquals("3", map.get("c"));
+        assertEquals(1, map.getExpired());
+
+        // Size evictions and explicit removals keep their causes.
+        map.put("d", "4");
+        map.put("e", "5");
+        assertEquals("4", map.remove("d"));
+
+        // The eviction handler is not called for explicit removals.
+        assertEquals("[a:expired, b:size, d:explicit]", causes.toString());
+        assertEquals("[a, b]", evicted.toString());
+    }
+
+    @Test
+    public final void testTimeToIdle() throws Exception {
+        final LruMap<String, String> map = new LruMap<String, String>(10);
+        map.setTimeToIdle(60, TimeUnit.MILLISECONDS);
+        map.put("read", "1");
+        map.put("idle", "2");
+
+        // Reads keep the entry alive past its idle time.
+        for (int idx=0; idx < 6; idx++) {
+            Thread.sleep(20);
+            assertEquals("1", map.get("read"));
+        }
+        assertFalse(map.containsKey("idle"));
+
+        // Both limits: the time to live still applies to a busy entry.
+        map.put("both", "3", 80, 50, TimeUnit.MILLISECONDS);
+        for (int idx=0; idx < 6; idx++) {
+            Thread.sleep(20);
+            map.get("both");
+        }
+        assertFalse(map.containsKey("both"));
+    }
+
+    @Test
+    public final void testCleanUpAndCleaner() throws Exception {
+        final List<Integer> causes = new ArrayList<Integer>();
+        final LruMap<Integer, Integer> map = new LruMap<Integer, Integer>(1000);
+        map.setRemovalHandler(new LruMap.RemovalHandler<Integer, Integer>() {
+            public void execute(final Map.Entry<Integer, Integer> pEntry, final int pCause) { causes.add(pCause); }
+        });
+
+        for (int idx=0; idx < 100; idx++) map.put(idx, idx, 20, 0, TimeUnit.MILLISECONDS);
+        map.put(1000, 1000);
+        Thread.sleep(50);
+
+        assertEquals(100, map.cleanUp());
+        assertEquals(1, map.size());
+        for (final Integer cause : causes) assertEquals(RemovalCause.EXPIRED, cause.intValue());
+
+        // A quiet map is cleaned by the thread.
+        for (int idx=0; idx < 100; idx++) map.put(idx, idx, 20, 0, TimeUnit.MILLISECONDS);
+        final ExpiryCleaner cleaner = new ExpiryCleaner("expiry-cleaner", 10, TimeUnit.MILLISECONDS);
+        cleaner.add(map);
+        cleaner.startup();
+        try {
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (cleaner.getRemoved() < 100 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(100, cleaner.getRemoved());
+            assertEquals(1, map.size());
+        } finally { cleaner.shutdown(); }
+
+        // Replacing a value with a shorter time to live moves the deadline.
+        map.put(1000, 1000, 1, 0, TimeUnit.HOURS);
+        map.put(1000, 1001, 10, 0, TimeUnit.MILLISECONDS);
+        Thread.sleep(40);
+        assertEquals(1, map.cleanUp());
+
+        map.put(5, 5, 1, 0, TimeUnit.HOURS);
+        map.clear();
+        assertEquals(RemovalCause.EXPLICIT, causes.get(causes.size() - 1).intValue());
+        assertEquals(0, map.cleanUp());
+    }
+
+    @Test
+    public final void testCleanerTracksMapsByIdentity() throws Exception {
+        // Both maps are empty (so equal) when added.
+        final LruMap<String, String> first = new LruMap<String, String>(100);
+        final LruMap<String, String> second = new LruMap<String, String>(100);
+        first.setTimeToLive(1, TimeUnit.HOURS);
+        second.setTimeToLive(1, TimeUnit.HOURS);
+
+        final ExpiryCleaner cleaner = new ExpiryCleaner("expiry-cleaner", 10, TimeUnit.MILLISECONDS);
+        cleaner.add(first);
+        cleaner.add(second);
+        cleaner.add(second);
+        cleaner.startup();
+        try {
+            second.put("a", "a", 50, 0, TimeUnit.MILLISECONDS);
+
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (cleaner.getRemoved() < 1 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(1, cleaner.getRemoved());
+
+            // Removing the first map leaves the (equal) second one.
+            cleaner.remove(first);
+            second.put("b", "b", 20, 0, TimeUnit.MILLISECONDS);
+            final long removeDeadline = System.currentTimeMillis() + 2000;
+            while (cleaner.getRemoved() < 2 && System.currentTimeMillis() < removeDeadline) Thread.sleep(10);
+            assertEquals(2, cleaner.getRemoved());
+
+        } finally { cleaner.shutdown(); }
+    }
+
+    @Test
+    public final void testWeightBound() throws Exception {
+        final List<String> evicted = new ArrayList<String>();
+        final LruMap<String, String> map = new LruMap<String, String>(100, new LruMap.Weigher<String, String>() {
+            public int weigh(final String pKey, final String pValue) { return pValue.length(); }
+        }, new LruMap.EvictionHandler<String, String>() {
+            public void execute(final Map.Entry<String, String> pEldest) { evicted.add(pEldest.getKey()); }
+        }, false);
+
+        map.put("a", repeat(30));
+        map.put("b", repeat(30));
+        map.put("c", repeat(30));
+        assertEquals(90, map.getWeight());
+        map.get("a");
+
+        // One heavy entry evicts as many of the eldest as needed.
+        map.put("d", repeat(60));
+        assertEquals("[b, c]", evicted.toString());
+        assertEquals(90, map.getWeight());
+
+        // Replacing updates the weight.
+        map.put("a", repeat(5));
+        assertEquals(65, map.getWeight());
+        map.remove("d");
+        assertEquals(5, map.getWeight());
+
+        // An entry heavier than the max is not kept.
+        map.put("huge", repeat(101));
+        assertFalse(map.containsKey("huge"));
+        assertEquals(0, map.getWeight());
+        assertEquals(100, map.getMaxWeight());
+
+        // Expired entries give their weight back.
+        map.put("e", repeat(20), 10, 0, TimeUnit.MILLISECONDS);
+        Thread.sleep(30);
+        assertEquals(1, map.cleanUp());
+        assertEquals(0, map.getWeight());
+
+        map.put("f", repeat(20));
+        map.clear();
+        assertEquals(0, map.getWeight());
+    }
+
+    @Test
+    public final void testByteArrayWeigher() throws Exception {
+        final LruMap<ByteArray, ByteArray> map
+        = new LruMap<ByteArray, ByteArray>(64 * 1024, new LruMap.ByteArrayWeigher<ByteArray>(), null, false);
+
+        final ByteArray key = new ByteArray(new byte[] { 1, 2, 3 });
+
+        // The whole backing array counts, not just the slice in use.
+        map.put(key, new ByteArray(new byte[10000], 0, 10));
+        final int overhead = LruMap.ByteArrayWeigher.ENTRY_OVERHEAD + (2 * LruMap.ByteArrayWeigher.BYTE_ARRAY_OVERHEAD);
+        assertEquals(overhead + 8 + 10000, map.getWeight());
+
+        // Mixed sizes stay under the max weight.
+        for (int idx=0; idx < 1000; idx++) {
+            final byte [] name = new byte[] { (byte)idx, (byte)(idx >> 8) };
+            map.put(new ByteArray(name), new ByteArray(new byte[(idx % 10 == 0) ? 20000 : 50]));
+            assertTrue(map.getWeight() <= 64 * 1024);
+        }
+        assertTrue(map.size() > 10);
+    }
+
+    @Test
+    public final void testWeightWithEqualKeys() throws Exception {
+        final LruMap<ByteArray, ByteArray> map
+        = new LruMap<ByteArray, ByteArray>(64 * 1024, new LruMap.ByteArrayWeigher<ByteArray>(), null, false);
+
+        // A one byte slice of a packet buffer, then an equal key in its own array.
+        final byte [] packet = new byte[1500];
+        packet[7] = 42;
+        final ByteArray slice = new ByteArray(packet, 7, 1);
+        final ByteArray key = new ByteArray(new byte[] { 42 });
+        assertEquals(slice, key);
+
+        final ByteArray value = new ByteArray(new byte[8]);
+        final int small = new LruMap.ByteArrayWeigher<ByteArray>().weigh(key, value);
+
+        map.put(slice, value);
+        map.put(key, value);
+        assertEquals(small, map.getWeight());
+
+        map.put(slice, value);
+        map.remove(key);
+        assertEquals(0, map.size());
+        assertEquals(0, map.getWeight());
+
+        // Evictions subtract what was charged.
+        for (int idx=0; idx < 200; idx++) {
+            packet[7] = (byte)idx;
+            map.put(new ByteArray(packet, 7, 1), new ByteArray(new byte[100]));
+            map.put(new ByteArray(new byte[] { (byte)idx }), new ByteArray(new byte[100]));
+        }
+        for (final ByteArray remaining : new ArrayList<ByteArray>(map.keySet())) map.remove(remaining);
+        assertEquals(0, map.size());
+        assertEquals(0, map.getWeight());
+    }
+
+    private static String repeat(final int pLength) {
+        final StringBuilder value = new StringBuilder();
+        for (int idx=0; idx < pLength; idx++) value.append('x');
+        return value.toString();
+    }
+}
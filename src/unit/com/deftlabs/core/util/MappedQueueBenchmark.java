@@ -0,0 +1,177 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.io.File;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The mapped queue benchmark. A ping-pong round trip over a pair of queue
+ * files (each side with its own mappings, as two processes would have) is
+ * compared with a loopback udp ping-pong, then the one-way throughput of
+ * the queue is measured.
+ * <br/><br/>
+ *
+ * Usage: MappedQueueBenchmark [round trips] [message size]
+ */
+public final class MappedQueueBenchmark {
+
+    private static final String LOOPBACK = "127.0.0.1";
+    private static final int PORT = 39470;
+    private static final int CAPACITY = 1024 * 1024;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int trips = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 100000;
+        final int size = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 64;
+
+        final File ping = File.createTempFile("mapped-queue-ping", ".q");
+        final File pong = File.createTempFile("mapped-queue-pong", ".q");
+        ping.delete();
+        pong.delete();
+
+        try {
+            report("mapped queue", queuePingPong(ping.getPath(), pong.getPath(), trips, size));
+            report("loopback udp", udpPingPong(trips, size));
+            throughput(ping.getPath(), trips * 50, size);
+        } finally {
+            ping.delete();
+            pong.delete();
+        }
+    }
+
+    private static long [] queuePingPong(final String pPing, final String pPong, final int pTrips, final int pSize) throws Exception {
+        final MappedQueue.Writer pingWriter = MappedQueue.openWriter(pPing, CAPACITY);
+        final MappedQueue.Writer pongWriter = MappedQueue.openWriter(pPong, CAPACITY);
+        final MappedQueue.Reader pingReader = MappedQueue.openReader(pPing, 0);
+        final MappedQueue.Reader pongReader = MappedQueue.openReader(pPong, 0);
+
+        final Thread echo = new Thread() {
+            public void run() {
+                final byte [] data = new byte[pSize];
+                final MappedQueue.Handler handler = new MappedQueue.Handler() {
+                    public void execute(final ByteBuffer pBuffer, final int pOffset, final int pLength) {
+                        while (!pongWriter.offer(data)) Thread.yield();
+                    }
+                };
+                try {
+                    final IdleStrategy idle = IdleStrategies.create("backoff:100,100,1,100");
+                    for (int count=0; count < pTrips; ) count += pingReader.take(handler, 16, idle);
+                } catch (final InterruptedException ie) { }
+            }
+        };
+        echo.start();
+
+        final byte [] data = new byte[pSize];
+        final long [] samples = new long[pTrips];
+        final IdleStrategy idle = IdleStrategies.create("backoff:100,100,1,100");
+        final MappedQueue.Handler ignore = new MappedQueue.Handler() {
+            public void execute(final ByteBuffer pBuffer, final int pOffset, final int pLength) { }
+        };
+
+        for (int idx=0; idx < pTrips; idx++) {
+            final long start = System.nanoTime();
+            pingWriter.offer(data);
+            pongReader.take(ignore, 1, idle);
+            samples[idx] = System.nanoTime() - start;
+        }
+
+        echo.join();
+        pingWriter.close();
+        pongWriter.close();
+        return samples;
+    }
+
+    private static long [] udpPingPong(final int pTrips, final int pSize) throws Exception {
+        final DatagramSocket server = new DatagramSocket(new InetSocketAddress(LOOPBACK, PORT));
+        final DatagramSocket client = new DatagramSocket();
+        client.connect(new InetSocketAddress(LOOPBACK, PORT));
+
+        final Thread echo = new Thread() {
+            public void run() {
+                try {
+                    final DatagramPacket packet = new DatagramPacket(new byte[pSize], pSize);
+                    for (int idx=0; idx < pTrips; idx++) {
+                        packet.setLength(pSize);
+                        server.receive(packet);
+                        server.send(packet);
+                    }
+                } catch (final Exception e) { e.printStackTrace(); }
+            }
+        };
+        echo.start();
+
+        final DatagramPacket packet = new DatagramPacket(new byte[pSize], pSize);
+        final long [] samples = new long[pTrips];
+
+        for (int idx=0; idx < pTrips; idx++) {
+            final long start = System.nanoTime();
+            packet.setLength(pSize);
+            client.send(packet);
+            client.receive(packet);
+            samples[idx] = System.nanoTime() - start;
+        }
+
+        echo.join();
+        client.close();
+        server.close();
+        return samples;
+    }
+
+    private static void throughput(final String pFile, final int pMessages, final int pSize) throws Exception {
+        new File(pFile).delete();
+        final MappedQueue.Writer writer = MappedQueue.openWriter(pFile, CAPACITY);
+        final MappedQueue.Reader reader = MappedQueue.openReader(pFile, 0);
+
+        final Thread consumer = new Thread() {
+            public void run() {
+                final MappedQueue.Handler handler = new MappedQueue.Handler() {
+                    public void execute(final ByteBuffer pBuffer, final int pOffset, final int pLength) { }
+                };
+                try {
+                    final IdleStrategy idle = IdleStrategies.create("yield");
+                    for (int count=0; count < pMessages; ) count += reader.take(handler, 256, idle);
+                } catch (final InterruptedException ie) { }
+            }
+        };
+        consumer.start();
+
+        final byte [] data = new byte[pSize];
+        final long start = System.nanoTime();
+        for (int idx=0; idx < pMessages; idx++) while (!writer.offer(data)) Thread.yield();
+        consumer.join();
+        final double seconds = (System.nanoTime() - start) / 1000000000.0;
+
+        writer.close();
+        System.out.println(String.format("mapped queue throughput: %.1f M msg/s - %.0f MB/s (%d byte messages)",
+                                         pMessages / seconds / 1000000, pMessages * (double)pSize / seconds / (1024 * 1024), pSize));
+    }
+
+    private static void report(final String pName, final long [] pSamples) {
+        Arrays.sort(pSamples);
+        System.out.println(String.format("%s round trip - p50: %.1f us - p99: %.1f us - p99.9: %.1f us",
+                                         pName,
+                                         pSamples[pSamples.length / 2] / 1000.0,
+                                         pSamples[(int)(pSamples.length * 0.99)] / 1000.0,
+                                         pSamples[(int)(pSamples.length * 0.999)] / 1000.0));
+    }
+}
+
@@ -0,0 +1,210 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// OEMware
+import com.deftlabs.core.OemException;
+
+// JUnit
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The mapped queue tests.
+ */
+public final class MappedQueueUnitTests {
+
+    private static final int CAPACITY = 1024;
+
+    private File _file;
+
+    @Before
+    public final void setUp() throws Exception {
+        _file = File.createTempFile("mapped-queue", ".q");
+        _file.delete();
+    }
+
+    @After
+    public final void tearDown() { _file.delete(); }
+
+    @Test
+    public final void testRoundTripWithWrap() throws Exception {
+        final MappedQueue.Writer writer = MappedQueue.openWriter(_file.getPath(), CAPACITY);
+        final MappedQueue.Reader reader = MappedQueue.openReader(_file.getPath(), 0);
+        final List<Integer> values = new ArrayList<Integer>();
+
+        try {
+            // Odd sizes so the records pad and wrap many times.
+            int next = 0;
+            for (int round=0; round < 200; round++) {
+                for (int idx=0; idx < 3; idx++) assertTrue(writer.offer(record(next++, 4 + (next % 50))));
+                assertEquals(3, reader.read(collector(values), 10));
+            }
+
+            assertEquals(600, values.size());
+            for (int idx=0; idx < values.size(); idx++) assertEquals(idx, values.get(idx).intValue());
+            assertTrue(writer.getTail() > CAPACITY * 10);
+            assertEquals(0, reader.getLag());
+            assertEquals(0, reader.read(collector(values), 10));
+
+        } finally { writer.close(); }
+    }
+
+    @Test
+    public final void testReadersAndBackpressure() throws Exception {
+        final MappedQueue.Writer writer = MappedQueue.openWriter(_file.getPath(), CAPACITY);
+        final MappedQueue.Reader fast = MappedQueue.openReader(_file.getPath(), 0);
+        final MappedQueue.Reader slow = MappedQueue.openReader(_file.getPath(), 1);
+        final List<Integer> fastValues = new ArrayList<Integer>();
+        final List<Integer> slowValues = new ArrayList<Integer>();
+
+        try {
+            // 64 byte records; the slow reader holds back the writer at the capacity.
+            int offered = 0;
+            while (writer.offer(record(offered, 60))) {
+                offered++;
+                fast.read(collector(fastValues), 10);
+            }
+
+            assertEquals(CAPACITY / 64, offered);
+            assertEquals(1, writer.getRejected());
+            assertEquals(CAPACITY, slow.getLag());
+
+            assertEquals(4, slow.read(collector(slowValues), 4));
+            assertTrue(writer.offer(record(offered++, 60)));
+
+            // Detaching the slow reader releases the writer.
+            slow.close(true);
+            assertEquals(-1, writer.getReaderPosition(1));
+            for (int idx=0; idx < 100; idx++) {
+                assertTrue(writer.offer(record(offered++, 60)));
+                fast.read(collector(fastValues), 10);
+            }
+
+            assertEquals(offered, fastValues.size());
+            for (int idx=0; idx < fastValues.size(); idx++) assertEquals(idx, fastValues.get(idx).intValue());
+            for (int idx=0; idx < slowValues.size(); idx++) assertEquals(idx, slowValues.get(idx).intValue());
+
+        } finally { writer.close(); }
+    }
+
+    @Test
+    public final void testRestartRecovery() throws Exception {
+        MappedQueue.Writer writer = MappedQueue.openWriter(_file.getPath(), CAPACITY);
+        MappedQueue.Reader reader = MappedQueue.openReader(_file.getPath(), 3);
+        final List<Integer> values = new ArrayList<Integer>();
+
+        // One writer per file.
+        try {
+            MappedQueue.openWriter(_file.getPath(), CAPACITY);
+            fail("second writer opened");
+        } catch (final OemException oe) { }
+
+        for (int idx=0; idx < 10; idx++) assertTrue(writer.offer(record(idx, 12)));
+        assertEquals(4, reader.read(collector(values), 4));
+        writer.close();
+        reader.close(false);
+
+        // The capacity is fixed.
+        try {
+            MappedQueue.openWriter(_file.getPath(), CAPACITY * 2).close();
+            fail("capacity changed");
+        } catch (final OemException oe) { }
+
+        // Both sides resume where they left off.
+        writer = MappedQueue.openWriter(_file.getPath(), CAPACITY);
+        reader = MappedQueue.openReader(_file.getPath(), 3);
+        try {
+            for (int idx=10; idx < 15; idx++) assertTrue(writer.offer(record(idx, 12)));
+            assertEquals(11, reader.read(collector(values), 100));
+            for (int idx=0; idx < 15; idx++) assertEquals(idx, values.get(idx).intValue());
+
+            // A new reader starts at the tail.
+            final MappedQueue.Reader late = MappedQueue.openReader(_file.getPath(), 4);
+            assertEquals(0, late.getLag());
+
+        } finally { writer.close(); }
+    }
+
+    @Test
+    public final void testRestartedWriterKeepsUnreadRecords() throws Exception {
+        MappedQueue.Writer writer = MappedQueue.openWriter(_file.getPath(), CAPACITY);
+        final MappedQueue.Reader reader = MappedQueue.openReader(_file.getPath(), 0);
+        final List<Integer> values = new ArrayList<Integer>();
+
+        int offered = 0;
+        while (writer.offer(record(offered, 60))) offered++;
+        assertEquals(CAPACITY / 64, offered);
+        writer.close();
+
+        // The reader has not read anything, so the new writer has no room.
+        writer = MappedQueue.openWriter(_file.getPath(), CAPACITY);
+        try {
+            assertFalse(writer.offer(record(offered, 60)));
+            assertEquals(CAPACITY, writer.getTail());
+
+            assertEquals(offered, reader.read(collector(values), 100));
+            for (int idx=0; idx < offered; idx++) assertEquals(idx, values.get(idx).intValue());
+            assertTrue(writer.offer(record(offered, 60)));
+
+        } finally { writer.close(); }
+    }
+
+    @Test
+    public final void testUnpublishedRecordsAreIgnored() throws Exception {
+        final MappedQueue.Writer writer = MappedQueue.openWriter(_file.getPath(), CAPACITY);
+        final MappedQueue.Reader reader = MappedQueue.openReader(_file.getPath(), 0);
+        final List<Integer> values = new ArrayList<Integer>();
+
+        try {
+            assertTrue(writer.offer(record(1, 8)));
+
+            // A record written past the tail (a writer that died mid-write).
+            final ByteBuffer buffer = FileUtils.mapFileToBuffer(_file.getPath(), MappedQueue.HEADER_SIZE + CAPACITY);
+            buffer.putInt(MappedQueue.HEADER_SIZE + 16, 8);
+            buffer.putInt(MappedQueue.HEADER_SIZE + 20, 99);
+
+            assertEquals(1, reader.read(collector(values), 10));
+            assertEquals(0, reader.read(collector(values), 10));
+            assertEquals(1, values.size());
+
+        } finally { writer.close(); }
+    }
+
+    private static byte [] record(final int pValue, final int pSize) {
+        final byte [] data = new byte[pSize];
+        ByteBuffer.wrap(data).putInt(pValue);
+        return data;
+    }
+
+    private static MappedQueue.Handler collector(final List<Integer> pValues) {
+        return new MappedQueue.Handler() {
+            public void execute(final ByteBuffer pBuffer, final int pOffset, final int pLength) {
+                pValues.add(pBuffer.getInt(pOffset));
+            }
+        };
+    }
+}
+
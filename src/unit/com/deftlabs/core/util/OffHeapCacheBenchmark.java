@@ -0,0 +1,94 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.nio.ByteBuffer;
+
+/**
+ * The off-heap cache benchmark. Fills an on-heap LruMap and an
+ * OffHeapCache with the same entries and reports the heap retained, the
+ * time of a full gc with the cache live, and the get throughput.
+ * <br/><br/>
+ *
+ * Usage: OffHeapCacheBenchmark [entries] [value size]
+ */
+public final class OffHeapCacheBenchmark {
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int entries = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 1000000;
+        final int size = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 100;
+
+        System.out.println("entries: " + entries + " - value size: " + size);
+
+        final long baseline = usedHeap();
+        LruMap<ByteArray, ByteArray> map = new LruMap<ByteArray, ByteArray>(entries, null, false);
+        for (int idx=0; idx < entries; idx++) map.put(key(idx), new ByteArray(new byte[size]));
+        report("LruMap", baseline, fullGcMillis(), getRate(map, null, entries));
+        map = null;
+
+        final long offHeapBaseline = usedHeap();
+        final OffHeapCache cache = new OffHeapCache((long)entries * (size + 48) * 5 / 4, entries, 16);
+        final ByteArray value = new ByteArray(new byte[size]);
+        for (int idx=0; idx < entries; idx++) cache.put(key(idx), value);
+        report("OffHeapCache", offHeapBaseline, fullGcMillis(), getRate(null, cache, entries));
+        System.out.println("  " + cache.getReport());
+    }
+
+    private static ByteArray key(final int pIndex) {
+        final byte [] key = new byte[12];
+        ByteBuffer.wrap(key).putInt(0x6b6579).putLong(pIndex * 0x9e3779b97f4a7c15L);
+        return new ByteArray(key);
+    }
+
+    private static double getRate(final LruMap<ByteArray, ByteArray> pMap, final OffHeapCache pCache, final int pEntries) {
+        final ByteArray [] keys = new ByteArray[4096];
+        for (int idx=0; idx < keys.length; idx++) keys[idx] = key((int)((idx * 2654435761L) % pEntries));
+
+        final ByteArray value = new ByteArray(new byte[4096], 0, 0);
+        final int gets = 5000000;
+        long found = 0;
+        final long start = System.nanoTime();
+        for (int idx=0; idx < gets; idx++) {
+            final ByteArray key = keys[idx & (keys.length - 1)];
+            if (pMap != null) { if (pMap.get(key) != null) found++; }
+            else if (pCache.get(key, value) >= 0) found++;
+        }
+        final double seconds = (System.nanoTime() - start) / 1000000000.0;
+        if (found == 0) System.out.println("nothing found");
+        return gets / seconds / 1000000;
+    }
+
+    private static long fullGcMillis() {
+        final long start = System.nanoTime();
+        System.gc();
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(final String pName, final long pBaseline, final long pGcMillis, final double pGetRate) {
+        System.out.println(String.format("%-12s heap: %6.1f MB - full gc: %4d ms - get: %.1f M/s",
+                                         pName, (usedHeap() - pBaseline) / (1024.0 * 1024), pGcMillis, pGetRate));
+    }
+}
+
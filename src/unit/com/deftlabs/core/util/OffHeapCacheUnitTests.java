@@ -0,0 +1,151 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The off-heap cache tests.
+ */
+public final class OffHeapCacheUnitTests {
+
+    @Test
+    public final void testPutGetReplaceRemove() throws Exception {
+        final OffHeapCache cache = new OffHeapCache(64 * 1024, 1000, 1);
+
+        assertTrue(cache.put(bytes("key"), bytes("value")));
+        assertEquals("value", string(cache.get(bytes("key"))));
+        assertNull(cache.get(bytes("missing")));
+
+        // The key is compared in place, from a slice of a larger array.
+        final byte [] buffer = "xxkeyxx".getBytes("UTF-8");
+        assertTrue(cache.containsKey(new ByteArray(buffer, 2, 3)));
+
+        // The value is copied into the caller's buffer at the offset.
+        final ByteArray value = new ByteArray(new byte[16], 4, 0);
+        assertEquals(5, cache.get(bytes("key"), value));
+        assertEquals("value", new String(value.data, 4, value.length, "UTF-8"));
+
+        // Nothing is copied if the buffer is too small.
+        final ByteArray small = new ByteArray(new byte[3], 0, 0);
+        assertEquals(5, cache.get(bytes("key"), small));
+        assertEquals(0, small.length);
+
+        assertTrue(cache.put(bytes("key"), bytes("a longer value")));
+        assertEquals("a longer value", string(cache.get(bytes("key"))));
+        assertEquals(1, cache.size());
+
+        assertTrue(cache.remove(bytes("key")));
+        assertFalse(cache.remove(bytes("key")));
+        assertEquals(0, cache.size());
+
+        // Too large for a segment.
+        assertFalse(cache.put(bytes("big"), new ByteArray(new byte[40 * 1024])));
+
+        cache.put(bytes("a"), bytes("1"));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMemoryUsed());
+        assertNull(cache.get(bytes("a")));
+    }
+
+    @Test
+    public final void testClockEviction() throws Exception {
+        // About 40 records of 96 bytes fit.
+        final OffHeapCache cache = new OffHeapCache(4096, 1000, 1);
+        final ByteArray value = new ByteArray(new byte[60]);
+
+        for (int idx=0; idx < 20; idx++) assertTrue(cache.put(bytes("k" + idx), value));
+        for (int idx=0; idx < 10; idx++) assertNotNull(cache.get(bytes("k" + idx)));
+
+        // The read entries get a second chance; the others are evicted first.
+        for (int idx=20; idx < 50; idx++) assertTrue(cache.put(bytes("k" + idx), value));
+
+        for (int idx=0; idx < 10; idx++) assertTrue(cache.containsKey(bytes("k" + idx)));
+        assertFalse(cache.containsKey(bytes("k10")));
+        assertTrue(cache.getEvictions() > 0);
+        assertTrue(cache.getReinserted() >= 10);
+        assertTrue(cache.getMemoryUsed() <= 4096);
+        assertEquals(50 - cache.getEvictions(), cache.size());
+    }
+
+    @Test
+    public final void testMaxEntries() throws Exception {
+        final OffHeapCache cache = new OffHeapCache(1024 * 1024, 100, 4);
+        for (int idx=0; idx < 1000; idx++) cache.put(bytes("k" + idx), bytes("v" + idx));
+        assertTrue(cache.size() <= 100);
+        assertTrue(cache.getReport().startsWith("entries: "));
+    }
+
+    @Test
+    public final void testRandomOperations() throws Exception {
+        // Large enough that nothing is evicted, so the cache matches a map.
+        final OffHeapCache cache = new OffHeapCache(4 * 1024 * 1024, 5000, 4);
+        final Map<String, String> model = new HashMap<String, String>();
+        final Random random = new Random(7);
+
+        for (int idx=0; idx < 100000; idx++) {
+            final String key = "key" + random.nextInt(2000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    final String value = "value" + random.nextInt() + ((random.nextInt(10) == 0) ? new String(new char[200]) : "");
+                    assertTrue(cache.put(bytes(key), bytes(value)));
+                    model.put(key, value);
+                    break;
+                case 1:
+                    assertEquals(model.remove(key) != null, cache.remove(bytes(key)));
+                    break;
+                default:
+                    final ByteArray found = cache.get(bytes(key));
+                    assertEquals(model.get(key), (found == null) ? null : string(found));
+            }
+        }
+
+        assertEquals(model.size(), cache.size());
+        assertEquals(0, cache.getEvictions());
+
+        // With evictions, whatever is found is the latest value.
+        final OffHeapCache small = new OffHeapCache(16 * 1024, 150, 2);
+        model.clear();
+        for (int idx=0; idx < 100000; idx++) {
+            final String key = "key" + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                final String value = "value" + random.nextInt() + ((random.nextInt(10) == 0) ? new String(new char[300]) : "");
+                assertTrue(small.put(bytes(key), bytes(value)));
+                model.put(key, value);
+            } else {
+                final ByteArray found = small.get(bytes(key));
+                if (found != null) assertEquals(model.get(key), string(found));
+            }
+            assertTrue(small.size() <= 150);
+        }
+        assertTrue(small.getEvictions() > 0);
+        assertTrue(small.getReinserted() > 0);
+    }
+
+    private static ByteArray bytes(final String pValue) throws Exception { return new ByteArray(pValue.getBytes("UTF-8")); }
+
+    private static String string(final ByteArray pValue) throws Exception { return new String(pValue.data, pValue.offset, pValue.length, "UTF-8"); }
+}
+
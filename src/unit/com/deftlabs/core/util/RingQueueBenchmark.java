@@ -0,0 +1,152 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The ring queue benchmark. The producers hand the elements to one
+ * consumer and the throughput is reported for the ring queues,
+ * ArrayBlockingQueue and SynchQueue (with a tenth of the elements, it is a
+ * rendezvous per element). Each case is run twice and the second (warm)
+ * run is reported. The ring queue producers and consumer yield when the
+ * queue is full or empty.
+ * <br/><br/>
+ *
+ * Usage: RingQueueBenchmark [elements] [producers] [capacity]
+ */
+public final class RingQueueBenchmark {
+
+    private static final Integer ITEM = Integer.valueOf(1);
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int count = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 20000000;
+        final int producers = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 2;
+        final int capacity = (pArgs.length > 2) ? Integer.parseInt(pArgs[2]) : 4096;
+
+        System.out.println("elements: " + count + " - producers (mpsc/abq): " + producers + " - capacity: " + capacity
+                           + " - cpus: " + Runtime.getRuntime().availableProcessors());
+
+        for (int run=0; run < 2; run++) {
+            final boolean report = run == 1;
+            result(report, "spsc ring (drain)", count, ring(new SpscRingQueue<Integer>(capacity), 1, count, true));
+            result(report, "spsc ring (take)", count, ring(new SpscRingQueue<Integer>(capacity), 1, count, false));
+            result(report, "mpsc ring (drain) x" + producers, count, ring(new MpscRingQueue<Integer>(capacity), producers, count, true));
+            result(report, "array blocking queue x1", count, blocking(new ArrayBlockingQueue<Integer>(capacity), 1, count));
+            result(report, "array blocking queue x" + producers, count, blocking(new ArrayBlockingQueue<Integer>(capacity), producers, count));
+            result(report, "synch queue", count / 10, synch(count / 10));
+        }
+    }
+
+    private static void result(final boolean pReport, final String pName, final int pCount, final long pNanos) {
+        if (!pReport) return;
+        System.out.println(String.format("%-28s %,14.0f ops/sec", pName, pCount * 1000000000.0 / pNanos));
+    }
+
+    private static long ring(   final RingQueue<Integer> pQueue,
+                                final int pProducers,
+                                final int pCount,
+                                final boolean pDrain)
+        throws Exception
+    {
+        final Thread [] threads = producers(pProducers, pCount, new Producer() {
+            public void produce(final int pItems) throws Exception {
+                for (int idx=0; idx < pItems; idx++) {
+                    while (!pQueue.offer(ITEM)) Thread.yield();
+                }
+            }
+        });
+
+        final int [] received = new int[1];
+        final RingQueue.Handler<Integer> handler = new RingQueue.Handler<Integer>() {
+            public void execute(final Integer pItem) { received[0] += pItem; }
+        };
+        final IdleStrategy idle = new IdleStrategies.Yielding();
+
+        final long start = System.nanoTime();
+        for (final Thread thread : threads) thread.start();
+
+        if (pDrain) {
+            while (received[0] < pCount) {
+                if (pQueue.drain(handler, 256) == 0) Thread.yield();
+            }
+        } else {
+            for (int idx=0; idx < pCount; idx++) received[0] += pQueue.take(idle);
+        }
+
+        final long nanos = System.nanoTime() - start;
+        for (final Thread thread : threads) thread.join();
+        return nanos;
+    }
+
+    private static long blocking(final BlockingQueue<Integer> pQueue, final int pProducers, final int pCount) throws Exception {
+        final Thread [] threads = producers(pProducers, pCount, new Producer() {
+            public void produce(final int pItems) throws Exception {
+                for (int idx=0; idx < pItems; idx++) pQueue.put(ITEM);
+            }
+        });
+
+        final long start = System.nanoTime();
+        for (final Thread thread : threads) thread.start();
+
+        long received = 0;
+        for (int idx=0; idx < pCount; idx++) received += pQueue.take();
+
+        final long nanos = System.nanoTime() - start;
+        for (final Thread thread : threads) thread.join();
+        if (received != pCount) throw new IllegalStateException("lost elements");
+        return nanos;
+    }
+
+    private static long synch(final int pCount) throws Exception {
+        final SynchQueue<Integer> queue = new SynchQueue<Integer>();
+        final Thread [] threads = producers(1, pCount, new Producer() {
+            public void produce(final int pItems) throws Exception {
+                for (int idx=0; idx < pItems; idx++) queue.put(ITEM);
+            }
+        });
+
+        final long start = System.nanoTime();
+        for (final Thread thread : threads) thread.start();
+        for (int idx=0; idx < pCount; idx++) queue.take();
+
+        final long nanos = System.nanoTime() - start;
+        for (final Thread thread : threads) thread.join();
+        return nanos;
+    }
+
+    private static Thread [] producers(final int pProducers, final int pCount, final Producer pProducer) {
+        final Thread [] threads = new Thread[pProducers];
+        for (int idx=0; idx < pProducers; idx++) {
+            final int items = pCount / pProducers + ((idx < pCount % pProducers) ? 1 : 0);
+            threads[idx] = new Thread() {
+                public void run() {
+                    try { pProducer.produce(items);
+                    } catch (final Exception e) { e.printStackTrace(); }
+                }
+            };
+        }
+        return threads;
+    }
+
+    private static interface Producer {
+        public void produce(int pItems) throws Exception;
+    }
+}
+
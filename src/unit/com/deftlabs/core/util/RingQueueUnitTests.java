@@ -0,0 +1,144 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ring queue tests.
+ */
+public final class RingQueueUnitTests {
+
+    @Test
+    public final void testOfferPollDrain() throws Exception {
+        final List<RingQueue<Integer>> queues = new ArrayList<RingQueue<Integer>>();
+        queues.add(new SpscRingQueue<Integer>(6));
+        queues.add(new MpscRingQueue<Integer>(6));
+
+        for (final RingQueue<Integer> queue : queues) {
+            assertEquals(8, queue.capacity());
+            assertNull(queue.poll());
+
+            for (int idx=0; idx < 8; idx++) assertTrue(queue.offer(idx));
+            assertFalse(queue.offer(8));
+            assertEquals(8, queue.size());
+
+            assertEquals(Integer.valueOf(0), queue.poll());
+            assertTrue(queue.offer(8));
+
+            final List<Integer> drained = new ArrayList<Integer>();
+            final RingQueue.Handler<Integer> handler = new RingQueue.Handler<Integer>() {
+                public void execute(final Integer pItem) { drained.add(pItem); }
+            };
+
+            assertEquals(3, queue.drain(handler, 3));
+            assertEquals(5, queue.drain(handler, 100));
+            assertEquals(0, queue.drain(handler, 100));
+            for (int idx=0; idx < drained.size(); idx++) assertEquals(Integer.valueOf(idx + 1), drained.get(idx));
+            assertEquals(0, queue.size());
+
+            try { queue.offer(null); fail("null allowed");
+            } catch (final IllegalArgumentException iae) { }
+        }
+    }
+
+    @Test
+    public final void testSpscTransfer() throws Exception {
+        final SpscRingQueue<Integer> queue = new SpscRingQueue<Integer>(64);
+        final int count = 200000;
+
+        final Thread producer = producer(queue, 0, count);
+        producer.start();
+
+        final IdleStrategy idle = IdleStrategies.create("backoff");
+        for (int idx=0; idx < count; idx++) assertEquals(Integer.valueOf(idx), queue.take(idle));
+        producer.join();
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public final void testMpscTransfer() throws Exception {
+        final MpscRingQueue<Integer> queue = new MpscRingQueue<Integer>(64);
+        final int producers = 4;
+        final int count = 50000;
+
+        final Thread [] threads = new Thread[producers];
+        for (int idx=0; idx < producers; idx++) {
+            threads[idx] = producer(queue, idx * count, count);
+            threads[idx].start();
+        }
+
+        // Each producer's elements arrive in order.
+        final int [] next = new int[producers];
+        for (int idx=0; idx < producers; idx++) next[idx] = idx * count;
+
+        final int [] received = new int[1];
+        final RingQueue.Handler<Integer> handler = new RingQueue.Handler<Integer>() {
+            public void execute(final Integer pItem) {
+                final int producer = pItem / count;
+                assertEquals(next[producer]++, pItem.intValue());
+                received[0]++;
+            }
+        };
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (received[0] < producers * count && System.currentTimeMillis() < deadline) {
+            if (queue.drain(handler, 32) == 0) Thread.yield();
+        }
+
+        for (final Thread thread : threads) thread.join();
+        assertEquals(producers * count, received[0]);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public final void testBlockingTakeIsWoken() throws Exception {
+        final MpscRingQueue<Integer> queue = new MpscRingQueue<Integer>(8);
+
+        final Thread producer = new Thread() {
+            public void run() {
+                try { Thread.sleep(50); } catch (final InterruptedException ie) { }
+                queue.offer(42);
+            }
+        };
+        producer.start();
+
+        // Park with no timeout; only the producer's signal wakes the take.
+        final long start = System.nanoTime();
+        assertEquals(Integer.valueOf(42), queue.take(new IdleStrategies.Blocking(0)));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        producer.join();
+    }
+
+    private static Thread producer(final RingQueue<Integer> pQueue, final int pStart, final int pCount) {
+        return new Thread() {
+            public void run() {
+                for (int idx=pStart; idx < pStart + pCount; idx++) {
+                    while (!pQueue.offer(idx)) Thread.yield();
+                }
+            }
+        };
+    }
+}
+
@@ -0,0 +1,90 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// Java
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The segmented lru map benchmark. Threads read (and, with the write
+ * percent, put) random keys from a full map for the duration; the
+ * throughput of LruMap (one fair lock) and SegmentedLruMap is reported for
+ * each thread count.
+ * <br/><br/>
+ *
+ * Usage: SegmentedLruMapBenchmark [max threads] [seconds] [write percent]
+ */
+public final class SegmentedLruMapBenchmark {
+
+    private static final int SIZE = 100000;
+    private static final int KEYS = 125000;
+
+    public static void main(final String [] pArgs) throws Exception {
+        final int maxThreads = (pArgs.length > 0) ? Integer.parseInt(pArgs[0]) : 32;
+        final int seconds = (pArgs.length > 1) ? Integer.parseInt(pArgs[1]) : 2;
+        final int writePercent = (pArgs.length > 2) ? Integer.parseInt(pArgs[2]) : 0;
+
+        System.out.println("processors: " + Runtime.getRuntime().availableProcessors() + " - write percent: " + writePercent);
+
+        for (int threads=1; threads <= maxThreads; threads *= 2) {
+            final double lru = run(new LruMap<Integer, Integer>(SIZE), threads, seconds, writePercent);
+            final double segmented = run(new SegmentedLruMap<Integer, Integer>(SIZE), threads, seconds, writePercent);
+            System.out.println(String.format("threads: %2d - LruMap: %6.1f M ops/s - SegmentedLruMap: %6.1f M ops/s", threads, lru, segmented));
+        }
+    }
+
+    private static double run(final Map<Integer, Integer> pMap, final int pThreads, final int pSeconds, final int pWritePercent) throws Exception {
+        final Integer [] keys = new Integer[KEYS];
+        for (int idx=0; idx < KEYS; idx++) {
+            keys[idx] = idx;
+            pMap.put(keys[idx], keys[idx]);
+        }
+
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(pThreads);
+        final long end = System.nanoTime() + (pSeconds * 1000000000L);
+
+        for (int thread=0; thread < pThreads; thread++) {
+            final int seed = thread + 1;
+            new Thread() {
+                public void run() {
+                    int random = seed * 0x9e3779b9;
+                    long count = 0;
+                    while (System.nanoTime() < end) {
+                        for (int idx=0; idx < 1000; idx++) {
+                            random ^= random << 13;
+                            random ^= random >>> 17;
+                            random ^= random << 5;
+                            final Integer key = keys[(random & 0x7fffffff) % KEYS];
+                            if (pWritePercent > 0 && (random >>> 25) % 100 < pWritePercent) pMap.put(key, key);
+                            else pMap.get(key);
+                        }
+                        count += 1000;
+                    }
+                    ops.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        done.await();
+        return ops.get() / (double)pSeconds / 1000000;
+    }
+}
+
@@ -0,0 +1,111 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The segmented lru map tests.
+ */
+public final class SegmentedLruMapUnitTests {
+
+    @Test
+    public final void testEvictionPerSegment() throws Exception {
+        final AtomicInteger evicted = new AtomicInteger();
+        final SegmentedLruMap<Integer, Integer> map = new SegmentedLruMap<Integer, Integer>(100, 6, new LruMap.EvictionHandler<Integer, Integer>() {
+            public void execute(final Map.Entry<Integer, Integer> pEldest) { evicted.incrementAndGet(); }
+        });
+
+        assertEquals(8, map.getSegmentCount());
+
+        int total = 0;
+        for (final int size : map.getSegmentSizes()) total += size;
+        assertEquals(0, total);
+
+        for (int idx=0; idx < 1000; idx++) map.put(idx, idx);
+        assertTrue(map.size() <= 100);
+        assertEquals(1000 - map.size(), evicted.get());
+
+        // The recent keys are kept.
+        assertEquals(999, map.get(999).intValue());
+        assertNull(map.get(0));
+
+        // An accessed key outlives the others in its segment.
+        map.clear();
+        assertTrue(map.isEmpty());
+        for (int idx=0; idx < 100; idx++) map.put(idx, idx);
+        for (int idx=0; idx < 100; idx++) map.get(7);
+        for (int idx=100; idx < 10000; idx++) {
+            map.put(idx, idx);
+            map.get(7);
+        }
+        assertEquals(7, map.get(7).intValue());
+
+        assertEquals(map.size(), map.entrySet().size());
+        assertTrue(map.containsValue(7));
+        assertEquals(7, map.remove(7).intValue());
+        assertFalse(map.containsKey(7));
+    }
+
+    @Test
+    public final void testSmallSize() throws Exception {
+        final SegmentedLruMap<String, String> map = new SegmentedLruMap<String, String>(3, 16, null);
+        assertEquals(2, map.getSegmentCount());
+        for (int idx=0; idx < 10; idx++) map.put("key" + idx, "value" + idx);
+        assertTrue(map.size() <= 3);
+        assertEquals(3, map.getMaxSize());
+    }
+
+    @Test
+    public final void testConcurrentAccess() throws Exception {
+        final SegmentedLruMap<Integer, Integer> map = new SegmentedLruMap<Integer, Integer>(1000, 8, null);
+        final AtomicBoolean valid = new AtomicBoolean(true);
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int thread=0; thread < threads; thread++) {
+            final int seed = thread;
+            new Thread() {
+                public void run() {
+                    for (int idx=0; idx < 50000; idx++) {
+                        final int key = (idx * 31 + seed) % 3000;
+                        if (idx % 3 == 0) map.put(key, key);
+                        else {
+                            final Integer value = map.get(key);
+                            if (value != null && value.intValue() != key) valid.set(false);
+                        }
+                        if (idx % 1000 == 0) map.entrySet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        done.await();
+        assertTrue(valid.get());
+        assertTrue(map.size() <= 1000);
+    }
+}
+
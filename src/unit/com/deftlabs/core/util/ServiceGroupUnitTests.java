@@ -0,0 +1,192 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// OEMware
+import com.deftlabs.core.OemException;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The service group tests.
+ */
+public final class ServiceGroupUnitTests {
+
+    @Test
+    public final void testParallelDependencyOrder() throws Exception {
+        final Map<String, long []> times = new ConcurrentHashMap<String, long []>();
+
+        final Service db = new Service("db", 100, 100, times);
+        final Service cache = new Service("cache", 100, 100, times);
+        final Service queue = new Service("queue", 100, 100, times);
+        final Service web = new Service("web", 100, 100, times);
+
+        final ServiceGroup group = new ServiceGroup("test", 4);
+        group.add(web, cache, queue);
+        group.add(cache, db);
+        group.add(queue, db);
+
+        group.startup(5, TimeUnit.SECONDS);
+
+        assertTrue(db.isRunning() && cache.isRunning() && queue.isRunning() && web.isRunning());
+        assertTrue(times.get("cache")[0] >= times.get("db")[1]);
+        assertTrue(times.get("queue")[0] >= times.get("db")[1]);
+        assertTrue(times.get("web")[0] >= Math.max(times.get("cache")[1], times.get("queue")[1]));
+
+        // Cache and queue start in parallel (three levels, not four).
+        assertTrue(group.getStartupNanos() < TimeUnit.MILLISECONDS.toNanos(390));
+        assertTrue(group.getStartupNanos(db) >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(group.getStartupReport().startsWith("group: test - startup: "));
+
+        assertTrue(group.shutdown(5, TimeUnit.SECONDS));
+
+        assertFalse(db.isRunning() || cache.isRunning() || queue.isRunning() || web.isRunning());
+        assertTrue(times.get("cache")[2] >= times.get("web")[3]);
+        assertTrue(times.get("queue")[2] >= times.get("web")[3]);
+        assertTrue(times.get("db")[2] >= Math.max(times.get("cache")[3], times.get("queue")[3]));
+        assertTrue(group.getShutdownNanos() < TimeUnit.MILLISECONDS.toNanos(390));
+        assertTrue(group.getShutdownNanos(web) >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public final void testCycle() throws Exception {
+        final Map<String, long []> times = new ConcurrentHashMap<String, long []>();
+        final Service a = new Service("a", 0, 0, times);
+        final Service b = new Service("b", 0, 0, times);
+        final Service c = new Service("c", 0, 0, times);
+
+        final ServiceGroup group = new ServiceGroup("cycle", 2);
+        group.add(a, b);
+        group.add(b, c);
+        group.add(c, a);
+
+        try {
+            group.startup(1, TimeUnit.SECONDS);
+            fail("cycle not detected");
+        } catch (final OemException oe) { assertTrue(oe.getMessage().contains("dependency cycle")); }
+
+        assertFalse(a.isRunning() || b.isRunning() || c.isRunning());
+    }
+
+    @Test
+    public final void testStartupDeadline() throws Exception {
+        final Map<String, long []> times = new ConcurrentHashMap<String, long []>();
+        final Service fast = new Service("fast", 0, 0, times);
+        final Service slow = new Service("slow", 1000, 0, times);
+        final Service after = new Service("after", 0, 0, times);
+
+        final ServiceGroup group = new ServiceGroup("deadline", 2);
+        group.add(after, slow);
+        group.add(fast);
+
+        final long start = System.nanoTime();
+        try {
+            group.startup(200, TimeUnit.MILLISECONDS);
+            fail("deadline not enforced");
+        } catch (final OemException oe) { assertTrue(oe.getMessage().contains("waiting on: slow")); }
+
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+
+        // The started services are shut down and the dependent never started.
+        assertFalse(fast.isRunning());
+        assertFalse(after.isRunning());
+        assertNull(times.get("after"));
+
+        slow.join(2000);
+        slow.shutdown();
+    }
+
+    @Test
+    public final void testRollbackKeepsRunningServices() throws Exception {
+        final Map<String, long []> times = new ConcurrentHashMap<String, long []>();
+        final Service running = new Service("running", 0, 0, times);
+        final Service fast = new Service("fast", 0, 0, times);
+        final Service slow = new Service("slow", 1000, 0, times);
+
+        running.startup();
+
+        final ServiceGroup group = new ServiceGroup("rollback", 2);
+        group.add(fast, running);
+        group.add(slow);
+
+        try {
+            group.startup(200, TimeUnit.MILLISECONDS);
+            fail("deadline not enforced");
+        } catch (final OemException oe) { assertTrue(oe.getMessage().contains("waiting on: slow")); }
+
+        // Only the service this startup started is shut down.
+        assertFalse(fast.isRunning());
+        assertTrue(running.isRunning());
+        assertEquals(0, times.get("running")[2]);
+
+        running.shutdown();
+        slow.join(2000);
+        slow.shutdown();
+    }
+
+    /**
+     * A service with slow lifecycle methods. The times are the start and
+     * end of beforeStart and the start and end of beforeStop.
+     */
+    private static final class Service extends ThreadBase {
+        private final long startMillis;
+        private final long stopMillis;
+        private final Map<String, long []> times;
+
+        private Service(final String pName, final long pStartMillis, final long pStopMillis, final Map<String, long []> pTimes) {
+            setName(pName);
+            startMillis = pStartMillis;
+            stopMillis = pStopMillis;
+            times = pTimes;
+        }
+
+        protected void beforeStart() {
+            final long [] entry = new long[4];
+            entry[0] = System.nanoTime();
+            pause(startMillis);
+            entry[1] = System.nanoTime();
+            times.put(getName(), entry);
+        }
+
+        protected void beforeStop() {
+            final long [] entry = times.get(getName());
+            entry[2] = System.nanoTime();
+            pause(stopMillis);
+            entry[3] = System.nanoTime();
+        }
+
+        private void pause(final long pMillis) {
+            try { if (pMillis > 0) Thread.sleep(pMillis);
+            } catch (final InterruptedException ie) { }
+        }
+
+        public void run() {
+            while (_running) {
+                try { Thread.sleep(10);
+                } catch (final InterruptedException ie) { }
+            }
+        }
+    }
+}
+
@@ -0,0 +1,152 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import javax.management.ObjectName;
+
+/**
+ * The thread monitor tests.
+ */
+public final class ThreadMonitorUnitTests {
+
+    // Keeps the allocations from being optimized away.
+    private static volatile Object _sink;
+
+    @Test
+    public final void testStalledAndHotThreads() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // Beats once, then blocks without marking itself idle.
+        final ThreadBase stalled = new ThreadBase() {
+            public void run() {
+                heartbeat();
+                try { release.await(); } catch (final InterruptedException ie) { }
+            }
+        };
+        stalled.setName("stalled");
+
+        // Blocks after marking itself idle.
+        final ThreadBase idle = new ThreadBase() {
+            public void run() {
+                markIdle();
+                try { release.await(); } catch (final InterruptedException ie) { }
+            }
+        };
+        idle.setName("idle");
+
+        // Spins and allocates.
+        final ThreadBase hot = new ThreadBase() {
+            public void run() {
+                while (_running) {
+                    heartbeat();
+                    _sink = new byte[64];
+                }
+            }
+        };
+        hot.setName("hot");
+
+        final ThreadMonitor monitor = new ThreadMonitor(50, 150, 60, 4);
+
+        stalled.startup();
+        idle.startup();
+        hot.startup();
+        monitor.startup();
+
+        try {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                if (Arrays.asList(monitor.getHotThreads()).contains("hot") && Arrays.asList(monitor.getStalledThreads()).contains("stalled")) break;
+                Thread.sleep(20);
+            }
+
+            assertTrue(Arrays.asList(monitor.getStalledThreads()).contains("stalled"));
+            assertFalse(Arrays.asList(monitor.getStalledThreads()).contains("idle"));
+            assertFalse(Arrays.asList(monitor.getStalledThreads()).contains("hot"));
+            assertFalse(Arrays.asList(monitor.getStalledThreads()).contains("thread-monitor"));
+            assertTrue(Arrays.asList(monitor.getHotThreads()).contains("hot"));
+            assertFalse(Arrays.asList(monitor.getHotThreads()).contains("idle"));
+
+            final ThreadMonitorStats idleStats = monitor.getStats(idle);
+            assertTrue(idleStats.isIdle());
+            assertEquals(-1, idleStats.getHeartbeatAgeMillis());
+
+            final ThreadMonitorStats hotStats = monitor.getStats(hot);
+            assertTrue(hotStats.getMeanCpuPercent() >= 60);
+            assertTrue(hotStats.getCpuNanos() > 0);
+            assertTrue(hotStats.getAllocatedBytes() > 0);
+            assertTrue(hotStats.getAllocatedBytesPerSecond() > 0);
+            assertTrue(monitor.getReport().contains("hot - id: "));
+
+            // The rolling stats are exposed over jmx.
+            final ObjectName name = new ObjectName("com.deftlabs.core:type=ThreadMonitor,name=\"thread-monitor\"");
+            final Integer count = (Integer)ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ThreadCount");
+            assertTrue(count.intValue() >= 4);
+            final String [] hotThreads = (String [])ManagementFactory.getPlatformMBeanServer().getAttribute(name, "HotThreads");
+            assertTrue(Arrays.asList(hotThreads).contains("hot"));
+
+            // Shut down threads are no longer monitored.
+            hot.shutdown();
+            hot.join(1000);
+            monitor.sample();
+            assertNull(monitor.getStats(hot));
+
+        } finally {
+            release.countDown();
+            stalled.shutdown();
+            idle.shutdown();
+            hot.shutdown();
+            monitor.shutdown();
+        }
+
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("com.deftlabs.core:type=ThreadMonitor,name=\"thread-monitor\"")));
+    }
+
+    @Test
+    public final void testFinishedThreadsAreUnregistered() throws Exception {
+        // Return without a shutdown.
+        final ThreadBase [] finished = new ThreadBase[10];
+        for (int idx=0; idx < finished.length; idx++) {
+            finished[idx] = new ThreadBase() {
+                public void run() { heartbeat(); }
+            };
+            finished[idx].setName("finished-" + idx);
+            finished[idx].startup();
+            finished[idx].join(1000);
+        }
+
+        final ThreadBase last = finished[finished.length - 1];
+        assertTrue(ThreadMonitor.isRegistered(last));
+
+        // Without a monitor, the next registration prunes them.
+        for (int idx=0; idx < finished.length - 1; idx++) assertFalse(ThreadMonitor.isRegistered(finished[idx]));
+
+        // A monitor sample prunes them too.
+        final ThreadMonitor monitor = new ThreadMonitor(50, 150, 60, 4);
+        monitor.sample();
+        assertFalse(ThreadMonitor.isRegistered(last));
+        assertNull(monitor.getStats(last));
+    }
+}
+
@@ -0,0 +1,109 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The timer wheel tests.
+ */
+public final class TimerWheelUnitTests {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public final void testExpireInOrder() throws Exception {
+        final TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 8, 0);
+        final List<Long> fired = new ArrayList<Long>();
+
+        // The delays span several revolutions.
+        final long [] delays = new long[] { 3, 1, 20, 9, 8, 100 };
+        for (final long delay : delays) {
+            wheel.schedule(new TimerWheel.Task() {
+                public void execute(final TimerWheel.Timeout pTimeout) { fired.add(delay); }
+            }, delay, TimeUnit.MILLISECONDS, 0);
+        }
+
+        assertEquals(delays.length, wheel.size());
+
+        for (long now=0; now <= 100; now++) {
+            wheel.expire(now * MS);
+
+            // Never early.
+            for (final Long delay : fired) assertTrue(delay <= now);
+        }
+
+        assertEquals(0, wheel.size());
+        assertEquals(6, fired.size());
+        for (int idx=1; idx < fired.size(); idx++) assertTrue(fired.get(idx - 1) < fired.get(idx));
+    }
+
+    @Test
+    public final void testCancel() throws Exception {
+        final TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 8, 0);
+        final int [] fired = new int[1];
+
+        final TimerWheel.Task task = new TimerWheel.Task() {
+            public void execute(final TimerWheel.Timeout pTimeout) { fired[0]++; }
+        };
+
+        final TimerWheel.Timeout [] later = new TimerWheel.Timeout[2];
+
+        // A task cancels the timeouts that are due in the same tick.
+        wheel.schedule(new TimerWheel.Task() {
+            public void execute(final TimerWheel.Timeout pTimeout) { later[0].cancel(); later[1].cancel(); }
+        }, 5, TimeUnit.MILLISECONDS, 0);
+
+        later[0] = wheel.schedule(task, 5, TimeUnit.MILLISECONDS, 0);
+        later[1] = wheel.schedule(task, 5, TimeUnit.MILLISECONDS, 0);
+
+        assertEquals(3, wheel.size());
+        assertEquals(1, wheel.expire(5 * MS));
+        assertEquals(0, fired[0]);
+        assertEquals(0, wheel.size());
+        assertTrue(later[0].isCancelled());
+        assertFalse(later[1].cancel());
+
+        final TimerWheel.Timeout timeout = wheel.schedule(task, 3, TimeUnit.MILLISECONDS, 5 * MS);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, wheel.size());
+        assertEquals(-1, wheel.nextTimeout(5 * MS));
+        assertEquals(0, wheel.expire(20 * MS));
+    }
+
+    @Test
+    public final void testNextTimeout() throws Exception {
+        final TimerWheel wheel = new TimerWheel(1, TimeUnit.MILLISECONDS, 64, 0);
+        final TimerWheel.Task task = new TimerWheel.Task() {
+            public void execute(final TimerWheel.Timeout pTimeout) { }
+        };
+
+        wheel.schedule(task, 10, TimeUnit.MILLISECONDS, 0);
+        assertEquals(10 * MS, wheel.nextTimeout(0));
+        assertEquals(4 * MS, wheel.nextTimeout(6 * MS));
+        assertEquals(0, wheel.nextTimeout(11 * MS));
+        assertEquals(1, wheel.expire(11 * MS));
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+// Java
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The TinyLFU map tests.
+ */
+public final class TinyLfuMapUnitTests {
+
+    @Test
+    public final void testSketch() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        assertEquals(0, sketch.frequency("a"));
+
+        for (int idx=0; idx < 5; idx++) sketch.increment("a");
+        sketch.increment("b");
+        assertEquals(5, sketch.frequency("a"));
+        assertEquals(1, sketch.frequency("b"));
+
+        // The counters saturate at 15.
+        for (int idx=0; idx < 20; idx++) sketch.increment("c");
+        assertEquals(15, sketch.frequency("c"));
+
+        // The counts are halved after ten times the size additions.
+        for (int idx=0; sketch.getResets() == 0; idx++) sketch.increment("x" + idx);
+        assertTrue(sketch.frequency("c") <= 8);
+        assertTrue(sketch.frequency("a") <= 3);
+    }
+
+    @Test
+    public final void testScanResistance() throws Exception {
+        final int size = 1000;
+        final TinyLfuMap<Integer, Integer> tinyLfu = new TinyLfuMap<Integer, Integer>(size);
+        final LruMap<Integer, Integer> lru = new LruMap<Integer, Integer>(size);
+
+        // A hot set, read a few times, then a scan of new keys.
+        for (int round=0; round < 4; round++) {
+            for (int key=0; key < 500; key++) access(tinyLfu, key);
+            for (int key=0; key < 500; key++) access(lru, key);
+        }
+        for (int key=10000; key < 20000; key++) {
+            access(tinyLfu, key);
+            access(lru, key);
+        }
+
+        int tinyLfuHits = 0;
+        int lruHits = 0;
+        for (int key=0; key < 500; key++) {
+            if (tinyLfu.containsKey(key)) tinyLfuHits++;
+            if (lru.containsKey(key)) lruHits++;
+        }
+
+        assertEquals(0, lruHits);
+        assertTrue(tinyLfuHits > 450);
+        assertTrue(tinyLfu.getRejected() > 8000);
+        assertTrue(tinyLfu.size() <= size);
+    }
+
+    @Test
+    public final void testMapApiAndEviction() throws Exception {
+        final AtomicInteger evicted = new AtomicInteger();
+        final TinyLfuMap<String, String> map = new TinyLfuMap<String, String>(100, new LruMap.EvictionHandler<String, String>() {
+            public void execute(final Map.Entry<String, String> pEldest) { evicted.incrementAndGet(); }
+        });
+
+        assertNull(map.put("a", "1"));
+        assertEquals("1", map.put("a", "2"));
+        assertEquals("2", map.get("a"));
+        assertEquals("2", map.remove("a"));
+        assertNull(map.get("a"));
+        assertTrue(map.isEmpty());
+
+        for (int idx=0; idx < 1000; idx++) map.put("k" + idx, "v" + idx);
+        assertEquals(100, map.size());
+        assertEquals(900, evicted.get());
+        assertEquals(100, map.entrySet().size());
+        assertTrue(map.getReport().startsWith("size: 100/100"));
+
+        map.clear();
+        assertEquals(0, map.size());
+
+        // A single entry map still works.
+        final TinyLfuMap<String, String> one = new TinyLfuMap<String, String>(1);
+        one.put("a", "1");
+        one.put("b", "2");
+        assertEquals(1, one.size());
+        assertEquals("2", one.get("b"));
+    }
+
+    @Test
+    public final void testSyntheticTraceHitRatio() throws Exception {
+        final String [] trace = CacheSimulator.syntheticTrace(200000, 20000, 0.9, 20000, 4000);
+        assertTrue(hitRatio(new TinyLfuMap<String, String>(1000), trace) > hitRatio(new LruMap<String, String>(1000), trace));
+    }
+
+    private static double hitRatio(final Map<String, String> pCache, final String [] pTrace) {
+        long hits = 0;
+        for (final String key : pTrace) {
+            if (pCache.get(key) != null) hits++;
+            else pCache.put(key, key);
+        }
+        return (double)hits / pTrace.length;
+    }
+
+    private static void access(final Map<Integer, Integer> pMap, final int pKey) {
+        if (pMap.get(pKey) == null) pMap.put(pKey, pKey);
+    }
+}
+
@@ -0,0 +1,58 @@
+/**
+ * (C) Copyright 2012, Deft Labs.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.deftlabs.core.util;
+
+// JUnit
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The token bucket tests.
+ */
+public final class TokenBucketUnitTests {
+
+    private static final long MILLISECOND = 1000000L;
+
+    @Test
+    public final void testBurstThenPace() throws Exception {
+        // 1000 tokens per second is one token per millisecond.
+        final TokenBucket bucket = new TokenBucket(1000, 10);
+        final long now = System.nanoTime() + 1000 * MILLISECOND;
+
+        for (int idx=0; idx < 10; idx++) assertEquals(0, bucket.reserve(1, now));
+
+        assertEquals(MILLISECOND, bucket.reserve(1, now));
+        assertEquals(2 * MILLISECOND, bucket.reserve(1, now));
+        assertEquals(0, bucket.available(now));
+    }
+
+    @Test
+    public final void testRefill() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1000, 10);
+        final long now = System.nanoTime() + 1000 * MILLISECOND;
+
+        assertEquals(0, bucket.reserve(10, now));
+        assertEquals(0, bucket.available(now));
+        assertEquals(5, bucket.available(now + 5 * MILLISECOND));
+
+        // Idle time never adds more than the burst.
+        assertEquals(10, bucket.available(now + 100 * MILLISECOND));
+        assertEquals(0, bucket.reserve(10, now + 100 * MILLISECOND));
+        assertEquals(MILLISECOND, bucket.reserve(1, now + 100 * MILLISECOND));
+    }
+}
+